@@ -0,0 +1,165 @@
+package com.anthroid.claude;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Measurements of sending and receiving messages, printed rather than asserted as they depend on the machine.
+ * Only part of the unit tests with -Pbenchmark, see app/build.gradle.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ClaudeBenchmarkTest {
+
+    private static final int TURNS = 200;
+    private static final int IMAGES = 10;
+    private static final int IMAGE_BASE64_LENGTH = 128 * 1024;
+    private static final int DELTAS = 20000;
+
+    private static JSONObject textMessage(String role, String text) throws JSONException {
+        return new JSONObject().put("role", role).put("content", text);
+    }
+
+    private static JSONObject imageMessage(String text, String base64) throws JSONException {
+        JSONArray content = new JSONArray()
+            .put(new JSONObject().put("type", "image").put("source", new JSONObject()
+                .put("type", "base64").put("media_type", "image/jpeg").put("data", base64)))
+            .put(new JSONObject().put("type", "text").put("text", text));
+        return new JSONObject().put("role", "user").put("content", content);
+    }
+
+    private static String textDelta(String escapedText) {
+        return "event: content_block_delta\r\ndata: {\"type\":\"content_block_delta\",\"index\":0,"
+            + "\"delta\":{\"type\":\"text_delta\",\"text\":\"" + escapedText + "\"}}\r\n\r\n";
+    }
+
+    private static JSONObject requestFields() throws JSONException {
+        return new JSONObject().put("model", "claude").put("max_tokens", 4096).put("stream", true)
+            .put("tools", new JSONArray().put(new JSONObject().put("name", "bash")));
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) return 0;
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported()) return 0;
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Compares sending a conversation of {@link #TURNS} turns, {@link #IMAGES} of them with an image, by streaming the
+     * serialized history against copying it into a new request JSON tree, string and byte array every turn.
+     */
+    @Test
+    public void testStreamingBenchmark() throws Exception {
+        Random random = new Random(1);
+        StringBuilder base64 = new StringBuilder(IMAGE_BASE64_LENGTH);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < IMAGE_BASE64_LENGTH; i++) base64.append(alphabet.charAt(random.nextInt(64)));
+
+        List<JSONObject> messages = new ArrayList<>();
+        MessageHistory history = new MessageHistory();
+        BufferedSink sink = Okio.buffer(Okio.blackhole());
+        long copiedNanos = 0, streamedNanos = 0, lastCopiedAllocated = 0, lastStreamedAllocated = 0;
+        long copiedLength = 0, streamedLength = 0;
+        for (int turn = 0; turn < TURNS; turn++) {
+            JSONObject user = (turn % (TURNS / IMAGES) == 0)
+                ? imageMessage("What is in this picture " + turn + "?", base64.toString())
+                : textMessage("user", "Question number " + turn + " about the terminal output");
+            JSONObject assistant = textMessage("assistant", "An answer of a few sentences to question " + turn + ", with some detail.");
+
+            // Copying the history into a new request every turn:
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            messages.add(user);
+            JSONArray messagesArray = new JSONArray();
+            for (JSONObject message : messages) messagesArray.put(message);
+            JSONObject request = requestFields();
+            request.put("messages", messagesArray);
+            byte[] bytes = request.toString().getBytes(StandardCharsets.UTF_8);
+            sink.write(bytes);
+            messages.add(assistant);
+            copiedNanos += System.nanoTime() - start;
+            lastCopiedAllocated = allocatedBytes() - allocated;
+            copiedLength = bytes.length;
+
+            // Streaming the serialized history:
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            history.add(user);
+            RequestBody body = history.requestBody(requestFields());
+            body.writeTo(sink);
+            history.add(assistant);
+            streamedNanos += System.nanoTime() - start;
+            lastStreamedAllocated = allocatedBytes() - allocated;
+            streamedLength = body.contentLength();
+        }
+
+        System.out.println(String.format(Locale.US, "ClaudeBenchmarkTest: %d turns with %d images, %.1f MB request at the end:"
+                + " copying %.1f ms per turn and %.1f MB allocated by the last, streaming %.1f ms per turn and %.1f MB allocated by the last",
+            TURNS, IMAGES, copiedLength / 1e6, copiedNanos / 1e6 / TURNS, lastCopiedAllocated / 1e6,
+            streamedNanos / 1e6 / TURNS, lastStreamedAllocated / 1e6));
+        // The same fields and messages, only in another order:
+        Assert.assertEquals(copiedLength, streamedLength);
+    }
+
+    /** Compares decoding a response of {@link #DELTAS} short text deltas against reading lines and parsing each event. */
+    @Test
+    public void testDecodingBenchmark() throws Exception {
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < DELTAS; i++) stream.append(textDelta(i % 10 == 0 ? "\\n- item " + i : " word" + i));
+        Buffer response = new Buffer().writeUtf8(stream.toString());
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(response.clone().inputStream()));
+        StringBuilder parsedText = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("data: ")) continue;
+            JSONObject event = new JSONObject(line.substring(6));
+            if (event.optString("type").equals("content_block_delta")) {
+                parsedText.append(event.optJSONObject("delta").optString("text", ""));
+            }
+        }
+        long parsedNanos = System.nanoTime() - start;
+        long parsedAllocated = allocatedBytes() - allocated;
+
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        MessagesStreamDecoder decoder = new MessagesStreamDecoder(response.clone());
+        StringBuilder decodedText = new StringBuilder();
+        while (decoder.next()) {
+            if (decoder.getDeltaType().equals(MessagesStreamDecoder.TEXT_DELTA)) decodedText.append(decoder.getDeltaValue());
+        }
+        long decodedNanos = System.nanoTime() - start;
+        long decodedAllocated = allocatedBytes() - allocated;
+
+        System.out.println(String.format(Locale.US, "ClaudeBenchmarkTest: %d text deltas, %.1f MB:"
+                + " parsing %.1f ms and %.0f bytes allocated per event, decoding %.1f ms and %.0f bytes allocated per event",
+            DELTAS, response.size() / 1e6, parsedNanos / 1e6, parsedAllocated / (double) DELTAS,
+            decodedNanos / 1e6, decodedAllocated / (double) DELTAS));
+        Assert.assertEquals(parsedText.toString(), decodedText.toString());
+    }
+
+}
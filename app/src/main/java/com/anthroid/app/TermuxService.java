@@ -49,6 +49,7 @@ import com.anthroid.terminal.TerminalEmulator;
 import com.anthroid.terminal.TerminalSession;
 import com.anthroid.terminal.TerminalSessionClient;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -107,6 +108,11 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
 
     private static final String LOG_TAG = "TermuxService";
 
+    /** The directory in the cache directory with the scrollback files of the sessions, see {@link TerminalSession#setScrollbackFile(File, long)}. */
+    private static final String SCROLLBACK_DIRECTORY_NAME = "scrollback";
+    /** The most history to keep in the scrollback file of a session, some hundred thousand rows. */
+    private static final long SCROLLBACK_MAX_BYTES = 64L * 1024 * 1024;
+
     @Override
     public void onCreate() {
         Logger.logVerbose(LOG_TAG, "onCreate");
@@ -117,6 +123,17 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
 
         mShellManager = TermuxShellManager.getShellManager();
 
+        // Scrollback files left behind by sessions of a process which was killed:
+        if (mShellManager.mTermuxSessions.isEmpty()) {
+            File[] leftoverScrollbackFiles = getScrollbackDirectory().listFiles();
+            if (leftoverScrollbackFiles != null) {
+                for (File file : leftoverScrollbackFiles) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+
         runStartForeground();
 
         SystemEventReceiver.registerPackageUpdateEvents(this);
@@ -605,6 +622,12 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
             return null;
         }
 
+        // Keep history beyond the transcript rows on storage, which agent sessions reading command output rely on
+        TerminalSession newTerminalSession = newTermuxSession.getTerminalSession();
+        File scrollbackDirectory = getScrollbackDirectory();
+        if (scrollbackDirectory.isDirectory() || scrollbackDirectory.mkdirs())
+            newTerminalSession.setScrollbackFile(new File(scrollbackDirectory, newTerminalSession.mHandle), SCROLLBACK_MAX_BYTES);
+
         mShellManager.mTermuxSessions.add(newTermuxSession);
 
         // Remove the execution command from the pending plugin execution commands list since it has
@@ -625,6 +648,10 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         return newTermuxSession;
     }
 
+    private File getScrollbackDirectory() {
+        return new File(getCacheDir(), SCROLLBACK_DIRECTORY_NAME);
+    }
+
     /** Remove a TermuxSession. */
     public synchronized int removeTermuxSession(TerminalSession sessionToRemove) {
         int index = getIndexOfSession(sessionToRemove);
@@ -648,6 +675,7 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
                 TermuxPluginUtils.processPluginExecutionCommandResult(this, LOG_TAG, executionCommand);
 
             mShellManager.mTermuxSessions.remove(termuxSession);
+            termuxSession.getTerminalSession().closeScrollbackFile();
 
             // Notify {@link TermuxSessionsListViewController} that sessions list has been updated if
             // activity in is foreground
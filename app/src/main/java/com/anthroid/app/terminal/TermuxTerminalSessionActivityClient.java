@@ -97,6 +97,9 @@ public class TermuxTerminalSessionActivityClient extends TermuxTerminalSessionCl
         // {@link #onStart} if needed.
         setCurrentStoredSession();
 
+        // No session is shown until onStart(), so let them all append output without screen updates.
+        updateHeadlessSessions(null);
+
         // Release mBellSoundPool resources, specially to prevent exceptions like the following to be thrown
         // java.util.concurrent.TimeoutException: android.media.SoundPool.finalize() timed out after 10 seconds
         // Bell is not played in background anyways
@@ -293,6 +296,9 @@ public class TermuxTerminalSessionActivityClient extends TermuxTerminalSessionCl
     public void setCurrentSession(TerminalSession session) {
         if (session == null) return;
 
+        // Take the session back from the headless thread before the terminal view reads it.
+        updateHeadlessSessions(mActivity.isVisible() ? session : null);
+
         if (mActivity.getTerminalView().attachSession(session)) {
             // notify about switched session if not already displaying the session
             notifyOfSessionChange();
@@ -304,6 +310,20 @@ public class TermuxTerminalSessionActivityClient extends TermuxTerminalSessionCl
         updateBackgroundColor();
     }
 
+    /**
+     * Make all sessions other than the shown one headless, so that they append their output in the background without
+     * a screen update for every chunk, and the shown one not, which catches it up with a single screen update.
+     */
+    private void updateHeadlessSessions(@Nullable TerminalSession shownSession) {
+        TermuxService service = mActivity.getTermuxService();
+        if (service == null) return;
+
+        for (TermuxSession termuxSession : service.getTermuxSessions()) {
+            TerminalSession session = termuxSession.getTerminalSession();
+            session.setHeadless(session != shownSession);
+        }
+    }
+
     void notifyOfSessionChange() {
         if (!mActivity.isVisible()) return;
 
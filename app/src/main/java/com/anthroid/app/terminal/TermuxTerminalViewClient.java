@@ -38,6 +38,7 @@ import com.anthroid.shared.logger.Logger;
 import com.anthroid.shared.markdown.MarkdownUtils;
 import com.anthroid.shared.termux.TermuxUtils;
 import com.anthroid.shared.termux.data.TermuxUrlUtils;
+import com.anthroid.shared.termux.interact.TextInputDialogUtils;
 import com.anthroid.shared.view.KeyboardUtils;
 import com.anthroid.shared.view.ViewUtils;
 import com.anthroid.terminal.KeyHandler;
@@ -71,6 +72,9 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
 
     private List<KeyboardShortcut> mSessionShortcuts;
 
+    /** The text last searched for with {@link #showFindDialog()}, whose hits are moved between if searched again. */
+    private String mFindQuery;
+
     private static final String LOG_TAG = "TermuxTerminalViewClient";
 
     public TermuxTerminalViewClient(TermuxActivity activity, TermuxTerminalSessionActivityClient termuxTerminalSessionActivityClient) {
@@ -267,6 +271,8 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
                 mTermuxTerminalSessionActivityClient.addNewSession(false, null);
             } else if (unicodeChar == 'u' /* urls */) {
                 showUrlSelection();
+            } else if (unicodeChar == 'f' /* find */) {
+                showFindDialog();
             } else if (unicodeChar == 'v') {
                 doPaste();
             } else if (unicodeChar == '+' || e.getUnicodeChar(KeyEvent.META_SHIFT_ON) == '+') {
@@ -726,6 +732,33 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
         dialog.show();
     }
 
+    /**
+     * Ask for a text to find in the screen and history of the current session. Its occurrences are highlighted
+     * starting from the one nearest the bottom, and searching for the same text again moves to the previous or next one.
+     */
+    public void showFindDialog() {
+        TerminalSession session = mActivity.getCurrentSession();
+        if (session == null) return;
+
+        TextInputDialogUtils.textInput(mActivity, R.string.title_find_text, mFindQuery,
+            R.string.action_find_previous, text -> findText(text, false),
+            R.string.action_find_next, text -> findText(text, true),
+            -1, null, null);
+    }
+
+    private void findText(String text, boolean down) {
+        if (text.isEmpty()) {
+            mFindQuery = null;
+            mActivity.getTerminalView().clearFind();
+            return;
+        }
+        if (text.equals(mFindQuery) && mActivity.getTerminalView().findNext(down)) return;
+
+        mFindQuery = text;
+        if (mActivity.getTerminalView().findText(text, false) == 0)
+            Logger.showToast(mActivity, mActivity.getString(R.string.msg_find_text_none_found), true);
+    }
+
     public void reportIssueFromTranscript() {
         TerminalSession session = mActivity.getCurrentSession();
         if (session == null) return;
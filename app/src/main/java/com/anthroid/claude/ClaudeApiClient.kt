@@ -7,12 +7,12 @@ import kotlinx.coroutines.*
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import okhttp3.RequestBody
+import okhttp3.RequestBody.Companion.toRequestBody
+import okhttp3.Response
 import org.json.JSONArray
+import org.json.JSONException
 import org.json.JSONObject
-import java.io.BufferedReader
-import java.io.InputStreamReader
-import java.net.HttpURLConnection
-import java.net.URL
 
 /**
  * HTTP-based Claude API client.
@@ -22,6 +22,11 @@ class ClaudeApiClient(private val context: Context) {
 
     companion object {
         private const val TAG = "ClaudeApiClient"
+
+        /** The estimated history tokens above which it is compacted by default, half of the context window. */
+        const val DEFAULT_AUTO_COMPACT_TOKENS = 100_000
+        /** Compacting keeps the most recent turns of up to this fraction of the threshold. */
+        private const val AUTO_COMPACT_KEEP_DIVISOR = 4
     }
 
     /**
@@ -36,7 +41,28 @@ class ClaudeApiClient(private val context: Context) {
     private var baseUrl: String = BuildConfig.CLAUDE_API_BASE_URL
     private var model: String = BuildConfig.CLAUDE_API_MODEL
     private val historyMutex = Mutex()
-    private val conversationHistory = mutableListOf<JSONObject>()
+    private val conversationHistory = MessageHistory()
+
+    /**
+     * The estimated tokens of history above which its oldest turns are summarized in the background, see
+     * [TokenEstimator]. 0 disables it, leaving compacting to [compactConversation].
+     */
+    @Volatile
+    var autoCompactTokens: Int = DEFAULT_AUTO_COMPACT_TOKENS
+
+    private val compactionMutex = Mutex()
+    private val compactionScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /** Prompt cache hits and misses of the requests of this conversation. */
+    val cacheStats = PromptCacheStats()
+
+    /**
+     * The tools, the same in every request and first in the prompt, marked as a cache breakpoint so that they are
+     * cached even while the conversation is too short to be.
+     */
+    private val toolDefinitions: JSONArray by lazy {
+        getToolDefinitions().also { tools -> MessageHistory.markCacheBreakpoint(tools.getJSONObject(tools.length() - 1)) }
+    }
 
     private var pendingToolId: String? = null
     private var pendingToolName: String? = null
@@ -71,6 +97,151 @@ class ClaudeApiClient(private val context: Context) {
      */
     fun isConfigured(): Boolean = apiKey.isNotBlank()
 
+    /**
+     * Open a connection to the API ahead of the next request, e.g. when the user focuses the input box,
+     * so that the request does not wait for the handshake. See [ClaudeHttpTransport.prewarm].
+     */
+    fun prewarm() {
+        if (isConfigured()) ClaudeHttpTransport.prewarm(baseUrl)
+    }
+
+    /**
+     * Post a request to the messages endpoint through the shared [ClaudeHttpTransport].
+     * The caller closes the response.
+     */
+    private fun postMessages(requestBody: RequestBody): Response {
+        return ClaudeHttpTransport.postMessages(baseUrl, apiKey, requestBody)
+    }
+
+    /**
+     * Stream the events of a response to [send] as they arrive and add the assistant message to the history at
+     * the end, with its thinking and tool_use blocks when it used a tool, compacting the history in the background
+     * if it has grown too long. Closes the response.
+     */
+    private suspend fun streamMessage(response: Response, send: suspend (ClaudeEvent) -> Unit) {
+        val decoder = MessagesStreamDecoder(response.body!!.source())
+        val responseBuilder = StringBuilder()
+
+        // Track full assistant response content blocks for proper conversation history
+        val contentBlocks = JSONArray()
+        thinkingAccumulator.clear()
+        var hasToolUse = false
+
+        send(ClaudeEvent.MessageStart(""))
+
+        response.use {
+            while (decoder.next()) {
+                if (decoder.type == MessagesStreamDecoder.CONTENT_BLOCK_DELTA) {
+                    val value = decoder.deltaValue
+                    when (decoder.deltaType) {
+                        MessagesStreamDecoder.INPUT_JSON_DELTA -> pendingToolInput.append(value)
+                        MessagesStreamDecoder.THINKING_DELTA -> if (value.isNotEmpty()) {
+                            thinkingAccumulator.append(value)
+                            send(ClaudeEvent.ThinkingDelta(value))
+                        }
+                        MessagesStreamDecoder.TEXT_DELTA -> if (value.isNotEmpty()) {
+                            responseBuilder.append(value)
+                            send(ClaudeEvent.TextDelta(value))
+                        }
+                    }
+                    continue
+                }
+
+                val event = decoder.json ?: continue
+                try {
+                    when (decoder.type) {
+                        "message_start" -> {
+                            event.optJSONObject("message")?.optJSONObject("usage")?.let { usage ->
+                                cacheStats.record(usage)
+                                Log.d(TAG, "Prompt cache: $cacheStats")
+                            }
+                        }
+                        "content_block_start" -> {
+                            val contentBlock = event.optJSONObject("content_block")
+                            val blockType = contentBlock?.optString("type", "")
+                            when (blockType) {
+                                "tool_use" -> {
+                                    pendingToolId = contentBlock.optString("id")
+                                    pendingToolName = contentBlock.optString("name")
+                                    pendingToolInput.clear()
+                                    hasToolUse = true
+                                    Log.i(TAG, "Tool use started: id=$pendingToolId, name=$pendingToolName")
+                                }
+                                "thinking" -> {
+                                    isInThinkingBlock = true
+                                    thinkingAccumulator.clear()
+                                    Log.i(TAG, "Thinking block started")
+                                    send(ClaudeEvent.ThinkingStart)
+                                }
+                            }
+                        }
+                        "content_block_stop" -> {
+                            if (isInThinkingBlock) {
+                                isInThinkingBlock = false
+                                // Store thinking block for conversation history
+                                if (thinkingAccumulator.isNotEmpty()) {
+                                    contentBlocks.put(JSONObject().apply {
+                                        put("type", "thinking")
+                                        put("thinking", thinkingAccumulator.toString())
+                                    })
+                                }
+                                Log.i(TAG, "Thinking block ended (${thinkingAccumulator.length} chars)")
+                                send(ClaudeEvent.ThinkingEnd)
+                            } else if (pendingToolId != null && pendingToolName != null) {
+                                val toolId = pendingToolId!!
+                                val toolName = pendingToolName!!
+                                val toolInput = if (pendingToolInput.isNotEmpty()) pendingToolInput.toString() else "{}"
+                                // Store tool_use block for conversation history
+                                contentBlocks.put(JSONObject().apply {
+                                    put("type", "tool_use")
+                                    put("id", toolId)
+                                    put("name", toolName)
+                                    put("input", JSONObject(toolInput))
+                                })
+                                Log.i(TAG, "Tool use complete: $toolName")
+                                pendingToolId = null
+                                pendingToolName = null
+                                pendingToolInput.clear()
+                                send(ClaudeEvent.ToolUse(toolId, toolName, toolInput))
+                            }
+                        }
+                        "message_stop" -> {
+                            if (hasToolUse) {
+                                // For tool_use responses, store the full content blocks array
+                                // (includes thinking + tool_use). sendToolResult will add tool_result.
+                                // Add text block if there was any text content
+                                if (responseBuilder.isNotEmpty()) {
+                                    contentBlocks.put(JSONObject().apply {
+                                        put("type", "text")
+                                        put("text", responseBuilder.toString())
+                                    })
+                                }
+                                conversationHistory.add(JSONObject().apply {
+                                    put("role", "assistant")
+                                    put("content", contentBlocks)
+                                })
+                            } else {
+                                // For text-only responses, store as simple string
+                                conversationHistory.add(JSONObject().apply {
+                                    put("role", "assistant")
+                                    put("content", responseBuilder.toString())
+                                })
+                            }
+                            send(ClaudeEvent.MessageEnd)
+                        }
+                        "error" -> {
+                            val errorMsg = event.optJSONObject("error")?.optString("message", "Unknown error")
+                            send(ClaudeEvent.Error(errorMsg ?: "Unknown error"))
+                        }
+                    }
+                } catch (e: JSONException) {
+                    Log.w(TAG, "Failed to handle SSE event: $event", e)
+                }
+            }
+        }
+        maybeCompactInBackground()
+    }
+
     /**
      * Send a message and receive streaming response.
      * @param userMessage The text message to send
@@ -121,27 +292,12 @@ class ClaudeApiClient(private val context: Context) {
 
                 Log.d(TAG, "Sending message with ${images.size} images")
 
-                val url = URL("$baseUrl/v1/messages")
-                val connection = url.openConnection() as HttpURLConnection
-                connection.requestMethod = "POST"
-                connection.setRequestProperty("Content-Type", "application/json")
-                connection.setRequestProperty("x-api-key", apiKey)
-                connection.setRequestProperty("anthropic-version", "2023-06-01")
-                connection.doOutput = true
-                connection.doInput = true
-
-                val messagesArray = JSONArray()
-                for (msg in conversationHistory) {
-                    messagesArray.put(msg)
-                }
-
                 val thinkingEnabled = isThinkingModel()
                 val requestBody = JSONObject().apply {
                     put("model", model)
                     put("max_tokens", if (thinkingEnabled) 16000 else 4096)
                     put("stream", true)
-                    put("messages", messagesArray)
-                    put("tools", getToolDefinitions())
+                    put("tools", toolDefinitions)
                     if (thinkingEnabled) {
                         put("thinking", JSONObject().apply {
                             put("type", "enabled")
@@ -150,155 +306,19 @@ class ClaudeApiClient(private val context: Context) {
                     }
                 }
 
-                Log.d(TAG, "Sending request to $url (thinking=$thinkingEnabled)")
-                connection.outputStream.write(requestBody.toString().toByteArray())
-                connection.outputStream.flush()
-
-                val responseCode = connection.responseCode
-                Log.d(TAG, "Response code: $responseCode")
+                Log.d(TAG, "Sending request to $baseUrl/v1/messages (thinking=$thinkingEnabled)")
+                val response = postMessages(conversationHistory.requestBody(requestBody, cacheBreakpoint = true))
+                val responseCode = response.code
+                Log.d(TAG, "Response code: $responseCode (${response.protocol})")
 
                 if (responseCode != 200) {
-                    val errorStream = connection.errorStream ?: connection.inputStream
-                    val error = errorStream.bufferedReader().readText()
+                    val error = response.use { it.body?.string().orEmpty() }
                     Log.e(TAG, "API error: $error")
                     send(ClaudeEvent.Error("API error ($responseCode): $error"))
                     return@withContext
                 }
 
-                // Process SSE stream
-                val reader = BufferedReader(InputStreamReader(connection.inputStream))
-                val responseBuilder = StringBuilder()
-                var line: String?
-
-                // Track full assistant response content blocks for proper conversation history
-                val contentBlocks = JSONArray()
-                thinkingAccumulator.clear()
-                var hasToolUse = false
-
-                send(ClaudeEvent.MessageStart(""))
-
-                while (reader.readLine().also { line = it } != null) {
-                    if (line!!.startsWith("data: ")) {
-                        val data = line!!.substring(6)
-                        if (data == "[DONE]") break
-
-                        try {
-                            val event = JSONObject(data)
-                            val type = event.optString("type")
-
-                            when (type) {
-                                "content_block_start" -> {
-                                    val contentBlock = event.optJSONObject("content_block")
-                                    val blockType = contentBlock?.optString("type", "")
-                                    when (blockType) {
-                                        "tool_use" -> {
-                                            pendingToolId = contentBlock.optString("id")
-                                            pendingToolName = contentBlock.optString("name")
-                                            pendingToolInput.clear()
-                                            hasToolUse = true
-                                            Log.i(TAG, "Tool use started: id=$pendingToolId, name=$pendingToolName")
-                                        }
-                                        "thinking" -> {
-                                            isInThinkingBlock = true
-                                            thinkingAccumulator.clear()
-                                            Log.i(TAG, "Thinking block started")
-                                            send(ClaudeEvent.ThinkingStart)
-                                        }
-                                    }
-                                }
-                                "content_block_delta" -> {
-                                    val delta = event.optJSONObject("delta")
-                                    val deltaType = delta?.optString("type", "") ?: ""
-
-                                    when (deltaType) {
-                                        "input_json_delta" -> {
-                                            val partialJson = delta.optString("partial_json", "")
-                                            pendingToolInput.append(partialJson)
-                                        }
-                                        "thinking_delta" -> {
-                                            val thinking = delta?.optString("thinking", "") ?: ""
-                                            if (thinking.isNotEmpty()) {
-                                                thinkingAccumulator.append(thinking)
-                                                send(ClaudeEvent.ThinkingDelta(thinking))
-                                            }
-                                        }
-                                        else -> {
-                                            val text = delta?.optString("text", "") ?: ""
-                                            if (text.isNotEmpty()) {
-                                                responseBuilder.append(text)
-                                                send(ClaudeEvent.TextDelta(text))
-                                            }
-                                        }
-                                    }
-                                }
-                                "content_block_stop" -> {
-                                    if (isInThinkingBlock) {
-                                        isInThinkingBlock = false
-                                        // Store thinking block for conversation history
-                                        if (thinkingAccumulator.isNotEmpty()) {
-                                            contentBlocks.put(JSONObject().apply {
-                                                put("type", "thinking")
-                                                put("thinking", thinkingAccumulator.toString())
-                                            })
-                                        }
-                                        Log.i(TAG, "Thinking block ended (${thinkingAccumulator.length} chars)")
-                                        send(ClaudeEvent.ThinkingEnd)
-                                    } else if (pendingToolId != null && pendingToolName != null) {
-                                        val toolId = pendingToolId!!
-                                        val toolName = pendingToolName!!
-                                        val toolInput = if (pendingToolInput.isNotEmpty()) pendingToolInput.toString() else "{}"
-                                        // Store tool_use block for conversation history
-
-                                        contentBlocks.put(JSONObject().apply {
-                                            put("type", "tool_use")
-                                            put("id", toolId)
-                                            put("name", toolName)
-                                            put("input", JSONObject(toolInput))
-                                        })
-                                        Log.i(TAG, "Tool use complete: $toolName")
-                                        pendingToolId = null
-                                        pendingToolName = null
-                                        pendingToolInput.clear()
-                                        send(ClaudeEvent.ToolUse(toolId, toolName, toolInput))
-                                    }
-                                }
-                                "message_stop" -> {
-                                    if (hasToolUse) {
-                                        // For tool_use responses, store the full content blocks array
-                                        // (includes thinking + tool_use). sendToolResult will add tool_result.
-                                        // Add text block if there was any text content
-                                        if (responseBuilder.isNotEmpty()) {
-                                            contentBlocks.put(JSONObject().apply {
-                                                put("type", "text")
-                                                put("text", responseBuilder.toString())
-                                            })
-                                        }
-                                        conversationHistory.add(JSONObject().apply {
-                                            put("role", "assistant")
-                                            put("content", contentBlocks)
-                                        })
-                                    } else {
-                                        // For text-only responses, store as simple string
-                                        conversationHistory.add(JSONObject().apply {
-                                            put("role", "assistant")
-                                            put("content", responseBuilder.toString())
-                                        })
-                                    }
-                                    send(ClaudeEvent.MessageEnd)
-                                }
-                                "error" -> {
-                                    val errorMsg = event.optJSONObject("error")?.optString("message", "Unknown error")
-                                    send(ClaudeEvent.Error(errorMsg ?: "Unknown error"))
-                                }
-                            }
-                        } catch (e: Exception) {
-                            Log.w(TAG, "Failed to parse SSE event: $data", e)
-                        }
-                    }
-                }
-
-                reader.close()
-                connection.disconnect()
+                streamMessage(response) { send(it) }
 
             } catch (e: Exception) {
                 Log.e(TAG, "Chat failed", e)
@@ -312,6 +332,7 @@ class ClaudeApiClient(private val context: Context) {
      */
     fun clearHistory() {
         conversationHistory.clear()
+        cacheStats.reset()
     }
 
     /**
@@ -319,6 +340,11 @@ class ClaudeApiClient(private val context: Context) {
      */
     fun getHistorySize(): Int = conversationHistory.size
 
+    /**
+     * Get the estimated input tokens of the conversation history.
+     */
+    fun getHistoryTokenEstimate(): Long = conversationHistory.tokenEstimate
+
     /**
      * Inject a synthetic tool_use + tool_result pair into conversation history.
      * Used to inject remote agent session results so the local agent can see them.
@@ -373,46 +399,61 @@ class ClaudeApiClient(private val context: Context) {
 
         withContext(Dispatchers.IO) {
             try {
-                // Build conversation text for summarization
-                val conversationText = StringBuilder()
-                for (msg in conversationHistory) {
-                    val role = msg.optString("role", "unknown")
-                    val content = msg.opt("content")
-                    val textContent = when (content) {
-                        is String -> content
-                        is JSONArray -> {
-                            // Extract text from content blocks
-                            val texts = mutableListOf<String>()
-                            for (i in 0 until content.length()) {
-                                val block = content.optJSONObject(i)
-                                when (block?.optString("type")) {
-                                    "text" -> texts.add(block.optString("text", ""))
-                                    "tool_use" -> texts.add("[Tool: ${block.optString("name")}]")
-                                    "tool_result" -> texts.add("[Tool Result]")
-                                }
-                            }
-                            texts.joinToString("\n")
+                // Waits for a compaction running in the background, which leaves less to summarize
+                val compacted = compactionMutex.withLock {
+                    compactHead(conversationHistory.size) { send(it) }
+                }
+                if (compacted) {
+                    send(ClaudeEvent.MessageEnd)
+                    send(ClaudeEvent.SessionEnded(0))
+                }
+
+            } catch (e: Exception) {
+                Log.e(TAG, "Compact failed", e)
+                send(ClaudeEvent.Error("Compact failed: ${e.message}"))
+            }
+        }
+    }
+
+    /**
+     * Summarize the first [count] messages of the history with a request of their own, streaming the summary to
+     * [send], and replace them with the summary. Messages added meanwhile are kept after it. Returns false if the
+     * request failed, which has been sent as an error.
+     */
+    private suspend fun compactHead(count: Int, send: suspend (ClaudeEvent) -> Unit): Boolean {
+        val generation = conversationHistory.generation
+
+        // Build conversation text for summarization
+        val conversationText = StringBuilder()
+        for (msg in conversationHistory.take(count)) {
+            val role = msg.optString("role", "unknown")
+            val content = msg.opt("content")
+            val textContent = when (content) {
+                is String -> content
+                is JSONArray -> {
+                    // Extract text from content blocks
+                    val texts = mutableListOf<String>()
+                    for (i in 0 until content.length()) {
+                        val block = content.optJSONObject(i)
+                        when (block?.optString("type")) {
+                            "text" -> texts.add(block.optString("text", ""))
+                            "tool_use" -> texts.add("[Tool: ${block.optString("name")}]")
+                            "tool_result" -> texts.add("[Tool Result]")
                         }
-                        else -> content?.toString() ?: ""
-                    }
-                    if (textContent.isNotBlank()) {
-                        conversationText.append("[$role]: $textContent\n\n")
                     }
+                    texts.joinToString("\n")
                 }
+                else -> content?.toString() ?: ""
+            }
+            if (textContent.isNotBlank()) {
+                conversationText.append("[$role]: $textContent\n\n")
+            }
+        }
 
-                Log.i(TAG, "Compacting conversation with ${conversationHistory.size} messages")
-
-                // Create summarization request
-                val url = URL("$baseUrl/v1/messages")
-                val connection = url.openConnection() as HttpURLConnection
-                connection.requestMethod = "POST"
-                connection.setRequestProperty("Content-Type", "application/json")
-                connection.setRequestProperty("x-api-key", apiKey)
-                connection.setRequestProperty("anthropic-version", "2023-06-01")
-                connection.doOutput = true
-                connection.doInput = true
+        Log.i(TAG, "Compacting conversation with $count of ${conversationHistory.size} messages")
 
-                val summaryPrompt = """Please provide a concise summary of this conversation. Focus on:
+        // Create summarization request
+        val summaryPrompt = """Please provide a concise summary of this conversation. Focus on:
 1. Key topics discussed
 2. Important decisions or conclusions
 3. Any pending tasks or questions
@@ -423,87 +464,91 @@ $conversationText
 
 Provide the summary in a structured format."""
 
-                val messagesArray = JSONArray().apply {
-                    put(JSONObject().apply {
-                        put("role", "user")
-                        put("content", summaryPrompt)
-                    })
-                }
-
-                val requestBody = JSONObject().apply {
-                    put("model", model)
-                    put("max_tokens", 2048)
-                    put("stream", true)
-                    put("messages", messagesArray)
-                }
-
-                connection.outputStream.write(requestBody.toString().toByteArray())
-                connection.outputStream.flush()
-
-                val responseCode = connection.responseCode
-                if (responseCode != 200) {
-                    val errorStream = connection.errorStream ?: connection.inputStream
-                    val error = errorStream.bufferedReader().readText()
-                    Log.e(TAG, "Compact API error: $error")
-                    send(ClaudeEvent.Error("Compact failed ($responseCode): $error"))
-                    return@withContext
-                }
+        val messagesArray = JSONArray().apply {
+            put(JSONObject().apply {
+                put("role", "user")
+                put("content", summaryPrompt)
+            })
+        }
 
-                // Process SSE stream
-                val reader = BufferedReader(InputStreamReader(connection.inputStream))
-                val summaryBuilder = StringBuilder()
-                var line: String?
+        val requestBody = JSONObject().apply {
+            put("model", model)
+            put("max_tokens", 2048)
+            put("stream", true)
+            put("messages", messagesArray)
+        }
 
-                send(ClaudeEvent.MessageStart("compact"))
+        val response = postMessages(requestBody.toString().toRequestBody(ClaudeHttpTransport.JSON_MEDIA_TYPE))
+        val responseCode = response.code
+        if (responseCode != 200) {
+            val error = response.use { it.body?.string().orEmpty() }
+            Log.e(TAG, "Compact API error: $error")
+            send(ClaudeEvent.Error("Compact failed ($responseCode): $error"))
+            return false
+        }
 
-                while (reader.readLine().also { line = it } != null) {
-                    if (line!!.startsWith("data: ")) {
-                        val data = line!!.substring(6)
-                        if (data == "[DONE]") break
+        // Process SSE stream, only the text of the summary is wanted
+        val decoder = MessagesStreamDecoder(response.body!!.source())
+        val summaryBuilder = StringBuilder()
 
-                        try {
-                            val event = JSONObject(data)
-                            val type = event.optString("type")
+        send(ClaudeEvent.MessageStart("compact"))
 
-                            if (type == "content_block_delta") {
-                                val delta = event.optJSONObject("delta")
-                                val text = delta?.optString("text", "") ?: ""
-                                if (text.isNotEmpty()) {
-                                    summaryBuilder.append(text)
-                                    send(ClaudeEvent.TextDelta(text))
-                                }
-                            }
-                        } catch (e: Exception) {
-                            Log.w(TAG, "Failed to parse compact event: $data", e)
-                        }
-                    }
+        response.use {
+            while (decoder.next()) {
+                if (decoder.deltaType == MessagesStreamDecoder.TEXT_DELTA && decoder.deltaValue.isNotEmpty()) {
+                    summaryBuilder.append(decoder.deltaValue)
+                    send(ClaudeEvent.TextDelta(decoder.deltaValue))
                 }
+            }
+        }
 
-                reader.close()
-                connection.disconnect()
-
-                val summary = summaryBuilder.toString()
-                if (summary.isNotBlank()) {
-                    // Replace history with summary as a system context
-                    val oldSize = conversationHistory.size
-                    conversationHistory.clear()
-                    conversationHistory.add(JSONObject().apply {
+        val summary = summaryBuilder.toString()
+        if (summary.isNotBlank()) {
+            historyMutex.withLock {
+                // Replace the summarized messages with the summary as a system context, unless the history was
+                // cleared while summarizing it
+                val oldSize = conversationHistory.size
+                val replaced = conversationHistory.replaceHead(generation, count, listOf(
+                    JSONObject().apply {
                         put("role", "user")
                         put("content", "[Previous conversation summary]\n$summary")
-                    })
-                    conversationHistory.add(JSONObject().apply {
+                    },
+                    JSONObject().apply {
                         put("role", "assistant")
                         put("content", "I understand. I have the context from our previous conversation. How can I help you continue?")
-                    })
-                    Log.i(TAG, "Conversation compacted: $oldSize messages -> 2 messages")
+                    }
+                ))
+                if (replaced) {
+                    Log.i(TAG, "Conversation compacted: $oldSize messages -> ${conversationHistory.size} messages" +
+                        " (~${conversationHistory.tokenEstimate} tokens)")
                 }
+            }
+        }
+        return true
+    }
 
-                send(ClaudeEvent.MessageEnd)
-                send(ClaudeEvent.SessionEnded(0))
-
+    /**
+     * Once the history is estimated to exceed [autoCompactTokens], summarize its oldest turns in the background,
+     * keeping the most recent ones, so that requests stay bounded in size and latency over long sessions.
+     * Requests made meanwhile still send the whole history.
+     */
+    private fun maybeCompactInBackground() {
+        val threshold = autoCompactTokens
+        if (threshold <= 0 || conversationHistory.tokenEstimate < threshold || compactionMutex.isLocked) return
+        compactionScope.launch {
+            if (!compactionMutex.tryLock()) return@launch
+            try {
+                val count = conversationHistory.compactionSplit((threshold / AUTO_COMPACT_KEEP_DIVISOR).toLong())
+                if (count == 0) {
+                    Log.i(TAG, "History at ~${conversationHistory.tokenEstimate} tokens has no earlier turn to compact")
+                    return@launch
+                }
+                Log.i(TAG, "History at ~${conversationHistory.tokenEstimate} tokens, compacting its oldest $count messages")
+                compactHead(count) { }
             } catch (e: Exception) {
-                Log.e(TAG, "Compact failed", e)
-                send(ClaudeEvent.Error("Compact failed: ${e.message}"))
+                Log.e(TAG, "Background compact failed", e)
+            } finally {
+                compactionMutex.unlock()
             }
         }
     }
@@ -533,27 +578,12 @@ Provide the summary in a structured format."""
                     })
                 })
 
-                val url = URL("$baseUrl/v1/messages")
-                val connection = url.openConnection() as HttpURLConnection
-                connection.requestMethod = "POST"
-                connection.setRequestProperty("Content-Type", "application/json")
-                connection.setRequestProperty("x-api-key", apiKey)
-                connection.setRequestProperty("anthropic-version", "2023-06-01")
-                connection.doOutput = true
-                connection.doInput = true
-
-                val messagesArray = JSONArray()
-                for (msg in conversationHistory) {
-                    messagesArray.put(msg)
-                }
-
                 val thinkingEnabled2 = isThinkingModel()
                 val requestBody = JSONObject().apply {
                     put("model", model)
                     put("max_tokens", if (thinkingEnabled2) 16000 else 4096)
                     put("stream", true)
-                    put("messages", messagesArray)
-                    put("tools", getToolDefinitions())
+                    put("tools", toolDefinitions)
                     if (thinkingEnabled2) {
                         put("thinking", JSONObject().apply {
                             put("type", "enabled")
@@ -563,146 +593,18 @@ Provide the summary in a structured format."""
                 }
 
                 Log.d(TAG, "Sending tool result for $toolName (history=${conversationHistory.size} msgs)")
-                connection.outputStream.write(requestBody.toString().toByteArray())
-                connection.outputStream.flush()
-
-                val responseCode = connection.responseCode
-                Log.d(TAG, "Response code: $responseCode")
+                val response = postMessages(conversationHistory.requestBody(requestBody, cacheBreakpoint = true))
+                val responseCode = response.code
+                Log.d(TAG, "Response code: $responseCode (${response.protocol})")
 
                 if (responseCode != 200) {
-                    val errorStream = connection.errorStream ?: connection.inputStream
-                    val error = errorStream.bufferedReader().readText()
+                    val error = response.use { it.body?.string().orEmpty() }
                     Log.e(TAG, "API error: $error")
                     send(ClaudeEvent.Error("API error ($responseCode): $error"))
                     return@withContext
                 }
 
-                // Process SSE stream — reuse same pattern as chat()
-                val reader = BufferedReader(InputStreamReader(connection.inputStream))
-                val responseBuilder = StringBuilder()
-                var line: String?
-
-                // Track content blocks for this response's conversation history
-                val contentBlocks = JSONArray()
-                thinkingAccumulator.clear()
-                var hasToolUse = false
-
-                send(ClaudeEvent.MessageStart(""))
-
-                while (reader.readLine().also { line = it } != null) {
-                    if (line!!.startsWith("data: ")) {
-                        val data = line!!.substring(6)
-                        if (data == "[DONE]") break
-
-                        try {
-                            val event = JSONObject(data)
-                            val type = event.optString("type")
-
-                            when (type) {
-                                "content_block_start" -> {
-                                    val contentBlock = event.optJSONObject("content_block")
-                                    val blockType = contentBlock?.optString("type", "")
-                                    when (blockType) {
-                                        "tool_use" -> {
-                                            pendingToolId = contentBlock.optString("id")
-                                            pendingToolName = contentBlock.optString("name")
-                                            pendingToolInput.clear()
-                                            hasToolUse = true
-                                            Log.i(TAG, "Tool use started: id=$pendingToolId, name=$pendingToolName")
-                                        }
-                                        "thinking" -> {
-                                            isInThinkingBlock = true
-                                            thinkingAccumulator.clear()
-                                            send(ClaudeEvent.ThinkingStart)
-                                        }
-                                    }
-                                }
-                                "content_block_delta" -> {
-                                    val delta = event.optJSONObject("delta")
-                                    val deltaType = delta?.optString("type", "") ?: ""
-
-                                    when (deltaType) {
-                                        "input_json_delta" -> {
-                                            val partialJson = delta.optString("partial_json", "")
-                                            pendingToolInput.append(partialJson)
-                                        }
-                                        "thinking_delta" -> {
-                                            val thinking = delta?.optString("thinking", "") ?: ""
-                                            if (thinking.isNotEmpty()) {
-                                                thinkingAccumulator.append(thinking)
-                                                send(ClaudeEvent.ThinkingDelta(thinking))
-                                            }
-                                        }
-                                        else -> {
-                                            val text = delta?.optString("text", "") ?: ""
-                                            if (text.isNotEmpty()) {
-                                                responseBuilder.append(text)
-                                                send(ClaudeEvent.TextDelta(text))
-                                            }
-                                        }
-                                    }
-                                }
-                                "content_block_stop" -> {
-                                    if (isInThinkingBlock) {
-                                        isInThinkingBlock = false
-                                        if (thinkingAccumulator.isNotEmpty()) {
-                                            contentBlocks.put(JSONObject().apply {
-                                                put("type", "thinking")
-                                                put("thinking", thinkingAccumulator.toString())
-                                            })
-                                        }
-                                        send(ClaudeEvent.ThinkingEnd)
-                                    } else if (pendingToolId != null && pendingToolName != null) {
-                                        val tid = pendingToolId!!
-                                        val tname = pendingToolName!!
-                                        val tinput = if (pendingToolInput.isNotEmpty()) pendingToolInput.toString() else "{}"
-
-                                        contentBlocks.put(JSONObject().apply {
-                                            put("type", "tool_use")
-                                            put("id", tid)
-                                            put("name", tname)
-                                            put("input", JSONObject(tinput))
-                                        })
-                                        Log.i(TAG, "Tool use complete: $tname")
-                                        pendingToolId = null
-                                        pendingToolName = null
-                                        pendingToolInput.clear()
-                                        send(ClaudeEvent.ToolUse(tid, tname, tinput))
-                                    }
-                                }
-                                "message_stop" -> {
-                                    if (hasToolUse) {
-                                        if (responseBuilder.isNotEmpty()) {
-                                            contentBlocks.put(JSONObject().apply {
-                                                put("type", "text")
-                                                put("text", responseBuilder.toString())
-                                            })
-                                        }
-                                        conversationHistory.add(JSONObject().apply {
-                                            put("role", "assistant")
-                                            put("content", contentBlocks)
-                                        })
-                                    } else {
-                                        conversationHistory.add(JSONObject().apply {
-                                            put("role", "assistant")
-                                            put("content", responseBuilder.toString())
-                                        })
-                                    }
-                                    send(ClaudeEvent.MessageEnd)
-                                }
-                                "error" -> {
-                                    val errorMsg = event.optJSONObject("error")?.optString("message", "Unknown error")
-                                    send(ClaudeEvent.Error(errorMsg ?: "Unknown error"))
-                                }
-                            }
-                        } catch (e: Exception) {
-                            Log.w(TAG, "Failed to parse SSE event: $data", e)
-                        }
-                    }
-                }
-
-                reader.close()
-                connection.disconnect()
+                streamMessage(response) { send(it) }
 
             } catch (e: Exception) {
                 Log.e(TAG, "Send tool result failed", e)
@@ -727,6 +629,8 @@ Provide the summary in a structured format."""
         tools.put(createTool("bash", "Execute a shell command in Termux", mapOf("command" to "string:Shell command to execute"), listOf("command")))
         tools.put(createTool("run_termux", "Execute a command in the visible Termux terminal", mapOf("command" to "string:Command to execute", "session_id" to "string:Terminal session ID", "timeout" to "integer:Timeout in ms"), listOf("command")))
         tools.put(createTool("read_terminal", "Read the full text content from the terminal session", mapOf("session_id" to "string:Terminal session ID", "max_lines" to "integer:Maximum number of lines to return (0 for all)")))
+        tools.put(createTool("search_terminal", "Search the terminal output and scrollback history for text, returning the row, column and line of each match", mapOf("query" to "string:Text to search for, matched across wrapped lines", "case_sensitive" to "boolean:Whether the case must match", "max_results" to "integer:Maximum number of matches to return", "session_id" to "string:Terminal session ID"), listOf("query")))
+        tools.put(createTool("read_command_output", "Read a page of the full output of an earlier run_termux command that was too long to return at once", mapOf("capture_id" to "string:Capture ID reported with the command output", "offset" to "integer:Byte offset into the output", "length" to "integer:Maximum number of bytes to read"), listOf("capture_id")))
         tools.put(createTool("read_clipboard", "Read text from the device clipboard", mapOf()))
         tools.put(createTool("write_clipboard", "Write text to the device clipboard", mapOf("text" to "string:Text to copy to clipboard"), listOf("text")))
         tools.put(createAskUserQuestionTool())
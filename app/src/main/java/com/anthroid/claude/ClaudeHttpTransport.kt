@@ -0,0 +1,82 @@
+package com.anthroid.claude
+
+import android.os.SystemClock
+import android.util.Log
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.ConnectionPool
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.RequestBody
+import okhttp3.Response
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * HTTP transport shared by all requests of [ClaudeApiClient].
+ * Requests reuse pooled keep-alive connections, multiplexed over HTTP/2 where the server supports it, so an agent turn
+ * or tool round-trip does not pay for DNS, TCP and TLS again. [prewarm] opens the connection ahead of the first request.
+ */
+object ClaudeHttpTransport {
+
+    private const val TAG = "ClaudeHttpTransport"
+    private const val ANTHROPIC_VERSION = "2023-06-01"
+
+    /** How long idle connections are kept, longer than the usual pause between agent turns. */
+    private const val KEEP_ALIVE_MINUTES = 5L
+    /** Prewarming is skipped this soon after the last time, the connection opened then being likely still pooled. */
+    private const val PREWARM_INTERVAL_MS = 30_000L
+
+    val JSON_MEDIA_TYPE = "application/json".toMediaType()
+
+    private val httpClient: OkHttpClient = OkHttpClient.Builder()
+        .connectionPool(ConnectionPool(4, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+        .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+        .connectTimeout(15, TimeUnit.SECONDS)
+        .writeTimeout(60, TimeUnit.SECONDS)
+        // Responses stream while the model thinks, without a bound on the time between events
+        .readTimeout(0, TimeUnit.SECONDS)
+        .build()
+
+    private val lastPrewarmMs = AtomicLong(-PREWARM_INTERVAL_MS)
+
+    /**
+     * Post a request to the messages endpoint of the API and return the response to stream the events from.
+     * The caller must close the response so that the connection goes back to the pool.
+     */
+    fun postMessages(baseUrl: String, apiKey: String, body: RequestBody): Response {
+        val request = Request.Builder()
+            .url("$baseUrl/v1/messages")
+            .header("x-api-key", apiKey)
+            .header("anthropic-version", ANTHROPIC_VERSION)
+            .post(body)
+            .build()
+        return httpClient.newCall(request).execute()
+    }
+
+    /**
+     * Open a connection to the API host in the background, unless done recently, so that the next request finds
+     * it in the pool with the handshake done. Call when a request is likely soon, like when the user starts typing.
+     */
+    fun prewarm(baseUrl: String) {
+        val now = SystemClock.elapsedRealtime()
+        val last = lastPrewarmMs.get()
+        if (now - last < PREWARM_INTERVAL_MS || !lastPrewarmMs.compareAndSet(last, now)) return
+
+        // Any response will do, only the connection it leaves in the pool is wanted
+        val request = Request.Builder().url("$baseUrl/v1/messages").head().build()
+        httpClient.newCall(request).enqueue(object : Callback {
+            override fun onResponse(call: Call, response: Response) {
+                response.close()
+                Log.d(TAG, "Prewarmed connection to $baseUrl (${response.protocol})")
+            }
+
+            override fun onFailure(call: Call, e: IOException) {
+                Log.w(TAG, "Prewarming connection to $baseUrl failed: ${e.message}")
+            }
+        })
+    }
+}
@@ -188,6 +188,14 @@ class ClaudeViewModel(application: Application) : AndroidViewModel(application)
         checkClaudeInstallation()
     }
 
+    /**
+     * Open a connection to the API while a message is being composed in API mode,
+     * so that sending it does not wait for the handshake.
+     */
+    fun prewarmApi() {
+        if (agentMode == AgentMode.API) apiClient.prewarm()
+    }
+
     /**
      * Check if Claude CLI is installed or API is configured.
      * Respects user's claude_mode preference setting.
@@ -826,6 +834,8 @@ class ClaudeViewModel(application: Application) : AndroidViewModel(application)
                 "add_calendar_event" -> json.optString("title", event.input)
                 "query_media" -> json.optString("type", "images")
                 "read_terminal" -> "session: " + json.optString("session_id", "current")
+                "search_terminal" -> json.optString("query", event.input)
+                "read_command_output" -> json.optString("capture_id", event.input) + " @ " + json.optLong("offset", 0)
                 "read_clipboard" -> "read clipboard"
                 "write_clipboard" -> json.optString("text", event.input).take(50) + "..."
                 else -> event.input
@@ -906,7 +916,7 @@ class ClaudeViewModel(application: Application) : AndroidViewModel(application)
         viewModelScope.launch {
             // Check if we can execute this tool locally (API mode only)
             val toolName = event.name.lowercase()
-            val isLocalTool = toolName in listOf("run_termux", "bash", "read", "write", "read_terminal", "read_clipboard", "write_clipboard") ||
+            val isLocalTool = toolName in listOf("run_termux", "bash", "read", "write", "read_terminal", "search_terminal", "read_command_output", "read_clipboard", "write_clipboard") ||
                               androidTools.isAndroidTool(event.name)
 
             // For unknown tools in API mode, just keep streaming and return
@@ -921,6 +931,8 @@ class ClaudeViewModel(application: Application) : AndroidViewModel(application)
                 "read" -> executeReadTool(event.input)
                 "write" -> executeWriteTool(event.input)
                 "read_terminal" -> executeReadTerminalTool(event.input)
+                "search_terminal" -> executeSearchTerminalTool(event.input)
+                "read_command_output" -> executeReadCommandOutputTool(event.input)
                 "read_clipboard" -> executeReadClipboardTool()
                 "write_clipboard" -> executeWriteClipboardTool(event.input)
                 else -> androidTools.executeTool(event.name, event.input)
@@ -1091,6 +1103,59 @@ class ClaudeViewModel(application: Application) : AndroidViewModel(application)
         }
     }
 
+    /**
+     * Search terminal session text, including its scrollback history.
+     */
+    private suspend fun executeSearchTerminalTool(input: String): String {
+        return try {
+            val json = org.json.JSONObject(input)
+            val sessionId = if (json.has("session_id")) json.optString("session_id") else null
+            val query = json.optString("query", "")
+            val caseSensitive = json.optBoolean("case_sensitive", false)
+            val maxResults = json.optInt("max_results", 50)
+
+            if (!TerminalCommandBridge.isAvailable()) {
+                return "Error: Termux terminal not available. Please open Termux first."
+            }
+
+            Log.i(TAG, "search_terminal: session=${sessionId ?: "current"}, query=$query")
+
+            val result = TerminalCommandBridge.searchTerminalSession(
+                sessionId = sessionId,
+                query = query,
+                caseSensitive = caseSensitive,
+                maxResults = maxResults
+            )
+            result.toToolResult()
+        } catch (e: Exception) {
+            Log.e(TAG, "search_terminal failed", e)
+            "Error: ${e.message}"
+        }
+    }
+
+    /**
+     * Read a page of the captured output of an earlier run_termux command.
+     */
+    private suspend fun executeReadCommandOutputTool(input: String): String {
+        return try {
+            val json = org.json.JSONObject(input)
+            val captureId = json.optString("capture_id")
+            val offset = json.optLong("offset", 0)
+            val length = json.optInt("length", TerminalCommandBridge.OUTPUT_PAGE_BYTES)
+
+            if (captureId.isEmpty()) {
+                return "Error: capture_id is required"
+            }
+
+            Log.i(TAG, "read_command_output: capture=$captureId, offset=$offset, length=$length")
+
+            TerminalCommandBridge.readCommandOutput(captureId, offset, length).toToolResult()
+        } catch (e: Exception) {
+            Log.e(TAG, "read_command_output failed", e)
+            "Error: ${e.message}"
+        }
+    }
+
     /**
      * Execute command in Termux terminal.
      * Shows command in terminal and captures output.
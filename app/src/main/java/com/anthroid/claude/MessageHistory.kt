@@ -0,0 +1,188 @@
+package com.anthroid.claude
+
+import okhttp3.MediaType
+import okhttp3.RequestBody
+import okio.BufferedSink
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * The messages of a conversation with the API, each serialized to UTF-8 JSON once when added.
+ * A request streams the serialized messages into the connection through [requestBody], instead of copying
+ * the whole history into a new JSON tree, string and byte array every turn. A turn then only serializes its
+ * new messages, and the heap holds a single copy of the conversation with its images.
+ */
+class MessageHistory : Iterable<JSONObject> {
+
+    /** A message as kept, with its estimated tokens and whether it starts a turn of the user. */
+    private class Entry(val bytes: ByteArray, val tokens: Int, val startsTurn: Boolean)
+
+    private val entries = ArrayList<Entry>()
+
+    /** The number of messages. */
+    val size: Int
+        @Synchronized get() = entries.size
+
+    /** The total length in bytes of the serialized messages. */
+    @Volatile
+    var byteCount: Long = 0
+        private set
+
+    /** The estimated input tokens of the messages, see [TokenEstimator]. */
+    @Volatile
+    var tokenEstimate: Long = 0
+        private set
+
+    private fun entry(message: JSONObject): Entry {
+        val bytes = message.toString().toByteArray(Charsets.UTF_8)
+        return Entry(bytes, TokenEstimator.estimate(message, bytes.size), startsTurn(message))
+    }
+
+    /** Whether [message] is from the user and not a tool_result, which must follow the tool_use it answers. */
+    private fun startsTurn(message: JSONObject): Boolean {
+        if (message.optString("role") != "user") return false
+        val content = message.optJSONArray("content") ?: return true
+        return (0 until content.length()).none { content.optJSONObject(it)?.optString("type") == "tool_result" }
+    }
+
+    @Synchronized
+    fun isEmpty(): Boolean = entries.isEmpty()
+
+    @Synchronized
+    fun add(message: JSONObject) {
+        val entry = entry(message)
+        entries.add(entry)
+        byteCount += entry.bytes.size
+        tokenEstimate += entry.tokens
+    }
+
+    /** Counts clearing the history, so that a compaction finishing later leaves a new conversation alone. */
+    @Volatile
+    var generation: Int = 0
+        private set
+
+    @Synchronized
+    fun clear() {
+        generation++
+        entries.clear()
+        byteCount = 0
+        tokenEstimate = 0
+    }
+
+    /** Parse a message back from its serialized form, for the rare uses which read the history. */
+    @Synchronized
+    operator fun get(index: Int): JSONObject = JSONObject(String(entries[index].bytes, Charsets.UTF_8))
+
+    /** The messages as they are now, parsed as iterated. */
+    override fun iterator(): Iterator<JSONObject> =
+        synchronized(this) { entries.toTypedArray() }.asSequence().map { JSONObject(String(it.bytes, Charsets.UTF_8)) }.iterator()
+
+    /**
+     * The number of oldest messages to summarize when compacting, so that about [keepTokens] of the most recent
+     * ones are kept as they are. The kept messages start with a turn of the user, which keeps each tool_result with
+     * its tool_use and has them follow the summary as a user message. The most recent turn is kept even if longer.
+     * Returns 0 if there is no turn to start from after the first message.
+     */
+    @Synchronized
+    fun compactionSplit(keepTokens: Long): Int {
+        var split = 0
+        var keptTokens = 0L
+        for (i in entries.indices.reversed()) {
+            keptTokens += entries[i].tokens
+            if (i == 0 || !entries[i].startsTurn) continue
+            if (split != 0 && keptTokens > keepTokens) break
+            split = i
+            if (keptTokens > keepTokens) break
+        }
+        return split
+    }
+
+    /**
+     * Replace the first [count] messages, summarized, with [messages]. Messages added since are kept after them.
+     * Returns false, leaving the history alone, if it was cleared since it was at [generation].
+     */
+    @Synchronized
+    fun replaceHead(generation: Int, count: Int, messages: List<JSONObject>): Boolean {
+        if (generation != this.generation) return false
+        val head = entries.subList(0, count)
+        for (entry in head) {
+            byteCount -= entry.bytes.size
+            tokenEstimate -= entry.tokens
+        }
+        head.clear()
+        entries.addAll(0, messages.map { entry(it) })
+        for (i in messages.indices) {
+            byteCount += entries[i].bytes.size
+            tokenEstimate += entries[i].tokens
+        }
+        return true
+    }
+
+    /**
+     * A request body with the fields of [request] and the messages of the history, as it is now, as its
+     * "messages" field. Only [request] is serialized here, the messages are written as they are kept.
+     * With [cacheBreakpoint] the last message is marked as the end of the prompt prefix to cache, so that the
+     * next request, which repeats all of this one, reads it from the prompt cache instead of processing it again.
+     */
+    @JvmOverloads
+    @Synchronized
+    fun requestBody(request: JSONObject, cacheBreakpoint: Boolean = false): RequestBody {
+        val messages = Array(entries.size) { entries[it].bytes }
+        if (cacheBreakpoint && messages.isNotEmpty()) {
+            messages[messages.size - 1] = withCacheBreakpoint(messages[messages.size - 1])
+        }
+        return MessagesRequestBody(request, messages)
+    }
+
+    companion object {
+        /** Content blocks which can not be marked with `cache_control`. */
+        private val UNCACHEABLE_BLOCK_TYPES = setOf("thinking", "redacted_thinking")
+
+        /** Mark [block] as a prompt cache breakpoint, ending a prefix cached for the default five minutes. */
+        fun markCacheBreakpoint(block: JSONObject): JSONObject = block.put("cache_control", JSONObject().put("type", "ephemeral"))
+
+        /**
+         * The serialized [message] with `cache_control` on its last content block, a text content being turned
+         * into a text block for it. Only this copy is changed, the message is kept as it was added, since the
+         * marker does not change the cached prefix and a later request puts it on a later message.
+         */
+        private fun withCacheBreakpoint(message: ByteArray): ByteArray {
+            val json = JSONObject(String(message, Charsets.UTF_8))
+            val blocks = when (val content = json.opt("content")) {
+                is String -> if (content.isEmpty()) return message else JSONArray().put(JSONObject().put("type", "text").put("text", content))
+                is JSONArray -> content
+                else -> return message
+            }
+            val last = blocks.optJSONObject(blocks.length() - 1) ?: return message
+            if (last.optString("type") in UNCACHEABLE_BLOCK_TYPES) return message
+            markCacheBreakpoint(last)
+            json.put("content", blocks)
+            return json.toString().toByteArray(Charsets.UTF_8)
+        }
+    }
+
+    private class MessagesRequestBody(request: JSONObject, private val messages: Array<ByteArray>) : RequestBody() {
+
+        /** The messages are written first, followed by the other fields of the request. */
+        private val head = "{\"messages\":[".toByteArray(Charsets.UTF_8)
+        private val tail: ByteArray = request.toString().let { fields ->
+            if (fields == "{}") "]}" else "]," + fields.substring(1)
+        }.toByteArray(Charsets.UTF_8)
+        private val length = head.size.toLong() + tail.size + messages.sumOf { it.size.toLong() } +
+            maxOf(0, messages.size - 1)
+
+        override fun contentType(): MediaType = ClaudeHttpTransport.JSON_MEDIA_TYPE
+
+        /** Known ahead, so that the body is sent with a fixed length rather than in chunks. */
+        override fun contentLength(): Long = length
+
+        override fun writeTo(sink: BufferedSink) {
+            sink.write(head)
+            for (i in messages.indices) {
+                if (i > 0) sink.writeByte(','.code)
+                sink.write(messages[i])
+            }
+            sink.write(tail)
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.anthroid.claude
+
+import android.util.Log
+import okio.BufferedSource
+import okio.ByteString.Companion.encodeUtf8
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Decoder of the server-sent events of a streaming response of the messages endpoint, read one at a time with [next].
+ *
+ * Most events of a response are `content_block_delta` events carrying a few characters of text, thinking or tool
+ * input. Those are scanned in place for the type and value of their delta, which is the only string allocated for
+ * them, instead of being parsed into a JSON tree. The other events, a handful per response, are parsed into [json].
+ * Lines other than data lines, like the `event:` line before each data line, are skipped without reading them.
+ */
+class MessagesStreamDecoder(private val source: BufferedSource) {
+
+    companion object {
+        private const val TAG = "MessagesStreamDecoder"
+
+        const val CONTENT_BLOCK_DELTA = "content_block_delta"
+        const val TEXT_DELTA = "text_delta"
+        const val INPUT_JSON_DELTA = "input_json_delta"
+        const val THINKING_DELTA = "thinking_delta"
+
+        private val DATA_PREFIX = "data:".encodeUtf8()
+    }
+
+    /** The type of the current event. */
+    var type: String = ""
+        private set
+
+    /** The type of the delta of a [CONTENT_BLOCK_DELTA] event: [TEXT_DELTA], [INPUT_JSON_DELTA], [THINKING_DELTA] or another one. */
+    var deltaType: String = ""
+        private set
+
+    /** The text, partial JSON or thinking of a [CONTENT_BLOCK_DELTA] event, empty for other deltas. */
+    var deltaValue: String = ""
+        private set
+
+    /** The current event parsed, for events other than [CONTENT_BLOCK_DELTA]. */
+    var json: JSONObject? = null
+        private set
+
+    /** The data of the current event. */
+    private var data = ""
+    private var pos = 0
+
+    /** Advance to the next event, returning false at the end of the stream. Malformed events are skipped. */
+    fun next(): Boolean {
+        while (true) {
+            data = readDataLine() ?: return false
+            if (data == "[DONE]") return false
+            json = null
+            deltaType = ""
+            deltaValue = ""
+            if (scanContentBlockDelta()) {
+                type = CONTENT_BLOCK_DELTA
+                return true
+            }
+            try {
+                val event = JSONObject(data)
+                type = event.optString("type")
+                if (type == CONTENT_BLOCK_DELTA) {
+                    // Not in the form scanned, so taken from the parsed event
+                    val delta = event.optJSONObject("delta")
+                    deltaType = delta?.optString("type").orEmpty()
+                    val valueKey = deltaValueKey(deltaType)
+                    if (delta != null && valueKey != null) deltaValue = delta.optString(valueKey, "")
+                } else {
+                    json = event
+                }
+                return true
+            } catch (e: JSONException) {
+                Log.w(TAG, "Failed to parse SSE event: $data", e)
+            }
+        }
+    }
+
+    /** The data of the next data line, null at the end of the stream. */
+    private fun readDataLine(): String? {
+        while (true) {
+            val newline = source.indexOf('\n'.code.toByte())
+            if (newline == -1L) {
+                // A last line without a newline
+                if (source.exhausted() || !source.rangeEquals(0, DATA_PREFIX)) return null
+                source.skip(DATA_PREFIX.size.toLong())
+                if (!source.exhausted() && source.buffer[0] == ' '.code.toByte()) source.skip(1)
+                return source.readUtf8()
+            }
+            if (!source.rangeEquals(0, DATA_PREFIX)) {
+                source.skip(newline + 1)
+                continue
+            }
+            var start = DATA_PREFIX.size.toLong()
+            if (start < newline && source.buffer[start] == ' '.code.toByte()) start++
+            val end = if (newline > start && source.buffer[newline - 1] == '\r'.code.toByte()) newline - 1 else newline
+            source.skip(start)
+            val line = source.readUtf8(end - start)
+            source.skip(newline + 1 - end)
+            return line
+        }
+    }
+
+    private fun deltaValueKey(deltaType: String): String? = when (deltaType) {
+        TEXT_DELTA -> "text"
+        INPUT_JSON_DELTA -> "partial_json"
+        THINKING_DELTA -> "thinking"
+        else -> null
+    }
+
+    /**
+     * Scan [data] as a content block delta event, setting [deltaType] and [deltaValue]. Returns false, to have the
+     * event parsed instead, for other events and for anything not in the form expected.
+     */
+    private fun scanContentBlockDelta(): Boolean {
+        pos = 0
+        var isDelta = false
+        var deltaStart = -1
+        if (!scanObject { keyStart, keyEnd ->
+                when {
+                    keyEquals(keyStart, keyEnd, "type") -> {
+                        isDelta = stringEquals(CONTENT_BLOCK_DELTA)
+                        isDelta && skipValue()
+                    }
+                    keyEquals(keyStart, keyEnd, "delta") -> {
+                        deltaStart = pos
+                        skipValue()
+                    }
+                    else -> skipValue()
+                }
+            } || !isDelta || deltaStart < 0) return false
+
+        pos = deltaStart
+        var valueStart = -1
+        var valueKey: String? = null
+        if (!scanObject { keyStart, keyEnd ->
+                if (keyEquals(keyStart, keyEnd, "type")) {
+                    deltaType = when {
+                        stringEquals(TEXT_DELTA) -> TEXT_DELTA
+                        stringEquals(INPUT_JSON_DELTA) -> INPUT_JSON_DELTA
+                        stringEquals(THINKING_DELTA) -> THINKING_DELTA
+                        else -> "other"
+                    }
+                    skipValue()
+                } else {
+                    if (valueStart < 0) {
+                        valueKey = when {
+                            keyEquals(keyStart, keyEnd, "text") -> "text"
+                            keyEquals(keyStart, keyEnd, "partial_json") -> "partial_json"
+                            keyEquals(keyStart, keyEnd, "thinking") -> "thinking"
+                            else -> null
+                        }
+                        if (valueKey != null) valueStart = pos
+                    }
+                    skipValue()
+                }
+            }) return false
+
+        if (valueStart >= 0 && valueKey == deltaValueKey(deltaType)) {
+            pos = valueStart
+            deltaValue = readString() ?: return false
+        }
+        return true
+    }
+
+    /**
+     * Scan the object at the current position, calling [onKey] with the bounds of each key, after its colon, to
+     * consume the value. Returns false if the object is malformed or [onKey] returns false.
+     */
+    private inline fun scanObject(onKey: (keyStart: Int, keyEnd: Int) -> Boolean): Boolean {
+        if (!consume('{')) return false
+        if (consume('}')) return true
+        do {
+            skipWhitespace()
+            if (pos >= data.length || data[pos] != '"') return false
+            val keyStart = pos + 1
+            val keyEnd = stringEnd(keyStart)
+            if (keyEnd < 0) return false
+            pos = keyEnd + 1
+            if (!consume(':')) return false
+            skipWhitespace()
+            if (!onKey(keyStart, keyEnd)) return false
+        } while (consume(','))
+        return consume('}')
+    }
+
+    private fun skipWhitespace() {
+        while (pos < data.length && data[pos] <= ' ') pos++
+    }
+
+    private fun consume(c: Char): Boolean {
+        skipWhitespace()
+        if (pos < data.length && data[pos] == c) {
+            pos++
+            return true
+        }
+        return false
+    }
+
+    private fun keyEquals(keyStart: Int, keyEnd: Int, key: String): Boolean =
+        keyEnd - keyStart == key.length && data.regionMatches(keyStart, key, 0, key.length)
+
+    /** Whether the value at the current position is the string [value], without escapes. */
+    private fun stringEquals(value: String): Boolean {
+        val end = pos + 1 + value.length
+        return end < data.length && data[pos] == '"' && data[end] == '"' && data.regionMatches(pos + 1, value, 0, value.length)
+    }
+
+    /** The index of the closing quote of the string starting at [start], after its opening quote, or -1. */
+    private fun stringEnd(start: Int): Int {
+        var i = start
+        while (i < data.length) {
+            when (data[i]) {
+                '"' -> return i
+                '\\' -> i += 2
+                else -> i++
+            }
+        }
+        return -1
+    }
+
+    /** Skip the value at the current position. */
+    private fun skipValue(): Boolean {
+        skipWhitespace()
+        if (pos >= data.length) return false
+        when (data[pos]) {
+            '"' -> {
+                val end = stringEnd(pos + 1)
+                if (end < 0) return false
+                pos = end + 1
+            }
+            '{', '[' -> {
+                var depth = 0
+                while (pos < data.length) {
+                    when (data[pos]) {
+                        '{', '[' -> depth++
+                        '}', ']' -> if (--depth == 0) {
+                            pos++
+                            return true
+                        }
+                        '"' -> {
+                            val end = stringEnd(pos + 1)
+                            if (end < 0) return false
+                            pos = end
+                        }
+                    }
+                    pos++
+                }
+                return false
+            }
+            else -> while (pos < data.length && data[pos] != ',' && data[pos] != '}' && data[pos] != ']' && data[pos] > ' ') pos++
+        }
+        return true
+    }
+
+    /** Read the string at the current position, unescaping it, or return null if it is not one. */
+    private fun readString(): String? {
+        skipWhitespace()
+        if (pos >= data.length || data[pos] != '"') return null
+        val start = pos + 1
+        val end = stringEnd(start)
+        if (end < 0) return null
+        pos = end + 1
+        val firstEscape = data.indexOf('\\', start)
+        if (firstEscape < 0 || firstEscape >= end) return data.substring(start, end)
+
+        val builder = StringBuilder(end - start)
+        builder.append(data, start, firstEscape)
+        var i = firstEscape
+        while (i < end) {
+            val c = data[i++]
+            if (c != '\\') {
+                builder.append(c)
+                continue
+            }
+            when (val escaped = data[i++]) {
+                'n' -> builder.append('\n')
+                't' -> builder.append('\t')
+                'r' -> builder.append('\r')
+                'b' -> builder.append('\b')
+                'f' -> builder.append('\u000c')
+                'u' -> {
+                    if (i + 4 > end) return null
+                    var code = 0
+                    for (j in i until i + 4) {
+                        val digit = Character.digit(data[j], 16)
+                        if (digit < 0) return null
+                        code = code * 16 + digit
+                    }
+                    builder.append(code.toChar())
+                    i += 4
+                }
+                else -> builder.append(escaped)
+            }
+        }
+        return builder.toString()
+    }
+}
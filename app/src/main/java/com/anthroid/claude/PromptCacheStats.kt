@@ -0,0 +1,51 @@
+package com.anthroid.claude
+
+import org.json.JSONObject
+import java.util.Locale
+
+/**
+ * The input tokens of the requests of a session, counted from the usage the API reports in `message_start`:
+ * tokens read from the prompt cache, tokens written to it and uncached tokens after the last cache breakpoint.
+ */
+class PromptCacheStats {
+
+    var requests = 0
+        private set
+    /** Tokens of the prompt prefix found in the cache. */
+    var cacheReadInputTokens = 0L
+        private set
+    /** Tokens of the prompt prefix not found in the cache, processed and written to it. */
+    var cacheCreationInputTokens = 0L
+        private set
+    /** Tokens after the last cache breakpoint, processed without caching. */
+    var uncachedInputTokens = 0L
+        private set
+
+    val totalInputTokens: Long
+        @Synchronized get() = cacheReadInputTokens + cacheCreationInputTokens + uncachedInputTokens
+
+    /** The share of the input tokens which were read from the cache, 0 before the first request. */
+    val hitRatio: Double
+        @Synchronized get() = totalInputTokens.let { total -> if (total == 0L) 0.0 else cacheReadInputTokens.toDouble() / total }
+
+    /** Count the `usage` object of a `message_start` event. */
+    @Synchronized
+    fun record(usage: JSONObject) {
+        requests++
+        cacheReadInputTokens += usage.optLong("cache_read_input_tokens", 0)
+        cacheCreationInputTokens += usage.optLong("cache_creation_input_tokens", 0)
+        uncachedInputTokens += usage.optLong("input_tokens", 0)
+    }
+
+    @Synchronized
+    fun reset() {
+        requests = 0
+        cacheReadInputTokens = 0
+        cacheCreationInputTokens = 0
+        uncachedInputTokens = 0
+    }
+
+    @Synchronized
+    override fun toString(): String = String.format(Locale.US, "%d requests, %d input tokens: %d read from cache, %d written to cache, %d uncached (%.0f%% hits)",
+        requests, totalInputTokens, cacheReadInputTokens, cacheCreationInputTokens, uncachedInputTokens, hitRatio * 100)
+}
@@ -1,15 +1,22 @@
 package com.anthroid.claude
 
 import android.util.Log
+import androidx.annotation.VisibleForTesting
 import com.anthroid.app.TermuxService
 import com.anthroid.shared.shell.ShellUtils
 import com.anthroid.shared.termux.shell.command.runner.terminal.TermuxSession
+import com.anthroid.terminal.TerminalMarkerWatch
+import com.anthroid.terminal.TerminalOutputCapture
 import com.anthroid.terminal.TerminalSession
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import java.io.File
+import java.io.IOException
 import java.util.UUID
 
 /**
@@ -20,19 +27,50 @@ object TerminalCommandBridge {
     private const val TAG = "TerminalCommandBridge"
     private const val PREFIX = "/data/data/com.anthroid/files/usr"
 
+    // Raw output capture: an OSC sequence the emulator ignores marks where command output starts
+    private const val CAPTURE_OSC = 7770
+    private const val CAPTURE_DIR = "terminal-captures"
+    private const val CAPTURE_MEMORY_BYTES = 256 * 1024
+    private const val CAPTURE_MAX_BYTES = 64L * 1024 * 1024
+    private const val MAX_KEPT_CAPTURES = 4
+    const val OUTPUT_PAGE_BYTES = 32 * 1024
+    /** The rows of the transcript to find the output of a command in, when it could not be captured. */
+    private const val FALLBACK_TRANSCRIPT_ROWS = 4000
+
+    private val ANSI_ESCAPE_REGEX = Regex("\u001B\\[[0-?]*[ -/]*[@-~]|\u001B\\][^\u0007\u001B]*(\u0007|\u001B\\\\)|\u001B[()][0-9A-Za-z]|\u001B[@-_=>78]")
+
     private var termuxService: TermuxService? = null
     private var currentSessionGetter: (() -> TerminalSession?)? = null
 
     // Mutex to serialize terminal command execution — only one command at a time
     private val commandMutex = Mutex()
 
+    // Output captures of the most recent commands, by capture ID, for paging with readCommandOutput()
+    private val captures = LinkedHashMap<String, TerminalOutputCapture>()
+    // If the spill files left by a previous process have been removed, which is done once per process
+    private var captureDirCleaned = false
+
     /**
      * Register the bridge with TermuxService.
      * Called from TermuxActivity.onServiceConnected()
      */
     fun register(service: TermuxService, getCurrentSession: () -> TerminalSession?) {
+        register(service, service.cacheDir, getCurrentSession)
+    }
+
+    /** Register the bridge with TermuxService, whose cache directory is [cacheDir]. */
+    @VisibleForTesting
+    fun register(service: TermuxService, cacheDir: File, getCurrentSession: () -> TerminalSession?) {
         termuxService = service
         currentSessionGetter = getCurrentSession
+        // Spill files of a previous process can no longer be paged, so remove them. Registering again in the same
+        // process, as whenever an activity connects to the service, leaves those of kept and running captures alone.
+        synchronized(captures) {
+            if (!captureDirCleaned) {
+                File(cacheDir, CAPTURE_DIR).listFiles()?.forEach { it.delete() }
+                captureDirCleaned = true
+            }
+        }
         Log.i(TAG, "Bridge registered with TermuxService")
     }
 
@@ -134,67 +172,52 @@ object TerminalCommandBridge {
         Log.i(TAG, "Executing command in session '$targetSessionId': $command")
 
         // Generate unique marker for output detection
-        val marker = "===ANTHROID_END_${UUID.randomUUID().toString().take(8)}==="
+        val captureId = UUID.randomUUID().toString().take(8)
+        val marker = "===ANTHROID_END_$captureId==="
         Log.d(TAG, "Using marker: $marker")
 
-        // Execute command with end marker
-        // Use write() to send command directly to terminal
-        val fullCommand = "$command; echo '$marker'\n"
-        Log.d(TAG, "Sending command via write()")
-        session.write(fullCommand)
-
-        // Wait for marker to appear in transcript
-        // Note: transcript is a circular buffer — we search the FULL transcript for the
-        // unique marker rather than tracking by position, since old content gets pushed out.
+        // Execute command with begin and end markers. The end marker is split by quoting in the command itself, so
+        // that the terminal echo of the command line never contains it and only the echo output completes the watch.
+        val markerEcho = markerEchoCommand(marker)
+        val fullCommand = "printf '\\033]$CAPTURE_OSC;%s\\007' '$captureId'; $command; $markerEcho\n"
+
+        // Capture the raw output between the markers on the reader thread
+        val captureDir = File(service.cacheDir, CAPTURE_DIR).apply { mkdirs() }
+        val capture = TerminalOutputCapture("\u001B]$CAPTURE_OSC;$captureId\u0007", marker,
+            CAPTURE_MEMORY_BYTES, CAPTURE_MAX_BYTES, File(captureDir, "$captureId.out"))
+        session.addOutputCapture(capture)
+
+        // Watch the output as it is appended to the emulator instead of polling the transcript
+        val markerFound = CompletableDeferred<Unit>()
+        val markerWatch = TerminalMarkerWatch(marker) { markerFound.complete(Unit) }
+        session.addMarkerWatch(markerWatch)
         val startTime = System.currentTimeMillis()
-        var output: String? = null
-        var lastLogTime = 0L
-        val markerLineRegex = Regex("^\\s*" + Regex.escape(marker) + "\\s*$", RegexOption.MULTILINE)
-
-        while (System.currentTimeMillis() - startTime < timeout) {
-            delay(100) // Check every 100ms
-
-            // Use non-joined transcript (linesJoined=false) so each terminal row is a
-            // separate line. The joined version merges full-width rows, which can fuse
-            // the marker with the preceding SSH output line.
-            val transcript = ShellUtils.getTerminalSessionTranscriptText(session, false, false) ?: ""
-
-            // Log progress every 2 seconds
-            val now = System.currentTimeMillis()
-            if (now - lastLogTime > 2000) {
-                Log.d(TAG, "Waiting... transcript len=${transcript.length}, hasMarker=${transcript.contains(marker)}")
-                lastLogTime = now
-            }
+        val found = try {
+            Log.d(TAG, "Sending command via write()")
+            session.write(fullCommand)
+            withTimeoutOrNull(timeout) { markerFound.await() } != null
+        } finally {
+            session.removeMarkerWatch(markerWatch)
+            session.removeOutputCapture(capture)
+        }
 
-            if (markerLineRegex.containsMatchIn(transcript)) {
-                // Find marker position and extract output between command echo and marker
-                val lines = transcript.lines()
-                val markerLineIndex = lines.indexOfLast { it.trim() == marker }
-
-                if (markerLineIndex >= 0) {
-                    // Search backwards from marker to find the command echo line
-                    val echoPattern = "echo '$marker'"
-                    var cmdLineIndex = markerLineIndex - 1
-                    while (cmdLineIndex >= 0) {
-                        if (lines[cmdLineIndex].contains(echoPattern)) break
-                        cmdLineIndex--
-                    }
-
-                    if (cmdLineIndex >= 0) {
-                        // Output is between command echo line and marker line
-                        val outputLines = lines.subList(cmdLineIndex + 1, markerLineIndex)
-                        output = outputLines.joinToString("\n").trim()
-                    } else {
-                        // Fallback: command echo scrolled out of transcript buffer (dense/wide
-                        // output exceeded the 2000-row scrollback limit).
-                        // Return the last 150 lines before the marker instead of empty string.
-                        val startIdx = maxOf(0, markerLineIndex - 150)
-                        output = lines.subList(startIdx, markerLineIndex).joinToString("\n").trim()
-                        Log.w(TAG, "Command echo not found in transcript — returning last ${markerLineIndex - startIdx} lines before marker")
-                    }
-                }
-                break
+        var output: String? = null
+        if (found) {
+            Log.d(TAG, "Marker seen after ${System.currentTimeMillis() - startTime}ms")
+            if (capture.isComplete) {
+                keepCapture(captureId, capture)
+                output = formatCapturePage(captureId, capture, maxOf(0L, capture.length - OUTPUT_PAGE_BYTES), OUTPUT_PAGE_BYTES)
+            } else {
+                // The begin marker was not seen, e.g. if printf is missing, so fall back to the transcript.
+                // Use non-joined transcript (linesJoined=false) so each terminal row is a
+                // separate line. The joined version merges full-width rows, which can fuse
+                // the marker with the preceding SSH output line.
+                capture.release()
+                val transcript = ShellUtils.getTerminalSessionTranscriptTail(session, FALLBACK_TRANSCRIPT_ROWS, false) ?: ""
+                output = extractCommandOutput(transcript, marker, markerEcho)
             }
+        } else {
+            capture.release()
         }
 
         return if (output == null) {
@@ -217,6 +240,118 @@ object TerminalCommandBridge {
     }
 
 
+    /**
+     * Read a page of the raw output captured for an earlier command, for output too long to return at once.
+     *
+     * @param captureId The capture ID reported with the command output
+     * @param offset Byte offset into the captured output
+     * @param length Maximum number of bytes to read
+     */
+    suspend fun readCommandOutput(
+        captureId: String,
+        offset: Long,
+        length: Int = OUTPUT_PAGE_BYTES
+    ): CommandResult = withContext(Dispatchers.IO) {
+        readCapturedOutput(captureId, offset, length)
+    }
+
+    /** [readCommandOutput] on the calling thread, which reads the spill file of the capture if it has one. */
+    @VisibleForTesting
+    fun readCapturedOutput(captureId: String, offset: Long, length: Int): CommandResult {
+        val capture = synchronized(captures) { captures[captureId] }
+            ?: return CommandResult.error("No captured output with ID '$captureId'")
+        return try {
+            CommandResult(
+                success = true,
+                output = formatCapturePage(captureId, capture, offset, length.coerceIn(1, OUTPUT_PAGE_BYTES)),
+                exitCode = 0
+            )
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed reading captured output '$captureId'", e)
+            CommandResult.error("Failed reading captured output: ${e.message}")
+        }
+    }
+
+    /** Keep [capture] for paging, releasing the oldest kept captures beyond [MAX_KEPT_CAPTURES]. */
+    @VisibleForTesting
+    fun keepCapture(captureId: String, capture: TerminalOutputCapture) {
+        synchronized(captures) {
+            captures[captureId] = capture
+            while (captures.size > MAX_KEPT_CAPTURES) {
+                val oldestId = captures.keys.first()
+                captures.remove(oldestId)?.release()
+            }
+        }
+    }
+
+    /**
+     * Format the captured bytes in [offset, offset + length) as text for the model, noting where the page lies in
+     * the whole output when it is not all of it.
+     */
+    private fun formatCapturePage(captureId: String, capture: TerminalOutputCapture, offset: Long, length: Int): String {
+        val total = capture.length
+        val text = terminalBytesToText(capture.read(offset, length))
+        val end = minOf(total, offset + length)
+        if (offset == 0L && end == total && capture.droppedBytes == 0L) return text.trim()
+        return buildString {
+            append("[Showing bytes $offset-$end of $total")
+            if (capture.droppedBytes > 0) append(", ${capture.droppedBytes} more bytes were not captured")
+            append(". Use read_command_output with capture_id '$captureId' and an offset to read other parts.]\n")
+            append(text)
+        }
+    }
+
+    /** Decode raw terminal output to plain text, dropping escape sequences and carriage return overwrites. */
+    private fun terminalBytesToText(bytes: ByteArray): String {
+        val text = String(bytes, Charsets.UTF_8).replace(ANSI_ESCAPE_REGEX, "")
+        return text.split('\n').joinToString("\n") { line ->
+            // Only the text after the last carriage return is visible, as for progress bars
+            line.trimEnd('\r').substringAfterLast('\r')
+        }
+    }
+
+    /** The shell command printing [marker], quoted so that the marker is not contiguous in the command line. */
+    private fun markerEchoCommand(marker: String): String {
+        val split = marker.length / 2
+        return "echo \"${marker.substring(0, split)}\"'${marker.substring(split)}'"
+    }
+
+    /**
+     * Extract the output of a command from [transcript], which is everything between the line with the command
+     * echo [markerEcho] and the last line containing [marker]. Text before the marker on its line is output
+     * without a trailing newline.
+     */
+    private fun extractCommandOutput(transcript: String, marker: String, markerEcho: String): String {
+        val lines = transcript.lines()
+        val markerLineIndex = lines.indexOfLast { it.contains(marker) }
+        if (markerLineIndex < 0) {
+            Log.w(TAG, "Marker not found in transcript")
+            return ""
+        }
+        val outputLines = ArrayList<String>()
+
+        // Search backwards from marker to find the command echo line
+        var cmdLineIndex = markerLineIndex - 1
+        while (cmdLineIndex >= 0) {
+            if (lines[cmdLineIndex].contains(markerEcho)) break
+            cmdLineIndex--
+        }
+
+        if (cmdLineIndex >= 0) {
+            // Output is between command echo line and marker line
+            outputLines.addAll(lines.subList(cmdLineIndex + 1, markerLineIndex))
+        } else {
+            // Fallback: command echo scrolled out of transcript buffer (dense/wide
+            // output exceeded the 2000-row scrollback limit).
+            // Return the last 150 lines before the marker instead of empty string.
+            val startIdx = maxOf(0, markerLineIndex - 150)
+            outputLines.addAll(lines.subList(startIdx, markerLineIndex))
+            Log.w(TAG, "Command echo not found in transcript — returning last ${markerLineIndex - startIdx} lines before marker")
+        }
+        outputLines.add(lines[markerLineIndex].substringBefore(marker))
+        return outputLines.joinToString("\n").trim()
+    }
+
     /**
      * Read the full terminal session transcript.
      *
@@ -265,29 +400,83 @@ object TerminalCommandBridge {
 
         Log.d(TAG, "Emulator rows=${emulator.mRows}, cols=${emulator.mColumns}")
 
-        // Get full transcript
-        val transcript = ShellUtils.getTerminalSessionTranscriptText(session, true, false)
+        // Read only the rows needed for the last lines rather than the whole history, which may be long in the
+        // scrollback file. A line wrapped over several rows counts once, so fewer lines than asked for may be read.
+        val transcript = if (maxLines > 0) {
+            ShellUtils.getTerminalSessionTranscriptTail(session, maxLines, true)
+        } else {
+            ShellUtils.getTerminalSessionTranscriptText(session, true, false)
+        }
         if (transcript == null) {
-            Log.e(TAG, "getTerminalSessionTranscriptText returned null")
+            Log.e(TAG, "Reading the transcript returned null")
             return@withContext CommandResult.error(
                 "Failed to read terminal transcript",
                 sessionId = targetSessionId
             )
         }
 
-        // Apply line limit if specified
-        val output = if (maxLines > 0) {
-            val lines = transcript.lines()
-            if (lines.size > maxLines) {
-                lines.takeLast(maxLines).joinToString("\n")
-            } else {
-                transcript
-            }
+        val output = transcript
+
+        Log.i(TAG, "Read ${output.lines().size} lines from terminal")
+
+        CommandResult(
+            success = true,
+            output = output,
+            exitCode = 0,
+            sessionId = targetSessionId
+        )
+    }
+
+    /**
+     * Search the screen and scrollback history of a terminal session, including the
+     * history kept in its scrollback file, without reading the whole transcript.
+     *
+     * @param sessionId Optional session ID (default: current session)
+     * @param query The text to find, matched across wrapped lines
+     * @param caseSensitive Whether the case of the text must match
+     * @param maxResults Maximum number of matches to return, those nearest the bottom
+     * @return One line per match with its row, column and the text of its line
+     */
+    suspend fun searchTerminalSession(
+        sessionId: String? = null,
+        query: String,
+        caseSensitive: Boolean = false,
+        maxResults: Int = 50
+    ): CommandResult = withContext(Dispatchers.IO) {
+        val service = termuxService
+            ?: return@withContext CommandResult.error("Termux service not available")
+
+        val targetSessionId: String
+        val session: TerminalSession? = if (sessionId != null) {
+            targetSessionId = sessionId
+            findSessionByName(service, sessionId)?.terminalSession
         } else {
-            transcript
+            val currentSession = currentSessionGetter?.invoke()
+            targetSessionId = currentSession?.mSessionName ?: getDefaultSessionId(service)
+            currentSession
+        }
+        if (session == null) {
+            return@withContext CommandResult.error("No terminal session found", sessionId = targetSessionId)
+        }
+        if (query.isEmpty()) {
+            return@withContext CommandResult.error("Query must not be empty", sessionId = targetSessionId)
         }
+        // A snapshot, since the emulator keeps appending output on another thread while it is searched.
+        val snapshot = session.takeSnapshot()
+            ?: return@withContext CommandResult.error("Terminal emulator not initialized", sessionId = targetSessionId)
 
-        Log.i(TAG, "Read ${output.lines().size} lines from terminal")
+        val screen = snapshot.mScreen
+        val hits = screen.search(query, caseSensitive, maxResults)
+        Log.i(TAG, "Found ${hits.size} matches of '$query' in session '$targetSessionId'")
+
+        val output = if (hits.isEmpty()) {
+            "No matches"
+        } else {
+            hits.joinToString("\n") { hit ->
+                val line = screen.getSelectedText(0, hit.mStartRow, snapshot.mColumns, hit.mEndRow)
+                "${hit.mStartRow}:${hit.mStartColumn}: ${line.replace('\n', ' ').trimEnd()}"
+            }
+        }
 
         CommandResult(
             success = true,
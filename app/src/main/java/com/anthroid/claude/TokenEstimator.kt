@@ -0,0 +1,95 @@
+package com.anthroid.claude
+
+import android.util.Base64
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * Estimates of the input tokens of messages, to decide when to compact the history without asking the API to count
+ * them. Text is counted from the length of the serialized message, at about four UTF-8 bytes a token, which also
+ * counts the three bytes of a CJK character as about the token it is. Images are counted from their dimensions, read
+ * from the header of the encoded image, at the rate the API documents.
+ */
+object TokenEstimator {
+
+    private const val BYTES_PER_TOKEN = 4
+    private const val PIXELS_PER_TOKEN = 750
+    /** The API scales larger images down to about this many tokens. */
+    const val MAX_IMAGE_TOKENS = 1600
+    /** Base64 characters decoded to find the dimensions of an image, enough for the headers written by [ImageUtils]. */
+    private const val HEADER_BASE64_LENGTH = 4096
+
+    /** The estimated tokens of [message], of which [serializedLength] is the length in bytes as sent. */
+    fun estimate(message: JSONObject, serializedLength: Int): Int {
+        var imageBytes = 0
+        var imageTokens = 0
+        forEachImage(message.opt("content")) { data ->
+            imageBytes += data.length
+            imageTokens += imageTokens(data)
+        }
+        return (serializedLength - imageBytes) / BYTES_PER_TOKEN + imageTokens
+    }
+
+    /** Call [action] with the base64 data of each image in [content], including those of tool results. */
+    private inline fun forEachImage(content: Any?, action: (String) -> Unit) {
+        if (content !is JSONArray) return
+        for (i in 0 until content.length()) {
+            val block = content.optJSONObject(i) ?: continue
+            when (block.optString("type")) {
+                "image" -> action(block.optJSONObject("source")?.optString("data").orEmpty())
+                "tool_result" -> {
+                    val result = block.optJSONArray("content") ?: continue
+                    for (j in 0 until result.length()) {
+                        val resultBlock = result.optJSONObject(j) ?: continue
+                        if (resultBlock.optString("type") == "image") action(resultBlock.optJSONObject("source")?.optString("data").orEmpty())
+                    }
+                }
+            }
+        }
+    }
+
+    /** The tokens of an image, [MAX_IMAGE_TOKENS] if its dimensions can not be read. */
+    fun imageTokens(base64: String): Int {
+        val dimensions = imageDimensions(base64) ?: return MAX_IMAGE_TOKENS
+        return minOf(MAX_IMAGE_TOKENS.toLong(), dimensions.first.toLong() * dimensions.second / PIXELS_PER_TOKEN).toInt()
+    }
+
+    /** The width and height of a base64 encoded PNG or JPEG image, or null if not found in its first bytes. */
+    fun imageDimensions(base64: String): Pair<Int, Int>? {
+        val length = minOf(base64.length, HEADER_BASE64_LENGTH) and 3.inv()
+        val header = try {
+            Base64.decode(base64.substring(0, length), Base64.DEFAULT)
+        } catch (e: IllegalArgumentException) {
+            return null
+        }
+        return pngDimensions(header) ?: jpegDimensions(header)
+    }
+
+    private fun unsigned16(bytes: ByteArray, offset: Int): Int =
+        (bytes[offset].toInt() and 0xFF shl 8) or (bytes[offset + 1].toInt() and 0xFF)
+
+    private fun pngDimensions(bytes: ByteArray): Pair<Int, Int>? {
+        // The signature, then the IHDR chunk with the width and height
+        if (bytes.size < 24 || bytes[0] != 0x89.toByte() || bytes[1] != 'P'.code.toByte() || bytes[2] != 'N'.code.toByte()
+            || bytes[3] != 'G'.code.toByte()) return null
+        return Pair(unsigned16(bytes, 16) shl 16 or unsigned16(bytes, 18), unsigned16(bytes, 20) shl 16 or unsigned16(bytes, 22))
+    }
+
+    private fun jpegDimensions(bytes: ByteArray): Pair<Int, Int>? {
+        if (bytes.size < 4 || bytes[0] != 0xFF.toByte() || bytes[1] != 0xD8.toByte()) return null
+        // Walk the segments up to the start of frame, which has the height and width
+        var i = 2
+        while (i + 9 < bytes.size) {
+            if (bytes[i] != 0xFF.toByte()) return null
+            val marker = bytes[i + 1].toInt() and 0xFF
+            when {
+                marker == 0xFF -> i++
+                marker == 0x01 || marker in 0xD0..0xD9 -> i += 2
+                marker in 0xC0..0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC ->
+                    return Pair(unsigned16(bytes, i + 7), unsigned16(bytes, i + 5))
+                else -> i += 2 + unsigned16(bytes, i + 2)
+            }
+        }
+        return null
+    }
+}
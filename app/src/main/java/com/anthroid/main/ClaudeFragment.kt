@@ -247,9 +247,16 @@ class ClaudeFragment : Fragment() {
             override fun onTextChanged(s: CharSequence?, start: Int, before: Int, count: Int) {}
             override fun afterTextChanged(s: Editable?) {
                 updateSendButtonState()
+                // Input may have stayed focused since the connection was prewarmed
+                viewModel.prewarmApi()
             }
         })
 
+        // Connect to the API while the message is being composed
+        inputField.setOnFocusChangeListener { _, hasFocus ->
+            if (hasFocus) viewModel.prewarmApi()
+        }
+
         inputField.setOnEditorActionListener { _, actionId, _ ->
             if (actionId == EditorInfo.IME_ACTION_SEND) {
                 sendMessage()
@@ -375,6 +375,12 @@ class McpServer(
             ToolDef("read_terminal", "Read text from the terminal session. Use this to see terminal output.", mapOf(
                 "max_lines" to PropDef("integer", "Maximum number of lines to return (0 = unlimited, default: 500)", false),
                 "session_id" to PropDef("string", "Target session ID (default: current session)", false)
+            )),
+            ToolDef("search_terminal", "Search the terminal output and scrollback history for text. Returns the row, column and line of each match, rows being negative in the history.", mapOf(
+                "query" to PropDef("string", "Text to search for, matched across wrapped lines", true),
+                "case_sensitive" to PropDef("boolean", "Whether the case must match (default: false)", false),
+                "max_results" to PropDef("integer", "Maximum number of matches to return, nearest the bottom first kept (default: 50)", false),
+                "session_id" to PropDef("string", "Target session ID (default: current session)", false)
             ))
         )
 
@@ -484,6 +490,11 @@ class McpServer(
             return handleReadTerminal(arguments)
         }
 
+        // Handle search_terminal - requires TerminalCommandBridge
+        if (toolName == "search_terminal") {
+            return handleSearchTerminal(arguments)
+        }
+
         // Handle ask_user_question specially - requires UI interaction
         if (toolName == "ask_user_question") {
             return handleAskUserQuestion(arguments)
@@ -557,6 +568,52 @@ class McpServer(
         }
     }
 
+    /**
+     * Handle search_terminal tool call.
+     * Searches the terminal session and its history using TerminalCommandBridge.
+     */
+    private fun handleSearchTerminal(arguments: JSONObject): JSONObject {
+        val query = arguments.optString("query", "")
+        val caseSensitive = arguments.optBoolean("case_sensitive", false)
+        val maxResults = arguments.optInt("max_results", 50)
+        val sessionIdParam = arguments.optString("session_id", "")
+
+        if (!TerminalCommandBridge.isAvailable()) {
+            return JSONObject().apply {
+                put("content", JSONArray().put(JSONObject().apply {
+                    put("type", "text")
+                    put("text", "Error: Terminal bridge not available. Please open the terminal first.")
+                }))
+                put("isError", true)
+            }
+        }
+
+        val result = runBlocking {
+            try {
+                TerminalCommandBridge.searchTerminalSession(
+                    sessionId = sessionIdParam.takeIf { it.isNotEmpty() },
+                    query = query,
+                    caseSensitive = caseSensitive,
+                    maxResults = maxResults
+                )
+            } catch (e: Exception) {
+                TerminalCommandBridge.CommandResult.error("Error: ${e.message}")
+            }
+        }
+
+        val isError = !result.success
+        val resultText = if (result.success) result.output else "Error: ${result.output}"
+        onToolComplete?.invoke("search_terminal", isError, resultText)
+
+        return JSONObject().apply {
+            put("content", JSONArray().put(JSONObject().apply {
+                put("type", "text")
+                put("text", resultText)
+            }))
+            put("isError", isError)
+        }
+    }
+
     /**
      * Handle ask_user_question tool call.
      * Blocks until user answers or timeout.
@@ -0,0 +1,199 @@
+package com.anthroid.claude;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageHistoryTest {
+
+    private static JSONObject textMessage(String role, String text) throws JSONException {
+        return new JSONObject().put("role", role).put("content", text);
+    }
+
+    private static JSONObject imageMessage(String text, String base64) throws JSONException {
+        JSONArray content = new JSONArray()
+            .put(new JSONObject().put("type", "image").put("source", new JSONObject()
+                .put("type", "base64").put("media_type", "image/jpeg").put("data", base64)))
+            .put(new JSONObject().put("type", "text").put("text", text));
+        return new JSONObject().put("role", "user").put("content", content);
+    }
+
+    private static JSONObject requestFields() throws JSONException {
+        return new JSONObject().put("model", "claude").put("max_tokens", 4096).put("stream", true)
+            .put("tools", new JSONArray().put(new JSONObject().put("name", "bash")));
+    }
+
+    private static String bodyText(RequestBody body) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        Assert.assertEquals(body.contentLength(), buffer.size());
+        return buffer.readString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRequestBodyHasMessagesAndFields() throws Exception {
+        MessageHistory history = new MessageHistory();
+        Assert.assertEquals("{\"messages\":[]}", bodyText(history.requestBody(new JSONObject())));
+
+        history.add(textMessage("user", "hello \"world\" åäö"));
+        history.add(textMessage("assistant", "hi"));
+        RequestBody body = history.requestBody(requestFields());
+        // Messages added later are not part of the body:
+        history.add(textMessage("user", "later"));
+
+        JSONObject request = new JSONObject(bodyText(body));
+        Assert.assertEquals("claude", request.getString("model"));
+        Assert.assertEquals(4096, request.getInt("max_tokens"));
+        Assert.assertEquals("bash", request.getJSONArray("tools").getJSONObject(0).getString("name"));
+        JSONArray messages = request.getJSONArray("messages");
+        Assert.assertEquals(2, messages.length());
+        Assert.assertEquals("hello \"world\" åäö", messages.getJSONObject(0).getString("content"));
+        Assert.assertEquals("assistant", messages.getJSONObject(1).getString("role"));
+
+        Assert.assertEquals(3, history.getSize());
+        Assert.assertEquals("later", history.get(2).getString("content"));
+        history.clear();
+        Assert.assertTrue(history.isEmpty());
+        Assert.assertEquals(0, history.getByteCount());
+    }
+
+    @Test
+    public void testCacheBreakpointOnLastMessageOnly() throws Exception {
+        MessageHistory history = new MessageHistory();
+        Assert.assertEquals("{\"messages\":[]}", bodyText(history.requestBody(new JSONObject(), true)));
+
+        history.add(textMessage("user", "hello"));
+        JSONArray messages = new JSONObject(bodyText(history.requestBody(new JSONObject(), true))).getJSONArray("messages");
+        JSONObject block = messages.getJSONObject(0).getJSONArray("content").getJSONObject(0);
+        Assert.assertEquals("hello", block.getString("text"));
+        Assert.assertEquals("ephemeral", block.getJSONObject("cache_control").getString("type"));
+        // The history keeps the message as it was added:
+        Assert.assertEquals("hello", history.get(0).getString("content"));
+
+        history.add(textMessage("assistant", "hi"));
+        history.add(imageMessage("and this?", "AAAA"));
+        messages = new JSONObject(bodyText(history.requestBody(new JSONObject(), true))).getJSONArray("messages");
+        Assert.assertEquals("hello", messages.getJSONObject(0).getString("content"));
+        JSONArray content = messages.getJSONObject(2).getJSONArray("content");
+        Assert.assertFalse(content.getJSONObject(0).has("cache_control"));
+        Assert.assertTrue(content.getJSONObject(1).has("cache_control"));
+
+        history.add(new JSONObject().put("role", "assistant").put("content", new JSONArray()
+            .put(new JSONObject().put("type", "thinking").put("thinking", "hmm"))));
+        messages = new JSONObject(bodyText(history.requestBody(new JSONObject(), true))).getJSONArray("messages");
+        Assert.assertFalse(messages.getJSONObject(3).getJSONArray("content").getJSONObject(0).has("cache_control"));
+    }
+
+    @Test
+    public void testPromptCacheStatsCountUsage() throws Exception {
+        PromptCacheStats stats = new PromptCacheStats();
+        Assert.assertEquals(0.0, stats.getHitRatio(), 0);
+        stats.record(new JSONObject().put("input_tokens", 20).put("cache_creation_input_tokens", 1980).put("output_tokens", 1));
+        stats.record(new JSONObject().put("input_tokens", 100).put("cache_read_input_tokens", 1980));
+        Assert.assertEquals(2, stats.getRequests());
+        Assert.assertEquals(1980, stats.getCacheReadInputTokens());
+        Assert.assertEquals(1980, stats.getCacheCreationInputTokens());
+        Assert.assertEquals(120, stats.getUncachedInputTokens());
+        Assert.assertEquals(1980.0 / 4080, stats.getHitRatio(), 1e-9);
+        stats.reset();
+        Assert.assertEquals(0, stats.getTotalInputTokens());
+    }
+
+    private static JSONObject toolUseMessage(String id) throws JSONException {
+        return new JSONObject().put("role", "assistant").put("content", new JSONArray().put(new JSONObject()
+            .put("type", "tool_use").put("id", id).put("name", "bash").put("input", new JSONObject().put("command", "ls"))));
+    }
+
+    private static JSONObject toolResultMessage(String id, String output) throws JSONException {
+        return new JSONObject().put("role", "user").put("content", new JSONArray().put(new JSONObject()
+            .put("type", "tool_result").put("tool_use_id", id).put("content", output)));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testImageTokensFromDimensions() throws Exception {
+        byte[] png = new byte[33];
+        byte[] pngStart = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 13, 'I', 'H', 'D', 'R', 0, 0, 3, 0, 0, 0, 2, 0};
+        System.arraycopy(pngStart, 0, png, 0, pngStart.length);
+        String pngBase64 = java.util.Base64.getEncoder().encodeToString(png);
+        Assert.assertEquals(Integer.valueOf(768), TokenEstimator.INSTANCE.imageDimensions(pngBase64).getFirst());
+        Assert.assertEquals(Integer.valueOf(512), TokenEstimator.INSTANCE.imageDimensions(pngBase64).getSecond());
+        Assert.assertEquals(768 * 512 / 750, TokenEstimator.INSTANCE.imageTokens(pngBase64));
+
+        // An APP0 segment, then the start of frame with the height and width:
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 4, 'J', 'F', (byte) 0xFF, (byte) 0xC0, 0, 17, 8,
+            0x04, 0x00, 0x03, 0x00, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        String jpegBase64 = java.util.Base64.getEncoder().encodeToString(jpeg);
+        Assert.assertEquals(Integer.valueOf(768), TokenEstimator.INSTANCE.imageDimensions(jpegBase64).getFirst());
+        Assert.assertEquals(Integer.valueOf(1024), TokenEstimator.INSTANCE.imageDimensions(jpegBase64).getSecond());
+        Assert.assertEquals(768 * 1024 / 750, TokenEstimator.INSTANCE.imageTokens(jpegBase64));
+
+        Assert.assertEquals(TokenEstimator.MAX_IMAGE_TOKENS, TokenEstimator.INSTANCE.imageTokens("AAAA"));
+        // The image data is counted by its dimensions rather than its length:
+        JSONObject message = imageMessage("", pngBase64 + repeat('A', 40000));
+        Assert.assertTrue(TokenEstimator.INSTANCE.estimate(message, message.toString().length()) < 600);
+    }
+
+    @Test
+    public void testCompactionKeepsRecentTurnsWithToolPairs() throws Exception {
+        MessageHistory history = new MessageHistory();
+        String text = repeat('x', 4000);
+        // Turns of a question, a tool call and its result, and an answer, of about 3000 tokens:
+        for (int turn = 0; turn < 5; turn++) {
+            history.add(textMessage("user", "question " + turn + " " + text));
+            history.add(toolUseMessage("tool_" + turn));
+            history.add(toolResultMessage("tool_" + turn, text + text));
+            history.add(textMessage("assistant", "answer " + turn));
+        }
+        long tokens = history.getTokenEstimate();
+        Assert.assertTrue(tokens > 14000 && tokens < 16000);
+
+        // The last two turns fit in 7000 tokens, and are kept from the user message starting them:
+        Assert.assertEquals(12, history.compactionSplit(7000));
+        // The last turn is kept even if longer:
+        Assert.assertEquals(16, history.compactionSplit(100));
+        Assert.assertEquals(4, history.compactionSplit(100000));
+
+        int generation = history.getGeneration();
+        java.util.List<JSONObject> summary = java.util.Arrays.asList(textMessage("user", "summary"), textMessage("assistant", "ok"));
+        Assert.assertTrue(history.replaceHead(generation, 12, summary));
+        Assert.assertEquals(10, history.getSize());
+        Assert.assertEquals("summary", history.get(0).getString("content"));
+        Assert.assertTrue(history.get(2).getString("content").startsWith("question 3"));
+        Assert.assertTrue(history.getTokenEstimate() < tokens / 2);
+
+        long byteCount = 0;
+        for (JSONObject message : history) byteCount += message.toString().getBytes(StandardCharsets.UTF_8).length;
+        Assert.assertEquals(byteCount, history.getByteCount());
+
+        // A summary of a conversation cleared meanwhile is not added to the next one:
+        history.clear();
+        history.add(textMessage("user", "new conversation"));
+        Assert.assertFalse(history.replaceHead(generation, 12, summary));
+        Assert.assertEquals(1, history.getSize());
+
+        // A single turn of tool calls can not be split:
+        history.clear();
+        history.add(textMessage("user", text));
+        history.add(toolUseMessage("tool"));
+        history.add(toolResultMessage("tool", text));
+        Assert.assertEquals(0, history.compactionSplit(0));
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.anthroid.claude;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import okio.Buffer;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessagesStreamDecoderTest {
+
+    private static final int DELTAS = 2000;
+
+    private static String event(String type, String data) {
+        return "event: " + type + "\r\ndata: " + data + "\r\n\r\n";
+    }
+
+    private static String textDelta(String escapedText) {
+        return event("content_block_delta", "{\"type\":\"content_block_delta\",\"index\":0,\"delta\":{\"type\":\"text_delta\",\"text\":\"" + escapedText + "\"}}");
+    }
+
+    private static MessagesStreamDecoder decoder(String stream) {
+        return new MessagesStreamDecoder(new Buffer().writeUtf8(stream));
+    }
+
+    @Test
+    public void testDecodesEvents() throws Exception {
+        MessagesStreamDecoder decoder = decoder(
+            event("message_start", "{\"type\":\"message_start\",\"message\":{\"id\":\"msg_1\",\"usage\":{\"input_tokens\":12,\"cache_read_input_tokens\":3000}}}")
+            + event("ping", "{\"type\": \"ping\"}")
+            + textDelta("Hello \\\"world\\\"\\n\\u00e5\\ud83d\\ude00 \\\\ done")
+            + event("content_block_delta", "{ \"delta\" : { \"text\" : \"äö\", \"type\" : \"text_delta\" }, \"type\" : \"content_block_delta\", \"index\" : 0 }")
+            + event("content_block_delta", "{\"type\":\"content_block_delta\",\"index\":1,\"delta\":{\"type\":\"input_json_delta\",\"partial_json\":\"{\\\"command\\\": \\\"ls\"}}")
+            + event("content_block_delta", "{\"type\":\"content_block_delta\",\"index\":2,\"delta\":{\"type\":\"thinking_delta\",\"thinking\":\"Let me see, {[\"}}")
+            + event("content_block_delta", "{\"type\":\"content_block_delta\",\"index\":2,\"delta\":{\"type\":\"signature_delta\",\"signature\":\"abc\"}}")
+            + "data: not json\n\n"
+            + "data: {\"type\":\"message_stop\"}");
+
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals("message_start", decoder.getType());
+        Assert.assertEquals(3000, decoder.getJson().getJSONObject("message").getJSONObject("usage").getInt("cache_read_input_tokens"));
+
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals("ping", decoder.getType());
+
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals(MessagesStreamDecoder.CONTENT_BLOCK_DELTA, decoder.getType());
+        Assert.assertEquals(MessagesStreamDecoder.TEXT_DELTA, decoder.getDeltaType());
+        Assert.assertEquals("Hello \"world\"\nå😀 \\ done", decoder.getDeltaValue());
+        Assert.assertNull(decoder.getJson());
+
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals(MessagesStreamDecoder.TEXT_DELTA, decoder.getDeltaType());
+        Assert.assertEquals("äö", decoder.getDeltaValue());
+
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals(MessagesStreamDecoder.INPUT_JSON_DELTA, decoder.getDeltaType());
+        Assert.assertEquals("{\"command\": \"ls", decoder.getDeltaValue());
+
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals(MessagesStreamDecoder.THINKING_DELTA, decoder.getDeltaType());
+        Assert.assertEquals("Let me see, {[", decoder.getDeltaValue());
+
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals(MessagesStreamDecoder.CONTENT_BLOCK_DELTA, decoder.getType());
+        Assert.assertEquals("", decoder.getDeltaValue());
+
+        // The malformed event is skipped, the last line ends without a newline:
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals("message_stop", decoder.getType());
+        Assert.assertFalse(decoder.next());
+    }
+
+    @Test
+    public void testDecodesManyDeltas() throws Exception {
+        StringBuilder stream = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < DELTAS; i++) {
+            stream.append(textDelta(i % 10 == 0 ? "\\n- item " + i : " word" + i));
+            expected.append(i % 10 == 0 ? "\n- item " + i : " word" + i);
+        }
+
+        MessagesStreamDecoder decoder = decoder(stream.toString());
+        StringBuilder decodedText = new StringBuilder();
+        int events = 0;
+        while (decoder.next()) {
+            Assert.assertEquals(MessagesStreamDecoder.TEXT_DELTA, decoder.getDeltaType());
+            decodedText.append(decoder.getDeltaValue());
+            events++;
+        }
+        Assert.assertEquals(DELTAS, events);
+        Assert.assertEquals(expected.toString(), decodedText.toString());
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.anthroid.claude;
+
+import com.anthroid.app.TermuxService;
+import com.anthroid.terminal.TerminalOutputCapture;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+@RunWith(RobolectricTestRunner.class)
+public class TerminalCommandBridgeTest {
+
+    @Rule
+    public TemporaryFolder mCacheDir = new TemporaryFolder();
+
+    private static void feed(TerminalOutputCapture capture, String output) {
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        capture.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testRegisteringAgainKeepsSpilledCaptures() throws Exception {
+        TermuxService service = new TermuxService();
+        TerminalCommandBridge.INSTANCE.register(service, mCacheDir.getRoot(), () -> null);
+        File captureDir = new File(mCacheDir.getRoot(), "terminal-captures");
+        Assert.assertTrue(captureDir.mkdirs());
+
+        // A capture kept for paging and one still being written, both spilled to their files:
+        String text = "line of output that does not fit in memory\n";
+        TerminalOutputCapture kept = new TerminalOutputCapture("<begin>", "<end>", 16, 1024, new File(captureDir, "kept.out"));
+        feed(kept, "<begin>" + text + "<end>");
+        Assert.assertTrue(kept.isComplete());
+        Assert.assertTrue(kept.isSpilled());
+        TerminalCommandBridge.INSTANCE.keepCapture("kept", kept);
+        TerminalOutputCapture running = new TerminalOutputCapture("<begin>", "<end>", 16, 1024, new File(captureDir, "running.out"));
+        feed(running, "<begin>" + text);
+        Assert.assertTrue(running.isSpilled());
+
+        // As when an activity connects to the service again:
+        TerminalCommandBridge.INSTANCE.register(service, mCacheDir.getRoot(), () -> null);
+
+        TerminalCommandBridge.CommandResult result = TerminalCommandBridge.INSTANCE.readCapturedOutput("kept", 0, 1024);
+        Assert.assertTrue(result.getOutput(), result.getSuccess());
+        Assert.assertEquals(text.trim(), result.getOutput());
+
+        feed(running, text + "<end>");
+        Assert.assertEquals(text + text, new String(running.read(0, 1024), StandardCharsets.UTF_8));
+        running.release();
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.anthroid.terminal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Benchmarks the emulator on the {@link BenchmarkCorpus} corpora, printing the throughput of appending them in MB/s,
+ * the bytes allocated per MB appended and the latency of resizing with a long history, to compare before and after a
+ * change. Runs on the JVM without a device, only with the benchmark source set included:
+ * ./gradlew :terminal-emulator:testDebugUnitTest -Pbenchmark --tests com.anthroid.terminal.EmulatorBenchmarkTest -i
+ */
+public class EmulatorBenchmarkTest extends TerminalTestCase {
+
+	private static final int CORPUS_BYTES = 1024 * 1024;
+	private static final int HISTORY_CORPUS_BYTES = 2 * 1024 * 1024;
+	private static final int HISTORY_ROWS = 20000;
+	private static final int ROUNDS = 3;
+
+	private TerminalEmulator newTerminal(int columns, int rows, int transcriptRows) {
+		return new TerminalEmulator(mOutput, columns, rows, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, transcriptRows, null);
+	}
+
+	/** Append the corpus in chunks as large as those appended by the session between checks of its time budget. */
+	private void feed(byte[] corpus) {
+		for (int offset = 0; offset < corpus.length; offset += TerminalSession.APPEND_CHUNK_LENGTH)
+			mTerminal.append(corpus, offset, Math.min(TerminalSession.APPEND_CHUNK_LENGTH, corpus.length - offset));
+	}
+
+	/** The bean measuring the bytes allocated by a thread, or null if not supported by the JVM. */
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) return null;
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported()) return null;
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+		return allocationBean;
+	}
+
+	private static long allocatedBytes(com.sun.management.ThreadMXBean allocationBean) {
+		return (allocationBean == null) ? 0 : allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public void testAppendThroughputAndAllocations() {
+		com.sun.management.ThreadMXBean allocationBean = allocationBean();
+		for (BenchmarkCorpus corpus : BenchmarkCorpus.all(CORPUS_BYTES)) {
+			double megabytes = corpus.mBytes.length / (1024.0 * 1024.0);
+			long bestNanos = Long.MAX_VALUE;
+			long leastAllocated = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				mTerminal = newTerminal(BenchmarkCorpus.COLUMNS, BenchmarkCorpus.ROWS, TerminalEmulator.DEFAULT_TERMINAL_TRANSCRIPT_ROWS);
+				long allocatedBefore = allocatedBytes(allocationBean);
+				long start = System.nanoTime();
+				feed(corpus.mBytes);
+				bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+				leastAllocated = Math.min(leastAllocated, allocatedBytes(allocationBean) - allocatedBefore);
+			}
+			assertInvariants();
+
+			String allocations = (allocationBean == null) ? "unknown" : String.format(Locale.US, "%.0f", leastAllocated / megabytes);
+			System.out.println(String.format(Locale.US, "EmulatorBenchmarkTest: %-21s %7.1f MB/s, %s bytes allocated per MB",
+				corpus.mName, megabytes / (bestNanos / 1e9), allocations));
+		}
+	}
+
+	/** Compares appending plain ASCII one code point at a time, as before runs were written in bulk, against {@link #feed}. */
+	public void testAsciiRunThroughput() {
+		byte[] corpus = BenchmarkCorpus.buildLog(2 * CORPUS_BYTES).mBytes;
+		double megabytes = corpus.length / (1024.0 * 1024.0);
+		long bestPerCodePoint = Long.MAX_VALUE;
+		long bestBulk = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			mTerminal = newTerminal(BenchmarkCorpus.COLUMNS, BenchmarkCorpus.ROWS, TerminalEmulator.DEFAULT_TERMINAL_TRANSCRIPT_ROWS);
+			long start = System.nanoTime();
+			for (byte b : corpus) mTerminal.processCodePoint(b);
+			bestPerCodePoint = Math.min(bestPerCodePoint, System.nanoTime() - start);
+
+			mTerminal = newTerminal(BenchmarkCorpus.COLUMNS, BenchmarkCorpus.ROWS, TerminalEmulator.DEFAULT_TERMINAL_TRANSCRIPT_ROWS);
+			start = System.nanoTime();
+			feed(corpus);
+			bestBulk = Math.min(bestBulk, System.nanoTime() - start);
+		}
+
+		System.out.println(String.format(Locale.US, "EmulatorBenchmarkTest: build log per code point %.1f MB/s, bulk ascii %.1f MB/s",
+			megabytes / (bestPerCodePoint / 1e9), megabytes / (bestBulk / 1e9)));
+	}
+
+	/** Compares looking up character widths in the two-stage table against searching the intervals it is generated from. */
+	public void testWcWidthLookup() {
+		// CJK, emoji and combining marks mixed with ascii, like output from modern tools:
+		int[] codePoints = new int[4096];
+		for (int i = 0; i < codePoints.length; i++) {
+			switch (i % 4) {
+				case 0: codePoints[i] = 0x4E00 + i; break;
+				case 1: codePoints[i] = 0x1F600 + (i % 80); break;
+				case 2: codePoints[i] = 0x0300 + (i % 0x70); break;
+				default: codePoints[i] = 'a' + (i % 26);
+			}
+		}
+		long sum = 0;
+		long tableNanos = Long.MAX_VALUE, intervalNanos = Long.MAX_VALUE;
+		for (int round = 0; round < 20; round++) {
+			long start = System.nanoTime();
+			for (int c : codePoints) sum += WcWidth.width(c);
+			tableNanos = Math.min(tableNanos, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int c : codePoints) sum += WcWidth.widthFromIntervals(c);
+			intervalNanos = Math.min(intervalNanos, System.nanoTime() - start);
+		}
+		assertTrue(sum > 0);
+		System.out.println(String.format(Locale.US, "EmulatorBenchmarkTest: %d width lookups %.1f us with the table, %.1f us with the intervals",
+			codePoints.length, tableNanos / 1e3, intervalNanos / 1e3));
+	}
+
+	/** Times filling rows with wide chars, including ones outside the BMP, which need the column index of the row. */
+	public void testWideCharRows() {
+		final int rows = 10000;
+		int[] codePoints = {0x679C, 0x2070E, 0x1F600, 'a'};
+		for (int columns : new int[]{80, 320}) {
+			TerminalRow wideRow = new TerminalRow(columns, TextStyle.NORMAL);
+			long bestNanos = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < rows; i++) {
+					wideRow.clear(TextStyle.NORMAL);
+					for (int column = 0, cell = i; column < columns - 1; cell++) {
+						int codePoint = codePoints[cell % codePoints.length];
+						wideRow.setChar(column, codePoint, TextStyle.NORMAL);
+						column += WcWidth.width(codePoint);
+					}
+				}
+				bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+			}
+			System.out.println(String.format(Locale.US, "EmulatorBenchmarkTest: %d rows of %d mixed width columns %.1f ms, %.1f ns per column",
+				rows, columns, bestNanos / 1e6, (double) bestNanos / rows / columns));
+		}
+	}
+
+	/** Measures the throughput of streaming process output through queues of two sizes from a producer thread. */
+	public void testByteQueueBetweenThreads() throws Exception {
+		final int totalBytes = 64 * 1024 * 1024;
+		for (int queueSize : new int[]{4096, 256 * 1024}) {
+			final ByteQueue q = new ByteQueue(queueSize);
+			Thread producer = new Thread(() -> {
+				byte[] chunk = new byte[4096];
+				for (int written = 0; written < totalBytes; written += chunk.length)
+					q.write(chunk, 0, chunk.length);
+			});
+
+			long start = System.nanoTime();
+			producer.start();
+			byte[] buffer = new byte[4096];
+			int totalRead = 0;
+			while (totalRead < totalBytes) totalRead += q.read(buffer, true);
+			long elapsed = System.nanoTime() - start;
+			producer.join();
+
+			System.out.println(String.format(Locale.US, "EmulatorBenchmarkTest: %d byte queue moved %.1f MB/s between threads",
+				q.capacity(), (totalBytes / (1024.0 * 1024.0)) / (elapsed / 1e9)));
+		}
+	}
+
+	/** Times decoding a large OSC 52 clipboard copy appended in chunks, as it arrives from a program. */
+	public void testLargeClipboardCopy() {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < 5 * 1024 * 1024) builder.append("line ").append(builder.length()).append(" of copied text with ünïcödé\n");
+		String text = builder.toString();
+		byte[] sequence = ("\033]52;c;" + Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8)) + "\033\\")
+			.getBytes(StandardCharsets.US_ASCII);
+
+		long bestNanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			withTerminalSized(20, 4);
+			mOutput.clipboardPuts.clear();
+			long start = System.nanoTime();
+			feed(sequence);
+			bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+			assertEquals(text, mOutput.clipboardPuts.get(0));
+		}
+		System.out.println(String.format(Locale.US, "EmulatorBenchmarkTest: copied %d MB through OSC 52 in %.1f ms",
+			text.length() >> 20, bestNanos / 1e6));
+	}
+
+	public void testResizeAndReflowLatency() {
+		byte[] history = BenchmarkCorpus.lsColor(HISTORY_CORPUS_BYTES).mBytes;
+		final int columns = BenchmarkCorpus.COLUMNS;
+		final int rows = BenchmarkCorpus.ROWS;
+
+		long bestResizeNanos = Long.MAX_VALUE;
+		long bestReflowNanos = Long.MAX_VALUE;
+		long bestRowsOnlyNanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			mTerminal = newTerminal(columns, rows, HISTORY_ROWS);
+			feed(history);
+
+			// A change of columns, as when rotating the device, only waits for the screen and recent history:
+			long start = System.nanoTime();
+			mTerminal.resize(columns * 2 / 3, rows, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			long resized = System.nanoTime();
+			while (mTerminal.continueReflow(TerminalSession.REFLOW_STEP_ROWS)) ;
+			long reflowed = System.nanoTime();
+			bestResizeNanos = Math.min(bestResizeNanos, resized - start);
+			bestReflowNanos = Math.min(bestReflowNanos, reflowed - start);
+
+			// A change of rows only, as when showing the soft keyboard:
+			start = System.nanoTime();
+			mTerminal.resize(columns * 2 / 3, rows / 2, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			bestRowsOnlyNanos = Math.min(bestRowsOnlyNanos, System.nanoTime() - start);
+		}
+		assertInvariants();
+		assertFalse(mTerminal.isReflowPending());
+
+		System.out.println(String.format(Locale.US, "EmulatorBenchmarkTest: resize with %d rows of history %.2f ms,"
+				+ " reflowing all of it %.2f ms, changing only rows %.3f ms",
+			HISTORY_ROWS, bestResizeNanos / 1e6, bestReflowNanos / 1e6, bestRowsOnlyNanos / 1e6));
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.anthroid.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes base64 as it arrives, into bytes kept up to a hard cap, for string payloads of escape sequences which may be
+ * megabytes long, such as the clipboard content of OSC 52. The encoded text is never collected, so the decoded bytes
+ * are the only allocation, growing with the payload.
+ * <p>
+ * Both the standard and the URL safe alphabet are accepted, whitespace is skipped and padding ends the payload. Once
+ * the payload is found to be invalid or longer than the cap, the rest of it is ignored.
+ */
+final class Base64StreamDecoder {
+
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;
+    private static final byte PADDING = -3;
+    /** The value of each ASCII char, or one of {@link #INVALID}, {@link #WHITESPACE} and {@link #PADDING}. */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, INVALID);
+        for (int i = 0; i < 26; i++) {
+            VALUES['A' + i] = (byte) i;
+            VALUES['a' + i] = (byte) (26 + i);
+        }
+        for (int i = 0; i < 10; i++) VALUES['0' + i] = (byte) (52 + i);
+        VALUES['+'] = VALUES['-'] = 62;
+        VALUES['/'] = VALUES['_'] = 63;
+        VALUES[' '] = VALUES['\t'] = VALUES['\r'] = VALUES['\n'] = WHITESPACE;
+        VALUES['='] = PADDING;
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+    /** Storage larger than this is freed by {@link #reset()}, instead of being kept after a large payload. */
+    private static final int RETAINED_CAPACITY = 64 * 1024;
+
+    private int mMaxBytes;
+    private byte[] mBytes = new byte[INITIAL_CAPACITY];
+    private int mLength;
+    /** The bits decoded but not yet making up a byte, of which there are {@link #mBitCount}. */
+    private int mBits, mBitCount;
+    private boolean mPadded, mInvalid, mTooLong;
+
+    Base64StreamDecoder(int maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    /** Set the most bytes to decode, a payload decoding to more being {@link #isTooLong()}. */
+    void setMaxBytes(int maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes=" + maxBytes);
+        mMaxBytes = maxBytes;
+    }
+
+    int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Start decoding a new payload. */
+    void reset() {
+        if (mBytes.length > RETAINED_CAPACITY) mBytes = new byte[INITIAL_CAPACITY];
+        mLength = mBits = mBitCount = 0;
+        mPadded = mInvalid = mTooLong = false;
+    }
+
+    /** Decode the next char of the payload. */
+    void decode(int c) {
+        if (mInvalid || mTooLong) return;
+        final int value = (c < 128) ? VALUES[c] : INVALID;
+        if (value >= 0) {
+            if (mPadded) {
+                mInvalid = true;
+                return;
+            }
+            mBits = (mBits << 6) | value;
+            mBitCount += 6;
+            if (mBitCount >= 8) {
+                mBitCount -= 8;
+                append((byte) (mBits >> mBitCount));
+                mBits &= (1 << mBitCount) - 1;
+            }
+        } else if (value == PADDING) {
+            mPadded = true;
+        } else if (value == INVALID) {
+            mInvalid = true;
+        }
+    }
+
+    /** Decode the next chars of the payload, in the ASCII bytes of a buffer from start until end. */
+    void decode(byte[] buffer, int start, int end) {
+        for (int i = start; i < end && !mInvalid && !mTooLong; i++) decode(buffer[i] & 0xFF);
+    }
+
+    private void append(byte b) {
+        if (mLength == mMaxBytes) {
+            mTooLong = true;
+            return;
+        }
+        if (mLength == mBytes.length) mBytes = Arrays.copyOf(mBytes, (int) Math.min((long) mLength * 2, mMaxBytes));
+        mBytes[mLength++] = b;
+    }
+
+    /** If the payload so far is not valid base64, or ends in the middle of a byte. */
+    boolean isInvalid() {
+        return mInvalid || mBitCount >= 6;
+    }
+
+    /** If the payload decodes to more bytes than the cap set by {@link #setMaxBytes(int)}. */
+    boolean isTooLong() {
+        return mTooLong;
+    }
+
+    /** The decoded payload as UTF-8 text. */
+    String toUtf8String() {
+        return new String(mBytes, 0, mLength, StandardCharsets.UTF_8);
+    }
+
+}
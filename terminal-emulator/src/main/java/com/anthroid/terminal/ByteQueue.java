@@ -1,54 +1,108 @@
 package com.anthroid.terminal;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer allowing one consumer thread and one producer thread at a time, without a lock between them.
+ * <p>
+ * The capacity is a power of two, so that positions are free running counters masked into the buffer. The consumer
+ * only writes {@link #mHead} and the producer only writes {@link #mTail}, each of them volatile so that the bytes copied
+ * before a position is published can be seen by the other thread. A thread only parks when the queue is empty for the
+ * consumer, or full for the producer, after registering itself to be unparked by the other side. Writes from more than
+ * one thread are serialized by a lock which the consumer never takes.
+ * <p>
+ * Besides copying in and out with {@link #write(byte[], int, int)} and {@link #read(byte[], boolean)}, a single producer
+ * may fill the queue in place with {@link #reserve(int)} and {@link #commit(int)}, e.g. by reading into a direct
+ * {@link #buffer()} from native code, and the consumer may process the bytes in place with {@link #peek(int)} and
+ * {@link #consume(int)}.
+ */
 final class ByteQueue {
 
+    /** The storage of the queue, whose positions {@link #mBuffer} holds from {@link #mArrayOffset}. */
+    private final ByteBuffer mStorage;
     private final byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
-    private boolean mOpen = true;
+    private final int mArrayOffset;
+    private final int mMask;
+    /** The position of the next byte to read, only written by the consumer. */
+    private volatile long mHead;
+    /** The position of the next byte to write, only written by the producer. */
+    private volatile long mTail;
+    private volatile boolean mOpen = true;
+    /** The consumer if parked waiting for the queue to become non-empty. */
+    private volatile Thread mWaitingReader;
+    /** The producer if parked waiting for the queue to become non-full. */
+    private volatile Thread mWaitingWriter;
+    /** Serializes writes from several threads. */
+    private final Object mWriteLock = new Object();
 
+    /** Create a queue holding at least the specified number of bytes, rounded up to a power of two. */
     public ByteQueue(int size) {
-        mBuffer = new byte[size];
+        this(size, false);
+    }
+
+    /**
+     * Create a queue holding at least the specified number of bytes, rounded up to a power of two, which if direct is
+     * stored in a direct {@link ByteBuffer} that native code can read into. A direct buffer is only used if it is also
+     * backed by an array, as on Android, so that the bytes can be processed in place from Java.
+     */
+    public ByteQueue(int size, boolean direct) {
+        if (size <= 0 || size > (1 << 30)) throw new IllegalArgumentException("size=" + size);
+        final int capacity = (Integer.bitCount(size) == 1) ? size : Integer.highestOneBit(size) << 1;
+        ByteBuffer storage = direct ? ByteBuffer.allocateDirect(capacity) : null;
+        if (storage == null || !storage.hasArray()) storage = ByteBuffer.wrap(new byte[capacity]);
+        mStorage = storage;
+        mBuffer = storage.array();
+        mArrayOffset = storage.arrayOffset();
+        mMask = capacity - 1;
+    }
+
+    /** The number of bytes the queue can hold. */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * The storage of the queue, in which the index returned by {@link #reserveIndex()} or {@link #peekIndex()} is at
+     * {@link ByteBuffer#arrayOffset()} in its {@link ByteBuffer#array()}.
+     */
+    public ByteBuffer buffer() {
+        return mStorage;
     }
 
-    public synchronized void close() {
+    public void close() {
         mOpen = false;
-        notify();
+        LockSupport.unpark(mWaitingReader);
+        LockSupport.unpark(mWaitingWriter);
     }
 
-    public synchronized int read(byte[] buffer, boolean block) {
-        while (mStoredBytes == 0 && mOpen) {
-            if (block) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // Ignore.
-                }
-            } else {
-                return 0;
+    public int read(byte[] buffer, boolean block) {
+        long head = mHead;
+        long tail = mTail;
+        while (tail == head && mOpen) {
+            if (!block) return 0;
+            mWaitingReader = Thread.currentThread();
+            // Check again after registering, as the producer may have published before seeing the registration:
+            tail = mTail;
+            if (tail == head && mOpen) {
+                LockSupport.park(this);
+                // Ignore interrupts, like the wait() this replaced.
+                Thread.interrupted();
+                tail = mTail;
             }
+            mWaitingReader = null;
         }
         if (!mOpen) return -1;
 
-        int totalRead = 0;
-        int bufferLength = mBuffer.length;
-        boolean wasFull = bufferLength == mStoredBytes;
-        int length = buffer.length;
-        int offset = 0;
-        while (length > 0 && mStoredBytes > 0) {
-            int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-            int bytesToCopy = Math.min(length, oneRun);
-            System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-            mHead += bytesToCopy;
-            if (mHead >= bufferLength) mHead = 0;
-            mStoredBytes -= bytesToCopy;
-            length -= bytesToCopy;
-            offset += bytesToCopy;
-            totalRead += bytesToCopy;
-        }
-        if (wasFull) notify();
-        return totalRead;
+        final int bufferLength = mMask + 1;
+        final int bytesToRead = (int) Math.min(buffer.length, tail - head);
+        final int start = (int) head & mMask;
+        final int firstRun = Math.min(bytesToRead, bufferLength - start);
+        System.arraycopy(mBuffer, mArrayOffset + start, buffer, 0, firstRun);
+        if (firstRun < bytesToRead) System.arraycopy(mBuffer, mArrayOffset, buffer, firstRun, bytesToRead - firstRun);
+        mHead = head + bytesToRead;
+        LockSupport.unpark(mWaitingWriter);
+        return bytesToRead;
     }
 
     /**
@@ -63,46 +117,92 @@ final class ByteQueue {
             throw new IllegalArgumentException("length <= 0");
         }
 
-        final int bufferLength = mBuffer.length;
+        final int bufferLength = mMask + 1;
 
-        synchronized (this) {
+        synchronized (mWriteLock) {
+            long tail = mTail;
             while (lengthToWrite > 0) {
-                while (bufferLength == mStoredBytes && mOpen) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore.
-                    }
-                }
-                if (!mOpen) return false;
-                final boolean wasEmpty = mStoredBytes == 0;
-                int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
-                lengthToWrite -= bytesToWriteBeforeWaiting;
-
-                while (bytesToWriteBeforeWaiting > 0) {
-                    int tail = mHead + mStoredBytes;
-                    int oneRun;
-                    if (tail >= bufferLength) {
-                        // Buffer: [.............]
-                        // ________________H_______T
-                        // =>
-                        // Buffer: [.............]
-                        // ___________T____H
-                        // onRun= _____----_
-                        tail = tail - bufferLength;
-                        oneRun = mHead - tail;
-                    } else {
-                        oneRun = bufferLength - tail;
-                    }
-                    int bytesToCopy = Math.min(oneRun, bytesToWriteBeforeWaiting);
-                    System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-                    offset += bytesToCopy;
-                    bytesToWriteBeforeWaiting -= bytesToCopy;
-                    mStoredBytes += bytesToCopy;
-                }
-                if (wasEmpty) notify();
+                final long head = awaitSpace(tail);
+                if (head == -1) return false;
+
+                final int bytesToCopy = (int) Math.min(lengthToWrite, bufferLength - (tail - head));
+                final int start = (int) tail & mMask;
+                final int firstRun = Math.min(bytesToCopy, bufferLength - start);
+                System.arraycopy(buffer, offset, mBuffer, mArrayOffset + start, firstRun);
+                if (firstRun < bytesToCopy) System.arraycopy(buffer, offset + firstRun, mBuffer, mArrayOffset, bytesToCopy - firstRun);
+                offset += bytesToCopy;
+                lengthToWrite -= bytesToCopy;
+                tail += bytesToCopy;
+                mTail = tail;
+                LockSupport.unpark(mWaitingReader);
             }
         }
         return true;
     }
+
+    /** Wait until the queue is not full, returning the head position, or -1 if closed. Called by the producer. */
+    private long awaitSpace(long tail) {
+        final int bufferLength = mMask + 1;
+        long head = mHead;
+        while (tail - head == bufferLength && mOpen) {
+            mWaitingWriter = Thread.currentThread();
+            head = mHead;
+            if (tail - head == bufferLength && mOpen) {
+                LockSupport.park(this);
+                Thread.interrupted();
+                head = mHead;
+            }
+            mWaitingWriter = null;
+        }
+        return mOpen ? head : -1;
+    }
+
+    /**
+     * Wait until the queue is not full and return the number of bytes, at most maxLength, which may be written in place
+     * from {@link #reserveIndex()} and then published with {@link #commit(int)}, or -1 if closed. The bytes are free
+     * space up to the end of the storage, so a later reservation continues from its start. Only for a queue with a
+     * single producer, as writes in place are not serialized.
+     */
+    public int reserve(int maxLength) {
+        final long tail = mTail;
+        final long head = awaitSpace(tail);
+        if (head == -1) return -1;
+        final int start = (int) tail & mMask;
+        return (int) Math.min(maxLength, Math.min(mMask + 1 - (tail - head), mMask + 1 - start));
+    }
+
+    /** The index in {@link #buffer()} at which the bytes returned by {@link #reserve(int)} are written. */
+    public int reserveIndex() {
+        return (int) mTail & mMask;
+    }
+
+    /** Publish bytes written in place after {@link #reserve(int)} returned at least as many. */
+    public void commit(int length) {
+        mTail = mTail + length;
+        LockSupport.unpark(mWaitingReader);
+    }
+
+    /**
+     * Return the number of bytes, at most maxLength, which may be read in place from {@link #peekIndex()} and then
+     * released with {@link #consume(int)}, 0 if the queue is empty or -1 if closed. The bytes end at the end of the
+     * storage if the queued bytes wrap around it, and the rest is returned by the next peek.
+     */
+    public int peek(int maxLength) {
+        if (!mOpen) return -1;
+        final long head = mHead;
+        final int start = (int) head & mMask;
+        return (int) Math.min(maxLength, Math.min(mTail - head, mMask + 1 - start));
+    }
+
+    /** The index in {@link #buffer()} of the bytes returned by {@link #peek(int)}. */
+    public int peekIndex() {
+        return (int) mHead & mMask;
+    }
+
+    /** Release bytes which have been read in place after {@link #peek(int)} returned at least as many. */
+    public void consume(int length) {
+        mHead = mHead + length;
+        LockSupport.unpark(mWaitingWriter);
+    }
+
 }
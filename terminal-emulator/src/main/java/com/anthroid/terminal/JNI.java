@@ -1,5 +1,7 @@
 package com.anthroid.terminal;
 
+import java.nio.ByteBuffer;
+
 /**
  * Native methods for creating and managing pseudoterminal subprocesses. C code is in jni/termux.c.
  */
@@ -35,6 +37,19 @@ final class JNI {
      */
     public static native int waitFor(int processId);
 
+    /**
+     * Read from a file descriptor through the read(2) system call directly into a direct buffer, retrying if
+     * interrupted, so that the bytes are not copied on their way to Java.
+     *
+     * @param fileDescriptor The file descriptor to read from
+     * @param buffer         A direct buffer to read into
+     * @param index          The index in the buffer to read into
+     * @param length         The most bytes to read
+     * @return the number of bytes read, or -1 at end of input or on error, e.g. EIO once the process has closed its side
+     * of the pseudoterminal.
+     */
+    public static native int read(int fileDescriptor, ByteBuffer buffer, int index, int length);
+
     /** Close a file descriptor through the close(2) system call. */
     public static native void close(int fileDescriptor);
 
@@ -0,0 +1,104 @@
+package com.anthroid.terminal;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link TerminalOutputTap} mirroring process output to the debug log, for debugging what a session prints. At most
+ * {@code maxBytesPerSecond} bytes are decoded and logged each second, and the number of bytes skipped due to the limit
+ * is logged once output is let through again, so that a noisy session can not flood the log.
+ * <p>
+ * Output is logged up to the last complete UTF-8 sequence. A sequence cut off by the end of a read is completed by the
+ * next one, and one cut off by the rate limit is skipped along with the rest of the output not logged.
+ */
+public final class RateLimitedLogOutputTap implements TerminalOutputTap {
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private final TerminalSessionClient mClient;
+    private final String mLogTag;
+    private final int mMaxBytesPerSecond;
+
+    private long mWindowStartNanos;
+    private int mBytesLoggedInWindow;
+    private long mBytesSkipped;
+    /** The start of a UTF-8 sequence cut off by the end of the last read, logged with the rest of it from the next. */
+    private final byte[] mCarry = new byte[3];
+    private int mCarryLength;
+
+    public RateLimitedLogOutputTap(TerminalSessionClient client, String logTag, int maxBytesPerSecond) {
+        if (maxBytesPerSecond <= 0) throw new IllegalArgumentException("maxBytesPerSecond=" + maxBytesPerSecond);
+        mClient = client;
+        mLogTag = logTag;
+        mMaxBytesPerSecond = maxBytesPerSecond;
+        mWindowStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public void onProcessOutput(byte[] buffer, int offset, int length) {
+        long now = System.nanoTime();
+        if (now - mWindowStartNanos >= WINDOW_NANOS) {
+            mWindowStartNanos = now;
+            mBytesLoggedInWindow = 0;
+        }
+
+        int bytesToLog = Math.min(length, mMaxBytesPerSecond - mBytesLoggedInWindow);
+        if (bytesToLog <= 0) {
+            mBytesSkipped += length;
+            mCarryLength = 0;
+            return;
+        }
+        mBytesLoggedInWindow += bytesToLog;
+
+        if (mBytesSkipped > 0) {
+            Logger.logDebug(mClient, mLogTag, "[" + mBytesSkipped + " bytes of output not logged due to rate limit]");
+            mBytesSkipped = 0;
+            // The rest of a sequence whose start was skipped:
+            while (bytesToLog > 0 && isContinuationByte(buffer[offset])) {
+                offset++;
+                length--;
+                bytesToLog--;
+            }
+        }
+
+        byte[] bytes = buffer;
+        int start = offset;
+        int end = offset + bytesToLog;
+        if (mCarryLength > 0) {
+            bytes = new byte[mCarryLength + bytesToLog];
+            System.arraycopy(mCarry, 0, bytes, 0, mCarryLength);
+            System.arraycopy(buffer, offset, bytes, mCarryLength, bytesToLog);
+            start = 0;
+            end = bytes.length;
+            mCarryLength = 0;
+        }
+        final int complete = completeUtf8End(bytes, start, end);
+        if (bytesToLog < length) {
+            mBytesSkipped += length - bytesToLog + end - complete;
+        } else {
+            mCarryLength = end - complete;
+            System.arraycopy(bytes, complete, mCarry, 0, mCarryLength);
+        }
+        if (complete > start) Logger.logDebug(mClient, mLogTag, new String(bytes, start, complete - start, StandardCharsets.UTF_8));
+    }
+
+    private static boolean isContinuationByte(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * The end of the last complete UTF-8 sequence of the bytes from start to end, which is end unless they end with the
+     * start of a sequence cut off. Malformed bytes are left to be decoded as they are.
+     */
+    static int completeUtf8End(byte[] bytes, int start, int end) {
+        for (int i = end - 1; i >= Math.max(start, end - 3); i--) {
+            final int b = bytes[i] & 0xFF;
+            if (b < 0x80) return end;
+            if (b >= 0xC0) {
+                final int sequenceLength = (b >= 0xF0) ? 4 : (b >= 0xE0) ? 3 : 2;
+                return (end - i >= sequenceLength) ? end : i;
+            }
+        }
+        return end;
+    }
+
+}
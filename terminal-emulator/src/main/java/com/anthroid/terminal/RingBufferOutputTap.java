@@ -0,0 +1,61 @@
+package com.anthroid.terminal;
+
+/**
+ * A {@link TerminalOutputTap} keeping the most recent bytes output by the process in a fixed size ring buffer, which
+ * may be read from any thread with {@link #getBytes()}. No allocations are made when receiving output.
+ */
+public final class RingBufferOutputTap implements TerminalOutputTap {
+
+    private final byte[] mBuffer;
+    /** The index in {@link #mBuffer} the next byte will be written to. */
+    private int mHead;
+    /** The total number of bytes received, of which the last min(mTotalBytes, mBuffer.length) are kept. */
+    private long mTotalBytes;
+
+    public RingBufferOutputTap(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity=" + capacity);
+        mBuffer = new byte[capacity];
+    }
+
+    @Override
+    public synchronized void onProcessOutput(byte[] buffer, int offset, int length) {
+        final int capacity = mBuffer.length;
+        mTotalBytes += length;
+        if (length >= capacity) {
+            // Only the last capacity bytes are kept.
+            System.arraycopy(buffer, offset + length - capacity, mBuffer, 0, capacity);
+            mHead = 0;
+            return;
+        }
+        int firstRun = Math.min(length, capacity - mHead);
+        System.arraycopy(buffer, offset, mBuffer, mHead, firstRun);
+        System.arraycopy(buffer, offset + firstRun, mBuffer, 0, length - firstRun);
+        mHead = (mHead + length) % capacity;
+    }
+
+    /** The total number of bytes received, including those no longer kept. */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** Get a copy of the kept bytes, oldest first. */
+    public synchronized byte[] getBytes() {
+        final int capacity = mBuffer.length;
+        if (mTotalBytes < capacity) {
+            byte[] result = new byte[(int) mTotalBytes];
+            System.arraycopy(mBuffer, 0, result, 0, result.length);
+            return result;
+        }
+        byte[] result = new byte[capacity];
+        System.arraycopy(mBuffer, mHead, result, 0, capacity - mHead);
+        System.arraycopy(mBuffer, 0, result, capacity - mHead, mHead);
+        return result;
+    }
+
+    /** Discard all kept bytes. */
+    public synchronized void clear() {
+        mHead = 0;
+        mTotalBytes = 0;
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.anthroid.terminal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
@@ -20,6 +22,46 @@ public final class TerminalBuffer {
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
 
+    /** The screen rows changed since the last {@link #clearDirtyRows()}, indexed by external row. */
+    private boolean[] mDirtyRows;
+    /** If everything, including the transcript, should be considered changed since the last {@link #clearDirtyRows()}. */
+    private boolean mAllDirty;
+    /** The number of rows the content has been scrolled up by since the last {@link #clearDirtyRows()}. */
+    private int mDirtyScrollRows;
+
+    /**
+     * Incremented each time a snapshot sharing the rows of this buffer is created, so that rows of an older generation
+     * are copied before being changed, see {@link #writableRow(int)}.
+     */
+    private int mGeneration;
+
+    /** The file keeping rows dropped from the start of the transcript, see {@link #setScrollbackFile(TerminalScrollbackFile)}. */
+    private TerminalScrollbackFile mScrollback;
+    /** The number of rows in {@link #mScrollback} preceding the transcript, counted here as a snapshot may lag the file. */
+    private int mScrollbackRows;
+    /** The index in {@link #mScrollback} of its first row, see {@link TerminalScrollbackFile#getFirstRow()}. */
+    private int mScrollbackFirstRow;
+
+    /**
+     * The most rows of history, before the screen, to reflow when {@link #resize(int, int, int, int[], long, boolean)}
+     * changes the number of columns. Older rows are reflowed by {@link #continueReflow(int)}.
+     */
+    static final int REFLOW_HISTORY_ROWS = 500;
+    /**
+     * The rows before the transcript which a change of columns has left to reflow, from {@link #mReflowStart} to
+     * {@link #mReflowEnd}, or null if none are. They are in the order they were output, of the number of columns before
+     * the change, and are neither part of the transcript nor of {@link #getActiveTranscriptRows()} until reflowed.
+     */
+    private TerminalRow[] mReflowRows;
+    private int mReflowStart, mReflowEnd;
+    /**
+     * Reflowed rows of the first line in the transcript which did not fit in it, to keep in {@link #mScrollback} after
+     * the rows left to reflow, or null.
+     */
+    private TerminalRow[] mReflowOverflow;
+    /** The style to clear reflowed rows with. */
+    private long mReflowStyle;
+
     /**
      * Create a transcript screen.
      *
@@ -33,20 +75,93 @@ public final class TerminalBuffer {
         mTotalRows = totalRows;
         mScreenRows = screenRows;
         mLines = new TerminalRow[totalRows];
+        mDirtyRows = new boolean[screenRows];
+        mAllDirty = true;
 
         blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
     }
 
+    /**
+     * Create a snapshot of a buffer, sharing the rows of the source. The source copies a shared row before changing it,
+     * so the snapshot is not affected by later changes and may be read from another thread. Rows left to reflow are
+     * included as they are.
+     *
+     * @param takeDirtyRows if the rows changed in the source since its last {@link #clearDirtyRows()} should be reported
+     *                      as dirty in the snapshot and cleared in the source, for rendering the snapshot instead of the
+     *                      source. Otherwise the changes are left to the source and the snapshot is all dirty.
+     */
+    TerminalBuffer(TerminalBuffer source, boolean takeDirtyRows) {
+        mLines = source.mLines.clone();
+        mTotalRows = source.mTotalRows;
+        mScreenRows = source.mScreenRows;
+        mColumns = source.mColumns;
+        mActiveTranscriptRows = source.mActiveTranscriptRows;
+        mScreenFirstRow = source.mScreenFirstRow;
+        if (takeDirtyRows) {
+            mDirtyRows = source.mDirtyRows.clone();
+            mAllDirty = source.mAllDirty;
+            mDirtyScrollRows = source.mDirtyScrollRows;
+        } else {
+            mDirtyRows = new boolean[mScreenRows];
+            mAllDirty = true;
+        }
+        // Reflowing clears the rows it takes from the array, but does not change the rows themselves:
+        mReflowRows = (source.mReflowRows == null) ? null : source.mReflowRows.clone();
+        mReflowStart = source.mReflowStart;
+        mReflowEnd = source.mReflowEnd;
+        mReflowOverflow = source.mReflowOverflow;
+        mReflowStyle = source.mReflowStyle;
+        mScrollback = source.mScrollback;
+        mScrollbackRows = source.mScrollbackRows;
+        mScrollbackFirstRow = source.mScrollbackFirstRow;
+
+        source.mGeneration++;
+        if (takeDirtyRows) source.clearDirtyRows();
+    }
+
     public String getTranscriptText() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows).trim();
+        return getTranscriptTextTail(Integer.MAX_VALUE, true, false);
     }
 
     public String getTranscriptTextWithoutJoinedLines() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, false).trim();
+        return getTranscriptTextTail(Integer.MAX_VALUE, false, false);
     }
 
     public String getTranscriptTextWithFullLinesJoined() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, true, true).trim();
+        return getTranscriptTextTail(Integer.MAX_VALUE, true, true);
+    }
+
+    /**
+     * The text of the last rows of the history and screen, as {@link #getTranscriptText()} and the like, reading no
+     * more rows than asked for however long the history in the scrollback file is. The text starts with a whole row,
+     * which may be in the middle of a wrapped line. For the lines to be joined see
+     * {@link #getSelectedText(int, int, int, int, boolean, boolean)}.
+     * <p>
+     * Rows left to reflow by a change of columns are read as they are, before the transcript, instead of being reflowed
+     * first, so that reading the text does not change the buffer while the thread appending output to it does.
+     */
+    public String getTranscriptTextTail(int maxRows, boolean joinBackLines, boolean joinFullLines) {
+        final TerminalRow[] reflowRows = mReflowRows;
+        final int reflowStart = mReflowStart, reflowEnd = mReflowEnd;
+        final TerminalRow[] reflowOverflow = mReflowOverflow;
+        final int leftToReflow = (reflowRows == null) ? 0 : reflowEnd - reflowStart;
+        final int pendingRows = (reflowRows == null) ? 0 : leftToReflow + ((reflowOverflow == null) ? 0 : reflowOverflow.length);
+
+        // The rows to read, counted from the end: on the heap, then left to reflow, then in the scrollback file:
+        final int heapRows = Math.min(maxRows, mActiveTranscriptRows + mScreenRows);
+        final int readPendingRows = Math.min(maxRows - heapRows, pendingRows);
+        final int scrollbackRows = Math.min(maxRows - heapRows - readPendingRows, mScrollbackRows);
+
+        final StringBuilder builder = new StringBuilder();
+        for (int row = -mActiveTranscriptRows - scrollbackRows; row < -mActiveTranscriptRows; row++)
+            appendRowText(builder, getRow(row), 0, mColumns, joinBackLines, joinFullLines, false);
+        for (int i = pendingRows - readPendingRows; i < pendingRows; i++) {
+            final TerminalRow row = (i < leftToReflow) ? reflowRows[reflowStart + i] : reflowOverflow[i - leftToReflow];
+            appendRowText(builder, row, 0, Integer.MAX_VALUE, joinBackLines, joinFullLines, false);
+        }
+        for (int row = mScreenRows - heapRows; row < mScreenRows; row++)
+            appendRowText(builder, mLines[externalToInternalRow(row)], 0, mColumns, joinBackLines, joinFullLines, row == mScreenRows - 1);
+        return builder.toString().trim();
     }
 
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
@@ -73,9 +188,23 @@ public final class TerminalBuffer {
             } else {
                 x2 = columns;
             }
-            TerminalRow lineObject = mLines[externalToInternalRow(row)];
+            appendRowText(builder, getRow(row), x1, x2, joinBackLines, joinFullLines, row == selY2);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Append the text of a row from column x1 up to x2, or the end of the row, followed by a newline unless it is the
+     * last row or joined with the next one. A null row, which has not been allocated, is blank.
+     */
+    private static void appendRowText(StringBuilder builder, TerminalRow lineObject, int x1, int x2,
+                                      boolean joinBackLines, boolean joinFullLines, boolean lastRow) {
+        if (lineObject != null) {
+            lineObject = lineObject.inflate();
+            final int columns = lineObject.getColumns();
+            if (x2 > columns) x2 = columns;
             int x1Index = lineObject.findStartOfColumn(x1);
-            int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
+            int x2Index = (x2 < columns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
             if (x2Index == x1Index) {
                 // Selected the start of a wide character.
                 x2Index = lineObject.findStartOfColumn(x2 + 1);
@@ -83,7 +212,7 @@ public final class TerminalBuffer {
             char[] line = lineObject.mText;
             int lastPrintingCharIndex = -1;
             int i;
-            boolean rowLineWrap = getLineWrap(row);
+            boolean rowLineWrap = lineObject.mLineWrap;
             if (rowLineWrap && x2 == columns) {
                 // If the line was wrapped, we shouldn't lose trailing space:
                 lastPrintingCharIndex = x2Index - 1;
@@ -99,10 +228,9 @@ public final class TerminalBuffer {
                 builder.append(line, x1Index, len);
 
             boolean lineFillsWidth = lastPrintingCharIndex == x2Index - 1;
-            if ((!joinBackLines || !rowLineWrap) && (!joinFullLines || !lineFillsWidth)
-                && row < selY2 && row < mScreenRows - 1) builder.append('\n');
+            if ((joinBackLines && rowLineWrap) || (joinFullLines && lineFillsWidth)) return;
         }
-        return builder.toString();
+        if (!lastRow) builder.append('\n');
     }
 
     public String getWordAtLocation(int x, int y) {
@@ -144,12 +272,82 @@ public final class TerminalBuffer {
         return text.substring(x1 + 1, x2);
     }
 
+    /** The number of rows in the transcript, including those in the scrollback file, see {@link #getRow(int)}. */
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mActiveTranscriptRows + mScrollbackRows;
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /**
+     * Keep the rows dropped from the start of the transcript, once it has reached its maximum number of rows, in a file
+     * instead. The rows in the file come before the transcript in the external coordinate system, and are included in
+     * {@link #getActiveTranscriptRows()} and the transcript text. They are read with {@link #getRow(int)}.
+     */
+    public void setScrollbackFile(TerminalScrollbackFile scrollback) {
+        mScrollback = scrollback;
+        mScrollbackRows = (scrollback == null) ? 0 : scrollback.getRowCount();
+        mScrollbackFirstRow = (scrollback == null) ? 0 : scrollback.getFirstRow();
+        mAllDirty = true;
+    }
+
+    /** The index in {@link #mScrollback} of an external row before the transcript. */
+    private int toScrollbackIndex(int externalRow) {
+        return mScrollbackFirstRow + mScrollbackRows + mActiveTranscriptRows + externalRow;
+    }
+
+    /** Append a row to {@link #mScrollback}, which drops its oldest rows when full, moving the rows after them up. */
+    private void appendToScrollback(TerminalRow row) {
+        if (!mScrollback.append(row)) return;
+        final int firstRow = mScrollback.getFirstRow();
+        if (firstRow != mScrollbackFirstRow) mAllDirty = true;
+        mScrollbackFirstRow = firstRow;
+        mScrollbackRows = mScrollback.getRowCount();
+    }
+
+    /**
+     * Find the occurrences of a text in the screen and history, including the scrollback file, without reading rows
+     * which can not contain it, see {@link TerminalSearch}. Text wrapped over several rows is found.
+     *
+     * Rows left to reflow by a change of columns have no row to report a hit in, and are only searched once reflowed,
+     * see {@link #isReflowPending()}, as searching does not change the buffer.
+     *
+     * @param maxHits the maximum number of hits, the ones closest to the end being returned.
+     * @return the hits, ordered from the start of the history to the end of the screen.
+     */
+    public List<TerminalSearch.Hit> search(String query, boolean caseSensitive, int maxHits) {
+        return TerminalSearch.search(this, query, caseSensitive, maxHits);
+    }
+
+    /** Get a row as stored, which may be packed, by its external row, or null if not allocated or no longer stored. */
+    TerminalRow getStoredRow(int externalRow) {
+        if (externalRow >= -mActiveTranscriptRows) return mLines[externalToInternalRow(externalRow)];
+        return (mScrollback == null) ? null : mScrollback.read(toScrollbackIndex(externalRow));
+    }
+
+    /** Get the search signature of a row, see {@link TerminalSearch}, returning false if the row has none. */
+    boolean getSearchSignature(int externalRow, long[] signature) {
+        if (externalRow < -mActiveTranscriptRows)
+            return mScrollback != null && mScrollback.readSearchSignature(toScrollbackIndex(externalRow), signature);
+        TerminalRow row = mLines[externalToInternalRow(externalRow)];
+        if (row == null || row.mSearchSignature == null) return false;
+        System.arraycopy(row.mSearchSignature, 0, signature, 0, signature.length);
+        return true;
+    }
+
+    /**
+     * Get a row to read by its external row, from -{@link #getActiveTranscriptRows()} to mScreenRows-1. Unlike with
+     * {@link #externalToInternalRow(int)} this includes the rows in the scrollback file, which are read from the file
+     * and, if stored before the number of columns changed, cut off or padded to the current number of columns.
+     */
+    public TerminalRow getRow(int externalRow) {
+        if (externalRow >= -mActiveTranscriptRows) return allocateFullLineIfNecessary(externalToInternalRow(externalRow));
+        TerminalRow row = (mScrollback == null) ? null : mScrollback.read(toScrollbackIndex(externalRow));
+        // The file may have been cleared after this buffer was snapshotted:
+        if (row == null) return new TerminalRow(mColumns, TextStyle.NORMAL);
+        return row.inflate().withColumns(mColumns);
     }
 
     /**
@@ -157,6 +355,7 @@ public final class TerminalBuffer {
      *
      * <pre>
      * - External coordinate system: -mActiveTranscriptRows to mScreenRows-1, with the screen being 0..mScreenRows-1.
+     *   Rows in the scrollback file come before -mActiveTranscriptRows and have no internal row, see getRow().
      * - Internal coordinate system: the mScreenRows lines starting at mScreenFirstRow comprise the screen, while the
      *   mActiveTranscriptRows lines ending at mScreenFirstRow-1 form the transcript (as a circular buffer).
      *
@@ -181,26 +380,31 @@ public final class TerminalBuffer {
     }
 
     public void setLineWrap(int row) {
-        mLines[externalToInternalRow(row)].mLineWrap = true;
+        writableRow(externalToInternalRow(row)).mLineWrap = true;
     }
 
     public boolean getLineWrap(int row) {
+        if (row < -mActiveTranscriptRows) return mScrollback != null && mScrollback.getLineWrap(toScrollbackIndex(row));
         return mLines[externalToInternalRow(row)].mLineWrap;
     }
 
     public void clearLineWrap(int row) {
-        mLines[externalToInternalRow(row)].mLineWrap = false;
+        writableRow(externalToInternalRow(row)).mLineWrap = false;
     }
 
     /**
-     * Resize the screen which this transcript backs. Currently, this only works if the number of columns does not
-     * change or the rows expand (that is, it only works when shrinking the number of rows).
+     * Resize the screen which this transcript backs. If the number of columns changes, the screen and the last
+     * {@link #REFLOW_HISTORY_ROWS} rows of history are reflowed, while older rows are left to be reflowed, before the
+     * transcript, by {@link #continueReflow(int)}.
      *
      * @param newColumns The number of columns the screen should have.
      * @param newRows    The number of rows the screen should have.
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        mDirtyRows = new boolean[newRows];
+        mAllDirty = true;
+
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
             // Fast resize where just the rows changed.
@@ -220,7 +424,7 @@ public final class TerminalBuffer {
                 if (shiftDownOfTopRow != actualShift) {
                     // The new lines revealed by the resizing are not all from the transcript. Blank the below ones.
                     for (int i = 0; i < actualShift - shiftDownOfTopRow; i++)
-                        allocateFullLineIfNecessary((mScreenFirstRow + mScreenRows + i) % mTotalRows).clear(currentStyle);
+                        writableRow((mScreenFirstRow + mScreenRows + i) % mTotalRows).clear(currentStyle);
                     shiftDownOfTopRow = actualShift;
                 }
             }
@@ -230,25 +434,50 @@ public final class TerminalBuffer {
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
             cursor[1] -= shiftDownOfTopRow;
             mScreenRows = newRows;
+
+            // Rows which moved from the screen into the transcript are packed, and those which moved back unpacked:
+            for (int i = Math.max(-mActiveTranscriptRows, -shiftDownOfTopRow); i < 0; i++)
+                packTranscriptRow(i);
+            for (int i = 0; i < mScreenRows; i++) {
+                int r = externalToInternalRow(i);
+                if (mLines[r] != null && mLines[r].isPacked()) mLines[r] = mLines[r].inflate();
+            }
         } else {
-            // Copy away old state and update new:
-            TerminalRow[] oldLines = mLines;
-            mLines = new TerminalRow[newTotalRows];
-            for (int i = 0; i < newTotalRows; i++)
-                mLines[i] = new TerminalRow(newColumns, currentStyle);
-
-            final int oldActiveTranscriptRows = mActiveTranscriptRows;
-            final int oldScreenFirstRow = mScreenFirstRow;
-            final int oldScreenRows = mScreenRows;
-            final int oldTotalRows = mTotalRows;
+            // Copy away old state and update new, including rows left to reflow by an earlier change of columns:
+            final TerminalRow[] oldRows = collectRowsToReflow();
+            final int oldScreenStart = oldRows.length - mScreenRows;
+            if (mLines.length == newTotalRows) {
+                Arrays.fill(mLines, null);
+            } else {
+                mLines = new TerminalRow[newTotalRows];
+            }
+            // Transcript rows are created as the screen scrolls during the reflow below:
+            for (int i = 0; i < newRows; i++)
+                mLines[i] = newRow(newColumns, currentStyle);
+
             mTotalRows = newTotalRows;
             mScreenRows = newRows;
             mActiveTranscriptRows = mScreenFirstRow = 0;
             mColumns = newColumns;
 
+            // Reflow the screen and recent history below, starting at the start of a line, and older rows later:
+            int reflowStart = 0;
+            if (!altScreen) {
+                int historyRows = Math.max(newRows, Math.min(REFLOW_HISTORY_ROWS, (newTotalRows - newRows) / 2));
+                reflowStart = Math.max(0, oldScreenStart - historyRows);
+                while (reflowStart > 0 && continuesOnNextRow(oldRows[reflowStart - 1])) reflowStart--;
+            }
+            if (reflowStart > 0) {
+                // Set before reflowing, so that the rows are kept before any scrolling out of a full transcript:
+                mReflowRows = oldRows;
+                mReflowStart = 0;
+                mReflowEnd = reflowStart;
+                mReflowStyle = currentStyle;
+            }
+
             int newCursorRow = -1;
             int newCursorColumn = -1;
-            int oldCursorRow = cursor[1];
+            int oldCursorIndex = oldScreenStart + cursor[1];
             int oldCursorColumn = cursor[0];
             boolean newCursorPlaced = false;
 
@@ -259,13 +488,10 @@ public final class TerminalBuffer {
             // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
             // keep track how many blank lines we have skipped if we later on find a non-blank line.
             int skippedBlankLines = 0;
-            for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++) {
-                // Do what externalToInternalRow() does but for the old state:
-                int internalOldRow = oldScreenFirstRow + externalOldRow;
-                internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
-
-                TerminalRow oldLine = oldLines[internalOldRow];
-                boolean cursorAtThisRow = externalOldRow == oldCursorRow;
+            for (int oldIndex = reflowStart; oldIndex < oldRows.length; oldIndex++) {
+                TerminalRow oldLine = oldRows[oldIndex];
+                if (oldLine != null) oldLine = oldLine.inflate();
+                boolean cursorAtThisRow = oldIndex == oldCursorIndex;
                 // The cursor may only be on a non-null line, which we should not skip:
                 if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
                     skippedBlankLines++;
@@ -283,18 +509,9 @@ public final class TerminalBuffer {
                     skippedBlankLines = 0;
                 }
 
-                int lastNonSpaceIndex = 0;
-                boolean justToCursor = false;
-                if (cursorAtThisRow || oldLine.mLineWrap) {
-                    // Take the whole line, either because of cursor on it, or if line wrapping.
-                    lastNonSpaceIndex = oldLine.getSpaceUsed();
-                    if (cursorAtThisRow) justToCursor = true;
-                } else {
-                    for (int i = 0; i < oldLine.getSpaceUsed(); i++)
-                        // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
-                        if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
-                            lastNonSpaceIndex = i + 1;
-                }
+                // Take the whole line, either because of cursor on it, or if line wrapping:
+                boolean justToCursor = cursorAtThisRow;
+                int lastNonSpaceIndex = cursorAtThisRow ? oldLine.getSpaceUsed() : charsToReflow(oldLine);
 
                 int currentOldCol = 0;
                 long styleAtCol = 0;
@@ -323,7 +540,7 @@ public final class TerminalBuffer {
                     setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
 
                     if (displayWidth > 0) {
-                        if (oldCursorRow == externalOldRow && oldCursorColumn == currentOldCol) {
+                        if (oldIndex == oldCursorIndex && oldCursorColumn == currentOldCol) {
                             newCursorColumn = currentOutputExternalColumn;
                             newCursorRow = currentOutputExternalRow;
                             newCursorPlaced = true;
@@ -334,7 +551,7 @@ public final class TerminalBuffer {
                     }
                 }
                 // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
-                if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
+                if (oldIndex != oldRows.length - 1 && !oldLine.mLineWrap) {
                     if (currentOutputExternalRow == mScreenRows - 1) {
                         if (newCursorPlaced) newCursorRow--;
                         scrollDownOneLine(0, mScreenRows, currentStyle);
@@ -353,6 +570,151 @@ public final class TerminalBuffer {
         if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
     }
 
+    /**
+     * The rows to reflow on a change of columns, in the order they were output: those left to reflow by an earlier
+     * change, which is so cancelled, followed by the transcript and the screen.
+     */
+    private TerminalRow[] collectRowsToReflow() {
+        final int leftToReflow = (mReflowRows == null) ? 0 : mReflowEnd - mReflowStart;
+        final int overflow = (mReflowOverflow == null) ? 0 : mReflowOverflow.length;
+        final TerminalRow[] rows = new TerminalRow[leftToReflow + overflow + mActiveTranscriptRows + mScreenRows];
+        if (leftToReflow > 0) System.arraycopy(mReflowRows, mReflowStart, rows, 0, leftToReflow);
+        if (overflow > 0) System.arraycopy(mReflowOverflow, 0, rows, leftToReflow, overflow);
+        for (int i = leftToReflow + overflow, externalRow = -mActiveTranscriptRows; externalRow < mScreenRows; i++, externalRow++)
+            rows[i] = mLines[externalToInternalRow(externalRow)];
+        mReflowRows = null;
+        mReflowOverflow = null;
+        return rows;
+    }
+
+    /**
+     * If the reflowed text of the row after a row continues where that of the row ends, instead of starting a new
+     * output row. A blank row is skipped when reflowing, which starts a new row like a line that does not wrap.
+     */
+    private static boolean continuesOnNextRow(TerminalRow row) {
+        return row != null && row.mLineWrap && !row.isBlank();
+    }
+
+    /** The number of chars of an inflated row to reflow, leaving out trailing spaces unless the line wraps. */
+    private static int charsToReflow(TerminalRow row) {
+        if (row.mLineWrap) return row.getSpaceUsed();
+        int lastNonSpaceIndex = 0;
+        for (int i = 0; i < row.getSpaceUsed(); i++)
+            // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
+            if (row.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
+                lastNonSpaceIndex = i + 1;
+        return lastNonSpaceIndex;
+    }
+
+    /** If a change of columns has left rows of history to reflow, see {@link #continueReflow(int)}. */
+    public boolean isReflowPending() {
+        return mReflowRows != null;
+    }
+
+    /**
+     * Reflow some of the history left by a change of columns, which is added to the start of the transcript while it
+     * has room. When the transcript is full, the rest is kept in the scrollback file or dropped without one.
+     *
+     * @param maxRows the number of old rows to reflow, which is exceeded to reflow whole lines.
+     * @return if there are still rows left to reflow.
+     */
+    public boolean continueReflow(int maxRows) {
+        if (mReflowRows == null) return false;
+        final int room = mTotalRows - mScreenRows - mActiveTranscriptRows;
+        if (mReflowOverflow == null && room > 0 && mReflowStart < mReflowEnd) {
+            // Reflow the last lines left, to add their rows before the transcript from its first row up:
+            int start = Math.max(mReflowStart, mReflowEnd - maxRows);
+            while (start > mReflowStart && continuesOnNextRow(mReflowRows[start - 1])) start--;
+            final TerminalRow[] rows = reflowRows(mReflowRows, start, mReflowEnd);
+            final int fitting = Math.min(rows.length, room);
+            for (int i = rows.length - 1; i >= rows.length - fitting; i--) {
+                mActiveTranscriptRows++;
+                mLines[externalToInternalRow(-mActiveTranscriptRows)] = packReflowedRow(rows, i);
+            }
+            if (fitting < rows.length) mReflowOverflow = Arrays.copyOf(rows, rows.length - fitting);
+            Arrays.fill(mReflowRows, start, mReflowEnd, null);
+            mReflowEnd = start;
+            mAllDirty = true;
+        } else if (mScrollback == null) {
+            mReflowStart = mReflowEnd;
+            mReflowOverflow = null;
+        } else if (mReflowStart < mReflowEnd) {
+            // Keep the first lines left in the scrollback file, where the rows dropped from the transcript went:
+            int end = mReflowStart + Math.min(maxRows, mReflowEnd - mReflowStart);
+            while (end < mReflowEnd && continuesOnNextRow(mReflowRows[end - 1])) end++;
+            final TerminalRow[] rows = reflowRows(mReflowRows, mReflowStart, end);
+            for (int i = 0; i < rows.length; i++)
+                appendToScrollback(packReflowedRow(rows, i));
+            Arrays.fill(mReflowRows, mReflowStart, end, null);
+            mReflowStart = end;
+            mAllDirty = true;
+        } else {
+            for (int i = 0; i < mReflowOverflow.length; i++)
+                appendToScrollback(packReflowedRow(mReflowOverflow, i));
+            mReflowOverflow = null;
+        }
+        if (mReflowStart == mReflowEnd && mReflowOverflow == null) mReflowRows = null;
+        return mReflowRows != null;
+    }
+
+    /** Reflow all of the history left by a change of columns, see {@link #continueReflow(int)}. */
+    public void finishReflow() {
+        while (continueReflow(Integer.MAX_VALUE)) ;
+    }
+
+    /**
+     * Reflow old rows from the start of a line to the start of another, see {@link #continuesOnNextRow(TerminalRow)},
+     * into rows of the current number of columns, as {@link #resize(int, int, int, int[], long, boolean)} does.
+     */
+    private TerminalRow[] reflowRows(TerminalRow[] oldRows, int start, int end) {
+        final ArrayList<TerminalRow> rows = new ArrayList<>(end - start + 1);
+        TerminalRow row = newRow(mColumns, mReflowStyle);
+        rows.add(row);
+        int column = 0;
+        for (int oldIndex = start; oldIndex < end; oldIndex++) {
+            TerminalRow oldLine = oldRows[oldIndex];
+            if (oldLine != null && !oldLine.isBlank()) {
+                oldLine = oldLine.inflate();
+                final int charsToReflow = charsToReflow(oldLine);
+                int oldColumn = 0;
+                long style = 0;
+                for (int i = 0; i < charsToReflow; i++) {
+                    char c = oldLine.mText[i];
+                    int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
+                    int displayWidth = WcWidth.width(codePoint);
+                    // Use the last style if this is a zero-width character:
+                    if (displayWidth > 0) style = oldLine.getStyle(oldColumn);
+                    if (column + displayWidth > mColumns) {
+                        row.mLineWrap = true;
+                        row = newRow(mColumns, mReflowStyle);
+                        rows.add(row);
+                        column = 0;
+                    }
+                    int offsetDueToCombiningChar = ((displayWidth <= 0 && column > 0) ? 1 : 0);
+                    row.setChar(column - offsetDueToCombiningChar, codePoint, style);
+                    if (displayWidth > 0) {
+                        oldColumn += displayWidth;
+                        column += displayWidth;
+                    }
+                }
+                if (oldLine.mLineWrap) continue;
+            }
+            row = newRow(mColumns, mReflowStyle);
+            rows.add(row);
+            column = 0;
+        }
+        // The last line ended by starting a row which is not part of it:
+        rows.remove(rows.size() - 1);
+        return rows.toArray(new TerminalRow[0]);
+    }
+
+    /** The packed form of a reflowed row, with the search signature including the end of the previous one. */
+    private static TerminalRow packReflowedRow(TerminalRow[] rows, int index) {
+        final TerminalRow packed = rows[index].pack();
+        packed.mSearchSignature = TerminalSearch.signatureOf(rows[index], (index > 0) ? rows[index - 1] : null);
+        return packed;
+    }
+
     /**
      * Block copy lines and associated metadata from one location to another in the circular buffer, taking wraparound
      * into account.
@@ -385,6 +747,19 @@ public final class TerminalBuffer {
         if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
             throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
 
+        // Rows left to reflow come before the row about to be dropped from a full transcript:
+        if (mReflowRows != null && mActiveTranscriptRows == mTotalRows - mScreenRows) finishReflow();
+
+        mDirtyScrollRows++;
+        if (topMargin == 0) {
+            // Rows above the bottom margin have moved up together with the transcript, the rest have been replaced:
+            System.arraycopy(mDirtyRows, 1, mDirtyRows, 0, bottomMargin - 1);
+            Arrays.fill(mDirtyRows, bottomMargin - 1, mScreenRows, true);
+        } else {
+            // The row which went into the transcript was not the top one, so nothing has just moved up.
+            mAllDirty = true;
+        }
+
         // Copy the fixed topMargin lines one line down so that they remain on screen in same position:
         blockCopyLinesDown(mScreenFirstRow, topMargin);
         // Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
@@ -392,19 +767,49 @@ public final class TerminalBuffer {
         blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin);
 
         // Update the screen location in the ring buffer:
+        final boolean transcriptFull = mActiveTranscriptRows == mTotalRows - mScreenRows;
         mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
         // Note that the history has grown if not already full:
         if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
 
-        // Blank the newly revealed line above the bottom margin:
+        // Pack the row which went into the transcript, reusing it for the blank row if not shared with a snapshot:
+        TerminalRow recycledRow = null;
+        if (mTotalRows > mScreenRows) recycledRow = packTranscriptRow(-1);
+        if (recycledRow != null && recycledRow.mGeneration != mGeneration) recycledRow = null;
+
+        // Blank the newly revealed line above the bottom margin, which was the first row of a full transcript:
         int blankRow = externalToInternalRow(bottomMargin - 1);
-        if (mLines[blankRow] == null) {
-            mLines[blankRow] = new TerminalRow(mColumns, style);
+        if (transcriptFull && mScrollback != null && mTotalRows > mScreenRows && mLines[blankRow] != null) {
+            appendToScrollback(mLines[blankRow]);
+        }
+        if (recycledRow != null) {
+            recycledRow.mLineWrap = false;
+            recycledRow.clear(style);
+            mLines[blankRow] = recycledRow;
+        } else if (mLines[blankRow] == null || mLines[blankRow].isPacked() || mLines[blankRow].mGeneration != mGeneration) {
+            mLines[blankRow] = newRow(mColumns, style);
         } else {
             mLines[blankRow].clear(style);
         }
     }
 
+    /**
+     * Replace the row at an external row in the transcript with its packed form, with the search signature including
+     * the end of the previous row.
+     *
+     * @return the row which was replaced, or null if the row was already packed.
+     */
+    private TerminalRow packTranscriptRow(int externalRow) {
+        int internalRow = externalToInternalRow(externalRow);
+        TerminalRow row = mLines[internalRow];
+        if (row == null || row.isPacked()) return null;
+        TerminalRow packed = row.pack();
+        TerminalRow previousRow = (externalRow > -mActiveTranscriptRows) ? mLines[externalToInternalRow(externalRow - 1)] : null;
+        packed.mSearchSignature = TerminalSearch.signatureOf(row, previousRow);
+        mLines[internalRow] = packed;
+        return row;
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two positions can overlap. All characters
      * of the source and destination must be within the bounds of the screen, or else an InvalidParameterException will
@@ -421,11 +826,12 @@ public final class TerminalBuffer {
         if (w == 0) return;
         if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows || dx < 0 || dx + w > mColumns || dy < 0 || dy + h > mScreenRows)
             throw new IllegalArgumentException();
+        Arrays.fill(mDirtyRows, dy, dy + h, true);
         boolean copyingUp = sy > dy;
         for (int y = 0; y < h; y++) {
             int y2 = copyingUp ? y : (h - (y + 1));
             TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
-            allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
+            writableRow(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
         }
     }
 
@@ -444,26 +850,62 @@ public final class TerminalBuffer {
                 setChar(sx + x, sy + y, val, style);
     }
 
+    /**
+     * Get a row to read, allocating it if necessary. A packed transcript row is returned inflated but stays packed in
+     * the buffer, so the returned row is only to be read.
+     */
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        TerminalRow line = mLines[row];
+        if (line == null) return mLines[row] = newRow(mColumns, 0);
+        return line.isPacked() ? line.inflate() : line;
+    }
+
+    /** Get a row to change, allocating, inflating or copying it first if it may be shared with a snapshot. */
+    private TerminalRow writableRow(int internalRow) {
+        TerminalRow row = mLines[internalRow];
+        if (row == null) {
+            row = mLines[internalRow] = newRow(mColumns, 0);
+        } else if (row.isPacked() || row.mGeneration != mGeneration) {
+            // Both an inflated and a copied row are new and only referenced from this buffer:
+            row = mLines[internalRow] = row.isPacked() ? row.inflate() : new TerminalRow(row);
+            row.mGeneration = mGeneration;
+        }
+        return row;
+    }
+
+    private TerminalRow newRow(int columns, long style) {
+        TerminalRow row = new TerminalRow(columns, style);
+        row.mGeneration = mGeneration;
+        return row;
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
         if (row  < 0 || row >= mScreenRows || column < 0 || column >= mColumns)
             throw new IllegalArgumentException("TerminalBuffer.setChar(): row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        mDirtyRows[row] = true;
         row = externalToInternalRow(row);
-        allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
+        writableRow(row).setChar(column, codePoint, style);
+    }
+
+    /** Set a run of printable 7-bit ASCII characters, all with the same style, starting at the specified cell. */
+    public void setAsciiRun(int column, int row, byte[] source, int offset, int length, long style) {
+        if (row < 0 || row >= mScreenRows || column < 0 || column + length > mColumns)
+            throw new IllegalArgumentException("TerminalBuffer.setAsciiRun(): row=" + row + ", column=" + column + ", length=" + length + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        mDirtyRows[row] = true;
+        row = externalToInternalRow(row);
+        writableRow(row).setAsciiRun(column, source, offset, length, style);
     }
 
     public long getStyleAt(int externalRow, int column) {
-        return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
+        return getRow(externalRow).getStyle(column);
     }
 
     /** Support for http://vt100.net/docs/vt510-rm/DECCARA and http://vt100.net/docs/vt510-rm/DECCARA */
     public void setOrClearEffect(int bits, boolean setOrClear, boolean reverse, boolean rectangular, int leftMargin, int rightMargin, int top, int left,
                                  int bottom, int right) {
+        Arrays.fill(mDirtyRows, top, bottom, true);
         for (int y = top; y < bottom; y++) {
-            TerminalRow line = mLines[externalToInternalRow(y)];
+            TerminalRow line = writableRow(externalToInternalRow(y));
             int startOfLine = (rectangular || y == top) ? left : leftMargin;
             int endOfLine = (rectangular || y + 1 == bottom) ? right : rightMargin;
             for (int x = startOfLine; x < endOfLine; x++) {
@@ -492,6 +934,60 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        mReflowRows = null;
+        mReflowOverflow = null;
+        if (mScrollback != null) mScrollback.clear();
+        mScrollbackRows = 0;
+        mScrollbackFirstRow = (mScrollback == null) ? 0 : mScrollback.getFirstRow();
+        mAllDirty = true;
+    }
+
+    /**
+     * If the content of an external row may have changed since the last {@link #clearDirtyRows()}. Rows in the
+     * transcript only change when everything is dirty, other than moving up as the screen scrolls, which is reported by
+     * {@link #getDirtyScrollRows()}. Rows which were dirty before a scroll are reported at their new position.
+     */
+    public boolean isRowDirty(int externalRow) {
+        return mAllDirty || (externalRow >= 0 && mDirtyRows[externalRow]);
+    }
+
+    /** If everything, including the transcript and the screen size, should be considered changed. */
+    public boolean isAllDirty() {
+        return mAllDirty;
+    }
+
+    /**
+     * The number of rows that the content of the screen and transcript has scrolled up by since the last
+     * {@link #clearDirtyRows()}, so that what was at external row r is now at r - getDirtyScrollRows().
+     */
+    public int getDirtyScrollRows() {
+        return mDirtyScrollRows;
+    }
+
+    /** Consider everything changed, for instance after the buffer has been hidden and shown again. */
+    public void markAllDirty() {
+        mAllDirty = true;
+    }
+
+    /**
+     * Add the changes reported by an older snapshot of the same buffer, which were not rendered, to those of this
+     * snapshot, so that rendering this snapshot instead covers both.
+     */
+    void includeDirtyRowsOf(TerminalBuffer older) {
+        if (older.mAllDirty || older.mScreenRows != mScreenRows) {
+            mAllDirty = true;
+        } else {
+            for (int row = mDirtyScrollRows; row < mScreenRows; row++)
+                if (older.mDirtyRows[row]) mDirtyRows[row - mDirtyScrollRows] = true;
+        }
+        mDirtyScrollRows += older.mDirtyScrollRows;
+    }
+
+    /** Start tracking changes anew, called after the changes have been rendered. */
+    public void clearDirtyRows() {
+        Arrays.fill(mDirtyRows, false);
+        mAllDirty = false;
+        mDirtyScrollRows = 0;
     }
 
 }
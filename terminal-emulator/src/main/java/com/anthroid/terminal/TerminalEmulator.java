@@ -91,7 +91,7 @@ public final class TerminalEmulator {
     /** The number of parameter arguments including colon separated sub-parameters. */
     private static final int MAX_ESCAPE_PARAMETERS = 32;
 
-    /** Needs to be large enough to contain reasonable OSC 52 pastes. */
+    /** The most chars of OSC and device control arguments, other than the content of an OSC 52 clipboard copy. */
     private static final int MAX_OSC_STRING_LENGTH = 8192;
 
     /** DECSET 1 - application cursor keys. */
@@ -148,6 +148,9 @@ public final class TerminalEmulator {
     public static final int TERMINAL_TRANSCRIPT_ROWS_MAX = 50000;
     public static final int DEFAULT_TERMINAL_TRANSCRIPT_ROWS = 2000;
 
+    /** The default for {@link #setMaxClipboardPayloadBytes(int)}. */
+    public static final int DEFAULT_MAX_CLIPBOARD_PAYLOAD_BYTES = 8 * 1024 * 1024;
+
 
     /* The supported terminal cursor styles. */
 
@@ -187,6 +190,12 @@ public final class TerminalEmulator {
 
     /** Holds OSC and device control arguments, which can be strings. */
     private final StringBuilder mOSCOrDeviceControlArgs = new StringBuilder();
+    /**
+     * Decodes the base64 content of an OSC 52 clipboard copy as it arrives, instead of it being collected in
+     * {@link #mOSCOrDeviceControlArgs}, once {@link #mDecodingClipboardPayload}.
+     */
+    private final Base64StreamDecoder mClipboardPayload = new Base64StreamDecoder(DEFAULT_MAX_CLIPBOARD_PAYLOAD_BYTES);
+    private boolean mDecodingClipboardPayload;
 
     /**
      * True if the current escape sequence should continue, false if the current escape sequence should be terminated.
@@ -348,6 +357,33 @@ public final class TerminalEmulator {
         return mScreen;
     }
 
+    /** Keep the history dropped from the transcript of the main buffer in a file, see {@link TerminalBuffer#setScrollbackFile(TerminalScrollbackFile)}. */
+    public void setScrollbackFile(TerminalScrollbackFile scrollback) {
+        mMainBuffer.setScrollbackFile(scrollback);
+    }
+
+    /**
+     * Reflow some of the history of the main buffer left by a change of columns, see {@link TerminalBuffer#continueReflow(int)}.
+     *
+     * @return if there are still rows left to reflow.
+     */
+    public boolean continueReflow(int maxRows) {
+        return mMainBuffer.continueReflow(maxRows);
+    }
+
+    /** If a change of columns has left history of the main buffer to reflow, see {@link #continueReflow(int)}. */
+    public boolean isReflowPending() {
+        return mMainBuffer.isReflowPending();
+    }
+
+    /**
+     * Set the most bytes of text an OSC 52 clipboard copy may set the clipboard to, decoded from base64 as it arrives.
+     * The rest of a longer copy is skipped, without setting the clipboard.
+     */
+    public void setMaxClipboardPayloadBytes(int maxBytes) {
+        mClipboardPayload.setMaxBytes(maxBytes);
+    }
+
     public boolean isAlternateBufferActive() {
         return mScreen == mAltBuffer;
     }
@@ -460,7 +496,12 @@ public final class TerminalEmulator {
         if (!isCursorEnabled())
             return false;
         else
-            return mCursorBlinkingEnabled ? mCursorBlinkState : true;
+            return isCursorBlinkStateVisible();
+    }
+
+    /** If the cursor is not blinking or in the visible phase of blinking, regardless of if it is enabled. */
+    public boolean isCursorBlinkStateVisible() {
+        return mCursorBlinkingEnabled ? mCursorBlinkState : true;
     }
 
     public void setCursorBlinkingEnabled(boolean cursorBlinkingEnabled) {
@@ -498,8 +539,70 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        append(buffer, 0, length);
+    }
+
+    /**
+     * Accept bytes (typically from the pseudo-teletype) and process them.
+     *
+     * @param buffer a byte array containing the bytes to be processed
+     * @param offset the index of the first byte in the array to process
+     * @param length the number of bytes in the array to process
+     */
+    public void append(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (mUtf8ToFollow == 0 && mEscapeState == ESC_NONE && isPrintableAscii(buffer[i])) {
+                // Find the end of the run of printable 7-bit ASCII and write it in bulk.
+                int runEnd = i + 1;
+                while (runEnd < end && isPrintableAscii(buffer[runEnd])) runEnd++;
+                emitAsciiRun(buffer, i, runEnd);
+                i = runEnd;
+            } else if (mDecodingClipboardPayload && mEscapeState == ESC_OSC && mUtf8ToFollow == 0 && isPrintableAscii(buffer[i])) {
+                // Decode a run of the base64 content of an OSC 52 clipboard copy in bulk.
+                int runEnd = i + 1;
+                while (runEnd < end && isPrintableAscii(buffer[runEnd])) runEnd++;
+                mClipboardPayload.decode(buffer, i, runEnd);
+                i = runEnd;
+            } else {
+                processByte(buffer[i++]);
+            }
+        }
+    }
+
+    private static boolean isPrintableAscii(byte b) {
+        return b >= 32 && b < 127;
+    }
+
+    /**
+     * Emit a run of printable 7-bit ASCII characters, which all have display width 1 and need no decoding. Cells before
+     * the last column of the right margin are written directly into the row in bulk, while the last column (with its
+     * autowrap handling) and the cases of insert mode and line drawing are left to {@link #emitCodePoint(int)}.
+     *
+     * @param buffer the bytes, all of which in [start, end) must be in the range [32, 126]
+     * @param start  the index of the first byte in the run
+     * @param end    the index after the last byte in the run
+     */
+    private void emitAsciiRun(byte[] buffer, int start, int end) {
+        if (mInsertMode || (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)) {
+            for (int i = start; i < end; i++) emitCodePoint(buffer[i]);
+            return;
+        }
+
+        final long style = getStyle();
+        while (start < end) {
+            final int cellsBeforeLastColumn = mRightMargin - 1 - mCursorCol;
+            if (mAboutToAutoWrap || cellsBeforeLastColumn <= 0) {
+                emitCodePoint(buffer[start++]);
+            } else {
+                int runLength = Math.min(end - start, cellsBeforeLastColumn);
+                mScreen.setAsciiRun(mCursorCol, mCursorRow, buffer, start, runLength, style);
+                mCursorCol += runLength;
+                start += runLength;
+                mLastEmittedCodePoint = buffer[start - 1];
+            }
+        }
     }
 
     private void processByte(byte byteToProcess) {
@@ -1217,8 +1320,7 @@ public final class TerminalEmulator {
             case 9: // X10 mouse reporting - outdated. Do not implement.
             case 12: // Control cursor blinking - ignore.
             case 25: // Hide/show cursor - no action needed, renderer will check with shouldCursorBeVisible().
-                if (mClient != null)
-                    mClient.onTerminalCursorStateChange(setting);
+                mSession.onTerminalCursorStateChange(setting);
                 break;
             case 40: // Allow 80 => 132 Mode, ignore.
             case 45: // TODO: Reverse wrap-around. Implement???
@@ -1483,6 +1585,7 @@ public final class TerminalEmulator {
                 break;
             case ']': // OSC
                 mOSCOrDeviceControlArgs.setLength(0);
+                mDecodingClipboardPayload = false;
                 continueSequence(ESC_OSC);
                 break;
             case '>': // DECKPNM
@@ -2012,6 +2115,12 @@ public final class TerminalEmulator {
 
     /** An Operating System Controls (OSC) Set Text Parameters. May come here from BEL or ST. */
     private void doOscSetTextParameters(String bellOrStringTerminator) {
+        if (mDecodingClipboardPayload) {
+            copyClipboardPayload();
+            finishSequence();
+            return;
+        }
+
         int value = -1;
         String textParameter = "";
         // Extract initial $value from initial "$value;..." string.
@@ -2283,14 +2392,45 @@ public final class TerminalEmulator {
     }
 
     private void collectOSCArgs(int b) {
-        if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
+        if (mDecodingClipboardPayload) {
+            mClipboardPayload.decode(b);
+            continueSequence(mEscapeState);
+        } else if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
             mOSCOrDeviceControlArgs.appendCodePoint(b);
+            if (b == ';' && isClipboardPayloadStart()) {
+                mClipboardPayload.reset();
+                mDecodingClipboardPayload = true;
+            }
             continueSequence(mEscapeState);
         } else {
             unknownSequence(b);
         }
     }
 
+    /** If the OSC arguments collected so far are "52;$selections;", which the clipboard content follows. */
+    private boolean isClipboardPayloadStart() {
+        final StringBuilder args = mOSCOrDeviceControlArgs;
+        final int length = args.length();
+        return length > 3 && args.charAt(0) == '5' && args.charAt(1) == '2' && args.charAt(2) == ';'
+            && args.indexOf(";", 3) == length - 1;
+    }
+
+    /**
+     * Copy the content of an OSC 52 clipboard copy decoded by {@link #mClipboardPayload} to the clipboard, unless it is
+     * invalid or longer than {@link #setMaxClipboardPayloadBytes(int)}, in which case the rest of it has been skipped.
+     */
+    private void copyClipboardPayload() {
+        mDecodingClipboardPayload = false;
+        if (mClipboardPayload.isTooLong()) {
+            Logger.logError(mClient, LOG_TAG, "OSC Manipulate selection, content longer than the maximum of " + mClipboardPayload.getMaxBytes() + " bytes");
+        } else if (mClipboardPayload.isInvalid()) {
+            Logger.logError(mClient, LOG_TAG, "OSC Manipulate selection, invalid base64 content");
+        } else {
+            mSession.onCopyTextToClipboard(mClipboardPayload.toUtf8String());
+        }
+        mClipboardPayload.reset();
+    }
+
     private void unimplementedSequence(int b) {
         logError("Unimplemented sequence char '" + (char) b + "' (U+" + String.format("%04x", b) + ")");
         finishSequence();
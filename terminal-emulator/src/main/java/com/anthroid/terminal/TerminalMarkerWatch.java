@@ -0,0 +1,87 @@
+package com.anthroid.terminal;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Watches the output of a {@link TerminalSession} for a marker byte sequence, such as one echoed by a shell after a
+ * command has finished. Added with {@link TerminalSession#addMarkerWatch(TerminalMarkerWatch)}, the watch is fed each
+ * chunk of process output right after it has been appended to the emulator, and the {@link Listener} is notified on
+ * the thread running the emulator the first time the marker is seen: the main thread, or the background thread of
+ * headless sessions while the session is headless (see {@link TerminalSession#setHeadless(boolean)}).
+ * <p>
+ * The output is scanned incrementally with the Knuth-Morris-Pratt algorithm, so each byte is only looked at once and
+ * markers split across chunks are found.
+ */
+public final class TerminalMarkerWatch {
+
+    public interface Listener {
+        /**
+         * Called on the thread running the emulator when the marker has been output, after the watch has been removed.
+         * This may not be the main thread, so the listener should only hand the result over, without blocking.
+         */
+        void onMarkerFound(TerminalMarkerWatch watch);
+    }
+
+    private final byte[] mMarker;
+    /** mFailure[i] is the length of the longest proper prefix of mMarker[0..i] which is also a suffix of it. */
+    private final int[] mFailure;
+    private final Listener mListener;
+
+    /** The number of marker bytes matched by the most recently fed output. */
+    private int mMatched;
+    private volatile boolean mFound;
+
+    public TerminalMarkerWatch(String marker, Listener listener) {
+        this(marker.getBytes(StandardCharsets.UTF_8), listener);
+    }
+
+    public TerminalMarkerWatch(byte[] marker, Listener listener) {
+        if (marker.length == 0) throw new IllegalArgumentException("Empty marker");
+        mMarker = marker.clone();
+        mListener = listener;
+        mFailure = new int[marker.length];
+        for (int i = 1, k = 0; i < marker.length; i++) {
+            while (k > 0 && marker[i] != marker[k]) k = mFailure[k - 1];
+            if (marker[i] == marker[k]) k++;
+            mFailure[i] = k;
+        }
+    }
+
+    /**
+     * Scan the next chunk of output for the marker.
+     *
+     * @return the index in buffer after the last byte of the marker if it was completed within this chunk, or -1 if
+     * not or if it has already been found before.
+     */
+    int feed(byte[] buffer, int offset, int length) {
+        if (mFound) return -1;
+        final byte[] marker = mMarker;
+        int matched = mMatched;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            final byte b = buffer[i];
+            while (matched > 0 && b != marker[matched]) matched = mFailure[matched - 1];
+            if (b == marker[matched] && ++matched == marker.length) {
+                mFound = true;
+                mMatched = 0;
+                return i + 1;
+            }
+        }
+        mMatched = matched;
+        return -1;
+    }
+
+    /** The length in bytes of the marker. */
+    public int getMarkerLength() {
+        return mMarker.length;
+    }
+
+    void notifyFound() {
+        if (mListener != null) mListener.onMarkerFound(this);
+    }
+
+    /** If the marker has been seen in the output. */
+    public boolean isFound() {
+        return mFound;
+    }
+
+}
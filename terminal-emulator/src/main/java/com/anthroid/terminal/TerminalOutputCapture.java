@@ -0,0 +1,207 @@
+package com.anthroid.terminal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Captures the raw bytes output by the process of a {@link TerminalSession} between a begin and an end marker, such as
+ * those printed by a shell before and after running a command. Added with
+ * {@link TerminalSession#addOutputCapture(TerminalOutputCapture)}, the capture is fed on the session reader thread
+ * before the output reaches the emulator, so it is independent of the emulator scrollback and of line wrapping.
+ * <p>
+ * Up to {@code maxMemoryBytes} are kept on the heap. When more is output the captured bytes are spilled to
+ * {@code spillFile} and the rest of the capture is appended there, up to {@code maxTotalBytes} after which further
+ * output is counted but dropped. The captured bytes can be read back in pages with {@link #read(long, int)}, and
+ * {@link #release()} must be called to delete the spill file once the capture is no longer needed.
+ */
+public final class TerminalOutputCapture {
+
+    private final TerminalMarkerWatch mBeginMarker;
+    private final TerminalMarkerWatch mEndMarker;
+    private final int mMaxMemoryBytes;
+    private final long mMaxTotalBytes;
+    private final File mSpillFile;
+
+    /** The captured bytes while not spilled to {@link #mSpillFile}, grown as needed up to {@link #mMaxMemoryBytes}. */
+    private byte[] mMemory = new byte[0];
+    /** The stream appending to {@link #mSpillFile} while capturing, after the memory limit has been exceeded. */
+    private OutputStream mSpillStream;
+    private boolean mSpilled;
+
+    /** The number of captured bytes, which is what may be read. */
+    private long mLength;
+    /** The number of bytes output between the markers which were dropped due to {@link #mMaxTotalBytes}. */
+    private long mDroppedBytes;
+    private boolean mComplete;
+    private IOException mSpillError;
+
+    public TerminalOutputCapture(String beginMarker, String endMarker, int maxMemoryBytes, long maxTotalBytes, File spillFile) {
+        this(beginMarker.getBytes(StandardCharsets.UTF_8), endMarker.getBytes(StandardCharsets.UTF_8), maxMemoryBytes, maxTotalBytes, spillFile);
+    }
+
+    public TerminalOutputCapture(byte[] beginMarker, byte[] endMarker, int maxMemoryBytes, long maxTotalBytes, File spillFile) {
+        if (maxMemoryBytes <= 0 || maxTotalBytes < maxMemoryBytes)
+            throw new IllegalArgumentException("maxMemoryBytes=" + maxMemoryBytes + ", maxTotalBytes=" + maxTotalBytes);
+        mBeginMarker = new TerminalMarkerWatch(beginMarker, null);
+        mEndMarker = new TerminalMarkerWatch(endMarker, null);
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxTotalBytes = maxTotalBytes;
+        mSpillFile = spillFile;
+    }
+
+    /** Feed the next chunk of process output, called on the session reader thread. */
+    public synchronized void feed(byte[] buffer, int offset, int length) {
+        if (mComplete) return;
+        final int end = offset + length;
+
+        if (!mBeginMarker.isFound()) {
+            int afterBegin = mBeginMarker.feed(buffer, offset, length);
+            if (afterBegin == -1) return;
+            offset = afterBegin;
+        }
+
+        int afterEnd = mEndMarker.feed(buffer, offset, end - offset);
+        if (afterEnd == -1) {
+            capture(buffer, offset, end - offset);
+            return;
+        }
+
+        capture(buffer, offset, afterEnd - offset);
+        // The marker may have started in an earlier chunk, so remove it from what has been captured:
+        long markerBytesCaptured = Math.min(mEndMarker.getMarkerLength(), mLength + mDroppedBytes);
+        long droppedMarkerBytes = Math.min(markerBytesCaptured, mDroppedBytes);
+        mDroppedBytes -= droppedMarkerBytes;
+        mLength -= markerBytesCaptured - droppedMarkerBytes;
+        mComplete = true;
+        closeSpillStream();
+    }
+
+    private void capture(byte[] buffer, int offset, int length) {
+        if (length <= 0) return;
+        int toKeep = (int) Math.min(length, mMaxTotalBytes - mLength);
+        mDroppedBytes += length - toKeep;
+        if (toKeep <= 0) return;
+
+        if (!mSpilled && mLength + toKeep > mMaxMemoryBytes) spill();
+
+        if (mSpilled) {
+            if (mSpillStream == null) {
+                // Spilling failed, keep counting what is lost.
+                mDroppedBytes += toKeep;
+                return;
+            }
+            try {
+                mSpillStream.write(buffer, offset, toKeep);
+            } catch (IOException e) {
+                mSpillError = e;
+                mDroppedBytes += toKeep;
+                closeSpillStream();
+                return;
+            }
+        } else {
+            if (mLength + toKeep > mMemory.length) {
+                int newCapacity = (int) Math.min(mMaxMemoryBytes, Math.max(mLength + toKeep, 2L * mMemory.length));
+                mMemory = Arrays.copyOf(mMemory, newCapacity);
+            }
+            System.arraycopy(buffer, offset, mMemory, (int) mLength, toKeep);
+        }
+        mLength += toKeep;
+    }
+
+    /** Move the bytes captured so far to {@link #mSpillFile} and continue appending there. */
+    private void spill() {
+        mSpilled = true;
+        try {
+            mSpillStream = new FileOutputStream(mSpillFile);
+            mSpillStream.write(mMemory, 0, (int) mLength);
+        } catch (IOException e) {
+            mSpillError = e;
+            closeSpillStream();
+            // The bytes in memory were lost with the failed spill:
+            mDroppedBytes += mLength;
+            mLength = 0;
+        }
+        mMemory = null;
+    }
+
+    private void closeSpillStream() {
+        if (mSpillStream == null) return;
+        try {
+            mSpillStream.close();
+        } catch (IOException e) {
+            if (mSpillError == null) mSpillError = e;
+        }
+        mSpillStream = null;
+    }
+
+    /**
+     * Read up to length captured bytes starting at offset. May be called while still capturing.
+     *
+     * @return the bytes read, empty if offset is at or after {@link #getLength()}.
+     */
+    public synchronized byte[] read(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("offset=" + offset + ", length=" + length);
+        int toRead = (int) Math.max(0, Math.min(length, mLength - offset));
+        byte[] result = new byte[toRead];
+        if (toRead == 0) return result;
+
+        if (!mSpilled) {
+            System.arraycopy(mMemory, (int) offset, result, 0, toRead);
+        } else {
+            if (mSpillStream != null) mSpillStream.flush();
+            try (RandomAccessFile file = new RandomAccessFile(mSpillFile, "r")) {
+                file.seek(offset);
+                file.readFully(result);
+            }
+        }
+        return result;
+    }
+
+    /** Stop capturing, free the memory and delete the spill file if one was created. */
+    public synchronized void release() {
+        mComplete = true;
+        closeSpillStream();
+        mMemory = new byte[0];
+        mLength = 0;
+        if (mSpilled) {
+            //noinspection ResultOfMethodCallIgnored
+            mSpillFile.delete();
+        }
+    }
+
+    /** The number of captured bytes available to {@link #read(long, int)}. */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /** The number of output bytes which were not captured due to the size cap or a failure to spill. */
+    public synchronized long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /** If the begin marker has been seen, so that output is being captured. */
+    public boolean isStarted() {
+        return mBeginMarker.isFound();
+    }
+
+    /** If the end marker has been seen, or the capture has been released. */
+    public synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    /** If captured bytes have been spilled to the spill file. */
+    public synchronized boolean isSpilled() {
+        return mSpilled;
+    }
+
+    /** The error which occurred writing the spill file, if any. */
+    public synchronized IOException getSpillError() {
+        return mSpillError;
+    }
+
+}
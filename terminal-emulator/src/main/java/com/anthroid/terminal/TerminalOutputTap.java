@@ -0,0 +1,21 @@
+package com.anthroid.terminal;
+
+/**
+ * A tap receiving the raw bytes output by the process of a {@link TerminalSession}, before they are queued for the
+ * {@link TerminalEmulator}. Set with {@link TerminalSession#setOutputTap(TerminalOutputTap)}, and off by default.
+ * <p>
+ * The callback is invoked on the session reader thread, so implementations must be fast and must not retain or modify
+ * the passed buffer, which is reused for the next read.
+ */
+public interface TerminalOutputTap {
+
+    /**
+     * Called with every chunk of bytes read from the process.
+     *
+     * @param buffer the buffer holding the bytes, only valid during the call
+     * @param offset the index of the first byte read
+     * @param length the number of bytes read
+     */
+    void onProcessOutput(byte[] buffer, int offset, int length);
+
+}
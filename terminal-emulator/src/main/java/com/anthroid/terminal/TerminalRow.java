@@ -1,16 +1,27 @@
 package com.anthroid.terminal;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * A row in a terminal, composed of a fixed number of cells.
  * <p>
  * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ * <p>
+ * A row which has scrolled into the transcript is kept in a compact form created by {@link #pack()}, in which
+ * {@link #mText} and {@link #mStyle} are null: the text is stored as Latin-1 bytes unless it needs UTF-16, and the
+ * styles are run-length encoded. A packed row is never changed, and {@link TerminalBuffer} gives out a row inflated by
+ * {@link #inflate()} when it is to be read or changed.
  */
 public final class TerminalRow {
 
     private static final float SPARE_CAPACITY_FACTOR = 1.5f;
 
+    /** Flags of a row written by {@link #writePacked(ByteBuffer)}. */
+    private static final int PACKED_FLAG_LINE_WRAP = 1;
+    private static final int PACKED_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS = 2;
+    private static final int PACKED_FLAG_LATIN1_TEXT = 4;
+
     /**
      * Max combining characters that can exist in a column, that are separate from the base character
      * itself. Any additional combining characters will be ignored and not added to the column.
@@ -39,16 +50,46 @@ public final class TerminalRow {
 
     /** The number of columns in this terminal row. */
     private final int mColumns;
-    /** The text filling this terminal row. */
+    /** The text filling this terminal row, null if {@link #isPacked()}. */
     public char[] mText;
     /** The number of java chars used in {@link #mText}. */
     private short mSpaceUsed;
     /** If this row has been line wrapped due to text output at the end of line. */
     boolean mLineWrap;
-    /** The style bits of each cell in the row. See {@link TextStyle}. */
-    final long[] mStyle;
+    /** The style bits of each cell in the row, null if {@link #isPacked()}. See {@link TextStyle}. */
+    long[] mStyle;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
+    /**
+     * The {@link TerminalBuffer#mGeneration} when this row was created. A row from an older generation may be shared
+     * with a snapshot of the buffer and is copied before being changed.
+     */
+    int mGeneration;
+
+    /** The text of a packed row as Latin-1, if all its chars are below 256, of length {@link #mSpaceUsed}. */
+    private byte[] mPackedLatin1Text;
+    /** The text of a packed row if it has chars which are not Latin-1, of length {@link #mSpaceUsed}. */
+    private char[] mPackedText;
+    /** The styles of the runs of cells with the same style in a packed row. */
+    private long[] mPackedRunStyles;
+    /** The column after the end of each run in {@link #mPackedRunStyles}. */
+    private short[] mPackedRunEnds;
+    /** The trigrams of the text of a packed transcript row, see {@link TerminalSearch#signatureOf(TerminalRow, TerminalRow)}. */
+    long[] mSearchSignature;
+
+    /**
+     * The index in {@link #mText} returned by {@link #findStartOfColumn(int)} for each column, only used if
+     * {@link #mHasNonOneWidthOrSurrogateChars} and valid for the first {@link #mIndexedColumns} columns.
+     */
+    private short[] mColumnStarts;
+    /** If a wide char starts at each column in {@link #mColumnStarts}. */
+    private boolean[] mColumnStartsWide;
+    /**
+     * The number of columns at the start of the row whose entries in {@link #mColumnStarts} are valid. A change to a
+     * column invalidates the entries from the column before it, so that writing a row from left to right only extends
+     * the index by a column or two at a time.
+     */
+    private int mIndexedColumns;
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
@@ -58,6 +99,27 @@ public final class TerminalRow {
         clear(style);
     }
 
+    /** Construct a packed row without content, filled in by {@link #readPacked(ByteBuffer)}. */
+    private TerminalRow(int columns) {
+        mColumns = columns;
+    }
+
+    /** Construct a copy of a row, of the same generation. */
+    TerminalRow(TerminalRow source) {
+        this(source, Arrays.copyOf(source.mText, source.mText.length), Arrays.copyOf(source.mStyle, source.mStyle.length));
+    }
+
+    /** Construct a row with the attributes of another one and the specified content, which is null for a packed row. */
+    private TerminalRow(TerminalRow source, char[] text, long[] style) {
+        mColumns = source.mColumns;
+        mText = text;
+        mStyle = style;
+        mSpaceUsed = source.mSpaceUsed;
+        mLineWrap = source.mLineWrap;
+        mHasNonOneWidthOrSurrogateChars = source.mHasNonOneWidthOrSurrogateChars;
+        mGeneration = source.mGeneration;
+    }
+
     /** NOTE: The sourceX2 is exclusive. */
     public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
         mHasNonOneWidthOrSurrogateChars |= line.mHasNonOneWidthOrSurrogateChars;
@@ -88,10 +150,106 @@ public final class TerminalRow {
         return mSpaceUsed;
     }
 
-    /** Note that the column may end of second half of wide character. */
+    /** The number of columns, which for a row left to reflow by {@link TerminalBuffer} is that before the change. */
+    int getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Note that the column may end of second half of wide character. The column index is used if it already covers the
+     * column, but not extended, since a row may be shared with snapshots read on other threads.
+     */
     public int findStartOfColumn(int column) {
         if (column == mColumns) return getSpaceUsed();
+        if (!mHasNonOneWidthOrSurrogateChars) return column;
+        if (column < mIndexedColumns) return mColumnStarts[column];
+        return scanForStartOfColumn(column);
+    }
+
+    private boolean wideDisplayCharacterStartingAt(int column) {
+        if (!mHasNonOneWidthOrSurrogateChars || column >= mColumns) return false;
+        if (column < mIndexedColumns) return mColumnStartsWide[column];
+        return scanForWideDisplayCharacterStartingAt(column);
+    }
+
+    /**
+     * As {@link #findStartOfColumn(int)}, extending the column index as needed. Only called by {@link #setChar(int, int, long)},
+     * on a row which the buffer has copied for writing and so is not shared with a snapshot.
+     */
+    private int indexedStartOfColumn(int column) {
+        if (column == mColumns) return getSpaceUsed();
+        if (!mHasNonOneWidthOrSurrogateChars) return column;
+        if (indexColumnsThrough(column)) return mColumnStarts[column];
+        return scanForStartOfColumn(column);
+    }
+
+    /** As {@link #wideDisplayCharacterStartingAt(int)}, extending the column index as {@link #indexedStartOfColumn(int)}. */
+    private boolean indexedWideDisplayCharacterStartingAt(int column) {
+        if (!mHasNonOneWidthOrSurrogateChars || column >= mColumns) return false;
+        if (indexColumnsThrough(column)) return mColumnStartsWide[column];
+        return scanForWideDisplayCharacterStartingAt(column);
+    }
+
+    /** Forget the column index from the column before the specified one, which is about to be changed. */
+    private void invalidateColumnIndexFrom(int column) {
+        if (column <= mIndexedColumns) mIndexedColumns = Math.max(0, column - 1);
+    }
+
+    /**
+     * Extend {@link #mColumnStarts} to include the specified column, continuing the scan from the last indexed column.
+     * Returns false if the text ends before the column, in which case the caller falls back to scanning the text.
+     */
+    private boolean indexColumnsThrough(int column) {
+        if (column < mIndexedColumns) return true;
 
+        if (mColumnStarts == null) {
+            mColumnStarts = new short[mColumns];
+            mColumnStartsWide = new boolean[mColumns];
+        }
+        final short[] starts = mColumnStarts;
+        final boolean[] wide = mColumnStartsWide;
+        final char[] text = mText;
+        final int spaceUsed = mSpaceUsed;
+
+        int currentColumn = mIndexedColumns;
+        int charIndex = 0;
+        if (currentColumn > 0) {
+            // Continue after the char covering the last indexed column, which may be the first half of a wide char:
+            final int lastColumn = currentColumn - 1;
+            charIndex = starts[lastColumn];
+            if (wide[lastColumn] && currentColumn < mColumns) {
+                starts[currentColumn] = (short) charIndex;
+                wide[currentColumn++] = false;
+            }
+            charIndex += Character.isHighSurrogate(text[charIndex]) ? 2 : 1;
+        }
+
+        while (currentColumn <= column) {
+            // Skip combining chars, which belong to the column before.
+            int codePoint = 0;
+            int wcwidth = 0;
+            while (charIndex < spaceUsed) {
+                char c = text[charIndex];
+                codePoint = (Character.isHighSurrogate(c) && charIndex + 1 < spaceUsed) ? Character.toCodePoint(c, text[charIndex + 1]) : c;
+                wcwidth = WcWidth.width(codePoint);
+                if (wcwidth > 0) break;
+                charIndex += Character.charCount(codePoint);
+            }
+            if (charIndex >= spaceUsed) break;
+
+            starts[currentColumn] = (short) charIndex;
+            wide[currentColumn++] = (wcwidth == 2);
+            if (wcwidth == 2 && currentColumn < mColumns) {
+                starts[currentColumn] = (short) charIndex;
+                wide[currentColumn++] = false;
+            }
+            charIndex += Character.charCount(codePoint);
+        }
+        mIndexedColumns = currentColumn;
+        return column < currentColumn;
+    }
+
+    private int scanForStartOfColumn(int column) {
         int currentColumn = 0;
         int currentCharIndex = 0;
         while (true) { // 0<2 1 < 2
@@ -127,7 +285,7 @@ public final class TerminalRow {
         }
     }
 
-    private boolean wideDisplayCharacterStartingAt(int column) {
+    private boolean scanForWideDisplayCharacterStartingAt(int column) {
         for (int currentCharIndex = 0, currentColumn = 0; currentCharIndex < mSpaceUsed; ) {
             char c = mText[currentCharIndex++];
             int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, mText[currentCharIndex++]) : c;
@@ -146,6 +304,7 @@ public final class TerminalRow {
         Arrays.fill(mStyle, style);
         mSpaceUsed = (short) mColumns;
         mHasNonOneWidthOrSurrogateChars = false;
+        mIndexedColumns = 0;
     }
 
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
@@ -169,7 +328,7 @@ public final class TerminalRow {
 
         final boolean newIsCombining = newCodePointDisplayWidth <= 0;
 
-        boolean wasExtraColForWideChar = (columnToSet > 0) && wideDisplayCharacterStartingAt(columnToSet - 1);
+        boolean wasExtraColForWideChar = (columnToSet > 0) && indexedWideDisplayCharacterStartingAt(columnToSet - 1);
 
         if (newIsCombining) {
             // When standing at second half of wide character and inserting combining:
@@ -178,18 +337,18 @@ public final class TerminalRow {
             // Check if we are overwriting the second half of a wide character starting at the previous column:
             if (wasExtraColForWideChar) setChar(columnToSet - 1, ' ', style);
             // Check if we are overwriting the first half of a wide character starting at the next column:
-            boolean overwritingWideCharInNextColumn = newCodePointDisplayWidth == 2 && wideDisplayCharacterStartingAt(columnToSet + 1);
+            boolean overwritingWideCharInNextColumn = newCodePointDisplayWidth == 2 && indexedWideDisplayCharacterStartingAt(columnToSet + 1);
             if (overwritingWideCharInNextColumn) setChar(columnToSet + 1, ' ', style);
         }
 
         char[] text = mText;
-        final int oldStartOfColumnIndex = findStartOfColumn(columnToSet);
+        final int oldStartOfColumnIndex = indexedStartOfColumn(columnToSet);
         final int oldCodePointDisplayWidth = WcWidth.width(text, oldStartOfColumnIndex);
 
         // Get the number of elements in the mText array this column uses now
         int oldCharactersUsedForColumn;
         if (columnToSet + oldCodePointDisplayWidth < mColumns) {
-            int oldEndOfColumnIndex = findStartOfColumn(columnToSet + oldCodePointDisplayWidth);
+            int oldEndOfColumnIndex = indexedStartOfColumn(columnToSet + oldCodePointDisplayWidth);
             oldCharactersUsedForColumn = oldEndOfColumnIndex - oldStartOfColumnIndex;
         } else {
             // Last character.
@@ -214,6 +373,7 @@ public final class TerminalRow {
 
         int oldNextColumnIndex = oldStartOfColumnIndex + oldCharactersUsedForColumn;
         int newNextColumnIndex = oldStartOfColumnIndex + newCharactersUsedForColumn;
+        invalidateColumnIndexFrom(columnToSet);
 
         final int javaCharDifference = newCharactersUsedForColumn - oldCharactersUsedForColumn;
         if (javaCharDifference > 0) {
@@ -270,14 +430,201 @@ public final class TerminalRow {
         }
     }
 
+    /**
+     * Set a run of printable 7-bit ASCII characters, all of display width 1, starting at the specified column. When the
+     * row only contains chars of width 1 the text is copied and the style filled in bulk, otherwise this falls back to
+     * {@link #setChar(int, int, long)} for each character.
+     */
+    public void setAsciiRun(int columnToSet, byte[] source, int offset, int length, long style) {
+        if (columnToSet < 0 || columnToSet + length > mColumns)
+            throw new IllegalArgumentException("TerminalRow.setAsciiRun(): columnToSet=" + columnToSet + ", length=" + length + ", mColumns=" + mColumns);
+
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = 0; i < length; i++)
+                setChar(columnToSet + i, source[offset + i], style);
+            return;
+        }
+
+        final char[] text = mText;
+        for (int i = 0; i < length; i++)
+            text[columnToSet + i] = (char) source[offset + i];
+        Arrays.fill(mStyle, columnToSet, columnToSet + length, style);
+    }
+
     boolean isBlank() {
-        for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
-            if (mText[charIndex] != ' ') return false;
+        final int charLen = getSpaceUsed();
+        if (mPackedLatin1Text != null) {
+            for (int charIndex = 0; charIndex < charLen; charIndex++)
+                if (mPackedLatin1Text[charIndex] != ' ') return false;
+            return true;
+        }
+        final char[] text = (mPackedText != null) ? mPackedText : mText;
+        for (int charIndex = 0; charIndex < charLen; charIndex++)
+            if (text[charIndex] != ' ') return false;
         return true;
     }
 
     public final long getStyle(int column) {
-        return mStyle[column];
+        if (mStyle != null) return mStyle[column];
+        // Binary search for the packed run containing the column:
+        int low = 0, high = mPackedRunEnds.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mPackedRunEnds[middle] <= column) low = middle + 1;
+            else high = middle;
+        }
+        return mPackedRunStyles[low];
+    }
+
+    /** The java char at an index below {@link #getSpaceUsed()}, which unlike {@link #mText} works for a packed row. */
+    char charAt(int index) {
+        if (mText != null) return mText[index];
+        return (mPackedLatin1Text != null) ? (char) (mPackedLatin1Text[index] & 0xFF) : mPackedText[index];
+    }
+
+    /** If this row is in the compact form created by {@link #pack()}, which has to be inflated to be read or changed. */
+    public boolean isPacked() {
+        return mText == null;
+    }
+
+    /**
+     * Create the compact form of this row, of the same generation, for keeping in the transcript. A row whose chars
+     * are all Latin-1 and which has a single style takes a little more than one byte per column instead of ten.
+     */
+    TerminalRow pack() {
+        if (isPacked()) return this;
+        final TerminalRow packed = new TerminalRow(this, null, null);
+        final int spaceUsed = mSpaceUsed;
+        final char[] text = mText;
+
+        boolean latin1 = true;
+        for (int i = 0; i < spaceUsed; i++) {
+            if (text[i] > 0xFF) {
+                latin1 = false;
+                break;
+            }
+        }
+        if (latin1) {
+            byte[] latin1Text = new byte[spaceUsed];
+            for (int i = 0; i < spaceUsed; i++) latin1Text[i] = (byte) text[i];
+            packed.mPackedLatin1Text = latin1Text;
+        } else {
+            packed.mPackedText = Arrays.copyOf(text, spaceUsed);
+        }
+
+        final long[] style = mStyle;
+        int runs = 1;
+        for (int column = 1; column < mColumns; column++)
+            if (style[column] != style[column - 1]) runs++;
+        long[] runStyles = new long[runs];
+        short[] runEnds = new short[runs];
+        int run = 0;
+        for (int column = 1; column < mColumns; column++) {
+            if (style[column] != style[column - 1]) {
+                runStyles[run] = style[column - 1];
+                runEnds[run++] = (short) column;
+            }
+        }
+        runStyles[run] = style[mColumns - 1];
+        runEnds[run] = (short) mColumns;
+        packed.mPackedRunStyles = runStyles;
+        packed.mPackedRunEnds = runEnds;
+        return packed;
+    }
+
+    /** Create a row of the same generation with the content of this packed row, which may be read and changed. */
+    TerminalRow inflate() {
+        if (!isPacked()) return this;
+        final int spaceUsed = mSpaceUsed;
+
+        final char[] text = new char[Math.max((int) (SPARE_CAPACITY_FACTOR * mColumns), spaceUsed)];
+        if (mPackedLatin1Text != null) {
+            for (int i = 0; i < spaceUsed; i++) text[i] = (char) (mPackedLatin1Text[i] & 0xFF);
+        } else {
+            System.arraycopy(mPackedText, 0, text, 0, spaceUsed);
+        }
+        Arrays.fill(text, spaceUsed, text.length, ' ');
+
+        final long[] style = new long[mColumns];
+        for (int run = 0, start = 0; run < mPackedRunEnds.length; run++) {
+            Arrays.fill(style, start, mPackedRunEnds[run], mPackedRunStyles[run]);
+            start = mPackedRunEnds[run];
+        }
+        return new TerminalRow(this, text, style);
+    }
+
+    /**
+     * Create a row with another number of columns, with the content of this row cut off or padded with blanks, for
+     * showing a row which was stored before the terminal was resized.
+     */
+    TerminalRow withColumns(int columns) {
+        if (columns == mColumns || isPacked()) return this;
+        final TerminalRow row = new TerminalRow(columns, TextStyle.NORMAL);
+        int column = 0;
+        for (int charIndex = 0; charIndex < mSpaceUsed; ) {
+            int codePoint = Character.codePointAt(mText, charIndex, mSpaceUsed);
+            charIndex += Character.charCount(codePoint);
+            int width = WcWidth.width(codePoint);
+            if (width > 0) {
+                if (column + width > columns) break;
+                row.setChar(column, codePoint, getStyle(column));
+                column += width;
+            } else if (column > 0) {
+                // A combining character modifies the previous column:
+                row.setChar(column - 1, codePoint, row.getStyle(column - 1));
+            }
+        }
+        row.mLineWrap = mLineWrap;
+        return row;
+    }
+
+    /** The number of bytes written by {@link #writePacked(ByteBuffer)}. */
+    int getPackedSizeInBytes() {
+        return 7 + mSpaceUsed * (mPackedLatin1Text != null ? 1 : 2) + 10 * mPackedRunStyles.length;
+    }
+
+    /** Write this packed row at the position of a buffer, to be read back with {@link #readPacked(ByteBuffer)}. */
+    void writePacked(ByteBuffer buffer) {
+        buffer.putShort((short) mColumns);
+        buffer.putShort(mSpaceUsed);
+        int flags = (mLineWrap ? PACKED_FLAG_LINE_WRAP : 0)
+            | (mHasNonOneWidthOrSurrogateChars ? PACKED_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS : 0)
+            | (mPackedLatin1Text != null ? PACKED_FLAG_LATIN1_TEXT : 0);
+        buffer.put((byte) flags);
+        if (mPackedLatin1Text != null) {
+            buffer.put(mPackedLatin1Text);
+        } else {
+            for (char c : mPackedText) buffer.putChar(c);
+        }
+        buffer.putShort((short) mPackedRunStyles.length);
+        for (int run = 0; run < mPackedRunStyles.length; run++) {
+            buffer.putLong(mPackedRunStyles[run]);
+            buffer.putShort(mPackedRunEnds[run]);
+        }
+    }
+
+    /** Read a packed row written by {@link #writePacked(ByteBuffer)} at the position of a buffer. */
+    static TerminalRow readPacked(ByteBuffer buffer) {
+        final TerminalRow row = new TerminalRow(buffer.getShort());
+        row.mSpaceUsed = buffer.getShort();
+        int flags = buffer.get();
+        row.mLineWrap = (flags & PACKED_FLAG_LINE_WRAP) != 0;
+        row.mHasNonOneWidthOrSurrogateChars = (flags & PACKED_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS) != 0;
+        if ((flags & PACKED_FLAG_LATIN1_TEXT) != 0) {
+            row.mPackedLatin1Text = new byte[row.mSpaceUsed];
+            buffer.get(row.mPackedLatin1Text);
+        } else {
+            row.mPackedText = new char[row.mSpaceUsed];
+            for (int i = 0; i < row.mSpaceUsed; i++) row.mPackedText[i] = buffer.getChar();
+        }
+        int runs = buffer.getShort();
+        row.mPackedRunStyles = new long[runs];
+        row.mPackedRunEnds = new short[runs];
+        for (int run = 0; run < runs; run++) {
+            row.mPackedRunStyles[run] = buffer.getLong();
+            row.mPackedRunEnds[run] = buffer.getShort();
+        }
+        return row;
     }
 
 }
@@ -0,0 +1,234 @@
+package com.anthroid.terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only file of the rows dropped from the start of the transcript of a {@link TerminalBuffer}, see
+ * {@link TerminalBuffer#setScrollbackFile(TerminalScrollbackFile)}, so that the history is not limited by the number of
+ * rows kept on the heap.
+ * <p>
+ * The rows are stored in their packed form, see {@link TerminalRow#pack()}, in a memory-mapped file. The offset, line
+ * wrap and search signature (see {@link TerminalSearch}) of each row are stored in a second memory-mapped file next to
+ * it, so that any row can be read back and searched without keeping anything per row on the heap. The mapped size of
+ * the files is doubled as they grow, up to a maximum size after which the oldest half of the rows is dropped to make
+ * room, so that the most recent history is kept. Rows are indexed in the order appended, from the first appended
+ * since the file was created, so that a row which has been dropped is not mistaken for another.
+ * <p>
+ * Rows are appended by the thread running the emulator and may be read by others, for instance to render a
+ * {@link TerminalSnapshot}, so access is synchronized.
+ */
+public final class TerminalScrollbackFile implements Closeable {
+
+    private static final int INITIAL_MAPPED_BYTES = 1024 * 1024;
+    /** The maximum size of a single mapping, which also keeps offsets in the index within an int. */
+    private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+    /** An index entry is the int offset of the row, an int with its flags and the longs of its search signature. */
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 * TerminalSearch.SIGNATURE_LONGS;
+    private static final int INDEX_FLAG_LINE_WRAP = 1;
+
+    private final File mFile;
+    private final File mIndexFile;
+    private final MappedFile mRows;
+    private final MappedFile mIndex;
+    private final long mMaxBytes;
+    /** The index of the oldest row kept, which is the number of rows dropped or cleared before it. */
+    private int mFirstRow;
+    private int mRowCount;
+    private boolean mClosed;
+
+    /** Create an empty scrollback file only limited by the size of a mapping, see {@link #TerminalScrollbackFile(File, long)}. */
+    public TerminalScrollbackFile(File file) throws IOException {
+        this(file, MAX_FILE_BYTES);
+    }
+
+    /**
+     * Create an empty scrollback file, replacing any existing file, with its index in a file with ".index" appended.
+     *
+     * @param maxBytes the most bytes of packed rows to keep, above which the oldest rows are dropped.
+     */
+    public TerminalScrollbackFile(File file, long maxBytes) throws IOException {
+        mMaxBytes = Math.min(maxBytes, MAX_FILE_BYTES);
+        mFile = file;
+        mIndexFile = new File(file.getPath() + ".index");
+        mRows = new MappedFile(mFile);
+        try {
+            mIndex = new MappedFile(mIndexFile);
+        } catch (IOException e) {
+            mRows.close();
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Append a row after the previously appended ones, dropping the oldest half of the rows if there is no room for it.
+     *
+     * @return if the row was appended, which it is not if it does not fit on its own, the file has been closed or could
+     * not grow.
+     */
+    synchronized boolean append(TerminalRow row) {
+        if (mClosed) return false;
+        final TerminalRow packed = row.pack();
+        if (mRowCount > 1 && (mRows.mLength + packed.getPackedSizeInBytes() > mMaxBytes
+            || (long) (mRowCount + 1) * INDEX_ENTRY_BYTES > MAX_FILE_BYTES)) {
+            dropFirstRows(mRowCount / 2);
+        }
+        final long offset = mRows.mLength;
+        final long rowsLength = offset + packed.getPackedSizeInBytes();
+        final long indexLength = (long) (mRowCount + 1) * INDEX_ENTRY_BYTES;
+        if (rowsLength > mMaxBytes || indexLength > MAX_FILE_BYTES) return false;
+        try {
+            mRows.ensureCapacity(rowsLength, mMaxBytes);
+            mIndex.ensureCapacity(indexLength, MAX_FILE_BYTES);
+        } catch (IOException e) {
+            // Such as the storage being full, in which case the row is dropped like without a scrollback file.
+            return false;
+        }
+
+        mRows.mBuffer.position((int) offset);
+        packed.writePacked(mRows.mBuffer);
+        mRows.mLength = rowsLength;
+        final int entry = mRowCount * INDEX_ENTRY_BYTES;
+        mIndex.mBuffer.putInt(entry, (int) offset);
+        mIndex.mBuffer.putInt(entry + 4, packed.mLineWrap ? INDEX_FLAG_LINE_WRAP : 0);
+        for (int i = 0; i < TerminalSearch.SIGNATURE_LONGS; i++) {
+            // A row without a signature may contain anything:
+            long signature = (packed.mSearchSignature == null) ? -1L : packed.mSearchSignature[i];
+            mIndex.mBuffer.putLong(entry + 8 + 8 * i, signature);
+        }
+        mIndex.mLength = indexLength;
+        mRowCount++;
+        return true;
+    }
+
+    /** Drop the oldest rows, moving the others to the start of the files. */
+    private void dropFirstRows(int count) {
+        final int start = mIndex.mBuffer.getInt(count * INDEX_ENTRY_BYTES);
+        final byte[] chunk = new byte[64 * 1024];
+        // Each chunk is moved down before the next is read, so none is overwritten before it is moved:
+        for (long from = start; from < mRows.mLength; from += chunk.length) {
+            final int length = (int) Math.min(chunk.length, mRows.mLength - from);
+            mRows.mBuffer.position((int) from);
+            mRows.mBuffer.get(chunk, 0, length);
+            mRows.mBuffer.position((int) from - start);
+            mRows.mBuffer.put(chunk, 0, length);
+        }
+        mRows.mLength -= start;
+
+        for (int i = count; i < mRowCount; i++) {
+            final int from = i * INDEX_ENTRY_BYTES, to = (i - count) * INDEX_ENTRY_BYTES;
+            mIndex.mBuffer.putInt(to, mIndex.mBuffer.getInt(from) - start);
+            for (int j = 4; j < INDEX_ENTRY_BYTES; j += 4) mIndex.mBuffer.putInt(to + j, mIndex.mBuffer.getInt(from + j));
+        }
+        mRowCount -= count;
+        mIndex.mLength = (long) mRowCount * INDEX_ENTRY_BYTES;
+        mFirstRow += count;
+    }
+
+    /**
+     * Read a row in its packed form.
+     *
+     * @param index the index of the row, with 0 being the first appended row.
+     * @return the row, or null if there is no such row, for instance since it has been dropped or the file closed.
+     */
+    synchronized TerminalRow read(int index) {
+        index -= mFirstRow;
+        if (mClosed || index < 0 || index >= mRowCount) return null;
+        mRows.mBuffer.position(mIndex.mBuffer.getInt(index * INDEX_ENTRY_BYTES));
+        return TerminalRow.readPacked(mRows.mBuffer);
+    }
+
+    /** If a row wraps into the next one, without reading the row, or false if there is no such row. */
+    synchronized boolean getLineWrap(int index) {
+        index -= mFirstRow;
+        if (mClosed || index < 0 || index >= mRowCount) return false;
+        return (mIndex.mBuffer.getInt(index * INDEX_ENTRY_BYTES + 4) & INDEX_FLAG_LINE_WRAP) != 0;
+    }
+
+    /** Read the search signature of a row into an array, returning false if there is no such row. */
+    synchronized boolean readSearchSignature(int index, long[] signature) {
+        index -= mFirstRow;
+        if (mClosed || index < 0 || index >= mRowCount) return false;
+        for (int i = 0; i < TerminalSearch.SIGNATURE_LONGS; i++)
+            signature[i] = mIndex.mBuffer.getLong(index * INDEX_ENTRY_BYTES + 8 + 8 * i);
+        return true;
+    }
+
+    /** The number of rows kept, which have been appended since the file was created or last cleared. */
+    public synchronized int getRowCount() {
+        return mRowCount;
+    }
+
+    /** The index of the oldest row kept, counting the rows dropped to make room or cleared before it. */
+    synchronized int getFirstRow() {
+        return mFirstRow;
+    }
+
+    /** Remove all rows, keeping the mapped size for the rows appended after. */
+    synchronized void clear() {
+        mFirstRow += mRowCount;
+        mRowCount = 0;
+        mRows.mLength = 0;
+        mIndex.mLength = 0;
+    }
+
+    /** Stop using the file and delete it. Rows appended after are dropped and reads return null. */
+    @Override
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        mRowCount = 0;
+        mRows.close();
+        mIndex.close();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mIndexFile.delete();
+    }
+
+    /** A file mapped into memory from its start, remapped at twice the size when more is needed. */
+    private static final class MappedFile {
+
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        MappedByteBuffer mBuffer;
+        /** The number of bytes used from the start of the file. */
+        long mLength;
+
+        MappedFile(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "rw");
+            try {
+                mFile.setLength(0);
+                mChannel = mFile.getChannel();
+                mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_MAPPED_BYTES);
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        void ensureCapacity(long length, long maxCapacity) throws IOException {
+            if (length <= mBuffer.capacity()) return;
+            long newCapacity = Math.min(maxCapacity, Math.max(length, 2L * mBuffer.capacity()));
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        }
+
+        void close() {
+            // A mapping can not be released explicitly, but is once the buffer is garbage collected.
+            mBuffer = null;
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // Nothing to do about it, the file is about to be deleted.
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.anthroid.terminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds text in the screen and history of a {@link TerminalBuffer}, see
+ * {@link TerminalBuffer#search(String, boolean, int)}, matching over logical lines so that text wrapped over several
+ * rows is found.
+ * <p>
+ * To avoid reading the text of every row, each row gets a search signature when it is packed into the transcript,
+ * which is a small bloom filter of the case-folded trigrams of its text, including those spanning from the end of the
+ * previous row if that one wrapped into it. The signatures are kept with the packed rows and in the index of the
+ * scrollback file, so that they are maintained as rows are written and evicted. Only the logical lines whose
+ * signatures contain all trigrams of the searched text, and the screen rows which have no signature, are read.
+ */
+public final class TerminalSearch {
+
+    /** The number of longs in a signature, making it a 256 bit filter indexed by 8 bits of a trigram hash. */
+    static final int SIGNATURE_LONGS = 4;
+
+    /** An occurrence of the searched text, from a start to an end cell in external rows, both inclusive. */
+    public static final class Hit {
+
+        public final int mStartRow, mStartColumn, mEndRow, mEndColumn;
+
+        Hit(int startRow, int startColumn, int endRow, int endColumn) {
+            mStartRow = startRow;
+            mStartColumn = startColumn;
+            mEndRow = endRow;
+            mEndColumn = endColumn;
+        }
+
+        /** The hit after the content has scrolled up by a number of rows, such as reported by {@link TerminalEmulator#getScrollCounter()}. */
+        public Hit scrolledBy(int rows) {
+            return new Hit(mStartRow - rows, mStartColumn, mEndRow - rows, mEndColumn);
+        }
+
+        @Override
+        public String toString() {
+            return "Hit[" + mStartRow + "," + mStartColumn + " - " + mEndRow + "," + mEndColumn + "]";
+        }
+
+    }
+
+    private TerminalSearch() {
+    }
+
+    /** The signature of a row, with the trigrams spanning from the previous row if that wrapped into this one. */
+    static long[] signatureOf(TerminalRow row, TerminalRow previousRow) {
+        long[] signature = new long[SIGNATURE_LONGS];
+        int spaceUsed = row.getSpaceUsed();
+        char first = 0, second = 0;
+        if (previousRow != null && previousRow.mLineWrap && previousRow.getSpaceUsed() >= 2) {
+            first = fold(previousRow.charAt(previousRow.getSpaceUsed() - 2));
+            second = fold(previousRow.charAt(previousRow.getSpaceUsed() - 1));
+        }
+        for (int i = 0; i < spaceUsed; i++) {
+            char third = fold(row.charAt(i));
+            if (first != 0) addTrigram(signature, first, second, third);
+            first = second;
+            second = third;
+        }
+        return signature;
+    }
+
+    /** The signature of the text to search for, or null if it is too short to have any trigram. */
+    private static long[] signatureOf(String foldedQuery) {
+        if (foldedQuery.length() < 3) return null;
+        long[] signature = new long[SIGNATURE_LONGS];
+        for (int i = 2; i < foldedQuery.length(); i++)
+            addTrigram(signature, foldedQuery.charAt(i - 2), foldedQuery.charAt(i - 1), foldedQuery.charAt(i));
+        return signature;
+    }
+
+    private static void addTrigram(long[] signature, char first, char second, char third) {
+        int hash = ((first * 31) + second) * 31 + third;
+        int bit = (hash * 0x9E3779B9) >>> (32 - 8);
+        signature[bit >>> 6] |= 1L << bit;
+    }
+
+    private static boolean containsAll(long[] signature, long[] required) {
+        for (int i = 0; i < SIGNATURE_LONGS; i++)
+            if ((signature[i] & required[i]) != required[i]) return false;
+        return true;
+    }
+
+    /** Fold the case of a char, keeping the length of the text. Not 0, which marks the start of a line. */
+    private static char fold(char c) {
+        char folded = Character.toLowerCase(c);
+        return folded == 0 ? ' ' : folded;
+    }
+
+    /** See {@link TerminalBuffer#search(String, boolean, int)}. */
+    static List<Hit> search(TerminalBuffer buffer, String query, boolean caseSensitive, int maxHits) {
+        List<Hit> hits = new ArrayList<>();
+        if (query.isEmpty() || maxHits <= 0) return hits;
+
+        StringBuilder foldedQueryBuilder = new StringBuilder(query.length());
+        for (int i = 0; i < query.length(); i++) foldedQueryBuilder.append(fold(query.charAt(i)));
+        final String foldedQuery = foldedQueryBuilder.toString();
+        final long[] querySignature = signatureOf(foldedQuery);
+        final long[] lineSignature = new long[SIGNATURE_LONGS];
+        final long[] rowSignature = new long[SIGNATURE_LONGS];
+        final List<Hit> lineHits = new ArrayList<>();
+
+        final int firstRow = -buffer.getActiveTranscriptRows();
+        int endRow = buffer.mScreenRows - 1;
+        // Search from the end, which is what is most likely looked for, to the start of the history:
+        while (endRow >= firstRow && hits.size() < maxHits) {
+            int startRow = endRow;
+            boolean allRowsSigned = true;
+            for (int i = 0; i < SIGNATURE_LONGS; i++) lineSignature[i] = 0;
+            while (true) {
+                if (buffer.getSearchSignature(startRow, rowSignature)) {
+                    for (int i = 0; i < SIGNATURE_LONGS; i++) lineSignature[i] |= rowSignature[i];
+                } else {
+                    allRowsSigned = false;
+                }
+                if (startRow == firstRow || !buffer.getLineWrap(startRow - 1)) break;
+                startRow--;
+            }
+
+            if (querySignature == null || !allRowsSigned || containsAll(lineSignature, querySignature)) {
+                lineHits.clear();
+                searchLine(buffer, startRow, endRow, caseSensitive ? query : foldedQuery, !caseSensitive, lineHits);
+                for (int i = lineHits.size() - 1; i >= 0 && hits.size() < maxHits; i--) hits.add(lineHits.get(i));
+            }
+            endRow = startRow - 1;
+        }
+
+        Collections.reverse(hits);
+        return hits;
+    }
+
+    /** Find the occurrences of a text in the logical line made up of the rows from startRow to endRow. */
+    private static void searchLine(TerminalBuffer buffer, int startRow, int endRow, String query, boolean fold, List<Hit> hits) {
+        final StringBuilder text = new StringBuilder();
+        int capacity = 64;
+        int[] charRows = new int[capacity], charStartColumns = new int[capacity], charEndColumns = new int[capacity];
+
+        for (int row = startRow; row <= endRow; row++) {
+            TerminalRow line = buffer.getStoredRow(row);
+            if (line == null) continue;
+            int spaceUsed = line.getSpaceUsed();
+            int column = 0;
+            for (int i = 0; i < spaceUsed; ) {
+                char c = line.charAt(i);
+                int charCount = (Character.isHighSurrogate(c) && i + 1 < spaceUsed) ? 2 : 1;
+                int codePoint = (charCount == 2) ? Character.toCodePoint(c, line.charAt(i + 1)) : c;
+                int width = WcWidth.width(codePoint);
+                // A combining char belongs to the column before it:
+                int startColumn = (width > 0 || column == 0) ? column : column - 1;
+                int endColumn = startColumn + Math.max(width, 1) - 1;
+                for (int j = 0; j < charCount; j++) {
+                    if (text.length() == capacity) {
+                        capacity *= 2;
+                        charRows = Arrays.copyOf(charRows, capacity);
+                        charStartColumns = Arrays.copyOf(charStartColumns, capacity);
+                        charEndColumns = Arrays.copyOf(charEndColumns, capacity);
+                    }
+                    charRows[text.length()] = row;
+                    charStartColumns[text.length()] = startColumn;
+                    charEndColumns[text.length()] = endColumn;
+                    char lineChar = line.charAt(i + j);
+                    text.append(fold ? fold(lineChar) : lineChar);
+                }
+                if (width > 0) column += width;
+                i += charCount;
+            }
+        }
+
+        for (int index = text.indexOf(query); index != -1; index = text.indexOf(query, index + query.length())) {
+            int last = index + query.length() - 1;
+            hits.add(new Hit(charRows[index], charStartColumns[index], charRows[last], charEndColumns[last]));
+        }
+    }
+
+}
@@ -2,10 +2,14 @@ package com.anthroid.terminal;
 
 import android.annotation.SuppressLint;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.view.Choreographer;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -14,15 +18,27 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
  * {@link #updateSize(int, int, int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * All terminal emulation and callback methods will be performed on the main thread, unless the emulator thread has
+ * been enabled with {@link #setEmulatorThreadEnabled(boolean)}. Then terminal emulation is performed on a thread of the
+ * session, which publishes {@link TerminalSnapshot}:s for the main thread to render, while callback methods are still
+ * performed on the main thread.
+ * <p>
+ * A session which is not shown may be made headless with {@link #setHeadless(boolean)}, to append its output in large
+ * batches off the main thread without notifying the client of every screen update.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
@@ -32,6 +48,24 @@ public final class TerminalSession extends TerminalOutput {
 
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_SNAPSHOT_PUBLISHED = 5;
+
+    /** The most to read from the process in one system call, when reading directly into the queue. */
+    static final int MAX_PROCESS_READ_LENGTH = 64 * 1024;
+    /** The most queued output to append to the emulator between checks of the time budget. */
+    static final int APPEND_CHUNK_LENGTH = 4 * 1024;
+
+    /** The most rows of history to reflow at a time after a change of columns, between handling other messages. */
+    static final int REFLOW_STEP_ROWS = 1000;
+
+    /** The default for {@link #setFrameDrainBudgetNanos(long)}, half of a 60 Hz frame. */
+    public static final long DEFAULT_FRAME_DRAIN_BUDGET_NANOS = 8_000_000L;
+
+    /**
+     * The time to spend appending queued process output at a time while headless, before letting other headless
+     * sessions and operations run. It is also the longest the main thread waits for a session to stop being headless.
+     */
+    static final long HEADLESS_DRAIN_BUDGET_NANOS = 20_000_000L;
 
     public final String mHandle = UUID.randomUUID().toString();
 
@@ -39,9 +73,11 @@ public final class TerminalSession extends TerminalOutput {
 
     /**
      * A queue written to from a separate thread when the process outputs, and read by main thread to process by
-     * terminal emulator.
+     * terminal emulator. Since it is drained once per frame, it is large enough to hold what a fast producer outputs
+     * between two frames without blocking the reader thread. The reader thread reads the process output directly into
+     * it, and the emulator appends it from there, see {@link #readProcessOutput(ProcessOutputSource, TerminalOutputTap, List, ByteQueue)}.
      */
-    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
+    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(256 * 1024, true);
     /**
      * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
      * writing to the {@link #mTerminalFileDescriptor}.
@@ -50,6 +86,55 @@ public final class TerminalSession extends TerminalOutput {
     /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
     private final byte[] mUtf8InputBuffer = new byte[5];
 
+    /**
+     * If draining {@link #mProcessToTerminalIOQueue} on the next frame has been scheduled but not yet started, so that
+     * the reader thread only posts {@link #MSG_NEW_INPUT} once per frame however many reads it makes.
+     */
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    /** The time per frame to spend appending queued process output, see {@link #setFrameDrainBudgetNanos(long)}. */
+    private volatile long mFrameDrainBudgetNanos = DEFAULT_FRAME_DRAIN_BUDGET_NANOS;
+
+    /** If the emulator runs on its own thread, see {@link #setEmulatorThreadEnabled(boolean)}. */
+    private boolean mEmulatorThreadEnabled;
+    /** The handler of the emulator thread, if enabled and the emulator has been initialized. */
+    private EmulatorThreadHandler mEmulatorThreadHandler;
+    /** The latest snapshot published by the emulator thread, until taken by {@link #takePublishedSnapshot()}. */
+    private final AtomicReference<TerminalSnapshot> mPendingSnapshot = new AtomicReference<>();
+    /** The latest snapshot published by the emulator thread, see {@link #getLatestSnapshot()}. */
+    private volatile TerminalSnapshot mLatestSnapshot;
+    /** If {@link #MSG_SNAPSHOT_PUBLISHED} has been sent to the main thread but not yet handled. */
+    private final AtomicBoolean mSnapshotNotificationScheduled = new AtomicBoolean();
+
+    /** If the client is not notified of screen updates, see {@link #setHeadless(boolean)}. */
+    private volatile boolean mHeadless;
+    /**
+     * Held while appending output, by the thread running the emulator, and while otherwise changing the emulator or
+     * {@link #mHeadless}. Without the emulator thread, the emulator is run by the headless thread while headless and by
+     * the main thread otherwise, which the lock hands it over between. Other threads read the emulator through
+     * {@link #takeSnapshot()}, taken under it.
+     */
+    private final Object mHeadlessLock = new Object();
+    /** The watches found by the headless thread, only accessed on it. */
+    private final List<TerminalMarkerWatch> mHeadlessFoundWatches = new ArrayList<>();
+    /** The handler of the thread shared by headless sessions, created when first needed. */
+    private static Handler sHeadlessHandler;
+
+    /** The file to keep history dropped from the transcript in, see {@link #setScrollbackFile(File, long)}. */
+    private File mScrollbackFilePath;
+    private long mScrollbackMaxBytes;
+    /** The open scrollback file, once the emulator has been initialized. */
+    private TerminalScrollbackFile mScrollbackFile;
+
+    /** An optional tap receiving the process output as it is read, see {@link #setOutputTap(TerminalOutputTap)}. */
+    private volatile TerminalOutputTap mOutputTap;
+
+    /** Watches for markers in the process output, see {@link #addMarkerWatch(TerminalMarkerWatch)}. */
+    private final List<TerminalMarkerWatch> mMarkerWatches = new CopyOnWriteArrayList<>();
+
+    /** Captures of the process output, see {@link #addOutputCapture(TerminalOutputCapture)}. */
+    private final List<TerminalOutputCapture> mOutputCaptures = new CopyOnWriteArrayList<>();
+
     /** Callback which gets notified when a session finishes or changes title. */
     TerminalSessionClient mClient;
 
@@ -99,16 +184,161 @@ public final class TerminalSession extends TerminalOutput {
             mEmulator.updateTerminalSessionClient(client);
     }
 
+    /**
+     * Run terminal emulation on a thread of this session instead of the main thread, so that a session printing a lot
+     * does not make the UI lag. The main thread then renders the {@link TerminalSnapshot}:s published by the emulator
+     * thread, see {@link #takePublishedSnapshot()}. Must be called before the emulator is initialized.
+     */
+    public void setEmulatorThreadEnabled(boolean enabled) {
+        if (mEmulator != null) throw new IllegalStateException("The emulator has already been initialized");
+        mEmulatorThreadEnabled = enabled;
+    }
+
+    /**
+     * Keep the rows dropped from the start of the transcript, once it is full, in a memory-mapped file so that the
+     * history is not limited by the heap, see {@link TerminalScrollbackFile}. Must be called before the emulator is
+     * initialized, and {@link #closeScrollbackFile()} called once the session is no longer shown.
+     *
+     * @param maxBytes the most bytes of history to keep in the file, above which the oldest is dropped.
+     */
+    public void setScrollbackFile(File file, long maxBytes) {
+        if (mEmulator != null) throw new IllegalStateException("The emulator has already been initialized");
+        mScrollbackFilePath = file;
+        mScrollbackMaxBytes = maxBytes;
+    }
+
+    /** Delete the scrollback file, if any, dropping the history kept in it. */
+    public void closeScrollbackFile() {
+        if (mScrollbackFile != null) mScrollbackFile.close();
+    }
+
+    /** If terminal emulation runs on a thread of this session, see {@link #setEmulatorThreadEnabled(boolean)}. */
+    public boolean isEmulatorThreadEnabled() {
+        return mEmulatorThreadEnabled;
+    }
+
+    /**
+     * Take the snapshot published by the emulator thread since the last call, or null if none has been. The caller
+     * should {@link TerminalSnapshot#includeChangesOf(TerminalSnapshot)} the snapshot it took before, which this one
+     * replaces, in case that one was not rendered. Called on the main thread.
+     */
+    public TerminalSnapshot takePublishedSnapshot() {
+        return mPendingSnapshot.getAndSet(null);
+    }
+
+    /**
+     * The latest snapshot published by the emulator thread, for reading the screen and transcript from any thread
+     * without waiting for the emulator, or null if the emulator thread is not enabled.
+     */
+    public TerminalSnapshot getLatestSnapshot() {
+        return mLatestSnapshot;
+    }
+
+    /**
+     * Stop notifying the client of screen updates while the session is not shown, or notify it once to catch up when
+     * shown again. While headless, process output is appended in batches of {@link #HEADLESS_DRAIN_BUDGET_NANOS} on a
+     * background thread shared by the headless sessions, or on the emulator thread if enabled, without publishing
+     * snapshots other than for found marker watches. Called on the main thread, which should not read the emulator
+     * while the session is headless.
+     */
+    public void setHeadless(boolean headless) {
+        if (mHeadless == headless) return;
+        // Waits for the headless thread to finish appending a batch before taking the emulator back:
+        synchronized (mHeadlessLock) {
+            mHeadless = headless;
+        }
+        if (headless || mEmulator == null) return;
+        if (mEmulatorThreadHandler == null) {
+            notifyScreenUpdate();
+        } else {
+            runOnEmulatorThread(() -> {
+                synchronized (mHeadlessLock) {
+                    publishSnapshot();
+                }
+            });
+        }
+    }
+
+    /** If the session is headless, see {@link #setHeadless(boolean)}. */
+    public boolean isHeadless() {
+        return mHeadless;
+    }
+
     /** Inform the attached pty of the new size and reflow or initialize the emulator. */
     public void updateSize(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows, cellWidthPixels, cellHeightPixels);
         } else {
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns, cellWidthPixels, cellHeightPixels);
-            mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+            if (mEmulatorThreadHandler == null) {
+                synchronized (mHeadlessLock) {
+                    mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+                }
+                scheduleReflowStep();
+            } else {
+                runOnEmulatorThread(() -> {
+                    synchronized (mHeadlessLock) {
+                        mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+                        publishSnapshot();
+                    }
+                    scheduleReflowStep();
+                });
+            }
         }
     }
 
+    /**
+     * Reflows the history left by a change of columns in steps of {@link #REFLOW_STEP_ROWS} on the thread running the
+     * emulator, so that resizing only waits for the screen and recent history to be reflowed while output keeps being
+     * handled between the steps. The buffer is not thread safe, so this is not done on a thread of its own.
+     */
+    private final Runnable mReflowStep = new Runnable() {
+        @Override
+        public void run() {
+            final boolean rowsLeft;
+            synchronized (mHeadlessLock) {
+                rowsLeft = mEmulator.continueReflow(REFLOW_STEP_ROWS);
+                if (mEmulatorThreadHandler != null) publishSnapshot();
+            }
+            if (mEmulatorThreadHandler == null) notifyScreenUpdate();
+            if (rowsLeft) scheduleReflowStep();
+        }
+    };
+
+    /**
+     * Reflow all of the history left by a change of columns at once instead of in steps, for reading all of it as it
+     * is shown, such as when searching it. Called on the main thread, which with the emulator thread enabled waits for
+     * it and can take the reflowed snapshot right after.
+     */
+    public void finishReflow() {
+        if (mEmulator == null) return;
+        synchronized (mHeadlessLock) {
+            if (!mEmulator.isReflowPending()) return;
+            getEmulatorHandler().removeCallbacks(mReflowStep);
+            while (mEmulator.continueReflow(Integer.MAX_VALUE)) ;
+            if (mEmulatorThreadHandler != null) publishSnapshot();
+        }
+        if (mEmulatorThreadHandler == null) notifyScreenUpdate();
+    }
+
+    /** Schedule {@link #mReflowStep} on the thread running the emulator, if not already scheduled, when needed. */
+    private void scheduleReflowStep() {
+        final Handler emulatorHandler = getEmulatorHandler();
+        emulatorHandler.removeCallbacks(mReflowStep);
+        if (mEmulator.isReflowPending() && !emulatorHandler.post(mReflowStep)) {
+            // The emulator thread has finished after the process exited:
+            mMainThreadHandler.post(mReflowStep);
+        }
+    }
+
+    /**
+     * The handler of the thread running the emulator other than while headless: the emulator thread if enabled, else
+     * the main thread.
+     */
+    private Handler getEmulatorHandler() {
+        return (mEmulatorThreadHandler != null) ? mEmulatorThreadHandler : mMainThreadHandler;
+    }
+
     /** The terminal title as set through escape sequences or null if none set. */
     public String getTitle() {
         return (mEmulator == null) ? null : mEmulator.getTitle();
@@ -122,31 +352,52 @@ public final class TerminalSession extends TerminalOutput {
      */
     public void initializeEmulator(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
         mEmulator = new TerminalEmulator(this, columns, rows, cellWidthPixels, cellHeightPixels, mTranscriptRows, mClient);
+        if (mScrollbackFilePath != null) {
+            try {
+                mScrollbackFile = new TerminalScrollbackFile(mScrollbackFilePath, mScrollbackMaxBytes);
+                mEmulator.setScrollbackFile(mScrollbackFile);
+            } catch (IOException e) {
+                Logger.logStackTraceWithMessage(mClient, LOG_TAG, "Failed creating scrollback file, keeping only the transcript", e);
+            }
+        }
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns, cellWidthPixels, cellHeightPixels);
         mShellPid = processId[0];
         mClient.setTerminalShellPid(this, mShellPid);
 
+        if (mEmulatorThreadEnabled) {
+            HandlerThread emulatorThread = new HandlerThread("TermSessionEmulator[pid=" + mShellPid + "]");
+            emulatorThread.start();
+            mEmulatorThreadHandler = new EmulatorThreadHandler(emulatorThread.getLooper());
+            synchronized (mHeadlessLock) {
+                publishSnapshot();
+            }
+        }
+        // Process exit is handled by the emulator thread if enabled, else by the main thread even when headless, while
+        // process output is handled by the thread running the emulator at the time, see scheduleDrain():
+        final Handler exitHandler = getEmulatorHandler();
+
         final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor, mClient);
 
         new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
             @Override
             public void run() {
+                if (mProcessToTerminalIOQueue.buffer().isDirect()) {
+                    final ProcessOutputSource source = (buffer, index, length) -> JNI.read(mTerminalFileDescriptor, buffer, index, length);
+                    while (readProcessOutput(source, mOutputTap, mOutputCaptures, mProcessToTerminalIOQueue) != -1) {
+                        if (mDrainScheduled.compareAndSet(false, true)) scheduleDrain();
+                    }
+                    return;
+                }
+
                 try (InputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
                     final byte[] buffer = new byte[4096];
                     while (true) {
                         int read = termIn.read(buffer);
                         if (read == -1) return;
-                        // Log terminal output for debugging
-                        String output = new String(buffer, 0, read, StandardCharsets.UTF_8);
-                        for (String line : output.split("\n")) {
-                            if (!line.isEmpty()) {
-                                android.util.Log.i("TerminalOutput", line);
-                            }
-                        }
-                        if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+                        if (!forwardProcessOutput(mOutputTap, mOutputCaptures, mProcessToTerminalIOQueue, buffer, read)) return;
+                        if (mDrainScheduled.compareAndSet(false, true)) scheduleDrain();
                     }
                 } catch (Exception e) {
                     // Ignore, just shutting down.
@@ -174,12 +425,246 @@ public final class TerminalSession extends TerminalOutput {
             @Override
             public void run() {
                 int processExitCode = JNI.waitFor(mShellPid);
-                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+                exitHandler.sendMessage(exitHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
             }
         }.start();
 
     }
 
+    /**
+     * Send {@link #MSG_NEW_INPUT} to the thread which appends queued process output to the emulator: the emulator
+     * thread if enabled, else the headless thread while headless and the main thread otherwise.
+     */
+    private void scheduleDrain() {
+        final Handler handler = (mEmulatorThreadHandler != null) ? mEmulatorThreadHandler : (mHeadless ? getHeadlessHandler() : mMainThreadHandler);
+        handler.sendMessage(handler.obtainMessage(MSG_NEW_INPUT, this));
+    }
+
+    private static synchronized Handler getHeadlessHandler() {
+        if (sHeadlessHandler == null) {
+            HandlerThread headlessThread = new HandlerThread("TermSessionHeadless", Process.THREAD_PRIORITY_BACKGROUND);
+            headlessThread.start();
+            sHeadlessHandler = new HeadlessHandler(headlessThread.getLooper());
+        }
+        return sHeadlessHandler;
+    }
+
+    /**
+     * Append queued process output on the headless thread, or hand it to the main thread if no longer headless, see
+     * {@link #setHeadless(boolean)}.
+     */
+    private void drainHeadless() {
+        final boolean outOfBudget;
+        synchronized (mHeadlessLock) {
+            if (!mHeadless) {
+                // Draining stays scheduled, now on the main thread:
+                scheduleDrain();
+                return;
+            }
+            mDrainScheduled.set(false);
+            final long start = System.nanoTime();
+            if (appendQueuedOutput(mProcessToTerminalIOQueue, APPEND_CHUNK_LENGTH, mEmulator, mMarkerWatches, mHeadlessFoundWatches, HEADLESS_DRAIN_BUDGET_NANOS) == 0)
+                return;
+            outOfBudget = System.nanoTime() - start >= HEADLESS_DRAIN_BUDGET_NANOS;
+        }
+        notifyFoundWatches(mHeadlessFoundWatches);
+
+        // Continue after the other headless sessions:
+        if (outOfBudget && mDrainScheduled.compareAndSet(false, true)) scheduleDrain();
+    }
+
+    /**
+     * Hand a chunk read from the process to the output tap and captures, if any, and queue it for the emulator. Called
+     * for every read on the reader thread, so nothing may be allocated here when no tap or capture is set.
+     *
+     * @return false if the queue was closed.
+     */
+    static boolean forwardProcessOutput(TerminalOutputTap tap, List<TerminalOutputCapture> captures, ByteQueue queue, byte[] buffer, int length) {
+        feedOutputTapAndCaptures(tap, captures, buffer, 0, length);
+        return queue.write(buffer, 0, length);
+    }
+
+    /** Reads process output into a direct buffer, see {@link JNI#read(int, ByteBuffer, int, int)}. */
+    interface ProcessOutputSource {
+        /** Read at most length bytes at the index of the buffer, returning the number read or -1 at end of output. */
+        int read(ByteBuffer buffer, int index, int length);
+    }
+
+    /**
+     * Read process output directly into the free space of the queue, up to {@link #MAX_PROCESS_READ_LENGTH} bytes,
+     * and hand it to the output tap and captures in place before publishing it to the emulator. Unlike
+     * {@link #forwardProcessOutput(TerminalOutputTap, List, ByteQueue, byte[], int)} the output is not copied after
+     * being read, and the emulator appends it from the same memory. Called for every read on the reader thread.
+     *
+     * @return the number of bytes read, or -1 at end of output or if the queue was closed.
+     */
+    static int readProcessOutput(ProcessOutputSource source, TerminalOutputTap tap, List<TerminalOutputCapture> captures, ByteQueue queue) {
+        final int free = queue.reserve(MAX_PROCESS_READ_LENGTH);
+        if (free == -1) return -1;
+        final ByteBuffer buffer = queue.buffer();
+        final int index = queue.reserveIndex();
+        final int read = source.read(buffer, index, free);
+        if (read <= 0) return -1;
+        feedOutputTapAndCaptures(tap, captures, buffer.array(), buffer.arrayOffset() + index, read);
+        queue.commit(read);
+        return read;
+    }
+
+    private static void feedOutputTapAndCaptures(TerminalOutputTap tap, List<TerminalOutputCapture> captures, byte[] buffer, int offset, int length) {
+        if (tap != null) tap.onProcessOutput(buffer, offset, length);
+        if (!captures.isEmpty()) {
+            for (TerminalOutputCapture capture : captures) {
+                capture.feed(buffer, offset, length);
+                if (capture.isComplete()) captures.remove(capture);
+            }
+        }
+    }
+
+    /**
+     * Append process output queued by the reader thread to the emulator, feeding it to the marker watches, until the
+     * queue is empty or budgetNanos has passed. The output is appended in place from the queue, in chunks of at most
+     * chunkLength bytes between checks of the budget. At least one chunk is appended if available, however small the
+     * budget.
+     * Watches which found their marker are moved from watches to foundWatches, to be notified by the caller once the
+     * appended output can be read from the screen.
+     *
+     * @return the number of bytes appended.
+     */
+    static int appendQueuedOutput(ByteQueue queue, int chunkLength, TerminalEmulator emulator,
+                                  List<TerminalMarkerWatch> watches, List<TerminalMarkerWatch> foundWatches, long budgetNanos) {
+        final long start = System.nanoTime();
+        final byte[] buffer = queue.buffer().array();
+        final int arrayOffset = queue.buffer().arrayOffset();
+        int appended = 0;
+        do {
+            int length = queue.peek(chunkLength);
+            if (length <= 0) break;
+            int offset = arrayOffset + queue.peekIndex();
+            emulator.append(buffer, offset, length);
+            scanMarkerWatches(watches, foundWatches, buffer, offset, length);
+            queue.consume(length);
+            appended += length;
+        } while (System.nanoTime() - start < budgetNanos);
+        return appended;
+    }
+
+    /**
+     * Set the time to spend appending process output to the emulator per frame, the rest being deferred to the next
+     * frame. A larger budget gives more throughput for fast producers at the cost of dropped frames.
+     */
+    public void setFrameDrainBudgetNanos(long budgetNanos) {
+        mFrameDrainBudgetNanos = budgetNanos;
+    }
+
+    /**
+     * Start capturing the raw process output between the markers of the capture, see {@link TerminalOutputCapture}.
+     * Since the capture is fed before the output reaches the emulator, it is complete by the time a
+     * {@link TerminalMarkerWatch} for the same end marker is notified. The capture is removed once complete.
+     */
+    public void addOutputCapture(TerminalOutputCapture capture) {
+        mOutputCaptures.add(capture);
+    }
+
+    /** Stop feeding output to the capture, e.g. after a timeout. */
+    public void removeOutputCapture(TerminalOutputCapture capture) {
+        mOutputCaptures.remove(capture);
+    }
+
+    /**
+     * Set a tap receiving the raw process output on the reader thread, or null to remove it. See
+     * {@link TerminalOutputTap}.
+     */
+    public void setOutputTap(TerminalOutputTap outputTap) {
+        mOutputTap = outputTap;
+    }
+
+    /**
+     * Start watching the process output for the marker of the watch. Output is scanned on the thread running the
+     * emulator as it is appended, so the emulator screen already contains the marker when the watch is notified. The
+     * watch is removed automatically once the marker has been found.
+     */
+    public void addMarkerWatch(TerminalMarkerWatch watch) {
+        mMarkerWatches.add(watch);
+    }
+
+    /** Stop watching for the marker of the watch, e.g. after a timeout. */
+    public void removeMarkerWatch(TerminalMarkerWatch watch) {
+        mMarkerWatches.remove(watch);
+    }
+
+    /** Feed newly appended process output to the marker watches, moving those which were found to foundWatches. */
+    private static void scanMarkerWatches(List<TerminalMarkerWatch> watches, List<TerminalMarkerWatch> foundWatches,
+                                          byte[] buffer, int offset, int length) {
+        if (watches.isEmpty()) return;
+        for (TerminalMarkerWatch watch : watches) {
+            if (watch.feed(buffer, offset, length) != -1) {
+                watches.remove(watch);
+                foundWatches.add(watch);
+            }
+        }
+    }
+
+    /** Notify and clear the watches found by {@link #appendQueuedOutput(ByteQueue, int, TerminalEmulator, List, List, long)}. */
+    static void notifyFoundWatches(List<TerminalMarkerWatch> foundWatches) {
+        if (foundWatches.isEmpty()) return;
+        for (int i = 0; i < foundWatches.size(); i++) foundWatches.get(i).notifyFound();
+        foundWatches.clear();
+    }
+
+    /**
+     * Run an operation changing the emulator on the emulator thread, or directly if it has finished after the process
+     * exited.
+     */
+    private void runOnEmulatorThread(Runnable operation) {
+        if (!mEmulatorThreadHandler.post(operation)) operation.run();
+    }
+
+    /**
+     * Run a client callback from the emulator on the main thread, posting it there if called on the headless or
+     * emulator thread.
+     */
+    private void runOnMainThread(Runnable callback) {
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) callback.run();
+        else mMainThreadHandler.post(callback);
+    }
+
+    /**
+     * Publish a snapshot of the emulator for the main thread to render and notify it, called with
+     * {@link #mHeadlessLock} held on the thread running the emulator when the emulator thread is enabled.
+     */
+    private void publishSnapshot() {
+        mLatestSnapshot = publishSnapshot(mEmulator, mPendingSnapshot);
+        if (!mHeadless && mSnapshotNotificationScheduled.compareAndSet(false, true))
+            mMainThreadHandler.sendEmptyMessage(MSG_SNAPSHOT_PUBLISHED);
+    }
+
+    /**
+     * Create a snapshot of the emulator taking its changes to render and set it as the pending snapshot, to be taken
+     * with {@link #takePublishedSnapshot()}. If the previous pending snapshot was not taken, its changes are included.
+     */
+    static TerminalSnapshot publishSnapshot(TerminalEmulator emulator, AtomicReference<TerminalSnapshot> pendingSnapshot) {
+        TerminalSnapshot snapshot = TerminalSnapshot.forRendering(emulator);
+        snapshot.includeChangesOf(pendingSnapshot.getAndSet(null));
+        pendingSnapshot.set(snapshot);
+        return snapshot;
+    }
+
+    /** Append a description of how the process exited to the emulator. */
+    private void appendExitDescription(int exitCode) {
+        String exitDescription = "\r\n[Process completed";
+        if (exitCode > 0) {
+            // Non-zero process exit.
+            exitDescription += " (code " + exitCode + ")";
+        } else if (exitCode < 0) {
+            // Negated signal.
+            exitDescription += " (signal " + (-exitCode) + ")";
+        }
+        exitDescription += " - press Enter]";
+
+        byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
+        mEmulator.append(bytesToWrite, bytesToWrite.length);
+    }
+
     /** Write data to the shell process. */
     @Override
     public void write(byte[] data, int offset, int count) {
@@ -227,15 +712,38 @@ public final class TerminalSession extends TerminalOutput {
         return mEmulator;
     }
 
-    /** Notify the {@link #mClient} that the screen has changed. */
+    /**
+     * Take a copy-on-write snapshot of the emulator state, which may be read on any thread while the emulator keeps
+     * appending output, or null if the emulator has not been initialized. Unlike {@link #getEmulator()}, whose state
+     * may only be read on the thread running it, this is safe to call from another thread.
+     */
+    public TerminalSnapshot takeSnapshot() {
+        synchronized (mHeadlessLock) {
+            return (mEmulator == null) ? null : new TerminalSnapshot(mEmulator);
+        }
+    }
+
+    /** Notify the {@link #mClient} that the screen has changed, unless headless. */
     protected void notifyScreenUpdate() {
+        if (mHeadless) return;
         mClient.onTextChanged(this);
     }
 
     /** Reset state for terminal emulator state. */
     public void reset() {
-        mEmulator.reset();
-        notifyScreenUpdate();
+        if (mEmulatorThreadHandler == null) {
+            synchronized (mHeadlessLock) {
+                mEmulator.reset();
+            }
+            notifyScreenUpdate();
+        } else {
+            runOnEmulatorThread(() -> {
+                synchronized (mHeadlessLock) {
+                    mEmulator.reset();
+                    publishSnapshot();
+                }
+            });
+        }
     }
 
     /** Finish this terminal session by sending SIGKILL to the shell. */
@@ -264,7 +772,7 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void titleChanged(String oldTitle, String newTitle) {
-        mClient.onTitleChanged(this);
+        runOnMainThread(() -> mClient.onTitleChanged(this));
     }
 
     public synchronized boolean isRunning() {
@@ -278,22 +786,27 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void onCopyTextToClipboard(String text) {
-        mClient.onCopyTextToClipboard(this, text);
+        runOnMainThread(() -> mClient.onCopyTextToClipboard(this, text));
     }
 
     @Override
     public void onPasteTextFromClipboard() {
-        mClient.onPasteTextFromClipboard(this);
+        runOnMainThread(() -> mClient.onPasteTextFromClipboard(this));
     }
 
     @Override
     public void onBell() {
-        mClient.onBell(this);
+        runOnMainThread(() -> mClient.onBell(this));
     }
 
     @Override
     public void onColorsChanged() {
-        mClient.onColorsChanged(this);
+        runOnMainThread(() -> mClient.onColorsChanged(this));
+    }
+
+    @Override
+    public void onTerminalCursorStateChange(boolean enabled) {
+        runOnMainThread(() -> mClient.onTerminalCursorStateChange(enabled));
     }
 
     public int getPid() {
@@ -340,41 +853,130 @@ public final class TerminalSession extends TerminalOutput {
         return result;
     }
 
+    /**
+     * Appends the process output to the emulator once per frame, so that a fast producer causes one screen update per
+     * frame instead of one per read, and handles the process exiting. With the emulator thread enabled, this instead
+     * notifies the client of snapshots published by the {@link EmulatorThreadHandler} and of the process having exited.
+     */
     @SuppressLint("HandlerLeak")
-    class MainThreadHandler extends Handler {
+    class MainThreadHandler extends Handler implements Choreographer.FrameCallback {
+
+        final List<TerminalMarkerWatch> mFoundWatches = new ArrayList<>();
 
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mHeadless) {
+                // Made headless since scheduled, draining stays scheduled on the headless thread:
+                scheduleDrain();
+                return;
+            }
+            // Cleared before reading, so that output queued from now on schedules another frame:
+            mDrainScheduled.set(false);
+            final long budgetNanos = mFrameDrainBudgetNanos;
+            final long start = System.nanoTime();
+            synchronized (mHeadlessLock) {
+                if (appendQueuedOutput(mProcessToTerminalIOQueue, APPEND_CHUNK_LENGTH, mEmulator, mMarkerWatches, mFoundWatches, budgetNanos) == 0)
+                    return;
+            }
+            notifyFoundWatches(mFoundWatches);
+            notifyScreenUpdate();
+
+            // Out of time with output possibly left in the queue, which the reader thread may not add to:
+            if (System.nanoTime() - start >= budgetNanos && mDrainScheduled.compareAndSet(false, true))
+                Choreographer.getInstance().postFrameCallback(this);
+        }
 
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
+            if (msg.what == MSG_NEW_INPUT) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else if (msg.what == MSG_SNAPSHOT_PUBLISHED) {
+                mSnapshotNotificationScheduled.set(false);
                 notifyScreenUpdate();
+            } else if (msg.what == MSG_PROCESS_EXITED) {
+                int exitCode = (Integer) msg.obj;
+                if (mEmulatorThreadHandler == null) {
+                    // Append all output before the queue is closed, the screen is updated below:
+                    synchronized (mHeadlessLock) {
+                        appendQueuedOutput(mProcessToTerminalIOQueue, APPEND_CHUNK_LENGTH, mEmulator, mMarkerWatches, mFoundWatches, Long.MAX_VALUE);
+                        cleanupResources(exitCode);
+                        appendExitDescription(exitCode);
+                    }
+                    notifyFoundWatches(mFoundWatches);
+                    notifyScreenUpdate();
+                } else {
+                    // The emulator thread has appended the output and exit description and finished.
+                    cleanupResources(exitCode);
+                }
+
+                mClient.onSessionFinished(TerminalSession.this);
             }
+        }
 
-            if (msg.what == MSG_PROCESS_EXITED) {
-                int exitCode = (Integer) msg.obj;
-                cleanupResources(exitCode);
-
-                String exitDescription = "\r\n[Process completed";
-                if (exitCode > 0) {
-                    // Non-zero process exit.
-                    exitDescription += " (code " + exitCode + ")";
-                } else if (exitCode < 0) {
-                    // Negated signal.
-                    exitDescription += " (signal " + (-exitCode) + ")";
+    }
+
+    /**
+     * Appends the process output to the emulator on the emulator thread, publishing a snapshot after each batch of
+     * output, see {@link #setEmulatorThreadEnabled(boolean)}.
+     */
+    class EmulatorThreadHandler extends Handler {
+
+        final List<TerminalMarkerWatch> mFoundWatches = new ArrayList<>();
+
+        EmulatorThreadHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_NEW_INPUT) {
+                mDrainScheduled.set(false);
+                final boolean headless = mHeadless;
+                final long budgetNanos = headless ? HEADLESS_DRAIN_BUDGET_NANOS : mFrameDrainBudgetNanos;
+                final long start = System.nanoTime();
+                synchronized (mHeadlessLock) {
+                    if (appendQueuedOutput(mProcessToTerminalIOQueue, APPEND_CHUNK_LENGTH, mEmulator, mMarkerWatches, mFoundWatches, budgetNanos) == 0)
+                        return;
+                    if (!headless || !mFoundWatches.isEmpty()) publishSnapshot();
                 }
-                exitDescription += " - press Enter]";
+                // Notified after publishing, so that the marker can be read from the latest snapshot:
+                notifyFoundWatches(mFoundWatches);
 
-                byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
-                notifyScreenUpdate();
+                // Continue after other operations, like resizing, which may have been posted meanwhile:
+                if (System.nanoTime() - start >= budgetNanos && mDrainScheduled.compareAndSet(false, true))
+                    sendEmptyMessage(MSG_NEW_INPUT);
+            } else if (msg.what == MSG_PROCESS_EXITED) {
+                int exitCode = (Integer) msg.obj;
+                synchronized (mHeadlessLock) {
+                    appendQueuedOutput(mProcessToTerminalIOQueue, APPEND_CHUNK_LENGTH, mEmulator, mMarkerWatches, mFoundWatches, Long.MAX_VALUE);
+                    appendExitDescription(exitCode);
+                    publishSnapshot();
+                }
+                notifyFoundWatches(mFoundWatches);
 
-                mClient.onSessionFinished(TerminalSession.this);
+                // Operations on the emulator are run on the main thread from now on, see runOnEmulatorThread():
+                getLooper().quitSafely();
+                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, exitCode));
             }
         }
 
     }
 
+    /**
+     * Appends the process output of headless sessions without an emulator thread, on a background thread shared by
+     * them, see {@link #setHeadless(boolean)}.
+     */
+    static class HeadlessHandler extends Handler {
+
+        HeadlessHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_NEW_INPUT) ((TerminalSession) msg.obj).drainHeadless();
+        }
+
+    }
+
 }
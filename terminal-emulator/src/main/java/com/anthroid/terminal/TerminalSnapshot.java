@@ -0,0 +1,102 @@
+package com.anthroid.terminal;
+
+/**
+ * What is needed to render the screen of a {@link TerminalEmulator}: the rows of its active buffer, the cursor and the
+ * colors.
+ * <p>
+ * A snapshot created with {@link #live(TerminalEmulator)} refers directly to the emulator state, for rendering on the
+ * thread running the emulator. A snapshot created with {@link #TerminalSnapshot(TerminalEmulator)} is instead a
+ * copy-on-write copy of the emulator state, which may be read on another thread while the emulator keeps changing.
+ * <p>
+ * The emulator thread of a {@link TerminalSession} (see {@link TerminalSession#setEmulatorThreadEnabled(boolean)})
+ * publishes copies created with {@link #forRendering(TerminalEmulator)}, which take the changes to render from the
+ * emulator, for the main thread to render while the emulator keeps appending output.
+ */
+public final class TerminalSnapshot {
+
+    /** The emulator of the snapshot, from which only the cursor blink state is read when rendering. */
+    public final TerminalEmulator mEmulator;
+    /** The rows, a copy of the active buffer unless live. */
+    public final TerminalBuffer mScreen;
+    /** The active buffer of the emulator which {@link #mScreen} is a copy of, identifying which buffer is shown. */
+    public final TerminalBuffer mSourceScreen;
+    public final int mRows, mColumns;
+    public final int mCursorRow, mCursorCol, mCursorStyle;
+    /** If the cursor is enabled (DECSET 25), see {@link #shouldCursorBeVisible()} for if it is currently shown. */
+    public final boolean mCursorEnabled;
+    public final boolean mReverseVideo;
+    /** The current colors, see {@link TerminalColors#mCurrentColors}. */
+    public final int[] mPalette;
+
+    /** The number of rows scrolled since the last {@link #clearScrollCounter()}, see {@link TerminalEmulator#getScrollCounter()}. */
+    private int mScrollCounter;
+
+    /**
+     * Create a copy-on-write snapshot of the emulator state, called on the thread running the emulator. The changes
+     * tracked by the emulator for rendering are left to it.
+     */
+    public TerminalSnapshot(TerminalEmulator emulator) {
+        this(emulator, new TerminalBuffer(emulator.getScreen(), false), emulator.mColors.mCurrentColors.clone());
+    }
+
+    private TerminalSnapshot(TerminalEmulator emulator, TerminalBuffer screen, int[] palette) {
+        mEmulator = emulator;
+        mScreen = screen;
+        mSourceScreen = emulator.getScreen();
+        mRows = emulator.mRows;
+        mColumns = emulator.mColumns;
+        mCursorRow = emulator.getCursorRow();
+        mCursorCol = emulator.getCursorCol();
+        mCursorStyle = emulator.getCursorStyle();
+        mCursorEnabled = emulator.isCursorEnabled();
+        mReverseVideo = emulator.isReverseVideo();
+        mPalette = palette;
+    }
+
+    /**
+     * Create a copy-on-write snapshot of the emulator state to render instead of the emulator, taking the dirty rows and
+     * scroll counter from it, called on the thread running the emulator.
+     */
+    static TerminalSnapshot forRendering(TerminalEmulator emulator) {
+        TerminalSnapshot snapshot = new TerminalSnapshot(emulator, new TerminalBuffer(emulator.getScreen(), true),
+            emulator.mColors.mCurrentColors.clone());
+        snapshot.mScrollCounter = emulator.getScrollCounter();
+        emulator.clearScrollCounter();
+        return snapshot;
+    }
+
+    /** A snapshot referring directly to the emulator state, only valid until the emulator processes more input. */
+    public static TerminalSnapshot live(TerminalEmulator emulator) {
+        return new TerminalSnapshot(emulator, emulator.getScreen(), emulator.mColors.mCurrentColors);
+    }
+
+    /** If the cursor is enabled and not in the hidden phase of blinking. */
+    public boolean shouldCursorBeVisible() {
+        return mCursorEnabled && mEmulator.isCursorBlinkStateVisible();
+    }
+
+    public int getScrollCounter() {
+        return mScrollCounter;
+    }
+
+    public void clearScrollCounter() {
+        mScrollCounter = 0;
+    }
+
+    /**
+     * Make this snapshot also cover the changes reported by an older snapshot of the same emulator, which may have
+     * been replaced by this one before being rendered. Changes which have already been rendered and cleared from the
+     * older snapshot, as well as a scroll counter which has been cleared, are not included again.
+     */
+    public void includeChangesOf(TerminalSnapshot older) {
+        if (older == null || older == this) return;
+        mScrollCounter += older.mScrollCounter;
+        if (older.mSourceScreen == mSourceScreen) {
+            mScreen.includeDirtyRowsOf(older.mScreen);
+        } else {
+            // The changes of the older buffer are not known in terms of this one:
+            mScreen.markAllDirty();
+        }
+    }
+
+}
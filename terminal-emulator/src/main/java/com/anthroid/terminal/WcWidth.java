@@ -1,10 +1,16 @@
 package com.anthroid.terminal;
 
+import java.util.Arrays;
+
 /**
  * Implementation of wcwidth(3) for Unicode 15.
  *
  * Implementation from https://github.com/jquast/wcwidth but we return 0 for unprintable characters.
  *
+ * The interval tables below are the source of the widths, from which a two-stage lookup table is generated when the
+ * class is loaded: the widths of each block of 256 code points are packed at two bits per code point into a leaf of
+ * eight longs, and blocks with the same widths share a leaf, so that a width is looked up with two array loads.
+ *
  * IMPORTANT:
  * Must be kept in sync with the following:
  * https://github.com/termux/wcwidth
@@ -490,6 +496,80 @@ public final class WcWidth {
     };
 
 
+    /** The log2 of the number of code points in a block sharing a leaf of {@link #LEAVES}. */
+    private static final int BLOCK_SHIFT = 8;
+    /** The number of longs in a leaf of {@link #LEAVES}, with 32 widths of 2 bits in each long. */
+    private static final int LEAF_LONGS = (1 << BLOCK_SHIFT) >>> 5;
+    /** The index of the leaf with the widths of each block of code points. */
+    private static final char[] BLOCK_LEAVES = new char[(Character.MAX_CODE_POINT + 1) >>> BLOCK_SHIFT];
+    /** The distinct leaves, each with the widths of a block of code points at two bits per code point. */
+    private static final long[] LEAVES;
+
+    static {
+        // The widths of all code points, starting at 1 before applying the tables in the order of widthFromIntervals():
+        long[] widths = new long[(Character.MAX_CODE_POINT + 1) >>> 5];
+        Arrays.fill(widths, 0x5555555555555555L);
+        for (int[] range : WIDE_EASTASIAN) setWidths(widths, range[0], range[1], 2);
+        for (int[] range : ZERO_WIDTH) setWidths(widths, range[0], range[1], 0);
+        setWidths(widths, 0, 31, 0);
+        setWidths(widths, 0x07F, 0x09F, 0);
+        setWidths(widths, 0x034F, 0x034F, 0);
+        setWidths(widths, 0x200B, 0x200F, 0);
+        setWidths(widths, 0x2028, 0x202E, 0);
+        setWidths(widths, 0x2060, 0x2063, 0);
+
+        // Share leaves between equal blocks, found through an open addressing table of leaf indices by hash:
+        long[] leaves = new long[widths.length];
+        int leafCount = 0;
+        int[] leafSlots = new int[1024];
+        for (int block = 0; block < BLOCK_LEAVES.length; block++) {
+            final int offset = block * LEAF_LONGS;
+            if (block > 0 && sameLeaf(widths, offset, leaves, BLOCK_LEAVES[block - 1] * LEAF_LONGS)) {
+                BLOCK_LEAVES[block] = BLOCK_LEAVES[block - 1];
+                continue;
+            }
+            long hash = 0;
+            for (int i = 0; i < LEAF_LONGS; i++) hash = (hash ^ widths[offset + i]) * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash >>> 54);
+            int leaf = -1;
+            while (leafSlots[slot] != 0) {
+                if (sameLeaf(widths, offset, leaves, (leafSlots[slot] - 1) * LEAF_LONGS)) {
+                    leaf = leafSlots[slot] - 1;
+                    break;
+                }
+                slot = (slot + 1) & (leafSlots.length - 1);
+            }
+            if (leaf == -1) {
+                leaf = leafCount++;
+                leafSlots[slot] = leaf + 1;
+                System.arraycopy(widths, offset, leaves, leaf * LEAF_LONGS, LEAF_LONGS);
+            }
+            BLOCK_LEAVES[block] = (char) leaf;
+        }
+        LEAVES = Arrays.copyOf(leaves, leafCount * LEAF_LONGS);
+    }
+
+    private static boolean sameLeaf(long[] widths, int offset, long[] leaves, int leafOffset) {
+        for (int i = 0; i < LEAF_LONGS; i++)
+            if (widths[offset + i] != leaves[leafOffset + i]) return false;
+        return true;
+    }
+
+    private static void setWidths(long[] widths, int first, int last, int width) {
+        int c = first;
+        while (c <= last) {
+            if ((c & 31) == 0 && c + 31 <= last) {
+                // A whole long of widths, such as in the large ranges of CJK ideographs:
+                widths[c >>> 5] = 0x5555555555555555L * width;
+                c += 32;
+            } else {
+                int shift = (c & 31) << 1;
+                widths[c >>> 5] = (widths[c >>> 5] & ~(3L << shift)) | ((long) width << shift);
+                c++;
+            }
+        }
+    }
+
     private static boolean intable(int[][] table, int c) {
         // First quick check f|| Latin1 etc. characters.
         if (c < table[0][0]) return false;
@@ -512,6 +592,16 @@ public final class WcWidth {
 
     /** Return the terminal display width of a code point: 0, 1 || 2. */
     public static int width(int ucs) {
+        if (ucs >>> 16 > (Character.MAX_CODE_POINT >>> 16)) {
+            // Negative, like C0 control characters, or beyond the code points, like unassigned ones:
+            return ucs < 0 ? 0 : 1;
+        }
+        long leafWidths = LEAVES[(BLOCK_LEAVES[ucs >>> BLOCK_SHIFT] * LEAF_LONGS) | ((ucs & ((1 << BLOCK_SHIFT) - 1)) >>> 5)];
+        return (int) (leafWidths >>> ((ucs & 31) << 1)) & 3;
+    }
+
+    /** The width of a code point by searching the interval tables, which the lookup table of {@link #width(int)} is generated from. */
+    static int widthFromIntervals(int ucs) {
         if (ucs == 0 ||
             ucs == 0x034F ||
             (0x200B <= ucs && ucs <= 0x200F) ||
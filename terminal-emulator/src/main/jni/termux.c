@@ -1,4 +1,5 @@
 #include <dirent.h>
+#include <errno.h>
 #include <fcntl.h>
 #include <jni.h>
 #include <signal.h>
@@ -212,6 +213,22 @@ JNIEXPORT jint JNICALL Java_com_anthroid_terminal_JNI_waitFor(JNIEnv* TERMUX_UNU
     }
 }
 
+JNIEXPORT jint JNICALL Java_com_anthroid_terminal_JNI_read(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jobject buffer, jint index, jint length)
+{
+    char* address = (*env)->GetDirectBufferAddress(env, buffer);
+    if (address == NULL) return throw_runtime_exception(env, "Not a direct buffer");
+    if (index < 0 || length < 0 || (*env)->GetDirectBufferCapacity(env, buffer) < (jlong) index + length) {
+        return throw_runtime_exception(env, "Read outside of the buffer");
+    }
+
+    ssize_t bytes_read;
+    do {
+        bytes_read = read(fd, address + index, (size_t) length);
+    } while (bytes_read < 0 && errno == EINTR);
+    // End of input, or an error such as EIO once the slave side of the pty has been closed:
+    return (bytes_read > 0) ? (jint) bytes_read : -1;
+}
+
 JNIEXPORT void JNICALL Java_com_anthroid_terminal_JNI_close(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint fileDescriptor)
 {
     close(fileDescriptor);
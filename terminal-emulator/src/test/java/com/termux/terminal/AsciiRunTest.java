@@ -0,0 +1,66 @@
+package com.anthroid.terminal;
+
+/**
+ * Compares the per-code-point path ({@link TerminalEmulator#processCodePoint(int)} for every byte, which is what
+ * {@link TerminalEmulator#append(byte[], int)} used to do for ASCII input) against the bulk ASCII run path for
+ * identical screen output.
+ */
+public class AsciiRunTest extends TerminalTestCase {
+
+	private static final int COLUMNS = BenchmarkCorpus.COLUMNS;
+	private static final int ROWS = BenchmarkCorpus.ROWS;
+	private static final int CORPUS_BYTES = 256 * 1024;
+
+	private void feedPerCodePoint(byte[] corpus) {
+		for (byte b : corpus) mTerminal.processCodePoint(b);
+	}
+
+	private void feedInChunks(byte[] corpus) {
+		byte[] chunk = new byte[4096];
+		for (int offset = 0; offset < corpus.length; offset += chunk.length) {
+			int length = Math.min(chunk.length, corpus.length - offset);
+			System.arraycopy(corpus, offset, chunk, 0, length);
+			mTerminal.append(chunk, length);
+		}
+	}
+
+	public void testBulkAsciiMatchesPerCodePoint() {
+		byte[] corpus = BenchmarkCorpus.buildLog(CORPUS_BYTES).mBytes;
+
+		withTerminalSized(COLUMNS, ROWS);
+		feedPerCodePoint(corpus);
+		String expectedTranscript = mTerminal.getScreen().getTranscriptText();
+		int expectedRow = mTerminal.getCursorRow();
+		int expectedCol = mTerminal.getCursorCol();
+
+		withTerminalSized(COLUMNS, ROWS);
+		feedInChunks(corpus);
+		assertInvariants();
+		assertEquals(expectedTranscript, mTerminal.getScreen().getTranscriptText());
+		assertCursorAt(expectedRow, expectedCol);
+	}
+
+	public void testAsciiRunWrapsAtRightMargin() {
+		withTerminalSized(5, 3).enterString("abcdefghijk");
+		assertLinesAre("abcde", "fghij", "k    ").assertLineWraps(true, true, false).assertCursorAt(2, 1);
+
+		withTerminalSized(5, 3).enterString("abcde").assertCursorAt(0, 4);
+		enterString("\bX").assertLinesAre("abcXe", "     ", "     ");
+
+		// Without autowrap the last column keeps getting overwritten:
+		withTerminalSized(5, 3).enterString("\033[?7labcdefgh").assertLinesAre("abcdh", "     ", "     ").assertCursorAt(0, 4);
+	}
+
+	public void testAsciiRunRespectsModesAndMargins() {
+		// Insert mode pushes existing text to the right:
+		withTerminalSized(5, 2).enterString("abc\r\033[4hXY").assertLinesAre("XYabc", "     ");
+
+		// Line drawing translates the ASCII characters:
+		withTerminalSized(5, 2).enterString("\033(0qqx\033(Bq").assertLinesAre("──│q ", "     ");
+
+		// Left and right margins:
+		withTerminalSized(6, 3).enterString("\033[?69h\033[2;4s\033[1;2HABCDEFG");
+		assertLinesAre(" ABC  ", " DEF  ", " G    ");
+	}
+
+}
@@ -0,0 +1,237 @@
+package com.anthroid.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Process output modeled on what common programs write to a terminal, for benchmarking the emulator with the escape
+ * sequences, character widths and screen operations of real sessions rather than plain text. Each corpus is generated
+ * from a fixed seed, so that it is the same on every run, up to about the requested number of bytes.
+ */
+final class BenchmarkCorpus {
+
+	/** The width the corpora are laid out for. */
+	static final int COLUMNS = 120;
+	/** The height of the full screen programs the corpora are modeled on. */
+	static final int ROWS = 40;
+
+	final String mName;
+	final byte[] mBytes;
+
+	private BenchmarkCorpus(String name, StringBuilder builder) {
+		mName = name;
+		mBytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	static BenchmarkCorpus[] all(int length) {
+		return new BenchmarkCorpus[]{lsColor(length), vimRedraw(length), htop(length), cjkAndEmoji(length),
+			colorStorm(length), scrollRegion(length)};
+	}
+
+	/** Build log like output: mostly plain ASCII lines of varying length, some SGR colored and some longer than a row. */
+	static BenchmarkCorpus buildLog(int length) {
+		StringBuilder builder = new StringBuilder(length + COLUMNS * 4);
+		int lineNumber = 0;
+		while (builder.length() < length) {
+			lineNumber++;
+			if (lineNumber % 17 == 0) {
+				builder.append("\033[1;33mwarning:\033[0m src/main/module").append(lineNumber % 97).append(".c:")
+					.append(lineNumber).append(": unused variable 'tmp").append(lineNumber).append("'\r\n");
+			} else if (lineNumber % 29 == 0) {
+				for (int i = 0; i < 3 * COLUMNS / 10; i++) builder.append("-I/opt/inc ");
+				builder.append("\r\n");
+			} else {
+				builder.append("[").append(lineNumber % 100).append("%] Building CXX object CMakeFiles/app.dir/src/file")
+					.append(lineNumber).append(".cpp.o\r\n");
+			}
+		}
+		return new BenchmarkCorpus("build log", builder);
+	}
+
+	private static final String[] WORDS = {"src", "main", "build", "test", "lib", "config", "index", "terminal",
+		"session", "buffer", "render", "view", "util", "core", "data", "cache", "node_modules", "README", "LICENSE"};
+	private static final String[] EXTENSIONS = {"", ".c", ".h", ".java", ".kt", ".md", ".so", ".tar.gz", ".png", ".sh"};
+
+	private static String fileName(Random random) {
+		return WORDS[random.nextInt(WORDS.length)] + (random.nextBoolean() ? "_" + random.nextInt(100) : "")
+			+ EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+	}
+
+	/** The output of ls --color -l and of ls --color in columns, as with the default LS_COLORS. */
+	static BenchmarkCorpus lsColor(int length) {
+		Random random = new Random(1);
+		StringBuilder builder = new StringBuilder(length + COLUMNS * 4);
+		while (builder.length() < length) {
+			builder.append("total ").append(random.nextInt(10000)).append("\r\n");
+			for (int i = 0; i < 30; i++) {
+				int kind = random.nextInt(4);
+				builder.append(kind == 0 ? 'd' : '-').append(kind == 1 ? "rwxr-xr-x" : "rw-r--r--").append(' ')
+					.append(1 + random.nextInt(9)).append(" u0_a123 u0_a123 ")
+					.append(String.format(Locale.US, "%8d", random.nextInt(10_000_000))).append(" Oct 16 12:").append(10 + random.nextInt(50)).append(' ');
+				appendLsName(builder, random, kind);
+				builder.append("\r\n");
+			}
+			// Columns, padded with spaces between the colored names:
+			for (int row = 0; row < 10; row++) {
+				for (int column = 0; column < 5; column++) {
+					int width = appendLsName(builder, random, random.nextInt(4));
+					for (int i = width; i < 24; i++) builder.append(' ');
+				}
+				builder.append("\r\n");
+			}
+		}
+		return new BenchmarkCorpus("ls --color", builder);
+	}
+
+	/** Append the name of a directory, executable, symlink or file, returning its width. */
+	private static int appendLsName(StringBuilder builder, Random random, int kind) {
+		String name = fileName(random);
+		switch (kind) {
+			case 0: builder.append("\033[01;34m").append(name).append("\033[0m"); break;
+			case 1: builder.append("\033[01;32m").append(name).append("\033[0m"); break;
+			case 2:
+				String target = fileName(random);
+				builder.append("\033[01;36m").append(name).append("\033[0m -> ").append(target);
+				return name.length() + 4 + target.length();
+			default: builder.append(name);
+		}
+		return name.length();
+	}
+
+	/** Vim in the alternate screen redrawing the whole window with syntax highlighting, a status and a command line. */
+	static BenchmarkCorpus vimRedraw(int length) {
+		Random random = new Random(2);
+		StringBuilder builder = new StringBuilder(length + COLUMNS * ROWS * 4);
+		builder.append("\033[?1049h\033[22;0;0t\033[?1h\033=\033[H\033[2J");
+		int firstLine = 1;
+		while (builder.length() < length) {
+			builder.append("\033[?25l\033[1;1H");
+			for (int row = 0; row < ROWS - 2; row++) {
+				builder.append("\033[").append(row + 1).append(";1H");
+				builder.append("\033[38;5;130m").append(String.format(Locale.US, "%4d ", firstLine + row)).append("\033[m");
+				int indent = 4 * random.nextInt(4);
+				for (int i = 0; i < indent; i++) builder.append(' ');
+				int tokens = random.nextInt(8);
+				for (int i = 0; i < tokens; i++) {
+					switch (random.nextInt(4)) {
+						case 0: builder.append("\033[38;5;121m").append("final").append("\033[m "); break;
+						case 1: builder.append("\033[38;5;224m\"").append(WORDS[random.nextInt(WORDS.length)]).append("\"\033[m"); break;
+						case 2: builder.append("\033[38;5;81mint\033[m "); break;
+						default: builder.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? "(" : " = ");
+					}
+				}
+				builder.append("\033[K");
+			}
+			builder.append("\033[").append(ROWS - 1).append(";1H\033[1m\033[7m src/main/java/Example.java [+]")
+				.append("\033[").append(ROWS - 1).append(";").append(COLUMNS - 20).append("H").append(firstLine).append(",1        Top \033[m");
+			builder.append("\033[").append(ROWS).append(";1H\033[K-- INSERT --");
+			builder.append("\033[").append(1 + random.nextInt(ROWS - 2)).append(";").append(6 + random.nextInt(40)).append("H\033[?25h");
+			firstLine += 1 + random.nextInt(ROWS);
+		}
+		builder.append("\033[?1049l");
+		return new BenchmarkCorpus("vim redraw", builder);
+	}
+
+	/** Htop refreshing its meters and process list in place, with many short colored runs per row. */
+	static BenchmarkCorpus htop(int length) {
+		Random random = new Random(3);
+		StringBuilder builder = new StringBuilder(length + COLUMNS * ROWS * 4);
+		builder.append("\033[?1049h\033(B\033[m\033[?7l\033[H\033[2J");
+		while (builder.length() < length) {
+			for (int cpu = 0; cpu < 8; cpu++) {
+				builder.append("\033[").append(cpu + 1).append(";3H\033[36m").append(cpu).append("\033[39m\033[1m[");
+				int used = random.nextInt(40);
+				builder.append("\033[32m");
+				for (int i = 0; i < used * 2 / 3; i++) builder.append('|');
+				builder.append("\033[31m");
+				for (int i = used * 2 / 3; i < used; i++) builder.append('|');
+				for (int i = used; i < 40; i++) builder.append(' ');
+				builder.append("\033[37m").append(String.format(Locale.US, "%5.1f%%", used * 2.5)).append("\033[39m]\033[m");
+			}
+			builder.append("\033[10;1H\033[30;42m    PID USER      PRI  NI  VIRT   RES   SHR S CPU% MEM%   TIME+  Command\033[K\033[m");
+			for (int row = 11; row <= ROWS; row++) {
+				boolean selected = row == 11 + random.nextInt(10);
+				builder.append("\033[").append(row).append(";1H").append(selected ? "\033[30;46m" : "\033[m");
+				builder.append(String.format(Locale.US, "%7d", 1000 + random.nextInt(30000))).append(" u0_a123   20   0 ")
+					.append(selected ? "" : "\033[36m").append(String.format(Locale.US, "%4dM", random.nextInt(4000)))
+					.append(selected ? "" : "\033[m").append(String.format(Locale.US, " %5d %5d ", random.nextInt(90000), random.nextInt(9000)))
+					.append(random.nextInt(5) == 0 ? "R" : "S").append(String.format(Locale.US, " %4.1f %4.1f ", random.nextInt(1000) / 10.0, random.nextInt(100) / 10.0))
+					.append(String.format(Locale.US, "%2d:%02d.%02d ", random.nextInt(60), random.nextInt(60), random.nextInt(100)))
+					.append(selected ? "" : "\033[1m").append("/data/data/com.anthroid/files/usr/bin/").append(fileName(random))
+					.append("\033[K\033[m");
+			}
+		}
+		builder.append("\033[?7h\033[?1049l");
+		return new BenchmarkCorpus("htop", builder);
+	}
+
+	private static final String[] WIDE_TEXT = {"终端模拟器", "日本語のテキスト", "한국어 문장", "漢字とかな交じり文", "全角スペース"};
+	private static final String[] EMOJI = {"😀", "🚀", "👍🏽", "👩‍💻", "🇸🇪", "❤️", "✅", "🔥"};
+
+	/** Chat and log lines of wide CJK text and emoji, with modifiers, joiners and combining accents. */
+	static BenchmarkCorpus cjkAndEmoji(int length) {
+		Random random = new Random(4);
+		StringBuilder builder = new StringBuilder(length + COLUMNS * 4);
+		// Counted in chars, which are fewer than the UTF-8 bytes:
+		while (builder.length() < length / 2) {
+			builder.append("\033[1m[").append(random.nextInt(24)).append(':').append(10 + random.nextInt(50)).append("]\033[m ");
+			int parts = 3 + random.nextInt(10);
+			for (int i = 0; i < parts; i++) {
+				switch (random.nextInt(4)) {
+					case 0: builder.append(EMOJI[random.nextInt(EMOJI.length)]); break;
+					case 1: builder.append("café naïve "); break;
+					default: builder.append(WIDE_TEXT[random.nextInt(WIDE_TEXT.length)]).append(' ');
+				}
+			}
+			builder.append("\r\n");
+		}
+		return new BenchmarkCorpus("cjk and emoji", builder);
+	}
+
+	/** Gradients and images drawn in cells, changing the 256 color or truecolor foreground and background per cell. */
+	static BenchmarkCorpus colorStorm(int length) {
+		Random random = new Random(5);
+		StringBuilder builder = new StringBuilder(length + COLUMNS * 40);
+		while (builder.length() < length) {
+			boolean trueColor = random.nextBoolean();
+			for (int column = 0; column < COLUMNS; column++) {
+				if (trueColor) {
+					builder.append("\033[38;2;").append(random.nextInt(256)).append(';').append(random.nextInt(256)).append(';')
+						.append(random.nextInt(256)).append(";48;2;").append(column * 2).append(';').append(255 - column * 2).append(";128m");
+				} else {
+					builder.append("\033[38;5;").append(random.nextInt(256)).append(";48;5;").append(16 + column % 216).append('m');
+				}
+				builder.append(random.nextBoolean() ? '▀' : '▄');
+			}
+			builder.append("\033[0m\r\n");
+		}
+		return new BenchmarkCorpus("sgr 256 and truecolor", builder);
+	}
+
+	/**
+	 * A pager or chat client keeping a header and footer in place: output scrolling within a scroll region, scrolled
+	 * back with reverse index, and lines inserted and deleted within it.
+	 */
+	static BenchmarkCorpus scrollRegion(int length) {
+		Random random = new Random(6);
+		StringBuilder builder = new StringBuilder(length + COLUMNS * 4);
+		builder.append("\033[H\033[2J\033[7m header \033[K\033[m\033[").append(ROWS).append(";1H\033[7m footer \033[K\033[m");
+		builder.append("\033[2;").append(ROWS - 1).append('r');
+		while (builder.length() < length) {
+			builder.append("\033[").append(ROWS - 1).append(";1H");
+			for (int i = 0; i < 20; i++) {
+				builder.append("\r\n").append(random.nextInt(100000)).append(' ').append(fileName(random)).append(' ')
+					.append(WORDS[random.nextInt(WORDS.length)]).append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			builder.append("\033[2;1H");
+			for (int i = 0; i < 5; i++) builder.append("\033M").append("scrolled back ").append(i);
+			builder.append("\033[").append(5 + random.nextInt(10)).append(";1H\033[").append(1 + random.nextInt(5)).append('L')
+				.append("inserted line").append("\033[").append(15 + random.nextInt(10)).append(";1H\033[")
+				.append(1 + random.nextInt(5)).append('M');
+		}
+		builder.append("\033[r");
+		return new BenchmarkCorpus("scroll region", builder);
+	}
+
+}
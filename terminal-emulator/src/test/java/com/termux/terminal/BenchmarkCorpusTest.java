@@ -0,0 +1,16 @@
+package com.anthroid.terminal;
+
+/** Checks that the emulator keeps its invariants on the corpora measured by the benchmarks. */
+public class BenchmarkCorpusTest extends TerminalTestCase {
+
+	public void testCorporaKeepInvariants() {
+		for (BenchmarkCorpus corpus : BenchmarkCorpus.all(64 * 1024)) {
+			mTerminal = new TerminalEmulator(mOutput, BenchmarkCorpus.COLUMNS, BenchmarkCorpus.ROWS, INITIAL_CELL_WIDTH_PIXELS,
+				INITIAL_CELL_HEIGHT_PIXELS, TerminalEmulator.DEFAULT_TERMINAL_TRANSCRIPT_ROWS, null);
+			for (int offset = 0; offset < corpus.mBytes.length; offset += TerminalSession.APPEND_CHUNK_LENGTH)
+				mTerminal.append(corpus.mBytes, offset, Math.min(TerminalSession.APPEND_CHUNK_LENGTH, corpus.mBytes.length - offset));
+			assertInvariants();
+		}
+	}
+
+}
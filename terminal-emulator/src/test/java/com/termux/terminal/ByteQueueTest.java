@@ -51,4 +51,84 @@ public class ByteQueueTest extends TestCase {
 		assertEquals(0, q.read(new byte[128], false));
 	}
 
+	public void testCapacityIsPowerOfTwo() {
+		assertEquals(16, new ByteQueue(10).capacity());
+		assertEquals(4096, new ByteQueue(4096).capacity());
+	}
+
+	public void testReserveAndCommitInPlace() {
+		ByteQueue q = new ByteQueue(8);
+		assertEquals(3, q.reserve(3));
+		q.buffer().array()[q.buffer().arrayOffset() + q.reserveIndex()] = 42;
+		q.commit(1);
+		assertEquals(1, q.peek(16));
+		assertEquals(42, q.buffer().array()[q.buffer().arrayOffset() + q.peekIndex()]);
+		q.consume(1);
+		assertEquals(0, q.peek(16));
+
+		// A reservation ends at the end of the storage, and a peek at the end of the queued bytes:
+		assertTrue(q.write(new byte[]{1, 2, 3, 4, 5}, 0, 5));
+		assertEquals(2, q.reserve(16));
+		assertEquals(6, q.reserveIndex());
+		assertEquals(5, q.peek(16));
+		q.consume(5);
+		assertEquals(2, q.reserve(16));
+		q.commit(2);
+		assertEquals(6, q.reserve(16));
+		assertEquals(0, q.reserveIndex());
+
+		q.close();
+		assertEquals(-1, q.reserve(16));
+		assertEquals(-1, q.peek(16));
+	}
+
+	public void testDirectQueue() {
+		ByteQueue q = new ByteQueue(16, true);
+		// A direct buffer is only used if backed by an array, which desktop JVMs do not do:
+		assertTrue(q.buffer().hasArray());
+		assertTrue(q.write(new byte[]{1, 2, 3}, 0, 3));
+		byte[] read = new byte[3];
+		assertEquals(3, q.read(read, false));
+		assertArrayEquals(new byte[]{1, 2, 3}, read);
+	}
+
+	public void testCloseWakesBlockedReader() throws Exception {
+		final ByteQueue q = new ByteQueue(16);
+		final int[] result = new int[1];
+		Thread reader = new Thread(() -> result[0] = q.read(new byte[16], true));
+		reader.start();
+		Thread.sleep(50);
+		q.close();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals(-1, result[0]);
+	}
+
+	/** Stream bytes through queues from a producer to a consumer thread, checking that they arrive in order. */
+	public void testOrderBetweenThreads() throws Exception {
+		final int totalBytes = 8 * 1024 * 1024;
+		for (int queueSize : new int[]{4096, 256 * 1024}) {
+			final ByteQueue q = new ByteQueue(queueSize);
+			Thread producer = new Thread(() -> {
+				// As the chunk length is a multiple of 256 every byte is its position in the stream:
+				byte[] chunk = new byte[4096];
+				for (int i = 0; i < chunk.length; i++) chunk[i] = (byte) i;
+				for (int written = 0; written < totalBytes; written += chunk.length)
+					q.write(chunk, 0, chunk.length);
+			});
+
+			producer.start();
+			byte[] buffer = new byte[4096];
+			int totalRead = 0;
+			while (totalRead < totalBytes) {
+				int read = q.read(buffer, true);
+				for (int i = 0; i < read; i++)
+					if (buffer[i] != (byte) (totalRead + i)) fail("Out of order at byte " + (totalRead + i));
+				totalRead += read;
+			}
+			producer.join();
+			assertEquals(0, q.read(buffer, false));
+		}
+	}
+
 }
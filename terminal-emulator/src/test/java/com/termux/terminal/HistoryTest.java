@@ -30,4 +30,32 @@ public class HistoryTest extends TerminalTestCase {
 		enterString("LMN").assertLinesAre("111", "IJK", "LMN", "444").assertHistoryStartsWith("FGH", "CDE");
 	}
 
+	public void testTranscriptRowsArePacked() {
+		withTerminalSized(5, 3).enterString("\033[31mab\u00F6\033[0mcd\r\n\u679C\u679Dx\r\n33333\r\n44444\r\n55555");
+		assertLinesAre("33333", "44444", "55555");
+		assertHistoryStartsWith("\u679C\u679Dx", "ab\u00F6cd");
+
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isPacked());
+		assertTrue(screen.mLines[screen.externalToInternalRow(-2)].isPacked());
+		assertFalse(screen.mLines[screen.externalToInternalRow(0)].isPacked());
+		assertEquals(TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0), screen.getStyleAt(-2, 0));
+		assertEquals(TextStyle.NORMAL, screen.getStyleAt(-2, 3));
+		assertEquals("ab\u00F6cd\n\u679C\u679Dx\n33333\n44444\n55555", screen.getTranscriptText());
+
+		// Rows coming back from the transcript onto the screen are unpacked:
+		resize(5, 5);
+		assertLinesAre("ab\u00F6cd", "\u679C\u679Dx", "33333", "44444", "55555");
+		assertFalse(screen.mLines[screen.externalToInternalRow(0)].isPacked());
+		enterString("\033[1;1HZ").assertLinesAre("Zb\u00F6cd", "\u679C\u679Dx", "33333", "44444", "55555");
+		enterString("\033[5;5H");
+
+		// And packed again when going back, also through a reflowing resize:
+		resize(5, 3);
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isPacked());
+		resize(4, 3);
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isPacked());
+		assertEquals("Zb\u00F6cd\n\u679C\u679Dx\n33333\n44444\n55555", screen.getTranscriptText());
+	}
+
 }
@@ -2,6 +2,7 @@ package com.anthroid.terminal;
 
 import android.util.Base64;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -193,4 +194,61 @@ public class OperatingSystemControlTest extends TerminalTestCase {
 		assertEnteringStringGivesResponse("\033]10;?\033\\", "\033]10;rgb:abab/cdcd/0000\033\\");
 	}
 
+	private static String base64(String text) {
+		return java.util.Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void testSetClipboardTerminatedByBellOrStringTerminator() {
+		withTerminalSized(5, 2);
+		enterString("\033]52;c;" + base64("Hello, world") + "\007");
+		enterString("\033]52;;" + base64("åäö €") + "\033\\");
+		enterString("\033]52;pc;" + base64("ab") + "\007");
+		List<String> expected = new ArrayList<>();
+		expected.add("Hello, world");
+		expected.add("åäö €");
+		expected.add("ab");
+		assertEquals(expected, mOutput.clipboardPuts);
+		assertLinesAre("     ", "     ");
+	}
+
+	public void testInvalidClipboardContentIsNotCopied() {
+		withTerminalSized(5, 2);
+		enterString("\033]52;c;not*base64\007");
+		enterString("\033]52;c;QUJD=QUJD\007");
+		enterString("\033]52;c;QUJDR\007");
+		assertTrue(mOutput.clipboardPuts.isEmpty());
+		enterString("\033]52;c;QUJD\007");
+		assertEquals("ABC", mOutput.clipboardPuts.get(0));
+		assertLinesAre("     ", "     ");
+	}
+
+	public void testClipboardContentLongerThanMaximumIsSkipped() {
+		withTerminalSized(5, 2);
+		mTerminal.setMaxClipboardPayloadBytes(16);
+		enterString("\033]52;c;" + base64("0123456789abcdefg") + "\007");
+		assertTrue(mOutput.clipboardPuts.isEmpty());
+		// The rest of the copy is skipped instead of being output:
+		assertLinesAre("     ", "     ");
+		enterString("\033]52;c;" + base64("0123456789abcdef") + "\007ok");
+		assertEquals("0123456789abcdef", mOutput.clipboardPuts.get(0));
+		assertLinesAre("ok   ", "     ");
+	}
+
+	public void testLargeClipboardCopyInChunks() {
+		StringBuilder builder = new StringBuilder();
+		Random random = new Random(52);
+		while (builder.length() < 256 * 1024) {
+			builder.append("line ").append(random.nextInt()).append(" of copied text with ünïcödé\n");
+		}
+		String text = builder.toString();
+		byte[] sequence = ("\033]52;c;" + base64(text) + "\033\\").getBytes(StandardCharsets.US_ASCII);
+
+		withTerminalSized(20, 4);
+		// Chunks of odd sizes, splitting the sequence and its terminator anywhere:
+		for (int offset = 0; offset < sequence.length; offset += 4093)
+			mTerminal.append(sequence, offset, Math.min(4093, sequence.length - offset));
+		assertEquals(1, mOutput.clipboardPuts.size());
+		assertEquals(text, mOutput.clipboardPuts.get(0));
+	}
+
 }
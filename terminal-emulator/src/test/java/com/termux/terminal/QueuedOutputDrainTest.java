@@ -0,0 +1,75 @@
+package com.anthroid.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Tests {@link TerminalSession#appendQueuedOutput(ByteQueue, int, TerminalEmulator, List, List, long)}. */
+public class QueuedOutputDrainTest extends TerminalTestCase {
+
+	private static final int CHUNK_LENGTH = 16;
+	private final List<TerminalMarkerWatch> mWatches = new CopyOnWriteArrayList<>();
+	private final List<TerminalMarkerWatch> mFoundWatches = new ArrayList<>();
+
+	private static ByteQueue queueOf(String s) {
+		ByteQueue queue = new ByteQueue(1024);
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		assertTrue(queue.write(bytes, 0, bytes.length));
+		return queue;
+	}
+
+	public void testAppendsEverythingWithinBudget() {
+		withTerminalSized(10, 4);
+		ByteQueue queue = queueOf("first line\r\nsecond line is longer\r\nthird");
+		assertEquals(40, TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, Long.MAX_VALUE));
+		assertLinesAre("second lin", "e is longe", "r         ", "third     ");
+		assertEquals(0, TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, Long.MAX_VALUE));
+	}
+
+	public void testDefersRestWhenOutOfBudget() {
+		withTerminalSized(40, 2);
+		ByteQueue queue = queueOf("0123456789abcdefghijklmnopqrstuvwxyz");
+		// A chunk is always appended, even without any budget:
+		assertEquals(16, TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, 0));
+		assertLineIs(0, "0123456789abcdef                        ");
+		assertEquals(20, TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, Long.MAX_VALUE));
+		assertLineIs(0, "0123456789abcdefghijklmnopqrstuvwxyz    ");
+	}
+
+	public void testNotifiesMarkerWatches() {
+		withTerminalSized(40, 2);
+		final int[] found = {0};
+		TerminalMarkerWatch watch = new TerminalMarkerWatch("MARK", w -> found[0]++);
+		mWatches.add(watch);
+		ByteQueue queue = queueOf("before MA");
+		TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, Long.MAX_VALUE);
+		assertEquals(0, found[0]);
+
+		byte[] rest = "RK after".getBytes(StandardCharsets.UTF_8);
+		queue.write(rest, 0, rest.length);
+		TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, Long.MAX_VALUE);
+		// Found watches are only notified by the caller, once the output can be read:
+		assertEquals(0, found[0]);
+		assertTrue(mWatches.isEmpty());
+		assertEquals(1, mFoundWatches.size());
+		TerminalSession.notifyFoundWatches(mFoundWatches);
+		assertEquals(1, found[0]);
+		assertTrue(mFoundWatches.isEmpty());
+	}
+
+	public void testAppendsAcrossWrapAround() {
+		withTerminalSized(40, 2);
+		ByteQueue queue = new ByteQueue(16);
+		byte[] first = "0123456789".getBytes(StandardCharsets.UTF_8);
+		queue.write(first, 0, first.length);
+		TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, Long.MAX_VALUE);
+
+		// A multi-byte character split by the end of the storage is decoded across the two chunks:
+		byte[] second = "abcdeåfgh".getBytes(StandardCharsets.UTF_8);
+		queue.write(second, 0, second.length);
+		assertEquals(10, TerminalSession.appendQueuedOutput(queue, CHUNK_LENGTH, mTerminal, mWatches, mFoundWatches, Long.MAX_VALUE));
+		assertLineIs(0, "0123456789abcdeåfgh                     ");
+	}
+
+}
@@ -1,5 +1,10 @@
 package com.anthroid.terminal;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 public class ResizeTest extends TerminalTestCase {
 
 	public void testResizeWhenHasHistory() {
@@ -209,4 +214,172 @@ public class ResizeTest extends TerminalTestCase {
 		resize(5, rows).assertLinesAre("ＱＲ ", "     ", "     ", "     ");
 	}
 
+	/** A terminal with room for more history than a change of columns reflows right away. */
+	private TerminalEmulator terminalWithHistory(int columns, int rows, int transcriptRows) {
+		return new TerminalEmulator(mOutput, columns, rows, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, transcriptRows, null);
+	}
+
+	/** Lines of words, some colored, with combining chars, blank lines and lines wrapping at any width used here. */
+	private static String outputLines(int count) {
+		Random random = new Random(count);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i % 17 != 0) {
+				builder.append("line").append(i);
+				int words = random.nextInt(20);
+				for (int w = 0; w < words; w++) {
+					builder.append(' ');
+					if (random.nextInt(5) == 0) builder.append("\033[3").append(1 + random.nextInt(6)).append('m');
+					for (int c = 1 + random.nextInt(8); c > 0; c--) builder.append((char) ('a' + random.nextInt(26)));
+					if (random.nextInt(9) == 0) builder.append("e\u0301");
+					builder.append("\033[0m");
+				}
+			}
+			builder.append("\r\n");
+		}
+		return builder.toString();
+	}
+
+	private static void enter(TerminalEmulator terminal, String s) {
+		byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+		terminal.append(bytes, bytes.length);
+	}
+
+	/** The text, line wrapping and styles of the text of all rows of the history and screen. */
+	private static List<String> rowsOf(TerminalEmulator terminal) {
+		TerminalBuffer screen = terminal.getScreen();
+		List<String> rows = new ArrayList<>();
+		for (int externalRow = -screen.getActiveTranscriptRows(); externalRow < screen.mScreenRows; externalRow++) {
+			TerminalRow row = screen.getRow(externalRow);
+			String text = new String(row.mText, 0, row.getSpaceUsed()).replaceAll(" +$", "");
+			StringBuilder builder = new StringBuilder(text);
+			if (row.mLineWrap) builder.append('\u23CE');
+			// Trailing blank cells are cleared in the current style when reflowing, so only those with text are compared:
+			int textColumns = 0;
+			for (int i = 0; i < text.length(); i++) textColumns += WcWidth.width(text.charAt(i));
+			for (int column = 0; column < textColumns; column++)
+				if (column == 0 || row.getStyle(column) != row.getStyle(column - 1))
+					builder.append(' ').append(column).append(':').append(Long.toHexString(row.getStyle(column)));
+			rows.add(builder.toString());
+		}
+		return rows;
+	}
+
+	/** Assert rows are equal, reporting the first which is not instead of all of them. */
+	private static void assertRowsEqual(List<String> expected, List<String> actual) {
+		for (int i = 0; i < Math.min(expected.size(), actual.size()); i++)
+			assertEquals("row " + i + " of " + expected.size(), expected.get(i), actual.get(i));
+		assertEquals(expected.size(), actual.size());
+	}
+
+	public void testIncrementalReflowMatchesOutputAtNewWidth() {
+		String output = outputLines(3000);
+		mTerminal = terminalWithHistory(40, 10, 20000);
+		enter(mTerminal, output);
+		TerminalEmulator expected = terminalWithHistory(27, 10, 20000);
+		enter(expected, output);
+
+		mTerminal.resize(27, 10, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		// Only the screen and recent history has been reflowed, so the screen is already as it will be:
+		assertTrue(mTerminal.isReflowPending());
+		assertTrue(mTerminal.getScreen().getActiveTranscriptRows() < expected.getScreen().getActiveTranscriptRows());
+		List<String> expectedRows = rowsOf(expected);
+		List<String> rows = rowsOf(mTerminal);
+		assertRowsEqual(expectedRows.subList(expectedRows.size() - rows.size(), expectedRows.size()), rows);
+		assertEquals(expected.getCursorRow(), mTerminal.getCursorRow());
+		assertEquals(expected.getCursorCol(), mTerminal.getCursorCol());
+
+		int steps = 0;
+		while (mTerminal.continueReflow(100)) steps++;
+		assertTrue(steps > 10);
+		assertRowsEqual(expectedRows, rowsOf(mTerminal));
+	}
+
+	public void testSnapshotKeepsRowsLeftToReflow() {
+		mTerminal = terminalWithHistory(40, 10, 20000);
+		enter(mTerminal, outputLines(2000));
+		mTerminal.resize(27, 10, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		assertTrue(mTerminal.isReflowPending());
+		String text = mTerminal.getScreen().getTranscriptText();
+		TerminalSnapshot snapshot = new TerminalSnapshot(mTerminal);
+
+		// Reflowing the emulator buffer does not take the rows from the snapshot:
+		mTerminal.getScreen().finishReflow();
+		enter(mTerminal, outputLines(50));
+		assertEquals(text, snapshot.mScreen.getTranscriptText());
+	}
+
+	public void testOutputDuringIncrementalReflow() {
+		mTerminal = terminalWithHistory(50, 8, 20000);
+		TerminalEmulator expected = terminalWithHistory(31, 8, 20000);
+		String output = outputLines(2000);
+		enter(mTerminal, output);
+		enter(expected, output);
+
+		mTerminal.resize(31, 8, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		mTerminal.continueReflow(300);
+		String more = outputLines(50);
+		enter(mTerminal, more);
+		enter(expected, more);
+		mTerminal.getScreen().finishReflow();
+		assertRowsEqual(rowsOf(expected), rowsOf(mTerminal));
+	}
+
+	public void testChangingColumnsAgainTakesOverRowsLeftToReflow() {
+		String output = outputLines(2500);
+		mTerminal = terminalWithHistory(60, 12, 20000);
+		enter(mTerminal, output);
+		TerminalEmulator expected = terminalWithHistory(45, 12, 20000);
+		enter(expected, output);
+
+		mTerminal.resize(23, 12, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		mTerminal.continueReflow(400);
+		mTerminal.resize(45, 12, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		assertTrue(mTerminal.isReflowPending());
+		// The rows left to reflow are read as they are, without reflowing them:
+		assertEquals(expected.getScreen().getTranscriptText(), mTerminal.getScreen().getTranscriptText());
+		assertTrue(mTerminal.isReflowPending());
+		mTerminal.getScreen().finishReflow();
+		assertRowsEqual(rowsOf(expected), rowsOf(mTerminal));
+	}
+
+	public void testIncrementalReflowOverflowingTranscript() {
+		// Narrowing the screen makes more rows of the history than the transcript holds:
+		String output = outputLines(1500);
+		mTerminal = terminalWithHistory(80, 10, 2000);
+		enter(mTerminal, output);
+		TerminalEmulator expected = terminalWithHistory(20, 10, 2000);
+		enter(expected, output);
+
+		mTerminal.resize(20, 10, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		while (mTerminal.continueReflow(100)) ;
+		assertEquals(2000 - 10, mTerminal.getScreen().getActiveTranscriptRows());
+		assertRowsEqual(rowsOf(expected), rowsOf(mTerminal));
+	}
+
+	public void testIncrementalReflowKeepsOverflowInScrollbackFile() throws Exception {
+		File file = File.createTempFile("scrollback", ".rows");
+		File expectedFile = File.createTempFile("scrollback", ".rows");
+		TerminalScrollbackFile scrollback = new TerminalScrollbackFile(file);
+		TerminalScrollbackFile expectedScrollback = new TerminalScrollbackFile(expectedFile);
+		try {
+			String output = outputLines(1500);
+			mTerminal = terminalWithHistory(80, 10, 2000);
+			mTerminal.setScrollbackFile(scrollback);
+			enter(mTerminal, output);
+			TerminalEmulator expected = terminalWithHistory(20, 10, 2000);
+			expected.setScrollbackFile(expectedScrollback);
+			enter(expected, output);
+
+			mTerminal.resize(20, 10, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			while (mTerminal.continueReflow(100)) ;
+			assertTrue(scrollback.getRowCount() > 0);
+			assertEquals(expectedScrollback.getRowCount(), scrollback.getRowCount());
+			assertRowsEqual(rowsOf(expected), rowsOf(mTerminal));
+		} finally {
+			scrollback.close();
+			expectedScrollback.close();
+		}
+	}
+
 }
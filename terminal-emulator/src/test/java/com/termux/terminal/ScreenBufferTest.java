@@ -62,4 +62,74 @@ public class ScreenBufferTest extends TerminalTestCase {
 		assertEquals("", mTerminal.getScreen().getWordAtLocation(1, 2));
 		assertEquals("", mTerminal.getScreen().getWordAtLocation(2, 2));
 	}
+
+	private static void assertDirtyRows(TerminalBuffer screen, boolean... dirty) {
+		for (int row = 0; row < dirty.length; row++)
+			assertEquals("row " + row, dirty[row], screen.isRowDirty(row));
+	}
+
+	public void testDirtyRows() {
+		TerminalBuffer screen = new TerminalBuffer(5, 10, 3);
+		assertTrue(screen.isAllDirty());
+		screen.clearDirtyRows();
+		assertDirtyRows(screen, false, false, false);
+
+		screen.setChar(0, 1, 'a', 0);
+		assertDirtyRows(screen, false, true, false);
+		screen.clearDirtyRows();
+
+		screen.blockCopy(0, 0, 5, 1, 0, 2);
+		assertDirtyRows(screen, false, false, true);
+		screen.clearDirtyRows();
+
+		screen.setOrClearEffect(TextStyle.CHARACTER_ATTRIBUTE_BOLD, true, false, true, 0, 5, 0, 0, 2, 5);
+		assertDirtyRows(screen, true, true, false);
+		screen.clearDirtyRows();
+
+		screen.clearTranscript();
+		assertTrue(screen.isAllDirty());
+		assertTrue(screen.isRowDirty(-1));
+	}
+
+	public void testDirtyRowsFollowScrolling() {
+		TerminalBuffer screen = new TerminalBuffer(5, 10, 4);
+		screen.clearDirtyRows();
+
+		// A dirty row moves up with the content, and the revealed bottom row is dirty:
+		screen.setChar(0, 2, 'a', 0);
+		screen.scrollDownOneLine(0, 4, 0);
+		assertEquals(1, screen.getDirtyScrollRows());
+		assertFalse(screen.isAllDirty());
+		assertDirtyRows(screen, false, true, false, true);
+		screen.scrollDownOneLine(0, 4, 0);
+		assertEquals(2, screen.getDirtyScrollRows());
+		assertDirtyRows(screen, true, false, true, true);
+		screen.clearDirtyRows();
+		assertEquals(0, screen.getDirtyScrollRows());
+
+		// Rows below a bottom margin stay in place, so they are not where scrolling would put them:
+		screen.scrollDownOneLine(0, 2, 0);
+		assertDirtyRows(screen, false, true, true, true);
+		screen.clearDirtyRows();
+
+		// With a top margin the row going into the transcript was not the top one:
+		screen.scrollDownOneLine(1, 4, 0);
+		assertTrue(screen.isAllDirty());
+	}
+
+	public void testDirtyRowsAfterResize() {
+		withTerminalSized(5, 3).enterString("abc");
+		TerminalBuffer screen = mTerminal.getScreen();
+		screen.clearDirtyRows();
+		enterString("\r\nd");
+		assertDirtyRows(screen, false, true, false);
+		screen.clearDirtyRows();
+
+		resize(3, 2);
+		assertTrue(screen.isAllDirty());
+		screen.clearDirtyRows();
+		enterString("e");
+		assertFalse(screen.isAllDirty());
+	}
+
 }
@@ -0,0 +1,61 @@
+package com.anthroid.terminal;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+
+public class TerminalMarkerWatchTest extends TestCase {
+
+	private static boolean feed(TerminalMarkerWatch watch, String chunk) {
+		byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+		return watch.feed(bytes, 0, bytes.length) != -1;
+	}
+
+	public void testMarkerInSingleChunk() {
+		TerminalMarkerWatch watch = new TerminalMarkerWatch("===END===", null);
+		assertFalse(feed(watch, "output\r\n"));
+		assertTrue(feed(watch, "more\r\n===END===\r\n"));
+		assertTrue(watch.isFound());
+		// Only reported once:
+		assertFalse(feed(watch, "===END===\r\n"));
+	}
+
+	public void testMarkerSplitAcrossChunks() {
+		TerminalMarkerWatch watch = new TerminalMarkerWatch("===END===", null);
+		assertFalse(feed(watch, "output ==="));
+		assertFalse(feed(watch, "EN"));
+		assertFalse(watch.isFound());
+		assertTrue(feed(watch, "D===\r\n"));
+	}
+
+	public void testPartialMatchesRestart() {
+		TerminalMarkerWatch watch = new TerminalMarkerWatch("aab", null);
+		assertFalse(feed(watch, "aaaa"));
+		assertTrue(feed(watch, "b"));
+
+		watch = new TerminalMarkerWatch("abab", null);
+		assertFalse(feed(watch, "abaaba"));
+		assertTrue(feed(watch, "b"));
+	}
+
+	public void testMarkerQuotedDifferentlyInCommandEchoIsNotMatched() {
+		TerminalMarkerWatch watch = new TerminalMarkerWatch("===ANTHROID_END_1234===", null);
+		assertFalse(feed(watch, "$ ls; echo \"===ANTHROID_END_\"'1234==='\r\n"));
+		assertTrue(feed(watch, "file\r\n===ANTHROID_END_1234===\r\n"));
+	}
+
+	public void testFeedReturnsIndexAfterMarker() {
+		TerminalMarkerWatch watch = new TerminalMarkerWatch("END", null);
+		byte[] bytes = "xxENDyy".getBytes(StandardCharsets.UTF_8);
+		assertEquals(5, watch.feed(bytes, 1, 6));
+	}
+
+	public void testListenerNotified() {
+		final TerminalMarkerWatch[] notified = new TerminalMarkerWatch[1];
+		TerminalMarkerWatch watch = new TerminalMarkerWatch("x", w -> notified[0] = w);
+		assertTrue(feed(watch, "x"));
+		watch.notifyFound();
+		assertSame(watch, notified[0]);
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.anthroid.terminal;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+public class TerminalOutputCaptureTest extends TestCase {
+
+	private static final String BEGIN = "\033]7770;BEGIN\007";
+	private static final String END = "===END===";
+
+	private File mSpillFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mSpillFile = File.createTempFile("capture", ".out");
+		assertTrue(mSpillFile.delete());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		//noinspection ResultOfMethodCallIgnored
+		mSpillFile.delete();
+		super.tearDown();
+	}
+
+	private static void feed(TerminalOutputCapture capture, String chunk) {
+		byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+		capture.feed(bytes, 0, bytes.length);
+	}
+
+	private static String readAll(TerminalOutputCapture capture) throws Exception {
+		return new String(capture.read(0, (int) capture.getLength()), StandardCharsets.UTF_8);
+	}
+
+	public void testCapturesBetweenMarkers() throws Exception {
+		TerminalOutputCapture capture = new TerminalOutputCapture(BEGIN, END, 1024, 4096, mSpillFile);
+		feed(capture, "$ make; echo done\r\n");
+		assertFalse(capture.isStarted());
+		feed(capture, BEGIN + "line 1\r\n");
+		assertTrue(capture.isStarted());
+		feed(capture, "line 2\r\n" + END + "\r\n$ ");
+		assertTrue(capture.isComplete());
+		assertEquals("line 1\r\nline 2\r\n", readAll(capture));
+
+		// Nothing more is captured once complete:
+		feed(capture, "more");
+		assertEquals(16, capture.getLength());
+		assertFalse(capture.isSpilled());
+	}
+
+	public void testMarkersSplitAcrossChunks() throws Exception {
+		TerminalOutputCapture capture = new TerminalOutputCapture(BEGIN, END, 1024, 4096, mSpillFile);
+		feed(capture, "\033]7770;BE");
+		feed(capture, "GIN\007out");
+		feed(capture, "put===E");
+		assertFalse(capture.isComplete());
+		feed(capture, "ND===");
+		assertTrue(capture.isComplete());
+		assertEquals("output", readAll(capture));
+	}
+
+	public void testSpillsToFileAndPages() throws Exception {
+		TerminalOutputCapture capture = new TerminalOutputCapture(BEGIN, END, 16, 1024, mSpillFile);
+		feed(capture, BEGIN + "0123456789");
+		assertFalse(capture.isSpilled());
+		feed(capture, "abcdefghij");
+		assertTrue(capture.isSpilled());
+		assertTrue(mSpillFile.exists());
+		feed(capture, "ABCDEFGHIJ" + END);
+		assertTrue(capture.isComplete());
+		assertEquals(30, capture.getLength());
+		assertEquals("0123456789abcdefghijABCDEFGHIJ", readAll(capture));
+		assertEquals("9abcd", new String(capture.read(9, 5), StandardCharsets.UTF_8));
+		assertEquals("IJ", new String(capture.read(28, 100), StandardCharsets.UTF_8));
+		assertEquals(0, capture.read(30, 10).length);
+
+		capture.release();
+		assertFalse(mSpillFile.exists());
+	}
+
+	public void testDropsOutputAboveCap() throws Exception {
+		TerminalOutputCapture capture = new TerminalOutputCapture(BEGIN, END, 4, 8, mSpillFile);
+		feed(capture, BEGIN + "0123456789ab" + END);
+		assertTrue(capture.isComplete());
+		assertEquals("01234567", readAll(capture));
+		assertEquals(4, capture.getDroppedBytes());
+		capture.release();
+	}
+
+}
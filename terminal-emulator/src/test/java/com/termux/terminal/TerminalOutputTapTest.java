@@ -0,0 +1,165 @@
+package com.anthroid.terminal;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class TerminalOutputTapTest extends TestCase {
+
+	private static final int CHUNK_SIZE = 4096;
+	private static final int CHUNKS = 20000;
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public void testRingBufferKeepsMostRecentBytes() {
+		RingBufferOutputTap tap = new RingBufferOutputTap(8);
+		assertEquals(0, tap.getBytes().length);
+
+		byte[] data = bytes("xxabcdexx");
+		tap.onProcessOutput(data, 2, 5);
+		assertTrue(Arrays.equals(bytes("abcde"), tap.getBytes()));
+
+		tap.onProcessOutput(bytes("fghij"), 0, 5);
+		assertTrue(Arrays.equals(bytes("cdefghij"), tap.getBytes()));
+		assertEquals(10, tap.getTotalBytes());
+
+		tap.onProcessOutput(bytes("0123456789"), 0, 10);
+		assertTrue(Arrays.equals(bytes("23456789"), tap.getBytes()));
+
+		tap.clear();
+		assertEquals(0, tap.getBytes().length);
+	}
+
+	public void testForwardProcessOutputFeedsTapAndQueue() {
+		List<TerminalOutputCapture> captures = new CopyOnWriteArrayList<>();
+		ByteQueue queue = new ByteQueue(64);
+		RingBufferOutputTap tap = new RingBufferOutputTap(64);
+		byte[] chunk = bytes("hello");
+		assertTrue(TerminalSession.forwardProcessOutput(tap, captures, queue, chunk, chunk.length));
+		assertTrue(Arrays.equals(chunk, tap.getBytes()));
+
+		byte[] read = new byte[64];
+		assertEquals(5, queue.read(read, false));
+		assertTrue(Arrays.equals(chunk, Arrays.copyOf(read, 5)));
+
+		queue.close();
+		assertFalse(TerminalSession.forwardProcessOutput(null, captures, queue, chunk, chunk.length));
+	}
+
+	public void testReadProcessOutputFeedsTapInPlace() {
+		List<TerminalOutputCapture> captures = new CopyOnWriteArrayList<>();
+		ByteQueue queue = new ByteQueue(64, true);
+		RingBufferOutputTap tap = new RingBufferOutputTap(64);
+		final byte[] output = bytes("hello");
+		TerminalSession.ProcessOutputSource source = (buffer, index, length) -> {
+			// The whole queue is free:
+			assertEquals(64, length);
+			for (int i = 0; i < output.length; i++) buffer.put(index + i, output[i]);
+			return output.length;
+		};
+		assertEquals(5, TerminalSession.readProcessOutput(source, tap, captures, queue));
+		assertTrue(Arrays.equals(output, tap.getBytes()));
+
+		byte[] read = new byte[64];
+		assertEquals(5, queue.read(read, false));
+		assertTrue(Arrays.equals(output, Arrays.copyOf(read, 5)));
+
+		// End of output:
+		assertEquals(-1, TerminalSession.readProcessOutput((buffer, index, length) -> -1, tap, captures, queue));
+		queue.close();
+		assertEquals(-1, TerminalSession.readProcessOutput(source, tap, captures, queue));
+	}
+
+	/** A client keeping the debug messages logged. */
+	private static final class LoggingClient implements TerminalSessionClient {
+		final List<String> mDebugMessages = new ArrayList<>();
+		@Override public void onTextChanged(TerminalSession changedSession) { }
+		@Override public void onTitleChanged(TerminalSession changedSession) { }
+		@Override public void onSessionFinished(TerminalSession finishedSession) { }
+		@Override public void onCopyTextToClipboard(TerminalSession session, String text) { }
+		@Override public void onPasteTextFromClipboard(TerminalSession session) { }
+		@Override public void onBell(TerminalSession session) { }
+		@Override public void onColorsChanged(TerminalSession session) { }
+		@Override public void onTerminalCursorStateChange(boolean state) { }
+		@Override public void setTerminalShellPid(TerminalSession session, int pid) { }
+		@Override public Integer getTerminalCursorStyle() { return null; }
+		@Override public void logError(String tag, String message) { }
+		@Override public void logWarn(String tag, String message) { }
+		@Override public void logInfo(String tag, String message) { }
+		@Override public void logDebug(String tag, String message) { mDebugMessages.add(message); }
+		@Override public void logVerbose(String tag, String message) { }
+		@Override public void logStackTraceWithMessage(String tag, String message, Exception e) { }
+		@Override public void logStackTrace(String tag, Exception e) { }
+	}
+
+	public void testLogTapDoesNotSplitUtf8Sequences() {
+		LoggingClient client = new LoggingClient();
+		RateLimitedLogOutputTap tap = new RateLimitedLogOutputTap(client, "test", 1000);
+		// A read ending in the middle of a CJK char and an emoji, which the next read completes:
+		byte[] output = bytes("a中文b😀c");
+		tap.onProcessOutput(output, 0, 3);
+		tap.onProcessOutput(output, 3, 6);
+		tap.onProcessOutput(output, 9, output.length - 9);
+		assertEquals(Arrays.asList("a", "中文b", "😀c"), client.mDebugMessages);
+
+		// The rate limit cuts the emoji, which is skipped instead of logged in part:
+		client.mDebugMessages.clear();
+		tap = new RateLimitedLogOutputTap(client, "test", 3);
+		output = bytes("ab😀");
+		tap.onProcessOutput(output, 0, output.length);
+		assertEquals(Arrays.asList("ab"), client.mDebugMessages);
+		assertEquals(2, RateLimitedLogOutputTap.completeUtf8End(output, 0, 5));
+		assertEquals(6, RateLimitedLogOutputTap.completeUtf8End(output, 0, 6));
+	}
+
+	/** Bytes allocated by the current thread while forwarding {@link #CHUNKS} chunks, or -1 if not measurable. */
+	private static long allocatedBytesForwarding(TerminalOutputTap tap) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported()) return -1;
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+		List<TerminalOutputCapture> captures = new CopyOnWriteArrayList<>();
+		ByteQueue queue = new ByteQueue(CHUNK_SIZE);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		Arrays.fill(chunk, (byte) 'x');
+		byte[] receiveBuffer = new byte[CHUNK_SIZE];
+
+		// Warm up so that class loading and compilation is not measured:
+		for (int i = 0; i < CHUNKS; i++) {
+			TerminalSession.forwardProcessOutput(tap, captures, queue, chunk, chunk.length);
+			queue.read(receiveBuffer, false);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = allocationBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < CHUNKS; i++) {
+			TerminalSession.forwardProcessOutput(tap, captures, queue, chunk, chunk.length);
+			queue.read(receiveBuffer, false);
+		}
+		return allocationBean.getThreadAllocatedBytes(threadId) - before;
+	}
+
+	public void testNoTapPathDoesNotAllocatePerChunk() {
+		long allocated = allocatedBytesForwarding(null);
+		if (allocated < 0) return;
+		// Allow some slack for the measurement itself, but far less than a byte per chunk:
+		assertTrue("allocated=" + allocated, allocated < CHUNKS / 4);
+	}
+
+	public void testRingBufferTapDoesNotAllocatePerChunk() {
+		long allocated = allocatedBytesForwarding(new RingBufferOutputTap(64 * 1024));
+		if (allocated < 0) return;
+		assertTrue("allocated=" + allocated, allocated < CHUNKS / 4);
+	}
+
+}
@@ -429,4 +429,95 @@ public class TerminalRowTest extends TestCase {
 		// assertEquals(' ', line.mText[line.findStartOfColumn(COLUMNS - 1)]);
 	}
 
+	private void assertPackRoundTrip() {
+		TerminalRow packed = row.pack();
+		assertTrue(packed.isPacked());
+		assertEquals(row.getSpaceUsed(), packed.getSpaceUsed());
+		for (int column = 0; column < COLUMNS; column++)
+			assertEquals("column=" + column, row.getStyle(column), packed.getStyle(column));
+
+		TerminalRow inflated = packed.inflate();
+		assertFalse(inflated.isPacked());
+		assertEquals(row.getSpaceUsed(), inflated.getSpaceUsed());
+		assertEquals(new String(row.mText, 0, row.getSpaceUsed()), new String(inflated.mText, 0, inflated.getSpaceUsed()));
+		assertTrue(Arrays.equals(row.mStyle, inflated.mStyle));
+		assertEquals(row.mLineWrap, inflated.mLineWrap);
+		assertEquals(row.mHasNonOneWidthOrSurrogateChars, inflated.mHasNonOneWidthOrSurrogateChars);
+	}
+
+	public void testPackLatin1() {
+		row.setChar(0, 'a', 0);
+		row.setChar(1, '\u00F6', 0);
+		row.setChar(2, '\u00FF', 0);
+		row.mLineWrap = true;
+		assertPackRoundTrip();
+		assertFalse(row.pack().isBlank());
+	}
+
+	public void testPackUtf16() {
+		row.setChar(0, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, 0);
+		row.setChar(2, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, 0);
+		row.setChar(3, 'a', 0);
+		row.setChar(3, DIARESIS_CODEPOINT, 0);
+		row.setChar(COLUMNS - 2, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1, 0);
+		assertPackRoundTrip();
+
+		// The inflated row can be changed like any other:
+		TerminalRow inflated = row.pack().inflate();
+		inflated.setChar(1, 'b', 0);
+		row.setChar(1, 'b', 0);
+		assertEquals(new String(row.mText, 0, row.getSpaceUsed()), new String(inflated.mText, 0, inflated.getSpaceUsed()));
+	}
+
+	public void testPackStyleRuns() {
+		assertPackRoundTrip();
+		assertTrue(row.pack().isBlank());
+
+		for (int column = 0; column < COLUMNS; column++)
+			row.setChar(column, 'x', (column / 7) % 3);
+		row.setChar(COLUMNS - 1, 'y', 42);
+		assertPackRoundTrip();
+
+		Random random = new Random(5);
+		for (int column = 0; column < COLUMNS; column++)
+			row.setChar(column, 'x', random.nextInt(4));
+		assertPackRoundTrip();
+	}
+
+	/** The char index of each column found by walking the text of the row from the start. */
+	private int[] columnStartsByWalkingText() {
+		int[] starts = new int[COLUMNS + 1];
+		int column = 0;
+		for (int charIndex = 0; charIndex < row.getSpaceUsed(); ) {
+			int codePoint = Character.codePointAt(row.mText, charIndex, row.getSpaceUsed());
+			int width = WcWidth.width(codePoint);
+			if (width > 0) {
+				for (int i = 0; i < width && column + i < COLUMNS; i++) starts[column + i] = charIndex;
+				column += width;
+			}
+			charIndex += Character.charCount(codePoint);
+		}
+		starts[COLUMNS] = row.getSpaceUsed();
+		return starts;
+	}
+
+	public void testColumnIndexFollowsChanges() {
+		int[] codePoints = {'a', ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1,
+			TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, DIARESIS_CODEPOINT, ' '};
+		Random random = new Random(7);
+		for (int change = 0; change < 5000; change++) {
+			int codePoint = codePoints[random.nextInt(codePoints.length)];
+			int column = random.nextInt(WcWidth.width(codePoint) == 2 ? COLUMNS - 1 : COLUMNS);
+			row.setChar(column, codePoint, 0);
+			if (change % 500 == 499) row.clear(0);
+
+			// Look up from the end as well as the start, so that the index is both extended and used:
+			int[] expected = columnStartsByWalkingText();
+			int lookupColumn = random.nextBoolean() ? COLUMNS - 1 : random.nextInt(COLUMNS);
+			assertEquals("column=" + lookupColumn, expected[lookupColumn], row.findStartOfColumn(lookupColumn));
+			for (int i = 0; i <= COLUMNS; i++)
+				assertEquals("change=" + change + ", column=" + i, expected[i], row.findStartOfColumn(i));
+		}
+	}
+
 }
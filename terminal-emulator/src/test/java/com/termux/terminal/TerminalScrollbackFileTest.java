@@ -0,0 +1,169 @@
+package com.anthroid.terminal;
+
+import java.io.File;
+
+public class TerminalScrollbackFileTest extends TerminalTestCase {
+
+	private File mFile;
+	private TerminalScrollbackFile mScrollback;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("scrollback", ".rows");
+		mScrollback = new TerminalScrollbackFile(mFile);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mScrollback.close();
+		assertFalse(mFile.exists());
+		assertFalse(new File(mFile.getPath() + ".index").exists());
+		super.tearDown();
+	}
+
+	/** A terminal with the minimum transcript of 100 rows, keeping the history dropped from it in the scrollback file. */
+	private void withScrollback(int columns, int rows) {
+		mTerminal = new TerminalEmulator(mOutput, columns, rows, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS,
+			TerminalEmulator.TERMINAL_TRANSCRIPT_ROWS_MIN, null);
+		mTerminal.setScrollbackFile(mScrollback);
+	}
+
+	private void enterNumberedLines(int first, int last) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = first; i <= last; i++) builder.append("line").append(i).append("\r\n");
+		enterString(builder.toString());
+	}
+
+	public void testDroppedRowsAreKeptInOrder() {
+		withScrollback(10, 3);
+		enterNumberedLines(1, 250);
+		TerminalBuffer screen = mTerminal.getScreen();
+
+		// The screen shows the last two lines and the cursor row, the 97 rows of the transcript the ones before them:
+		assertEquals(151, mScrollback.getRowCount());
+		assertEquals(151 + 97, screen.getActiveTranscriptRows());
+		assertEquals(151 + 97 + 3, screen.getActiveRows());
+
+		assertEquals("line1", screen.getSelectedText(0, -248, 9, -248));
+		assertEquals("line151", screen.getSelectedText(0, -98, 9, -98));
+		assertEquals("line152", screen.getSelectedText(0, -97, 9, -97));
+		assertEquals("line249\nline250", screen.getSelectedText(0, 0, 9, 1));
+
+		String transcript = screen.getTranscriptText();
+		assertTrue(transcript.startsWith("line1\nline2\nline3\n"));
+		assertTrue(transcript.endsWith("line249\nline250"));
+		assertEquals(250, transcript.split("\n").length);
+		assertInvariants();
+	}
+
+	public void testTranscriptTailReadsOnlyLastRows() {
+		withScrollback(10, 3);
+		enterNumberedLines(1, 250);
+		TerminalBuffer screen = mTerminal.getScreen();
+
+		assertEquals("line247\nline248\nline249\nline250", screen.getTranscriptTextTail(5, true, false));
+		assertTrue(screen.getTranscriptTextTail(100, true, false).startsWith("line152\n"));
+		// Past the transcript the rows are read from the scrollback file:
+		String tail = screen.getTranscriptTextTail(110, false, false);
+		assertTrue(tail.startsWith("line142\nline143\n"));
+		assertTrue(tail.endsWith("line249\nline250"));
+		assertEquals(screen.getTranscriptText(), screen.getTranscriptTextTail(Integer.MAX_VALUE, true, false));
+	}
+
+	public void testFullFileDropsOldestRows() throws Exception {
+		mScrollback.close();
+		mScrollback = new TerminalScrollbackFile(mFile, 4096);
+		withScrollback(10, 3);
+		enterNumberedLines(1, 2000);
+		TerminalBuffer screen = mTerminal.getScreen();
+
+		int keptRows = mScrollback.getRowCount();
+		assertTrue(keptRows > 0 && keptRows < 2000 - 100);
+		assertEquals(keptRows + 97, screen.getActiveTranscriptRows());
+		// The history kept is the most recent, continuing into the transcript without a gap:
+		String[] lines = screen.getTranscriptText().split("\n");
+		assertEquals(keptRows + 97 + 2, lines.length);
+		for (int i = 0; i < lines.length; i++) assertEquals("line" + (2000 - lines.length + 1 + i), lines[i]);
+		assertInvariants();
+	}
+
+	public void testStylesWideCharsAndLineWrapsSurvive() {
+		withScrollback(6, 3);
+		enterString("\033[31mred\033[0m 果\r\n");
+		enterString("wrapped line\r\n");
+		enterNumberedLines(1, 110);
+		TerminalBuffer screen = mTerminal.getScreen();
+		int first = -screen.getActiveTranscriptRows();
+
+		assertEquals(TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0), screen.getStyleAt(first, 0));
+		assertEquals("red 果", screen.getSelectedText(0, first, 5, first));
+		assertTrue(screen.getLineWrap(first + 1));
+		assertEquals("wrapped line", screen.getSelectedText(0, first + 1, 5, first + 2));
+	}
+
+	public void testRowsReadAfterNarrowingAreCutOff() {
+		withScrollback(10, 3);
+		enterString("0123456789\r\n");
+		enterNumberedLines(1, 110);
+		resize(4, 3);
+		TerminalBuffer screen = mTerminal.getScreen();
+		int first = -screen.getActiveTranscriptRows();
+		assertEquals("0123", screen.getSelectedText(0, first, 3, first));
+		assertEquals(4, screen.getRow(first).getSpaceUsed());
+	}
+
+	public void testClearTranscriptClearsFile() {
+		withScrollback(10, 3);
+		enterNumberedLines(1, 150);
+		assertTrue(mScrollback.getRowCount() > 0);
+
+		// Erase saved lines:
+		enterString("\033[3J");
+		assertEquals(0, mScrollback.getRowCount());
+		assertEquals(0, mTerminal.getScreen().getActiveTranscriptRows());
+
+		// The rows on the screen when clearing are the first ones of the new history:
+		enterNumberedLines(151, 300);
+		assertEquals("line149", mTerminal.getScreen().getSelectedText(0, -mTerminal.getScreen().getActiveTranscriptRows(), 9,
+			-mTerminal.getScreen().getActiveTranscriptRows()));
+	}
+
+	public void testSnapshotReadsRowsOfItsTime() {
+		withScrollback(10, 3);
+		enterNumberedLines(1, 150);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mTerminal);
+		int snapshotTranscriptRows = snapshot.mScreen.getActiveTranscriptRows();
+
+		enterNumberedLines(151, 300);
+		assertEquals(snapshotTranscriptRows, snapshot.mScreen.getActiveTranscriptRows());
+		assertEquals("line1", snapshot.mScreen.getSelectedText(0, -snapshotTranscriptRows, 9, -snapshotTranscriptRows));
+		assertEquals("line150", snapshot.mScreen.getSelectedText(0, 1, 9, 1));
+	}
+
+	public void testSnapshotDoesNotReadRowsDroppedSince() throws Exception {
+		mScrollback.close();
+		mScrollback = new TerminalScrollbackFile(mFile, 4096);
+		withScrollback(10, 3);
+		enterNumberedLines(1, 150);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mTerminal);
+		int snapshotTranscriptRows = snapshot.mScreen.getActiveTranscriptRows();
+
+		enterNumberedLines(151, 2000);
+		assertEquals("", snapshot.mScreen.getSelectedText(0, -snapshotTranscriptRows, 9, -snapshotTranscriptRows));
+		assertEquals("line150", snapshot.mScreen.getSelectedText(0, 1, 9, 1));
+	}
+
+	public void testClosedFileDropsRows() {
+		withScrollback(10, 3);
+		enterNumberedLines(1, 120);
+		mScrollback.close();
+		assertEquals(0, mScrollback.getRowCount());
+		assertNull(mScrollback.read(0));
+		enterNumberedLines(121, 130);
+		// The rows counted before being closed are shown as blank:
+		assertEquals("", mTerminal.getScreen().getSelectedText(0, -mTerminal.getScreen().getActiveTranscriptRows(), 9,
+			-mTerminal.getScreen().getActiveTranscriptRows()));
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.anthroid.terminal;
+
+import java.io.File;
+import java.util.List;
+
+public class TerminalSearchTest extends TerminalTestCase {
+
+	private List<TerminalSearch.Hit> search(String query, boolean caseSensitive, int maxHits) {
+		return mTerminal.getScreen().search(query, caseSensitive, maxHits);
+	}
+
+	private static void assertHit(TerminalSearch.Hit hit, int startRow, int startColumn, int endRow, int endColumn) {
+		assertEquals("Hit[" + startRow + "," + startColumn + " - " + endRow + "," + endColumn + "]", hit.toString());
+	}
+
+	public void testScreenOnly() {
+		withTerminalSized(10, 3).enterString("hello\r\nwor hello");
+		List<TerminalSearch.Hit> hits = search("hello", false, 10);
+		assertEquals(2, hits.size());
+		assertHit(hits.get(0), 0, 0, 0, 4);
+		assertHit(hits.get(1), 1, 4, 1, 8);
+		assertEquals(0, search("nothere", false, 10).size());
+		assertEquals(0, search("", false, 10).size());
+	}
+
+	public void testCaseSensitivity() {
+		withTerminalSized(10, 3).enterString("Hello\r\nhello");
+		assertEquals(2, search("HELLO", false, 10).size());
+		List<TerminalSearch.Hit> hits = search("Hello", true, 10);
+		assertEquals(1, hits.size());
+		assertHit(hits.get(0), 0, 0, 0, 4);
+	}
+
+	public void testShortQueries() {
+		// Queries without any trigram read every row:
+		withTerminalSized(5, 3).enterString("ab\r\n\r\nxab");
+		List<TerminalSearch.Hit> hits = search("ab", false, 10);
+		assertEquals(2, hits.size());
+		assertHit(hits.get(0), 0, 0, 0, 1);
+		assertHit(hits.get(1), 2, 1, 2, 2);
+	}
+
+	public void testHitSpanningWrappedRowsInTranscript() {
+		withTerminalSized(5, 3).enterString("xxxabcdefyy\r\n1\r\n2\r\n3\r\n4");
+		// "xxxab", "cdefy", "y" and "1" are in the transcript, with the signature of "cdefy" covering "abc" and "bcd":
+		assertEquals(4, mTerminal.getScreen().getActiveTranscriptRows());
+		List<TerminalSearch.Hit> hits = search("abcdef", false, 10);
+		assertEquals(1, hits.size());
+		assertHit(hits.get(0), -4, 3, -3, 3);
+		assertHit(search("fyy", false, 10).get(0), -3, 3, -2, 0);
+	}
+
+	public void testWideAndCombiningChars() {
+		withTerminalSized(10, 3).enterString("a果b́c\r\n1\r\n2\r\n3");
+		List<TerminalSearch.Hit> hits = search("果b́c", true, 10);
+		assertEquals(1, hits.size());
+		// The wide char takes two columns and the combining char belongs to the column of the b:
+		assertHit(hits.get(0), -1, 1, -1, 4);
+	}
+
+	public void testMaxHitsKeepsThoseNearestTheBottom() {
+		withTerminalSized(10, 3);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 1; i <= 50; i++) builder.append("match").append(i).append("\r\n");
+		enterString(builder.toString());
+		List<TerminalSearch.Hit> hits = search("match", false, 3);
+		assertEquals(3, hits.size());
+		// The cursor is on the empty last row:
+		assertHit(hits.get(0), -1, 0, -1, 4);
+		assertHit(hits.get(1), 0, 0, 0, 4);
+		assertHit(hits.get(2), 1, 0, 1, 4);
+		assertEquals(50, search("match", false, 100).size());
+		assertEquals(0, search("match", false, 0).size());
+	}
+
+	public void testSignatureRejectsRowsWithoutTrigrams() {
+		withTerminalSized(10, 3).enterString("abcdefgh\r\n\r\n\r\n");
+		TerminalRow row = mTerminal.getScreen().getStoredRow(-1);
+		assertTrue(row.isPacked());
+		assertNotNull(row.mSearchSignature);
+		long[] signature = new long[TerminalSearch.SIGNATURE_LONGS];
+		assertTrue(mTerminal.getScreen().getSearchSignature(-1, signature));
+		// Screen rows may change at any time and are not signed:
+		assertFalse(mTerminal.getScreen().getSearchSignature(0, signature));
+		assertEquals(1, search("cdef", false, 10).size());
+		assertEquals(0, search("fedc", false, 10).size());
+	}
+
+	public void testScrollbackFileRows() throws Exception {
+		File file = File.createTempFile("scrollback", ".rows");
+		TerminalScrollbackFile scrollback = new TerminalScrollbackFile(file);
+		try {
+			mTerminal = new TerminalEmulator(mOutput, 5, 3, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS,
+				TerminalEmulator.TERMINAL_TRANSCRIPT_ROWS_MIN, null);
+			mTerminal.setScrollbackFile(scrollback);
+			StringBuilder builder = new StringBuilder("needlesXY\r\n");
+			for (int i = 0; i < 200; i++) builder.append("-\r\n");
+			enterString(builder.toString());
+			TerminalBuffer screen = mTerminal.getScreen();
+			assertTrue(scrollback.getRowCount() > 0);
+
+			int firstRow = -screen.getActiveTranscriptRows();
+			List<TerminalSearch.Hit> hits = search("dlesx", false, 10);
+			assertEquals(1, hits.size());
+			assertHit(hits.get(0), firstRow, 3, firstRow + 1, 2);
+			assertEquals(0, search("dlesy", false, 10).size());
+		} finally {
+			scrollback.close();
+		}
+	}
+
+}
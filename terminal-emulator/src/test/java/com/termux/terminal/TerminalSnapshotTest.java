@@ -0,0 +1,186 @@
+package com.anthroid.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TerminalSnapshotTest extends TerminalTestCase {
+
+	private static String screenText(TerminalSnapshot snapshot) {
+		return snapshot.mScreen.getTranscriptText();
+	}
+
+	public void testSnapshotIsNotAffectedByLaterOutput() {
+		withTerminalSized(5, 3).enterString("abc\r\ndef");
+		TerminalSnapshot snapshot = new TerminalSnapshot(mTerminal);
+		assertEquals("abc\ndef", screenText(snapshot));
+		assertEquals(1, snapshot.mCursorRow);
+		assertEquals(3, snapshot.mCursorCol);
+
+		enterString("\033[1;1HX\033[2;2H\033[1mY\033[2J\033[3;1Hz\r\n\r\n\r\nscrolled");
+		assertEquals("abc\ndef", screenText(snapshot));
+		assertEquals(1, snapshot.mCursorRow);
+		assertLinesAre("     ", "scrol", "led  ");
+	}
+
+	public void testSnapshotLeavesChangesToRender() {
+		withTerminalSized(5, 4).enterString("abc");
+		mTerminal.getScreen().clearDirtyRows();
+		enterString("\r\n\r\nd");
+		new TerminalSnapshot(mTerminal);
+		assertTrue(mTerminal.getScreen().isRowDirty(2));
+		assertFalse(mTerminal.getScreen().isRowDirty(0));
+	}
+
+	public void testSnapshotForRenderingTakesDirtyRows() {
+		withTerminalSized(5, 4).enterString("abc");
+		TerminalSnapshot.forRendering(mTerminal);
+		enterString("\r\n\r\nd");
+		TerminalSnapshot snapshot = TerminalSnapshot.forRendering(mTerminal);
+		assertFalse(snapshot.mScreen.isAllDirty());
+		assertFalse(snapshot.mScreen.isRowDirty(0));
+		assertTrue(snapshot.mScreen.isRowDirty(2));
+		// The dirty rows have been moved from the emulator buffer to the snapshot:
+		assertFalse(mTerminal.getScreen().isRowDirty(2));
+	}
+
+	public void testIncludeChangesOfUnrenderedSnapshot() {
+		withTerminalSized(5, 4).enterString("abc");
+		TerminalSnapshot.forRendering(mTerminal);
+
+		enterString("\033[4;1Hx");
+		TerminalSnapshot older = TerminalSnapshot.forRendering(mTerminal);
+		assertEquals(0, older.getScrollCounter());
+		enterString("\n\ny");
+		TerminalSnapshot newer = TerminalSnapshot.forRendering(mTerminal);
+		assertEquals(2, newer.getScrollCounter());
+		assertFalse(newer.mScreen.isRowDirty(1));
+
+		newer.includeChangesOf(older);
+		// The row changed in the older snapshot has scrolled up by two rows since:
+		assertTrue(newer.mScreen.isRowDirty(1));
+		assertFalse(newer.mScreen.isRowDirty(0));
+		assertEquals(2, newer.getScrollCounter());
+		assertEquals(2, newer.mScreen.getDirtyScrollRows());
+
+		// Rendered and cleared changes are not included again:
+		newer.mScreen.clearDirtyRows();
+		newer.clearScrollCounter();
+		enterString("z");
+		TerminalSnapshot newest = TerminalSnapshot.forRendering(mTerminal);
+		newest.includeChangesOf(newer);
+		assertFalse(newest.mScreen.isRowDirty(0));
+		assertTrue(newest.mScreen.isRowDirty(3));
+		assertEquals(0, newest.getScrollCounter());
+	}
+
+	public void testIncludeChangesOfOtherBuffer() {
+		withTerminalSized(5, 3).enterString("abc");
+		TerminalSnapshot main = TerminalSnapshot.forRendering(mTerminal);
+		main.mScreen.clearDirtyRows();
+		enterString("\033[?1049h");
+		TerminalSnapshot alt = TerminalSnapshot.forRendering(mTerminal);
+		assertNotSame(main.mSourceScreen, alt.mSourceScreen);
+		alt.mScreen.clearDirtyRows();
+		alt.includeChangesOf(main);
+		assertTrue(alt.mScreen.isAllDirty());
+	}
+
+	/**
+	 * Appends output on another thread like the emulator thread of a session, publishing a snapshot after every chunk,
+	 * while rendering the published snapshots like the view: only the rows reported as dirty are drawn again after
+	 * moving the previously drawn rows up by the rows scrolled. Every snapshot must show whole consecutive lines, and
+	 * what has been drawn must match the screen in the end.
+	 */
+	public void testRenderPublishedSnapshotsWhileAppendingOnAnotherThread() throws Exception {
+		final int columns = 10, rows = 6, lines = 20000;
+		withTerminalSized(columns, rows);
+		StringBuilder output = new StringBuilder();
+		for (int line = 0; line < lines; line++) output.append(String.format(Locale.US, "line %05d\r\n", line));
+		byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+		final ByteQueue queue = new ByteQueue(bytes.length);
+		assertTrue(queue.write(bytes, 0, bytes.length));
+
+		final TerminalEmulator emulator = mTerminal;
+		final AtomicReference<TerminalSnapshot> pendingSnapshot = new AtomicReference<>();
+		final Throwable[] failure = new Throwable[1];
+		Thread emulatorThread = new Thread(() -> {
+			try {
+				ArrayList<TerminalMarkerWatch> foundWatches = new ArrayList<>();
+				while (TerminalSession.appendQueuedOutput(queue, 64, emulator, new ArrayList<>(), foundWatches, 0) > 0)
+					TerminalSession.publishSnapshot(emulator, pendingSnapshot);
+			} catch (Throwable t) {
+				failure[0] = t;
+			}
+		});
+		emulatorThread.start();
+
+		String[] drawn = new String[rows];
+		TerminalSnapshot snapshot = null;
+		int scrolled = 0;
+		int rendered = 0;
+		while (true) {
+			boolean appending = emulatorThread.isAlive();
+			TerminalSnapshot published = pendingSnapshot.getAndSet(null);
+			if (published != null) {
+				published.includeChangesOf(snapshot);
+				snapshot = published;
+				TerminalBuffer screen = snapshot.mScreen;
+				int shift = screen.getDirtyScrollRows();
+				for (int row = 0; row < rows; row++) {
+					boolean revealed = row + shift >= rows;
+					if (screen.isAllDirty() || revealed || screen.isRowDirty(row)) {
+						drawn[row] = screen.getSelectedText(0, row, columns, row);
+					} else {
+						drawn[row] = drawn[row + shift];
+					}
+				}
+				assertConsecutiveLines(snapshot, columns, rows);
+				scrolled += snapshot.getScrollCounter();
+				snapshot.clearScrollCounter();
+				screen.clearDirtyRows();
+				rendered++;
+			}
+			if (!appending && published == null) break;
+		}
+		emulatorThread.join();
+		if (failure[0] != null) throw new AssertionError(failure[0]);
+
+		assertTrue(rendered > 0);
+		assertEquals(lines - rows + 1, scrolled);
+		for (int row = 0; row < rows; row++)
+			assertEquals(mTerminal.getScreen().getSelectedText(0, row, columns, row), drawn[row]);
+	}
+
+	/**
+	 * Assert that the non-blank rows of a snapshot are whole lines written by the test, numbered consecutively, except
+	 * for the row of the cursor which may be partly written.
+	 */
+	private static void assertConsecutiveLines(TerminalSnapshot snapshot, int columns, int rows) {
+		int previous = -1;
+		for (int row = 0; row < rows; row++) {
+			String text = snapshot.mScreen.getSelectedText(0, row, columns, row);
+			if (text.isEmpty()) continue;
+			if (row == snapshot.mCursorRow) {
+				assertTrue(text, String.format(Locale.US, "line %05d", previous + 1).startsWith(text));
+				continue;
+			}
+			assertTrue(text, text.matches("line \\d{5}"));
+			int line = Integer.parseInt(text.substring(5));
+			if (previous != -1) assertEquals(previous + 1, line);
+			previous = line;
+		}
+	}
+
+	public void testLiveSnapshotRefersToEmulator() {
+		withTerminalSized(5, 3).enterString("abc");
+		TerminalSnapshot live = TerminalSnapshot.live(mTerminal);
+		assertSame(mTerminal.getScreen(), live.mScreen);
+		assertSame(mTerminal.mColors.mCurrentColors, live.mPalette);
+		assertTrue(live.shouldCursorBeVisible());
+		enterString("\033[?25l");
+		assertTrue(TerminalSnapshot.live(mTerminal).mCursorEnabled != live.mCursorEnabled);
+	}
+
+}
@@ -78,4 +78,15 @@ public class WcWidthTest extends TestCase {
 		assertWidthIs(2, 0x1F643); // UPSIDE-DOWN FACE (Unicode 8).
 	}
 
+	public void testLookupTableMatchesIntervals() {
+		for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+			if (WcWidth.width(c) != WcWidth.widthFromIntervals(c))
+				fail("Width of U+" + Integer.toHexString(c) + " was " + WcWidth.width(c) + ", expected " + WcWidth.widthFromIntervals(c));
+		}
+		assertEquals(WcWidth.widthFromIntervals(-1), WcWidth.width(-1));
+		assertEquals(WcWidth.widthFromIntervals(Integer.MIN_VALUE), WcWidth.width(Integer.MIN_VALUE));
+		assertEquals(WcWidth.widthFromIntervals(Character.MAX_CODE_POINT + 1), WcWidth.width(Character.MAX_CODE_POINT + 1));
+		assertEquals(WcWidth.widthFromIntervals(Integer.MAX_VALUE), WcWidth.width(Integer.MAX_VALUE));
+	}
+
 }
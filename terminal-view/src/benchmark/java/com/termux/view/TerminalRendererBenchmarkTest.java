@@ -0,0 +1,95 @@
+package com.anthroid.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Typeface;
+
+import com.anthroid.terminal.TerminalEmulator;
+import com.anthroid.terminal.TerminalOutput;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the time to draw a full frame of a synthetic 256-color screen, where every cell has its own foreground and
+ * background color, with text drawn as runs and with glyphs drawn from a {@link GlyphAtlas}. Printed rather than
+ * asserted as it depends on the machine, and only part of the unit tests with -Pbenchmark, see
+ * terminal-view/build.gradle. Robolectric's native graphics draw on the host, so compare the two paths with each other
+ * rather than with frame times on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class TerminalRendererBenchmarkTest {
+
+    private static final int COLUMNS = 120;
+    private static final int ROWS = 40;
+    private static final int TEXT_SIZE = 24;
+    private static final int WARMUP_FRAMES = 10;
+    private static final int FRAMES = 60;
+
+    private static final class NullOutput extends TerminalOutput {
+        @Override public void write(byte[] data, int offset, int count) {}
+        @Override public void titleChanged(String oldTitle, String newTitle) {}
+        @Override public void onCopyTextToClipboard(String text) {}
+        @Override public void onPasteTextFromClipboard() {}
+        @Override public void onBell() {}
+        @Override public void onColorsChanged() {}
+    }
+
+    /** A screen of cells cycling through the 256 indexed colors, with box drawing, bold and italic cells among them. */
+    private static TerminalEmulator create256ColorScreen() {
+        TerminalEmulator emulator = new TerminalEmulator(new NullOutput(), COLUMNS, ROWS, 10, 20, ROWS, null);
+        String glyphs = "abcdefghijklmnopqrstuvwxyz0123456789─│┌┐└┘├┤";
+        StringBuilder builder = new StringBuilder();
+        for (int row = 0; row < ROWS; row++) {
+            builder.append("\033[").append(row + 1).append(";1H");
+            for (int column = 0; column < COLUMNS; column++) {
+                int cell = row * COLUMNS + column;
+                builder.append("\033[0;38;5;").append(cell % 256).append(";48;5;").append((cell * 7) % 256);
+                if (cell % 11 == 0) builder.append(";1");
+                if (cell % 13 == 0) builder.append(";3");
+                builder.append('m').append(glyphs.charAt(cell % glyphs.length()));
+            }
+        }
+        byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+        return emulator;
+    }
+
+    /** The median time in nanoseconds to redraw every row of the screen. */
+    private static long medianFrameNanos(TerminalEmulator emulator, boolean glyphAtlasEnabled) {
+        TerminalRenderer renderer = new TerminalRenderer(TEXT_SIZE, Typeface.MONOSPACE, glyphAtlasEnabled);
+        int width = (int) Math.ceil(COLUMNS * renderer.getFontWidth());
+        int height = renderer.mFontLineSpacingAndAscent + (ROWS + 1) * renderer.getFontLineSpacing();
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        long[] frameNanos = new long[FRAMES];
+        for (int frame = -WARMUP_FRAMES; frame < FRAMES; frame++) {
+            emulator.getScreen().markAllDirty();
+            long start = System.nanoTime();
+            renderer.render(emulator, canvas, 0, -1, -1, -1, -1);
+            if (frame >= 0) frameNanos[frame] = System.nanoTime() - start;
+        }
+        renderer.releaseBitmaps();
+        bitmap.recycle();
+        Arrays.sort(frameNanos);
+        return frameNanos[FRAMES / 2];
+    }
+
+    @Test
+    public void frameTimeOf256ColorScreen() {
+        TerminalEmulator emulator = create256ColorScreen();
+        long textNanos = medianFrameNanos(emulator, false);
+        long atlasNanos = medianFrameNanos(emulator, true);
+        System.out.println(String.format(Locale.US, "TerminalRendererBenchmarkTest: %dx%d cells of 256 colors:"
+            + " text runs %.2f ms, glyph atlas %.2f ms per frame", COLUMNS, ROWS, textNanos / 1e6, atlasNanos / 1e6));
+    }
+
+}
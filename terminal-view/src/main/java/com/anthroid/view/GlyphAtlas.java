@@ -0,0 +1,173 @@
+package com.anthroid.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+import com.anthroid.terminal.WcWidth;
+
+import java.util.Arrays;
+
+/**
+ * Glyphs rasterized once into an alpha mask bitmap, for the {@link TerminalRenderer} to draw a run of text as one
+ * bitmap draw per cell in the color of the run, instead of shaping and drawing the text with paint state changes for
+ * every run. See {@link TerminalRenderer#TerminalRenderer(int, android.graphics.Typeface, boolean)}.
+ * <p>
+ * Each glyph takes a slot of the bitmap, found through its code point and whether it is bold and italic with open
+ * addressing. When all slots are used the atlas starts over, which does not affect glyphs already drawn from it.
+ * Runs which the atlas cannot draw as they would be drawn as text, such as those with combining characters or likely
+ * color emoji, are left to the caller.
+ */
+final class GlyphAtlas {
+
+    private static final int SLOT_COLUMNS = 32;
+    private static final int SLOT_ROWS = 16;
+    private static final int SLOTS = SLOT_COLUMNS * SLOT_ROWS;
+    /** The size of the table from glyph keys to slots, a power of two with room to keep probe sequences short. */
+    private static final int TABLE_SIZE = 1024;
+    /** The key of an empty table entry. The NUL code point is never drawn from the atlas. */
+    private static final int EMPTY = 0;
+
+    private static final int KEY_BOLD = 1;
+    private static final int KEY_ITALIC = 2;
+
+    private final float mFontWidth;
+    /** The distance from the top of a row, and a slot, to the baseline. */
+    private final int mBaselineOffset;
+    private final int mSlotWidth;
+    private final int mSlotHeight;
+
+    /** The rasterized glyphs, created when first drawing and freed by {@link #release()}. */
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    /** The paint rasterizing glyphs into {@link #mBitmap}. */
+    private final Paint mRasterPaint;
+    /** The paint drawing glyphs from {@link #mBitmap}, which as an alpha mask is drawn in the color of the paint. */
+    private final Paint mDrawPaint = new Paint();
+
+    private final int[] mKeys = new int[TABLE_SIZE];
+    private final short[] mSlots = new short[TABLE_SIZE];
+    private int mUsedSlots;
+
+    private final char[] mChars = new char[2];
+    private final Rect mSource = new Rect();
+    private final Rect mDestination = new Rect();
+
+    GlyphAtlas(Paint textPaint, float fontWidth, int fontLineSpacing, int fontAscent) {
+        mFontWidth = fontWidth;
+        mBaselineOffset = -fontAscent;
+        // Room for a wide glyph and the overhang of italic text:
+        mSlotWidth = (int) Math.ceil(fontWidth * 2.5f);
+        mSlotHeight = fontLineSpacing;
+
+        mRasterPaint = new Paint(textPaint);
+        mRasterPaint.setColor(0xFF000000);
+        mRasterPaint.setUnderlineText(false);
+        mRasterPaint.setStrikeThruText(false);
+    }
+
+    /**
+     * Draw a run of text in a color from the atlas, rasterizing glyphs not drawn before, or return false without
+     * drawing anything if the run has to be drawn as text.
+     *
+     * @param left     the x position of the first cell of the run
+     * @param baseline the y position of the baseline of the row
+     */
+    boolean drawRun(Canvas canvas, char[] text, int startCharIndex, int charCount, float left, float baseline,
+                    boolean bold, boolean italic, int color) {
+        final int end = startCharIndex + charCount;
+        for (int i = startCharIndex; i < end; ) {
+            final int codePoint = codePointAt(text, i, end);
+            if (!isDrawable(codePoint)) return false;
+            i += Character.charCount(codePoint);
+        }
+
+        if (mBitmap == null) {
+            mBitmap = Bitmap.createBitmap(mSlotWidth * SLOT_COLUMNS, mSlotHeight * SLOT_ROWS, Bitmap.Config.ALPHA_8);
+            mCanvas = new Canvas(mBitmap);
+        }
+        mDrawPaint.setColor(color);
+        final int flags = (bold ? KEY_BOLD : 0) | (italic ? KEY_ITALIC : 0);
+        final int top = Math.round(baseline) - mBaselineOffset;
+        float x = left;
+        for (int i = startCharIndex; i < end; ) {
+            final int codePoint = codePointAt(text, i, end);
+            if (codePoint != ' ') {
+                final int slot = slotOf(codePoint, flags);
+                final int slotLeft = (slot % SLOT_COLUMNS) * mSlotWidth;
+                final int slotTop = (slot / SLOT_COLUMNS) * mSlotHeight;
+                mSource.set(slotLeft, slotTop, slotLeft + mSlotWidth, slotTop + mSlotHeight);
+                final int glyphLeft = Math.round(x);
+                mDestination.set(glyphLeft, top, glyphLeft + mSlotWidth, top + mSlotHeight);
+                canvas.drawBitmap(mBitmap, mSource, mDestination, mDrawPaint);
+            }
+            x += WcWidth.width(codePoint) * mFontWidth;
+            i += Character.charCount(codePoint);
+        }
+        return true;
+    }
+
+    /** Free the atlas bitmap, which is created again with no glyphs when next drawing. */
+    void release() {
+        if (mBitmap == null) return;
+        mBitmap.recycle();
+        mBitmap = null;
+        mCanvas = null;
+        Arrays.fill(mKeys, EMPTY);
+        mUsedSlots = 0;
+    }
+
+    private static int codePointAt(char[] text, int index, int end) {
+        final char c = text[index];
+        return (Character.isHighSurrogate(c) && index + 1 < end) ? Character.toCodePoint(c, text[index + 1]) : c;
+    }
+
+    /**
+     * If a code point can be drawn from the atlas. Combining and control characters are not, and neither are code
+     * points likely to be drawn from a color font, which an alpha mask cannot hold: those outside of the BMP and the
+     * wide ones before the CJK blocks, which are emoji.
+     */
+    private static boolean isDrawable(int codePoint) {
+        if (codePoint < ' ' || codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) return false;
+        final int width = WcWidth.width(codePoint);
+        return width == 1 || (width == 2 && codePoint >= 0x2E80);
+    }
+
+    /** The slot of the glyph of a code point, rasterizing it if not done before. */
+    private int slotOf(int codePoint, int flags) {
+        final int key = (codePoint << 2) | flags;
+        int index = (key * 0x9E3779B9 >>> 16) & (TABLE_SIZE - 1);
+        while (mKeys[index] != EMPTY) {
+            if (mKeys[index] == key) return mSlots[index];
+            index = (index + 1) & (TABLE_SIZE - 1);
+        }
+
+        if (mUsedSlots == SLOTS) {
+            // Start over, glyphs already drawn from the atlas are not affected:
+            Arrays.fill(mKeys, EMPTY);
+            mUsedSlots = 0;
+            index = (key * 0x9E3779B9 >>> 16) & (TABLE_SIZE - 1);
+        }
+        final int slot = mUsedSlots++;
+        mKeys[index] = key;
+        mSlots[index] = (short) slot;
+        rasterize(codePoint, flags, slot);
+        return slot;
+    }
+
+    private void rasterize(int codePoint, int flags, int slot) {
+        final int slotLeft = (slot % SLOT_COLUMNS) * mSlotWidth;
+        final int slotTop = (slot / SLOT_COLUMNS) * mSlotHeight;
+        mCanvas.save();
+        mCanvas.clipRect(slotLeft, slotTop, slotLeft + mSlotWidth, slotTop + mSlotHeight);
+        mCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        mRasterPaint.setFakeBoldText((flags & KEY_BOLD) != 0);
+        mRasterPaint.setTextSkewX((flags & KEY_ITALIC) != 0 ? -0.35f : 0.f);
+        final int charCount = Character.toChars(codePoint, mChars, 0);
+        mCanvas.drawText(mChars, 0, charCount, slotLeft, slotTop + mBaselineOffset, mRasterPaint);
+        mCanvas.restore();
+    }
+
+}
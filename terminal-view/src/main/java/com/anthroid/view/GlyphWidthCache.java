@@ -0,0 +1,53 @@
+package com.anthroid.view;
+
+import java.util.Arrays;
+
+/**
+ * The measured widths of code points, for the {@link TerminalRenderer} not to measure the same non-ASCII code points
+ * on every frame. Keys and values are kept in primitive arrays with open addressing and linear probing. The cache is
+ * bounded, and simply cleared when full, since a screen seldom shows more than a few hundred distinct code points.
+ * <p>
+ * The widths depend on the text size and typeface of the renderer, which owns the cache and is recreated when they
+ * change.
+ */
+final class GlyphWidthCache {
+
+    /** The number of slots, a power of two. */
+    private static final int CAPACITY = 2048;
+    /** The number of entries at which the cache is cleared, to keep probe sequences short. */
+    private static final int MAX_SIZE = CAPACITY * 3 / 4;
+    /** The key of an empty slot. The NUL code point is never measured through the cache. */
+    private static final int EMPTY = 0;
+
+    private final int[] mKeys = new int[CAPACITY];
+    private final float[] mWidths = new float[CAPACITY];
+    private int mSize;
+
+    /** The cached width of a code point, or NaN if it has not been measured. */
+    float get(int codePoint) {
+        for (int slot = slotOf(codePoint); ; slot = (slot + 1) & (CAPACITY - 1)) {
+            final int key = mKeys[slot];
+            if (key == codePoint) return mWidths[slot];
+            if (key == EMPTY) return Float.NaN;
+        }
+    }
+
+    /** Cache the measured width of a code point, which must not be {@link #EMPTY} nor already cached. */
+    void put(int codePoint, float width) {
+        if (mSize == MAX_SIZE) {
+            Arrays.fill(mKeys, EMPTY);
+            mSize = 0;
+        }
+        int slot = slotOf(codePoint);
+        while (mKeys[slot] != EMPTY) slot = (slot + 1) & (CAPACITY - 1);
+        mKeys[slot] = codePoint;
+        mWidths[slot] = width;
+        mSize++;
+    }
+
+    private static int slotOf(int codePoint) {
+        // Spread code points of the same block, which are often used together, over the slots:
+        return (codePoint * 0x9E3779B9 >>> 16) & (CAPACITY - 1);
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.anthroid.view;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
@@ -8,19 +9,31 @@ import android.graphics.Typeface;
 import com.anthroid.terminal.TerminalBuffer;
 import com.anthroid.terminal.TerminalEmulator;
 import com.anthroid.terminal.TerminalRow;
+import com.anthroid.terminal.TerminalSnapshot;
 import com.anthroid.terminal.TextStyle;
 import com.anthroid.terminal.WcWidth;
 
+import java.util.Arrays;
+
 /**
  * Renderer of a {@link TerminalEmulator} into a {@link Canvas}.
  * <p/>
  * Saves font metrics, so needs to be recreated each time the typeface or font size changes.
+ * <p/>
+ * Rows are drawn into a backing bitmap which is kept between frames, so that only the rows reported as dirty by the
+ * {@link TerminalBuffer} (or affected by cursor movement) have to be drawn again. A scroll of the content is done by
+ * moving the pixels of the backing bitmap, after which only the revealed rows are drawn.
+ * <p/>
+ * Optionally glyphs are drawn from a {@link GlyphAtlas}, which is cheaper than drawing text for screens with many short
+ * runs of different colors.
  */
 public final class TerminalRenderer {
 
     final int mTextSize;
     final Typeface mTypeface;
     private final Paint mTextPaint = new Paint();
+    /** The atlas to draw glyphs from, or null if text is drawn with {@link Canvas#drawTextRun}. */
+    private final GlyphAtlas mGlyphAtlas;
 
     /** The width of a single mono spaced character obtained by {@link Paint#measureText(String)} on a single 'X'. */
     final float mFontWidth;
@@ -32,8 +45,34 @@ public final class TerminalRenderer {
     final int mFontLineSpacingAndAscent;
 
     private final float[] asciiMeasures = new float[127];
+    /** The measured widths of the code points outside of {@link #asciiMeasures}. */
+    private final GlyphWidthCache mGlyphWidths = new GlyphWidthCache();
+
+    /** What was rendered last time, kept so that only what has changed needs to be drawn. */
+    private Bitmap mBackingBitmap;
+    private Canvas mBackingCanvas;
+    /** The bitmap the backing bitmap is moved into when scrolling, after which the two are swapped. */
+    private Bitmap mScrollBitmap;
+    private Canvas mScrollCanvas;
+
+    /** The state which {@link #mBackingBitmap} was rendered with. */
+    private TerminalBuffer mRenderedScreen;
+    private int mRenderedTopRow, mRenderedRows, mRenderedColumns;
+    private int mRenderedCursorRow, mRenderedCursorCol, mRenderedCursorShape;
+    private boolean mRenderedCursorVisible, mRenderedReverseVideo;
+    private int mRenderedSelectionY1, mRenderedSelectionY2, mRenderedSelectionX1, mRenderedSelectionX2;
+    private final int[] mRenderedPalette = new int[TextStyle.NUM_INDEXED_COLORS];
 
     public TerminalRenderer(int textSize, Typeface typeface) {
+        this(textSize, typeface, false);
+    }
+
+    /**
+     * @param glyphAtlasEnabled If glyphs should be rasterized once into a {@link GlyphAtlas} and drawn from there as
+     *                          bitmaps in the color of their cell, instead of drawing text for every run of cells with
+     *                          the same style. Runs which the atlas cannot draw are still drawn as text.
+     */
+    public TerminalRenderer(int textSize, Typeface typeface, boolean glyphAtlasEnabled) {
         mTextSize = textSize;
         mTypeface = typeface;
 
@@ -51,109 +90,250 @@ public final class TerminalRenderer {
             sb.setCharAt(0, (char) i);
             asciiMeasures[i] = mTextPaint.measureText(sb, 0, 1);
         }
+
+        mGlyphAtlas = glyphAtlasEnabled ? new GlyphAtlas(mTextPaint, mFontWidth, mFontLineSpacing, mFontAscent) : null;
+    }
+
+    /** If glyphs are drawn from a {@link GlyphAtlas}, see {@link #TerminalRenderer(int, Typeface, boolean)}. */
+    public boolean isGlyphAtlasEnabled() {
+        return mGlyphAtlas != null;
     }
 
     /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
     public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
                              int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
-        final boolean reverseVideo = mEmulator.isReverseVideo();
-        final int endRow = topRow + mEmulator.mRows;
-        final int columns = mEmulator.mColumns;
-        final int cursorCol = mEmulator.getCursorCol();
-        final int cursorRow = mEmulator.getCursorRow();
-        final boolean cursorVisible = mEmulator.shouldCursorBeVisible();
-        final TerminalBuffer screen = mEmulator.getScreen();
-        final int[] palette = mEmulator.mColors.mCurrentColors;
-        final int cursorShape = mEmulator.getCursorStyle();
-
-        if (reverseVideo)
-            canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
-
-        float heightOffset = mFontLineSpacingAndAscent;
-        for (int row = topRow; row < endRow; row++) {
-            heightOffset += mFontLineSpacing;
-
-            final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
-            int selx1 = -1, selx2 = -1;
-            if (row >= selectionY1 && row <= selectionY2) {
-                if (row == selectionY1) selx1 = selectionX1;
-                selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
+        render(TerminalSnapshot.live(mEmulator), canvas, topRow, selectionY1, selectionY2, selectionX1, selectionX2);
+    }
+
+    /**
+     * Render a snapshot of the terminal to a canvas with at a specified row scroll, and an optional rectangular
+     * selection. The snapshot may be published by another thread running the emulator.
+     */
+    public final void render(TerminalSnapshot snapshot, Canvas canvas, int topRow,
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        final boolean reverseVideo = snapshot.mReverseVideo;
+        final int rows = snapshot.mRows;
+        final int columns = snapshot.mColumns;
+        final int cursorCol = snapshot.mCursorCol;
+        final int cursorRow = snapshot.mCursorRow;
+        final boolean cursorVisible = snapshot.shouldCursorBeVisible();
+        final TerminalBuffer screen = snapshot.mScreen;
+        final int[] palette = snapshot.mPalette;
+        final int cursorShape = snapshot.mCursorStyle;
+        final int width = canvas.getWidth();
+        final int height = canvas.getHeight();
+        if (width <= 0 || height <= 0) return;
+
+        boolean fullRedraw = mBackingBitmap == null || mBackingBitmap.getWidth() != width || mBackingBitmap.getHeight() != height
+            || mRenderedScreen != snapshot.mSourceScreen || screen.isAllDirty()
+            || mRenderedRows != rows || mRenderedColumns != columns || mRenderedReverseVideo != reverseVideo
+            || !Arrays.equals(mRenderedPalette, palette)
+            || mRenderedSelectionY1 != selectionY1 || mRenderedSelectionY2 != selectionY2
+            || mRenderedSelectionX1 != selectionX1 || mRenderedSelectionX2 != selectionX2;
+
+        // The number of rows the previously rendered content should move down, due to the content scrolling up and the
+        // view scrolling in the transcript:
+        int shift = 0;
+        if (!fullRedraw) {
+            shift = mRenderedTopRow - screen.getDirtyScrollRows() - topRow;
+            // A selection is in screen coordinates, so it would not move with the content:
+            if (Math.abs(shift) >= rows || (shift != 0 && selectionX1 != -1)) fullRedraw = true;
+        }
+
+        final int backgroundColor = reverseVideo ? palette[TextStyle.COLOR_INDEX_FOREGROUND] : palette[TextStyle.COLOR_INDEX_BACKGROUND];
+        if (fullRedraw) {
+            if (mBackingBitmap == null || mBackingBitmap.getWidth() != width || mBackingBitmap.getHeight() != height) {
+                releaseBitmaps();
+                mBackingBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                mBackingCanvas = new Canvas(mBackingBitmap);
             }
+            mBackingCanvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+        } else if (shift != 0) {
+            scrollBackingBitmap(shift, rows, backgroundColor);
+        }
+
+        final boolean cursorChanged = shift != 0 || cursorRow != mRenderedCursorRow || cursorCol != mRenderedCursorCol
+            || cursorVisible != mRenderedCursorVisible || cursorShape != mRenderedCursorShape;
+        final int previousCursorViewRow = mRenderedCursorRow - mRenderedTopRow + shift;
+
+        for (int viewRow = 0; viewRow < rows; viewRow++) {
+            final int row = topRow + viewRow;
+            final boolean revealedByScroll = viewRow - shift < 0 || viewRow - shift >= rows;
+            if (fullRedraw || revealedByScroll || screen.isRowDirty(row)
+                || (cursorChanged && (row == cursorRow || viewRow == previousCursorViewRow))) {
+                renderRow(snapshot, mBackingCanvas, row, viewRow, width, backgroundColor,
+                    selectionY1, selectionY2, selectionX1, selectionX2);
+            }
+        }
+
+        screen.clearDirtyRows();
+        mRenderedScreen = snapshot.mSourceScreen;
+        mRenderedTopRow = topRow;
+        mRenderedRows = rows;
+        mRenderedColumns = columns;
+        mRenderedCursorRow = cursorRow;
+        mRenderedCursorCol = cursorCol;
+        mRenderedCursorVisible = cursorVisible;
+        mRenderedCursorShape = cursorShape;
+        mRenderedReverseVideo = reverseVideo;
+        mRenderedSelectionY1 = selectionY1;
+        mRenderedSelectionY2 = selectionY2;
+        mRenderedSelectionX1 = selectionX1;
+        mRenderedSelectionX2 = selectionX2;
+        System.arraycopy(palette, 0, mRenderedPalette, 0, mRenderedPalette.length);
+
+        canvas.drawBitmap(mBackingBitmap, 0, 0, null);
+    }
 
-            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
-            final char[] line = lineObject.mText;
-            final int charsUsedInLine = lineObject.getSpaceUsed();
-
-            long lastRunStyle = 0;
-            boolean lastRunInsideCursor = false;
-            boolean lastRunInsideSelection = false;
-            int lastRunStartColumn = -1;
-            int lastRunStartIndex = 0;
-            boolean lastRunFontWidthMismatch = false;
-            int currentCharIndex = 0;
-            float measuredWidthForRun = 0.f;
-
-            for (int column = 0; column < columns; ) {
-                final char charAtIndex = line[currentCharIndex];
-                final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
-                final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
-                final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-                final int codePointWcWidth = WcWidth.width(codePoint);
-                final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
-                final boolean insideSelection = column >= selx1 && column <= selx2;
-                final long style = lineObject.getStyle(column);
-
-                // Check if the measured text width for this code point is not the same as that expected by wcwidth().
-                // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
-                // smileys which android font renders as wide.
-                // If this is detected, we draw this code point scaled to match what wcwidth() expects.
-                final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
-                    currentCharIndex, charsForCodePoint);
-                final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
-
-                if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
-                    if (column == 0) {
-                        // Skip first column as there is nothing to draw, just record the current style.
-                    } else {
-                        final int columnWidthSinceLastRun = column - lastRunStartColumn;
-                        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-                        boolean invertCursorTextColor = false;
-                        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                            invertCursorTextColor = true;
-                        }
-                        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
-                            lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
-                            cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+    /** Move the content of the backing bitmap down by shift rows, which may be negative to move it up. */
+    private void scrollBackingBitmap(int shift, int rows, int backgroundColor) {
+        if (mScrollBitmap == null) {
+            mScrollBitmap = Bitmap.createBitmap(mBackingBitmap.getWidth(), mBackingBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+            mScrollCanvas = new Canvas(mScrollBitmap);
+        }
+        mScrollCanvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+        mScrollCanvas.drawBitmap(mBackingBitmap, 0, shift * mFontLineSpacing, null);
+
+        Bitmap bitmap = mBackingBitmap;
+        Canvas bitmapCanvas = mBackingCanvas;
+        mBackingBitmap = mScrollBitmap;
+        mBackingCanvas = mScrollCanvas;
+        mScrollBitmap = bitmap;
+        mScrollCanvas = bitmapCanvas;
+
+        // Clear what was moved outside of the rows, above the first one and below the last one:
+        final int rowsTop = mFontLineSpacingAndAscent;
+        final int rowsBottom = rowsTop + rows * mFontLineSpacing;
+        final int width = mBackingBitmap.getWidth();
+        mBackingCanvas.save();
+        mBackingCanvas.clipRect(0, 0, width, rowsTop);
+        mBackingCanvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+        mBackingCanvas.restore();
+        mBackingCanvas.save();
+        mBackingCanvas.clipRect(0, rowsBottom, width, mBackingBitmap.getHeight());
+        mBackingCanvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+        mBackingCanvas.restore();
+    }
+
+    /** Draw the specified external row at the specified row in the view, clipped to and replacing that row. */
+    private void renderRow(TerminalSnapshot snapshot, Canvas canvas, int row, int viewRow, int width, int backgroundColor,
+                           int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        final boolean reverseVideo = snapshot.mReverseVideo;
+        final int columns = snapshot.mColumns;
+        final int cursorCol = snapshot.mCursorCol;
+        final int cursorRow = snapshot.mCursorRow;
+        final boolean cursorVisible = snapshot.shouldCursorBeVisible();
+        final TerminalBuffer screen = snapshot.mScreen;
+        final int[] palette = snapshot.mPalette;
+        final int cursorShape = snapshot.mCursorStyle;
+        final float heightOffset = mFontLineSpacingAndAscent + (viewRow + 1) * mFontLineSpacing;
+        final int rowTop = mFontLineSpacingAndAscent + viewRow * mFontLineSpacing;
+
+        canvas.save();
+        canvas.clipRect(0, rowTop, width, rowTop + mFontLineSpacing);
+        canvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+
+        final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
+        int selx1 = -1, selx2 = -1;
+        if (row >= selectionY1 && row <= selectionY2) {
+            if (row == selectionY1) selx1 = selectionX1;
+            selx2 = (row == selectionY2) ? selectionX2 : columns;
+        }
+
+        TerminalRow lineObject = screen.getRow(row);
+        final char[] line = lineObject.mText;
+        final int charsUsedInLine = lineObject.getSpaceUsed();
+
+        long lastRunStyle = 0;
+        boolean lastRunInsideCursor = false;
+        boolean lastRunInsideSelection = false;
+        int lastRunStartColumn = -1;
+        int lastRunStartIndex = 0;
+        boolean lastRunFontWidthMismatch = false;
+        int currentCharIndex = 0;
+        float measuredWidthForRun = 0.f;
+
+        for (int column = 0; column < columns; ) {
+            final char charAtIndex = line[currentCharIndex];
+            final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
+            final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
+            final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
+            final int codePointWcWidth = WcWidth.width(codePoint);
+            final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
+            final boolean insideSelection = column >= selx1 && column <= selx2;
+            final long style = lineObject.getStyle(column);
+
+            // Check if the measured text width for this code point is not the same as that expected by wcwidth().
+            // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
+            // smileys which android font renders as wide.
+            // If this is detected, we draw this code point scaled to match what wcwidth() expects.
+            final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint]
+                : measureCodePoint(codePoint, line, currentCharIndex, charsForCodePoint);
+            final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
+
+            if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
+                if (column == 0) {
+                    // Skip first column as there is nothing to draw, just record the current style.
+                } else {
+                    final int columnWidthSinceLastRun = column - lastRunStartColumn;
+                    final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+                    int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                    boolean invertCursorTextColor = false;
+                    if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+                        invertCursorTextColor = true;
                     }
-                    measuredWidthForRun = 0.f;
-                    lastRunStyle = style;
-                    lastRunInsideCursor = insideCursor;
-                    lastRunInsideSelection = insideSelection;
-                    lastRunStartColumn = column;
-                    lastRunStartIndex = currentCharIndex;
-                    lastRunFontWidthMismatch = fontWidthMismatch;
-                }
-                measuredWidthForRun += measuredCodePointWidth;
-                column += codePointWcWidth;
-                currentCharIndex += charsForCodePoint;
-                while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
-                    // Eat combining chars so that they are treated as part of the last non-combining code point,
-                    // instead of e.g. being considered inside the cursor in the next run.
-                    currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+                    drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
+                        lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
+                        cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
                 }
+                measuredWidthForRun = 0.f;
+                lastRunStyle = style;
+                lastRunInsideCursor = insideCursor;
+                lastRunInsideSelection = insideSelection;
+                lastRunStartColumn = column;
+                lastRunStartIndex = currentCharIndex;
+                lastRunFontWidthMismatch = fontWidthMismatch;
             }
-
-            final int columnWidthSinceLastRun = columns - lastRunStartColumn;
-            final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-            boolean invertCursorTextColor = false;
-            if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                invertCursorTextColor = true;
+            measuredWidthForRun += measuredCodePointWidth;
+            column += codePointWcWidth;
+            currentCharIndex += charsForCodePoint;
+            while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
+                // Eat combining chars so that they are treated as part of the last non-combining code point,
+                // instead of e.g. being considered inside the cursor in the next run.
+                currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
             }
-            drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
-                measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
         }
+
+        final int columnWidthSinceLastRun = columns - lastRunStartColumn;
+        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+        int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+        boolean invertCursorTextColor = false;
+        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+            invertCursorTextColor = true;
+        }
+        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+            measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+
+        canvas.restore();
+    }
+
+    /** The width of a code point outside of {@link #asciiMeasures}, which is only measured the first time. */
+    private float measureCodePoint(int codePoint, char[] line, int charIndex, int charCount) {
+        float width = mGlyphWidths.get(codePoint);
+        if (Float.isNaN(width)) {
+            width = mTextPaint.measureText(line, charIndex, charCount);
+            mGlyphWidths.put(codePoint, width);
+        }
+        return width;
+    }
+
+    /** Free the backing bitmaps and glyph atlas, which will be recreated if rendering again. */
+    public void releaseBitmaps() {
+        if (mBackingBitmap != null) mBackingBitmap.recycle();
+        if (mGlyphAtlas != null) mGlyphAtlas.release();
+        if (mScrollBitmap != null) mScrollBitmap.recycle();
+        mBackingBitmap = mScrollBitmap = null;
+        mBackingCanvas = mScrollCanvas = null;
     }
 
     private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
@@ -226,14 +406,19 @@ public final class TerminalRenderer {
                 foreColor = 0xFF000000 + (red << 16) + (green << 8) + blue;
             }
 
-            mTextPaint.setFakeBoldText(bold);
-            mTextPaint.setUnderlineText(underline);
-            mTextPaint.setTextSkewX(italic ? -0.35f : 0.f);
-            mTextPaint.setStrikeThruText(strikeThrough);
-            mTextPaint.setColor(foreColor);
-
-            // The text alignment is the default Paint.Align.LEFT.
-            canvas.drawTextRun(text, startCharIndex, runWidthChars, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, false, mTextPaint);
+            // A scaled run, with glyphs not matching their width, and lines through the text are left to drawTextRun():
+            final boolean drawnFromAtlas = mGlyphAtlas != null && !savedMatrix && !underline && !strikeThrough
+                && mGlyphAtlas.drawRun(canvas, text, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, bold, italic, foreColor);
+            if (!drawnFromAtlas) {
+                mTextPaint.setFakeBoldText(bold);
+                mTextPaint.setUnderlineText(underline);
+                mTextPaint.setTextSkewX(italic ? -0.35f : 0.f);
+                mTextPaint.setStrikeThruText(strikeThrough);
+                mTextPaint.setColor(foreColor);
+
+                // The text alignment is the default Paint.Align.LEFT.
+                canvas.drawTextRun(text, startCharIndex, runWidthChars, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, false, mTextPaint);
+            }
         }
 
         if (savedMatrix) canvas.restore();
@@ -38,10 +38,17 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.anthroid.terminal.KeyHandler;
+import com.anthroid.terminal.TerminalBuffer;
 import com.anthroid.terminal.TerminalEmulator;
+import com.anthroid.terminal.TerminalSearch;
 import com.anthroid.terminal.TerminalSession;
+import com.anthroid.terminal.TerminalSnapshot;
 import com.anthroid.view.textselection.TextSelectionCursorController;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /** View displaying and interacting with a {@link TerminalSession}. */
 public final class TerminalView extends View {
 
@@ -52,6 +59,11 @@ public final class TerminalView extends View {
     public TerminalSession mTermSession;
     /** Our terminal emulator whose session is {@link #mTermSession}. */
     public TerminalEmulator mEmulator;
+    /**
+     * The latest snapshot published by the emulator thread of {@link #mTermSession} which is rendered instead of
+     * {@link #mEmulator}, or null if the session does not run its emulator on a separate thread.
+     */
+    private TerminalSnapshot mSnapshot;
 
     public TerminalRenderer mRenderer;
 
@@ -70,6 +82,13 @@ public final class TerminalView extends View {
     int mTopRow;
     int[] mDefaultSelectors = new int[]{-1,-1,-1,-1};
 
+    /** The maximum number of hits kept by {@link #findText(String, boolean)}, those nearest the bottom. */
+    public static final int MAX_FIND_HITS = 1000;
+    /** The hits of the last {@link #findText(String, boolean)} from top to bottom, in rows of the current content. */
+    private List<TerminalSearch.Hit> mFindHits = Collections.emptyList();
+    /** The index in {@link #mFindHits} of the highlighted hit, or -1 if none. */
+    private int mFindHitIndex = -1;
+
     float mScaleFactor = 1.f;
     final GestureAndScaleRecognizer mGestureRecognizer;
 
@@ -293,7 +312,9 @@ public final class TerminalView extends View {
 
         mTermSession = session;
         mEmulator = null;
+        mSnapshot = null;
         mCombiningAccent = 0;
+        clearFind();
 
         updateSize();
 
@@ -456,14 +477,17 @@ public final class TerminalView extends View {
 
     public void onScreenUpdated(boolean skipScrolling) {
         if (mEmulator == null) return;
+        updateSnapshot();
 
-        int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
+        int rowsInHistory = (mSnapshot != null ? mSnapshot.mScreen : mEmulator.getScreen()).getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
+        if (!mFindHits.isEmpty())
+            scrollFindHits(mSnapshot != null ? mSnapshot.getScrollCounter() : mEmulator.getScrollCounter(), rowsInHistory);
 
         if (isSelectingText() || mEmulator.isAutoScrollDisabled()) {
 
             // Do not scroll when selecting text.
-            int rowShift = mEmulator.getScrollCounter();
+            int rowShift = mSnapshot != null ? mSnapshot.getScrollCounter() : mEmulator.getScrollCounter();
             if (-mTopRow + rowShift > rowsInHistory) {
                 // .. unless we're hitting the end of history transcript, in which
                 // case we abort text selection and scroll to end.
@@ -492,7 +516,8 @@ public final class TerminalView extends View {
             mTopRow = 0;
         }
 
-        mEmulator.clearScrollCounter();
+        if (mSnapshot != null) mSnapshot.clearScrollCounter();
+        else mEmulator.clearScrollCounter();
 
         invalidate();
         if (mAccessibilityEnabled) setContentDescription(getText());
@@ -512,16 +537,31 @@ public final class TerminalView extends View {
      * @param textSize the new font size, in density-independent pixels.
      */
     public void setTextSize(int textSize) {
-        mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
+        TerminalRenderer oldRenderer = mRenderer;
+        mRenderer = new TerminalRenderer(textSize, oldRenderer == null ? Typeface.MONOSPACE : oldRenderer.mTypeface,
+            oldRenderer != null && oldRenderer.isGlyphAtlasEnabled());
+        if (oldRenderer != null) oldRenderer.releaseBitmaps();
         updateSize();
     }
 
     public void setTypeface(Typeface newTypeface) {
-        mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface);
+        mRenderer.releaseBitmaps();
+        mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface, mRenderer.isGlyphAtlasEnabled());
         updateSize();
         invalidate();
     }
 
+    /**
+     * Draw glyphs from an atlas of rasterized glyphs instead of drawing text for every run of cells with the same
+     * style, which is faster for screens with many colors. See {@link TerminalRenderer#TerminalRenderer(int, Typeface, boolean)}.
+     */
+    public void setGlyphAtlasEnabled(boolean enabled) {
+        if (mRenderer.isGlyphAtlasEnabled() == enabled) return;
+        mRenderer.releaseBitmaps();
+        mRenderer = new TerminalRenderer(mRenderer.mTextSize, mRenderer.mTypeface, enabled);
+        invalidate();
+    }
+
     @Override
     public boolean onCheckIsTextEditor() {
         return true;
@@ -1013,8 +1053,18 @@ public final class TerminalView extends View {
             if (mTextSelectionCursorController != null) {
                 mTextSelectionCursorController.getSelectors(sel);
             }
+            if (!isSelectingText() && mFindHitIndex != -1) {
+                // Highlight the current find hit like a selection:
+                TerminalSearch.Hit hit = mFindHits.get(mFindHitIndex);
+                sel = new int[]{hit.mStartRow, hit.mEndRow, hit.mStartColumn, hit.mEndColumn};
+            }
 
-            mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            updateSnapshot();
+            if (mSnapshot != null) {
+                mRenderer.render(mSnapshot, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            } else {
+                mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            }
 
             // render the text selection handles
             renderTextSelection();
@@ -1026,9 +1076,99 @@ public final class TerminalView extends View {
     }
 
     private CharSequence getText() {
+        if (mSnapshot != null)
+            return mSnapshot.mScreen.getSelectedText(0, mTopRow, mSnapshot.mColumns, mTopRow + mSnapshot.mRows);
         return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
     }
 
+    /**
+     * Find a text in the screen and history of the current session, highlighting and scrolling to the occurrence
+     * nearest the bottom. Further occurrences are shown with {@link #findNext(boolean)}. History left to reflow by a
+     * change of columns is reflowed first, so that all of it is searched.
+     *
+     * @return the number of occurrences found, at most {@link #MAX_FIND_HITS}.
+     */
+    public int findText(String query, boolean caseSensitive) {
+        clearFind();
+        if (mEmulator == null || TextUtils.isEmpty(query)) return 0;
+        mTermSession.finishReflow();
+        updateSnapshot();
+        TerminalBuffer screen = (mSnapshot != null) ? mSnapshot.mScreen : mEmulator.getScreen();
+        mFindHits = screen.search(query, caseSensitive, MAX_FIND_HITS);
+        if (mFindHits.isEmpty()) return 0;
+        showFindHit(mFindHits.size() - 1);
+        return mFindHits.size();
+    }
+
+    /**
+     * Highlight and scroll to the next occurrence of the last {@link #findText(String, boolean)}, wrapping around.
+     *
+     * @param down if to go to the occurrence below the current one rather than above it.
+     * @return if there is an occurrence to show.
+     */
+    public boolean findNext(boolean down) {
+        if (mFindHits.isEmpty()) return false;
+        int count = mFindHits.size();
+        if (mFindHitIndex == -1) showFindHit(down ? 0 : count - 1);
+        else showFindHit((mFindHitIndex + (down ? 1 : count - 1)) % count);
+        return true;
+    }
+
+    /** Stop highlighting the occurrences of the last {@link #findText(String, boolean)}. */
+    public void clearFind() {
+        mFindHits = Collections.emptyList();
+        mFindHitIndex = -1;
+        invalidate();
+    }
+
+    private void showFindHit(int index) {
+        mFindHitIndex = index;
+        TerminalSearch.Hit hit = mFindHits.get(index);
+        int rows = (mSnapshot != null) ? mSnapshot.mRows : mEmulator.mRows;
+        if (hit.mStartRow < mTopRow || hit.mEndRow >= mTopRow + rows) {
+            int rowsInHistory = (mSnapshot != null ? mSnapshot.mScreen : mEmulator.getScreen()).getActiveTranscriptRows();
+            mTopRow = Math.min(0, Math.max(-rowsInHistory, hit.mStartRow - rows / 2));
+            awakenScrollBars();
+        }
+        invalidate();
+    }
+
+    /** Keep the find hits on their text as the content scrolls up, dropping those scrolled out of the history. */
+    private void scrollFindHits(int rowShift, int rowsInHistory) {
+        if (rowShift == 0) return;
+        List<TerminalSearch.Hit> hits = new ArrayList<>(mFindHits.size());
+        int newIndex = -1;
+        for (int i = 0; i < mFindHits.size(); i++) {
+            TerminalSearch.Hit hit = mFindHits.get(i).scrolledBy(rowShift);
+            if (hit.mStartRow < -rowsInHistory) continue;
+            if (i == mFindHitIndex) newIndex = hits.size();
+            hits.add(hit);
+        }
+        mFindHits = hits;
+        mFindHitIndex = newIndex;
+    }
+
+    /**
+     * Take the snapshot most recently published by the emulator thread of the session, if it runs one, keeping the
+     * changes of a previous snapshot which has not been rendered yet.
+     */
+    private void updateSnapshot() {
+        if (mTermSession == null || !mTermSession.isEmulatorThreadEnabled()) {
+            mSnapshot = null;
+            return;
+        }
+        TerminalSnapshot snapshot = mTermSession.takePublishedSnapshot();
+        if (snapshot == null && mSnapshot == null) {
+            // Already taken while another view or an earlier attachment displayed the session.
+            snapshot = mTermSession.getLatestSnapshot();
+            if (snapshot != null) snapshot.mScreen.markAllDirty();
+        }
+        if (snapshot != null) {
+            snapshot.includeChangesOf(mSnapshot);
+            mSnapshot = snapshot;
+        }
+    }
+
     public int getCursorX(float x) {
         return (int) (x / mRenderer.mFontWidth);
     }
@@ -1441,6 +1581,9 @@ public final class TerminalView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        // The backing bitmaps are recreated on the next draw after being attached again:
+        if (mRenderer != null) mRenderer.releaseBitmaps();
+
         if (mTextSelectionCursorController != null) {
             // Might solve the following exception
             // android.view.WindowLeaked: Activity com.anthroid.app.TermuxActivity has leaked window android.widget.PopupWindow
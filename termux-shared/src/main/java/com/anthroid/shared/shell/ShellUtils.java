@@ -5,8 +5,8 @@ import androidx.annotation.Nullable;
 
 import com.anthroid.shared.file.FileUtils;
 import com.anthroid.terminal.TerminalBuffer;
-import com.anthroid.terminal.TerminalEmulator;
 import com.anthroid.terminal.TerminalSession;
+import com.anthroid.terminal.TerminalSnapshot;
 
 import java.lang.reflect.Field;
 
@@ -48,15 +48,17 @@ public class ShellUtils {
 
 
 
-    /** Get transcript for {@link TerminalSession}. */
+    /**
+     * Get transcript for {@link TerminalSession}, read from a {@link TerminalSession#takeSnapshot()} so that it may be
+     * called on any thread.
+     */
     public static String getTerminalSessionTranscriptText(TerminalSession terminalSession, boolean linesJoined, boolean trim) {
         if (terminalSession == null) return null;
 
-        TerminalEmulator terminalEmulator = terminalSession.getEmulator();
-        if (terminalEmulator == null) return null;
+        TerminalSnapshot terminalSnapshot = terminalSession.takeSnapshot();
+        if (terminalSnapshot == null) return null;
 
-        TerminalBuffer terminalBuffer = terminalEmulator.getScreen();
-        if (terminalBuffer == null) return null;
+        TerminalBuffer terminalBuffer = terminalSnapshot.mScreen;
 
         String transcriptText;
 
@@ -73,4 +75,18 @@ public class ShellUtils {
         return transcriptText;
     }
 
+    /**
+     * Get the text of the last rows of the transcript for {@link TerminalSession}, reading no more than maxRows rows
+     * of its history, see {@link TerminalBuffer#getTranscriptTextTail(int, boolean, boolean)}. Read from a
+     * {@link TerminalSession#takeSnapshot()} so that it may be called on any thread.
+     */
+    public static String getTerminalSessionTranscriptTail(TerminalSession terminalSession, int maxRows, boolean linesJoined) {
+        if (terminalSession == null) return null;
+
+        TerminalSnapshot terminalSnapshot = terminalSession.takeSnapshot();
+        if (terminalSnapshot == null) return null;
+
+        return terminalSnapshot.mScreen.getTranscriptTextTail(maxRows, linesJoined, linesJoined);
+    }
+
 }
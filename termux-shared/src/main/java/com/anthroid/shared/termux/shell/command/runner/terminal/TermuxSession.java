@@ -16,6 +16,7 @@ import com.anthroid.shared.errors.Errno;
 import com.anthroid.shared.logger.Logger;
 import com.anthroid.shared.shell.command.environment.IShellEnvironment;
 import com.anthroid.shared.shell.ShellUtils;
+import com.anthroid.terminal.RateLimitedLogOutputTap;
 import com.anthroid.terminal.TerminalSession;
 import com.anthroid.terminal.TerminalSessionClient;
 
@@ -38,6 +39,10 @@ public class TermuxSession {
 
     private static final String LOG_TAG = "TermuxSession";
 
+    /** The log tag and rate limit used for mirroring session output to logcat at verbose log level. */
+    private static final String OUTPUT_LOG_TAG = "TerminalOutput";
+    private static final int OUTPUT_LOG_MAX_BYTES_PER_SECOND = 16 * 1024;
+
     private TermuxSession(@NonNull final TerminalSession terminalSession, @NonNull final ExecutionCommand executionCommand,
                           final TermuxSessionClient termuxSessionClient, final boolean setStdoutOnExit) {
         this.mTerminalSession = terminalSession;
@@ -161,6 +166,12 @@ public class TermuxSession {
             terminalSession.mSessionName = executionCommand.shellName;
         }
 
+        // Mirroring the output to logcat costs a decode per read, so only do it when asked for with verbose logging
+        if (Logger.getLogLevel() >= Logger.LOG_LEVEL_VERBOSE) {
+            terminalSession.setOutputTap(new RateLimitedLogOutputTap(terminalSessionClient, OUTPUT_LOG_TAG,
+                OUTPUT_LOG_MAX_BYTES_PER_SECOND));
+        }
+
         return new TermuxSession(terminalSession, executionCommand, termuxSessionClient, setStdoutOnExit);
     }
 